@@ -9,6 +9,10 @@ extern "C" {
 #endif
 #undef uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_DEVICE_MAP_SIZE
 #define uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_DEVICE_MAP_SIZE 20L
+#undef uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_FINGERPRINT_SEED
+#define uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_FINGERPRINT_SEED -3750763034362895579LL
+#undef uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_FINGERPRINT_PRIME
+#define uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider_FINGERPRINT_PRIME 1099511628211LL
 /*
  * Class:     uk_co_xfactorylibrarians_coremidi4j_CoreMidiDeviceProvider
  * Method:    getNumberOfSources
@@ -7,6 +7,8 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource_ACTIVE_SENSING_TIMEOUT
+#define uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource_ACTIVE_SENSING_TIMEOUT 300000LL
 /*
  * Class:     uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource
  * Method:    getMicroSecondTime
@@ -0,0 +1,280 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Keeps track of which notes are sounding on each of the sixteen MIDI channels, as a bitmap of 16 &times; 128 bits,
+ * so that exactly the note offs needed to silence them can be sent when the notes would otherwise be left stuck.
+ * Updates and releases are lock-free and can come from any thread; a note which is released by one thread is never
+ * released again by another.
+ *
+ */
+
+public class ActiveNoteMap {
+
+  private static final int CHANNELS = 16;
+  private static final int WORDS_PER_CHANNEL = 2;
+  private static final int ALL_SOUND_OFF = 120;
+  private static final int ALL_NOTES_OFF = 123;
+
+  private final AtomicLongArray notes = new AtomicLongArray(CHANNELS * WORDS_PER_CHANNEL);
+
+  /**
+   * Records the effect of a MIDI message on which notes are sounding. Note on with a velocity other than zero starts
+   * a note; note off, or note on with zero velocity, ends it; All Sound Off, All Notes Off, and the mode changes which
+   * imply it, end every note on the channel. Other messages are ignored.
+   *
+   * @param status the status byte of the message
+   * @param data1  the first data byte
+   * @param data2  the second data byte
+   */
+
+  public void update(final int status, final int data1, final int data2) {
+
+    final int channel = status & 0x0f;
+
+    switch ( status & 0xf0 ) {
+
+      case ShortMessage.NOTE_ON:
+        if ( data2 != 0 ) {
+
+          setBit(channel, data1);
+
+        } else {
+
+          clearBit(channel, data1);
+
+        }
+        break;
+
+      case ShortMessage.NOTE_OFF:
+        clearBit(channel, data1);
+        break;
+
+      case ShortMessage.CONTROL_CHANGE:
+        if ( data1 == ALL_SOUND_OFF || data1 >= ALL_NOTES_OFF ) {
+
+          notes.set(channel * WORDS_PER_CHANNEL, 0);
+          notes.set(channel * WORDS_PER_CHANNEL + 1, 0);
+
+        }
+        break;
+
+      default:
+        break;
+
+    }
+
+  }
+
+  /**
+   * Records the effect of a MIDI message on which notes are sounding, as {@link #update(int, int, int)} does.
+   *
+   * @param message the message
+   */
+
+  public void update(final MidiMessage message) {
+
+    if ( message instanceof ShortMessage ) {
+
+      final ShortMessage shortMessage = (ShortMessage) message;
+      update(shortMessage.getStatus(), shortMessage.getData1(), shortMessage.getData2());
+
+    }
+
+  }
+
+  /**
+   * Checks whether a note is sounding.
+   *
+   * @param channel the MIDI channel, from 0 to 15
+   * @param note    the note number, from 0 to 127
+   *
+   * @return true if the note has been started and not ended
+   */
+
+  public boolean isActive(final int channel, final int note) {
+
+    return (notes.get(channel * WORDS_PER_CHANNEL + (note >> 6)) & (1L << (note & 0x3f))) != 0;
+
+  }
+
+  /**
+   * Counts the notes which are sounding.
+   *
+   * @return the number of notes, across all channels
+   */
+
+  public int getActiveCount() {
+
+    int count = 0;
+
+    for ( int i = 0; i < notes.length(); i++ ) {
+
+      count += Long.bitCount(notes.get(i));
+
+    }
+
+    return count;
+
+  }
+
+  /**
+   * Checks whether any notes are sounding.
+   *
+   * @return true if there are no notes sounding on any channel
+   */
+
+  public boolean isEmpty() {
+
+    for ( int i = 0; i < notes.length(); i++ ) {
+
+      if ( notes.get(i) != 0 ) {
+
+        return false;
+
+      }
+
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Forgets every note without sending anything, for when the device they were sounding on is known to be gone.
+   */
+
+  public void clear() {
+
+    for ( int i = 0; i < notes.length(); i++ ) {
+
+      notes.set(i, 0);
+
+    }
+
+  }
+
+  /**
+   * Ends every note which is sounding, returning the note offs which need to be sent to silence them. Only notes
+   * which are actually sounding get a note off, rather than every note on every channel.
+   *
+   * @return the note offs, in channel and note order; empty if nothing is sounding
+   */
+
+  public List<ShortMessage> release() {
+
+    final List<ShortMessage> result = new ArrayList<>();
+
+    try {
+
+      for ( int i = 0; i < notes.length(); i++ ) {
+
+        long word = notes.getAndSet(i, 0);
+
+        while ( word != 0 ) {
+
+          final int bit = Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+          result.add(new ShortMessage(ShortMessage.NOTE_OFF, i / WORDS_PER_CHANNEL,
+                                      ((i % WORDS_PER_CHANNEL) << 6) | bit, 0));
+
+        }
+
+      }
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build note off", e);
+
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Ends every note which is sounding, sending the note offs needed to silence them to a receiver.
+   *
+   * @param receiver  where the note offs should be sent
+   * @param timeStamp the time stamp to send them with, or -1 for immediately
+   *
+   * @return the number of note offs sent
+   */
+
+  public int release(final Receiver receiver, final long timeStamp) {
+
+    final List<ShortMessage> noteOffs = release();
+
+    for ( ShortMessage noteOff : noteOffs ) {
+
+      receiver.send(noteOff, timeStamp);
+
+    }
+
+    return noteOffs.size();
+
+  }
+
+  /**
+   * Marks a note as sounding.
+   *
+   * @param channel the MIDI channel
+   * @param note    the note number
+   */
+
+  private void setBit(final int channel, final int note) {
+
+    final int index = channel * WORDS_PER_CHANNEL + (note >> 6);
+    final long mask = 1L << (note & 0x3f);
+    long old;
+
+    do {
+
+      old = notes.get(index);
+
+    } while ( (old & mask) == 0 && !notes.compareAndSet(index, old, old | mask) );
+
+  }
+
+  /**
+   * Marks a note as no longer sounding.
+   *
+   * @param channel the MIDI channel
+   * @param note    the note number
+   */
+
+  private void clearBit(final int channel, final int note) {
+
+    final int index = channel * WORDS_PER_CHANNEL + (note >> 6);
+    final long mask = 1L << (note & 0x3f);
+    long old;
+
+    do {
+
+      old = notes.get(index);
+
+    } while ( (old & mask) != 0 && !notes.compareAndSet(index, old, old & ~mask) );
+
+  }
+
+}
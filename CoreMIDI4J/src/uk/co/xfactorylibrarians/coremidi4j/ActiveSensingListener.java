@@ -0,0 +1,37 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * The interface for a class that wants to be told when a source which has been sending Active Sensing falls silent,
+ * meaning that its cable has probably been pulled out or the device switched off. Methods are called on the
+ * library's background thread, but never while the source is delivering messages from the CoreMIDI input thread,
+ * which waits for them to return.
+ *
+ */
+
+public interface ActiveSensingListener {
+
+  /**
+   * Called when a source which has sent Active Sensing has sent nothing at all for
+   * {@link CoreMidiSource#ACTIVE_SENSING_TIMEOUT}. By the time this is called, any notes the source left sounding
+   * have been ended with note offs, and the source is no longer considered to be sending Active Sensing until it
+   * sends another Active Sensing message.
+   *
+   * @param source  the source which fell silent
+   * @param silence how long it has been since anything was received from the source, in microseconds
+   */
+
+  void activeSensingTimedOut(CoreMidiSource source, long silence);
+
+}
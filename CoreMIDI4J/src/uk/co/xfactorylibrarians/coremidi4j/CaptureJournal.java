@@ -0,0 +1,762 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Records everything a {@link CoreMidiSource} receives into a directory of segment files, for later analysis or
+ * replay with {@link CaptureJournalReader}. Recording happens directly on the CoreMIDI input thread, but only ever
+ * copies bytes into memory-mapped files: the operating system writes them to disk in its own time, and the next
+ * segment is created ahead of time on a background thread, so a slow disk does not hold up the input or lose
+ * events. Each journal has a thread of its own for creating and flushing segments, so a slow disk cannot delay the
+ * library's timing or scanning either.</p>
+ *
+ * <p>Each segment holds a header, a stream of events, each written as a variable-length time delta followed by the
+ * raw bytes of a short message, and System Exclusive data, which is stored separately at the end of the segment
+ * (growing downwards) so that the event stream stays compact. Every {@value #INDEX_INTERVAL} events the time and
+ * position of the event are noted, and when the segment is finished this sparse index is written after the events,
+ * so that a reader can find any moment in the recording with a pair of binary searches.</p>
+ *
+ * <p>Times are recorded in microseconds since the epoch, measured when each message arrives.</p>
+ *
+ */
+
+public class CaptureJournal implements Closeable {
+
+  /**
+   * The default size of each segment file, in bytes.
+   */
+
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * How many events there are between entries in the time index of each segment.
+   */
+
+  public static final int INDEX_INTERVAL = 64;
+
+  static final int MAGIC = 0x434d344a;  // "CM4J"
+  static final short FORMAT_VERSION = 1;
+  static final String SEGMENT_SUFFIX = ".cmj";
+
+  // The layout of the segment header
+  static final int BASE_TIME_OFFSET = 8;       // long: the time from which the first event's delta is measured
+  static final int END_TIME_OFFSET = 16;       // long: the time of the last event
+  static final int EVENT_END_OFFSET = 24;      // int: the position just after the last event
+  static final int BLOB_START_OFFSET = 28;     // int: the position of the most recently stored SysEx data
+  static final int INDEX_POSITION_OFFSET = 32; // int: the position of the index, or 0 if not yet written
+  static final int INDEX_COUNT_OFFSET = 36;    // int: the number of index entries
+  static final int EVENT_COUNT_OFFSET = 40;    // int: the number of events
+  static final int HEADER_SIZE = 48;
+
+  private static final long IO_KEEP_ALIVE_SECONDS = 5;
+  private static final AtomicInteger ioThreadCount = new AtomicInteger();
+
+  static final int INDEX_ENTRY_SIZE = 12;      // long time, int position
+  static final int SYSEX_MARKER = 0xf0;
+
+  private static final int MAX_SHORT_EVENT_SIZE = 10 + 3;       // Delta plus the longest short message
+  private static final int MAX_SYSEX_EVENT_SIZE = 10 + 1 + 5 + 5; // Delta, marker, position and length
+
+  private final File directory;
+  private final int segmentSize;
+  private static final long ORIGIN_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+  private static final long ORIGIN_NANOS = System.nanoTime();
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      record(now(), status, data1, data2);
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      recordSysex(now(), data, length);
+
+    }
+
+  };
+
+  private final ExecutorService io = createIoExecutor();  // Creates and flushes segments
+  private CoreMidiSource source;
+  private MappedByteBuffer segment;             // The segment being written
+  private int segmentNumber = 0;
+  private Future<MappedByteBuffer> spare;        // The next segment, being prepared in the background
+  private long lastTime;                         // The time of the most recent event in the current segment
+  private int eventCount;
+  private int blobStart;
+  private long[] indexTimes = new long[64];
+  private int[] indexPositions = new int[64];
+  private int indexCount;
+  private long totalEvents;
+  private long droppedEvents;
+  private boolean closed;
+
+  /**
+   * Creates a journal which will write segments of the default size into a directory.
+   *
+   * @param directory where the segment files should be written; it is created if necessary, and should not already
+   *                  contain another journal
+   *
+   * @throws IOException if the directory or the first segment cannot be created
+   */
+
+  public CaptureJournal(final File directory) throws IOException {
+
+    this(directory, DEFAULT_SEGMENT_SIZE);
+
+  }
+
+  /**
+   * Creates a journal which will write segments of a particular size into a directory.
+   *
+   * @param directory   where the segment files should be written; it is created if necessary, and should not
+   *                    already contain another journal
+   * @param segmentSize the size of each segment file, in bytes
+   *
+   * @throws IOException if the directory or the first segment cannot be created
+   * @throws IllegalArgumentException if {@code segmentSize} is less than 4096
+   */
+
+  public CaptureJournal(final File directory, final int segmentSize) throws IOException {
+
+    if ( segmentSize < 4096 ) {
+
+      throw new IllegalArgumentException("segmentSize must be at least 4096");
+
+    }
+
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+
+      throw new IOException("Unable to create journal directory " + directory);
+
+    }
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    startSegment(createSegment(segmentFile(directory, ++segmentNumber), segmentSize));
+    prepareSpare();
+
+  }
+
+  /**
+   * Starts recording everything received by a source. A journal records a single source at a time; attaching it to
+   * another source stops it recording the previous one.
+   *
+   * @param newSource the source to record, which must be open for anything to be received
+   */
+
+  public synchronized void attach(final CoreMidiSource newSource) {
+
+    if ( closed ) {
+
+      throw new IllegalStateException("The journal has been closed");
+
+    }
+
+    detach();
+    source = newSource;
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Stops recording the source the journal is attached to, if any. The journal remains open, and can be attached
+   * again.
+   */
+
+  public synchronized void detach() {
+
+    if ( source != null ) {
+
+      source.removeSourceListener(listener);
+      source = null;
+
+    }
+
+  }
+
+  /**
+   * Gets the directory into which the journal is written.
+   *
+   * @return the journal directory
+   */
+
+  public File getDirectory() {
+
+    return directory;
+
+  }
+
+  /**
+   * Gets the number of events recorded so far.
+   *
+   * @return how many messages have been recorded
+   */
+
+  public synchronized long getEventCount() {
+
+    return totalEvents;
+
+  }
+
+  /**
+   * Gets the number of events which could not be recorded, because a new segment could not be created.
+   *
+   * @return how many messages have been lost
+   */
+
+  public synchronized long getDroppedEventCount() {
+
+    return droppedEvents;
+
+  }
+
+  /**
+   * Gets the current time on the clock used to stamp recorded messages, which counts from the epoch like the system
+   * clock but is never adjusted while running.
+   *
+   * @return the current time, in microseconds since the epoch
+   */
+
+  static long now() {
+
+    return ORIGIN_MICROS + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ORIGIN_NANOS);
+
+  }
+
+  /**
+   * Records a short message.
+   *
+   * @param time   when the message was received, in microseconds since the epoch; times earlier than that of the
+   *               previous message are treated as equal to it
+   * @param status the status byte
+   * @param data1  the first data byte, if any
+   * @param data2  the second data byte, if any
+   */
+
+  synchronized void record(final long time, final int status, final int data1, final int data2) {
+
+    if ( closed || !ensureSpace(MAX_SHORT_EVENT_SIZE, 0) ) {
+
+      droppedEvents++;
+      return;
+
+    }
+
+    final long eventTime = beginEvent(time);
+    final int dataLength = dataLength(status);
+    segment.put((byte) status);
+
+    if ( dataLength > 0 ) {
+
+      segment.put((byte) data1);
+
+      if ( dataLength > 1 ) {
+
+        segment.put((byte) data2);
+
+      }
+
+    }
+
+    endEvent(eventTime);
+
+  }
+
+  /**
+   * Records a System Exclusive message, storing its data at the end of the segment.
+   *
+   * @param time   when the message was received, in microseconds since the epoch
+   * @param data   the bytes of the message
+   * @param length the number of bytes in the message
+   */
+
+  synchronized void recordSysex(final long time, final byte[] data, final int length) {
+
+    if ( closed || !ensureSpace(MAX_SYSEX_EVENT_SIZE, length) ) {
+
+      droppedEvents++;
+      return;
+
+    }
+
+    blobStart -= length;
+    final ByteBuffer blob = segment.duplicate();
+    ((Buffer) blob).position(blobStart);
+    blob.put(data, 0, length);
+
+    final long eventTime = beginEvent(time);
+    segment.put((byte) SYSEX_MARKER);
+    putVarint(segment, blobStart);
+    putVarint(segment, length);
+    endEvent(eventTime);
+
+  }
+
+  /**
+   * Writes the time delta which starts an event, adding an index entry first if one is due. The first event in a
+   * segment becomes its base time.
+   *
+   * @param requestedTime when the event happened
+   *
+   * @return the time recorded for the event, which is never earlier than the previous one
+   */
+
+  private long beginEvent(final long requestedTime) {
+
+    if ( eventCount == 0 ) {
+
+      lastTime = requestedTime;
+      segment.putLong(BASE_TIME_OFFSET, requestedTime);
+
+    }
+
+    final long time = Math.max(requestedTime, lastTime);
+
+    if ( eventCount % INDEX_INTERVAL == 0 ) {
+
+      if ( indexCount == indexTimes.length ) {
+
+        indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+        indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+
+      }
+
+      indexTimes[indexCount] = time;
+      indexPositions[indexCount] = segment.position();
+      indexCount++;
+
+    }
+
+    putVarint(segment, time - lastTime);
+    return time;
+
+  }
+
+  /**
+   * Finishes an event by bringing the segment header up to date, so that the segment can be read even if the
+   * journal is never closed properly.
+   *
+   * @param time the time of the event
+   */
+
+  private void endEvent(final long time) {
+
+    lastTime = time;
+    eventCount++;
+    totalEvents++;
+    segment.putLong(END_TIME_OFFSET, time);
+    segment.putInt(BLOB_START_OFFSET, blobStart);
+    segment.putInt(EVENT_COUNT_OFFSET, eventCount);
+    segment.putInt(EVENT_END_OFFSET, segment.position());
+
+  }
+
+  /**
+   * Makes sure there is room in the current segment for an event, moving on to a new segment if there is not.
+   *
+   * @param eventSize the most space the event itself can take
+   * @param blobSize  the size of any System Exclusive data to be stored with it
+   *
+   * @return true if there is now room, or false if a new segment was needed but could not be created
+   */
+
+  private boolean ensureSpace(final int eventSize, final int blobSize) {
+
+    if ( fits(eventSize, blobSize) ) {
+
+      return true;
+
+    }
+
+    try {
+
+      sealSegment();
+      MappedByteBuffer next = takeSpare();
+      final int needed = HEADER_SIZE + blobSize + eventSize + 2 * INDEX_ENTRY_SIZE;
+
+      if ( needed > next.capacity() ) {  // Too big for a normal segment, so enlarge this one to fit
+
+        next = createSegment(segmentFile(directory, segmentNumber), needed);
+
+      }
+
+      startSegment(next);
+      return fits(eventSize, blobSize);
+
+    } catch (IOException e) {
+
+      System.err.println("Unable to start new capture journal segment in " + directory + ": " + e);
+      return false;
+
+    }
+
+  }
+
+  /**
+   * Checks whether there is room in the current segment for an event, leaving room for its index entry and the
+   * index entries of all the events so far.
+   *
+   * @param eventSize the most space the event itself can take
+   * @param blobSize  the size of any System Exclusive data to be stored with it
+   *
+   * @return true if the event will fit
+   */
+
+  private boolean fits(final int eventSize, final int blobSize) {
+
+    return segment.position() + eventSize + (indexCount + 1) * INDEX_ENTRY_SIZE <= blobStart - blobSize;
+
+  }
+
+  /**
+   * Takes the segment which has been prepared in the background, or creates one now if that failed.
+   *
+   * @return the next segment
+   *
+   * @throws IOException if the segment cannot be created
+   */
+
+  private MappedByteBuffer takeSpare() throws IOException {
+
+    final Future<MappedByteBuffer> ready = spare;
+    spare = null;
+    MappedByteBuffer result = null;
+
+    if ( ready != null ) {
+
+      try {
+
+        result = ready.get();
+
+      } catch (InterruptedException e) {
+
+        Thread.currentThread().interrupt();
+
+      } catch (ExecutionException e) {
+
+        System.err.println("Problem preparing capture journal segment: " + e.getCause());
+
+      }
+
+    }
+
+    if ( result == null ) {
+
+      result = createSegment(segmentFile(directory, segmentNumber + 1), segmentSize);
+
+    }
+
+    segmentNumber++;
+    prepareSpare();
+    return result;
+
+  }
+
+  /**
+   * Starts creating the segment after the current one on a background thread.
+   */
+
+  private void prepareSpare() {
+
+    final File file = segmentFile(directory, segmentNumber + 1);
+
+    spare = io.submit(new Callable<MappedByteBuffer>() {
+
+      @Override
+      public MappedByteBuffer call() throws IOException {
+
+        return createSegment(file, segmentSize);
+
+      }
+
+    });
+
+  }
+
+  /**
+   * Begins writing a new segment.
+   *
+   * @param buffer the mapped segment file
+   */
+
+  private void startSegment(final MappedByteBuffer buffer) {
+
+    segment = buffer;
+    eventCount = 0;
+    indexCount = 0;
+    blobStart = buffer.capacity();
+    lastTime = now();
+
+    segment.putInt(0, MAGIC);
+    segment.putShort(4, FORMAT_VERSION);
+    segment.putLong(BASE_TIME_OFFSET, lastTime);
+    segment.putLong(END_TIME_OFFSET, lastTime);
+    segment.putInt(BLOB_START_OFFSET, blobStart);
+    segment.putInt(INDEX_POSITION_OFFSET, 0);
+    segment.putInt(INDEX_COUNT_OFFSET, 0);
+    segment.putInt(EVENT_COUNT_OFFSET, 0);
+    segment.putInt(EVENT_END_OFFSET, HEADER_SIZE);
+    ((Buffer) segment).position(HEADER_SIZE);  // Through Buffer, for compatibility with Java 7
+
+  }
+
+  /**
+   * Finishes the current segment by writing its index after the events, and has it flushed to disk in the
+   * background.
+   */
+
+  private void sealSegment() {
+
+    final int indexPosition = segment.position();
+
+    for ( int i = 0; i < indexCount; i++ ) {
+
+      segment.putLong(indexTimes[i]);
+      segment.putInt(indexPositions[i]);
+
+    }
+
+    segment.putInt(INDEX_COUNT_OFFSET, indexCount);
+    segment.putInt(INDEX_POSITION_OFFSET, indexPosition);
+
+    final MappedByteBuffer finished = segment;
+
+    io.execute(new Runnable() {
+
+      @Override
+      public void run() {
+
+        finished.force();
+
+      }
+
+    });
+
+  }
+
+  /**
+   * Stops recording, finishes the current segment, and removes the segment that was prepared for the future, waiting
+   * for it to be created first if necessary.
+   */
+
+  @Override
+  public synchronized void close() {
+
+    if ( closed ) {
+
+      return;
+
+    }
+
+    detach();
+    closed = true;
+    sealSegment();
+
+    if ( spare != null ) {
+
+      // Wait for the segment being prepared, so that it is gone by the time a reader looks at the directory
+      try {
+
+        spare.get();
+
+      } catch (InterruptedException e) {
+
+        Thread.currentThread().interrupt();
+
+      } catch (ExecutionException e) {
+
+        // Nothing was created, so there is nothing to remove
+
+      }
+
+      final File unused = segmentFile(directory, segmentNumber + 1);
+
+      if ( !unused.delete() && unused.exists() ) {
+
+        System.err.println("Unable to remove unused capture journal segment " + unused);
+
+      }
+
+      spare = null;
+
+    }
+
+    io.shutdown();  // The final flush still runs
+
+  }
+
+  /**
+   * Creates the executor on which a journal creates and flushes its segments, whose daemon thread exits when it has
+   * been idle for a few seconds.
+   *
+   * @return the executor
+   */
+
+  private static ExecutorService createIoExecutor() {
+
+    final ThreadPoolExecutor result = new ThreadPoolExecutor(1, 1, IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+
+        Thread thread = new Thread(runnable, "CoreMidi4J Journal " + ioThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+
+      }
+
+    });
+
+    result.allowCoreThreadTimeOut(true);
+    return result;
+
+  }
+
+  /**
+   * Determines how many data bytes follow a status byte in a short message.
+   *
+   * @param status the status byte
+   *
+   * @return the number of data bytes
+   */
+
+  static int dataLength(final int status) {
+
+    switch ( status & 0xf0 ) {
+
+      case 0xc0:
+      case 0xd0:
+        return 1;
+
+      case 0xf0:
+        return (status == 0xf1 || status == 0xf3) ? 1 : ((status == 0xf2) ? 2 : 0);
+
+      default:
+        return 2;
+
+    }
+
+  }
+
+  /**
+   * Writes an unsigned variable-length integer, seven bits at a time, least significant first.
+   *
+   * @param buffer where to write it
+   * @param value  the value, which must not be negative
+   */
+
+  static void putVarint(final ByteBuffer buffer, long value) {
+
+    while ( (value & ~0x7fL) != 0 ) {
+
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+
+    }
+
+    buffer.put((byte) value);
+
+  }
+
+  /**
+   * Reads an unsigned variable-length integer written by {@link #putVarint(ByteBuffer, long)}.
+   *
+   * @param buffer where to read it from
+   *
+   * @return the value
+   */
+
+  static long getVarint(final ByteBuffer buffer) {
+
+    long value = 0;
+    int shift = 0;
+    byte b;
+
+    do {
+
+      b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      shift += 7;
+
+    } while ( b < 0 );
+
+    return value;
+
+  }
+
+  /**
+   * Works out the name of a segment file.
+   *
+   * @param directory the journal directory
+   * @param number    the number of the segment, counting from 1
+   *
+   * @return the segment file
+   */
+
+  static File segmentFile(final File directory, final int number) {
+
+    return new File(directory, String.format(Locale.ROOT, "%08d", number) + SEGMENT_SUFFIX);
+
+  }
+
+  /**
+   * Creates a segment file of a particular size and maps it into memory.
+   *
+   * @param file the file to create
+   * @param size its size in bytes
+   *
+   * @return the mapped file
+   *
+   * @throws IOException if the file cannot be created or mapped
+   */
+
+  private static MappedByteBuffer createSegment(final File file, final int size) throws IOException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+
+      raf.setLength(size);
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+    }
+
+  }
+
+}
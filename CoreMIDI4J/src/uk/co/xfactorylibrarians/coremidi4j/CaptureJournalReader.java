@@ -0,0 +1,619 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>Reads back a recording made by a {@link CaptureJournal}, either event by event from any point in time, or by
+ * replaying it into a {@link CoreMidiDestination} with its original timing. Segments which were never finished,
+ * because the recording application stopped unexpectedly, are read as far as the last complete event.</p>
+ *
+ * <p>A reader is not thread-safe; each thread that wants to read a journal should use its own.</p>
+ *
+ */
+
+public class CaptureJournalReader {
+
+  /**
+   * How far ahead of their time replayed messages are handed to CoreMIDI, in microseconds. CoreMIDI delivers each
+   * message at its exact timestamp, so the replay thread only has to keep ahead of it.
+   */
+
+  public static final long REPLAY_LOOKAHEAD = 50000;
+
+  /**
+   * A single recorded message.
+   */
+
+  public static final class Event {
+
+    private final long time;
+    private final MidiMessage message;
+
+    Event(final long time, final MidiMessage message) {
+
+      this.time = time;
+      this.message = message;
+
+    }
+
+    /**
+     * Gets the time at which the message was received.
+     *
+     * @return the time, in microseconds since the epoch
+     */
+
+    public long getTime() {
+
+      return time;
+
+    }
+
+    /**
+     * Gets the message that was received.
+     *
+     * @return the message
+     */
+
+    public MidiMessage getMessage() {
+
+      return message;
+
+    }
+
+  }
+
+  /**
+   * The header and time index of one segment file.
+   */
+
+  private static final class Segment {
+
+    final File file;
+    final ByteBuffer buffer;
+    final long baseTime;
+    final long endTime;
+    final int eventEnd;
+    final int eventCount;
+    long[] indexTimes;
+    int[] indexPositions;
+    int indexCount;
+
+    Segment(final File file, final ByteBuffer buffer) throws IOException {
+
+      this.file = file;
+      this.buffer = buffer;
+
+      if ( buffer.capacity() < CaptureJournal.HEADER_SIZE || buffer.getInt(0) != CaptureJournal.MAGIC ) {
+
+        throw new IOException(file + " is not a capture journal segment");
+
+      }
+
+      if ( buffer.getShort(4) != CaptureJournal.FORMAT_VERSION ) {
+
+        throw new IOException(file + " has unsupported capture journal format version " + buffer.getShort(4));
+
+      }
+
+      baseTime = buffer.getLong(CaptureJournal.BASE_TIME_OFFSET);
+      endTime = buffer.getLong(CaptureJournal.END_TIME_OFFSET);
+      eventEnd = buffer.getInt(CaptureJournal.EVENT_END_OFFSET);
+      eventCount = buffer.getInt(CaptureJournal.EVENT_COUNT_OFFSET);
+
+      final int indexPosition = buffer.getInt(CaptureJournal.INDEX_POSITION_OFFSET);
+
+      if ( indexPosition != 0 ) {
+
+        indexCount = buffer.getInt(CaptureJournal.INDEX_COUNT_OFFSET);
+        indexTimes = new long[indexCount];
+        indexPositions = new int[indexCount];
+        final ByteBuffer index = buffer.duplicate();
+        ((Buffer) index).position(indexPosition);
+
+        for ( int i = 0; i < indexCount; i++ ) {
+
+          indexTimes[i] = index.getLong();
+          indexPositions[i] = index.getInt();
+
+        }
+
+      } else {
+
+        rebuildIndex();
+
+      }
+
+    }
+
+    /**
+     * Recreates the time index of a segment which was never finished, by reading through its events.
+     */
+
+    private void rebuildIndex() {
+
+      indexTimes = new long[eventCount / CaptureJournal.INDEX_INTERVAL + 1];
+      indexPositions = new int[indexTimes.length];
+      final ByteBuffer events = buffer.duplicate();
+      ((Buffer) events).position(CaptureJournal.HEADER_SIZE);
+      long time = baseTime;
+
+      for ( int i = 0; i < eventCount && events.position() < eventEnd; i++ ) {
+
+        final int position = events.position();
+        time += CaptureJournal.getVarint(events);
+
+        if ( i % CaptureJournal.INDEX_INTERVAL == 0 ) {
+
+          indexTimes[indexCount] = time;
+          indexPositions[indexCount] = position;
+          indexCount++;
+
+        }
+
+        skipMessage(events);
+
+      }
+
+    }
+
+    /**
+     * Gets the time of the first event in the segment.
+     *
+     * @return the time, in microseconds since the epoch
+     */
+
+    long getStartTime() {
+
+      return indexTimes[0];
+
+    }
+
+  }
+
+  private final List<Segment> segments = new ArrayList<>();
+  private final long eventCount;
+
+  private int segmentIndex;   // The segment being read
+  private ByteBuffer cursor;  // Positioned at the next event to be read
+  private long previousTime;  // The time of the event before the cursor
+
+  /**
+   * Opens a journal for reading.
+   *
+   * @param directory the directory into which the journal was written
+   *
+   * @throws IOException if the directory does not contain a readable journal
+   */
+
+  public CaptureJournalReader(final File directory) throws IOException {
+
+    final File[] files = directory.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(final File file) {
+
+        return file.isFile() && file.getName().endsWith(CaptureJournal.SEGMENT_SUFFIX);
+
+      }
+
+    });
+
+    if ( files == null ) {
+
+      throw new IOException("Unable to list capture journal directory " + directory);
+
+    }
+
+    Arrays.sort(files);  // The names are zero-padded numbers, so this puts them in recording order
+    long count = 0;
+
+    for ( File file : files ) {
+
+      final ByteBuffer buffer = map(file);
+
+      if ( buffer.capacity() == 0 || (buffer.capacity() >= 4 && buffer.getInt(0) == 0) ) {
+
+        continue;  // Created in advance, but not yet needed or not even sized yet
+
+      }
+
+      final Segment segment = new Segment(file, buffer);
+
+      if ( segment.indexCount > 0 ) {  // Skip segments that were created but never used
+
+        segments.add(segment);
+        count += segment.eventCount;
+
+      }
+
+    }
+
+    eventCount = count;
+    rewind();
+
+  }
+
+  /**
+   * Gets the number of events in the journal.
+   *
+   * @return how many messages were recorded
+   */
+
+  public long getEventCount() {
+
+    return eventCount;
+
+  }
+
+  /**
+   * Gets the time of the first event in the journal.
+   *
+   * @return the time, in microseconds since the epoch, or -1 if the journal is empty
+   */
+
+  public long getStartTime() {
+
+    return segments.isEmpty() ? -1 : segments.get(0).getStartTime();
+
+  }
+
+  /**
+   * Gets the time of the last event in the journal.
+   *
+   * @return the time, in microseconds since the epoch, or -1 if the journal is empty
+   */
+
+  public long getEndTime() {
+
+    return segments.isEmpty() ? -1 : segments.get(segments.size() - 1).endTime;
+
+  }
+
+  /**
+   * Moves back to the start of the journal.
+   */
+
+  public void rewind() {
+
+    positionAt(0, CaptureJournal.HEADER_SIZE, segments.isEmpty() ? 0 : segments.get(0).baseTime);
+
+  }
+
+  /**
+   * Moves to the first event at or after a particular time. The segment and then the nearest index entry are found
+   * by binary search, so only a few events need to be read to get to the exact position.
+   *
+   * @param time the time to move to, in microseconds since the epoch
+   *
+   * @throws IOException if the journal is corrupt
+   */
+
+  public void seek(final long time) throws IOException {
+
+    int low = 0;
+    int high = segments.size() - 1;
+    int found = -1;
+
+    while ( low <= high ) {  // Find the last segment that starts at or before the time
+
+      final int middle = (low + high) >>> 1;
+
+      if ( segments.get(middle).getStartTime() <= time ) {
+
+        found = middle;
+        low = middle + 1;
+
+      } else {
+
+        high = middle - 1;
+
+      }
+
+    }
+
+    if ( found < 0 ) {
+
+      rewind();
+      return;
+
+    }
+
+    final Segment segment = segments.get(found);
+    final int entry = lastAtOrBefore(segment.indexTimes, segment.indexCount, time);
+
+    // The index holds the time of the event itself, but the cursor needs the time of the one before it
+    final ByteBuffer peek = segment.buffer.duplicate();
+    ((Buffer) peek).position(segment.indexPositions[entry]);
+    positionAt(found, segment.indexPositions[entry], segment.indexTimes[entry] - CaptureJournal.getVarint(peek));
+
+    while ( hasNext() ) {
+
+      final int position = cursor.position();
+      final long before = previousTime;
+
+      if ( nextTime() >= time ) {
+
+        ((Buffer) cursor).position(position);
+        previousTime = before;
+        return;
+
+      }
+
+      skipMessage(cursor);
+
+    }
+
+  }
+
+  /**
+   * Checks whether there are any more events to be read.
+   *
+   * @return true if {@link #next()} will return an event
+   */
+
+  public boolean hasNext() {
+
+    while ( segmentIndex < segments.size() ) {
+
+      if ( cursor.position() < segments.get(segmentIndex).eventEnd ) {
+
+        return true;
+
+      }
+
+      if ( segmentIndex + 1 < segments.size() ) {
+
+        final Segment following = segments.get(segmentIndex + 1);
+        positionAt(segmentIndex + 1, CaptureJournal.HEADER_SIZE, following.baseTime);
+
+      } else {
+
+        return false;
+
+      }
+
+    }
+
+    return false;
+
+  }
+
+  /**
+   * Reads the next event.
+   *
+   * @return the next event, or null if the end of the journal has been reached
+   *
+   * @throws IOException if the journal is corrupt
+   */
+
+  public Event next() throws IOException {
+
+    if ( !hasNext() ) {
+
+      return null;
+
+    }
+
+    final long time = nextTime();
+    final int status = cursor.get() & 0xff;
+
+    try {
+
+      if ( status == CaptureJournal.SYSEX_MARKER ) {
+
+        final int blobPosition = (int) CaptureJournal.getVarint(cursor);
+        final int length = (int) CaptureJournal.getVarint(cursor);
+        final byte[] data = new byte[length];
+        final ByteBuffer blob = cursor.duplicate();
+        ((Buffer) blob).position(blobPosition);
+        blob.get(data);
+        return new Event(time, new SysexMessage(data, length));
+
+      }
+
+      final int dataLength = CaptureJournal.dataLength(status);
+      final int data1 = (dataLength > 0) ? (cursor.get() & 0xff) : 0;
+      final int data2 = (dataLength > 1) ? (cursor.get() & 0xff) : 0;
+      return new Event(time, new ShortMessage(status, data1, data2));
+
+    } catch (InvalidMidiDataException | RuntimeException e) {
+
+      throw new IOException("Corrupt event in " + segments.get(segmentIndex).file, e);
+
+    }
+
+  }
+
+  /**
+   * Replays part of the journal through a destination, with each message delivered at the same time relative to the
+   * start of the replay as it was received relative to the start of the section. Messages are handed to CoreMIDI a
+   * little ahead of time with timestamps, so the timing is as accurate as CoreMIDI itself. This method blocks until
+   * the last message has been handed over; interrupt the thread to stop the replay early.
+   *
+   * @param destination the destination to play the messages through, which must be open
+   * @param fromTime    the time from which to start, in microseconds since the epoch
+   * @param toTime      the time at which to stop, in microseconds since the epoch
+   *
+   * @throws IOException if the journal is corrupt
+   * @throws MidiUnavailableException if a receiver cannot be obtained from the destination
+   * @throws InterruptedException if the thread was interrupted during the replay
+   */
+
+  public void replay(final CoreMidiDestination destination, final long fromTime, final long toTime)
+      throws IOException, MidiUnavailableException, InterruptedException {
+
+    final Receiver receiver = destination.getReceiver();
+
+    try {
+
+      seek(fromTime);
+      final long offset = destination.getMicrosecondPosition() + REPLAY_LOOKAHEAD - fromTime;
+      Event event;
+
+      while ( (event = next()) != null && event.getTime() < toTime ) {
+
+        final long due = event.getTime() + offset;
+        final long wait = due - REPLAY_LOOKAHEAD - destination.getMicrosecondPosition();
+
+        if ( wait > 0 ) {
+
+          TimeUnit.MICROSECONDS.sleep(wait);
+
+        } else if ( Thread.interrupted() ) {
+
+          throw new InterruptedException();
+
+        }
+
+        receiver.send(event.getMessage(), due);
+
+      }
+
+    } finally {
+
+      receiver.close();
+
+    }
+
+  }
+
+  /**
+   * Places the cursor at a particular event.
+   *
+   * @param index        the segment containing the event
+   * @param position     the position of the event in the segment
+   * @param timeBefore   the time of the event before it, from which its delta is measured
+   */
+
+  private void positionAt(final int index, final int position, final long timeBefore) {
+
+    segmentIndex = index;
+    cursor = segments.isEmpty() ? ByteBuffer.allocate(0) : segments.get(index).buffer.duplicate();
+    ((Buffer) cursor).position(segments.isEmpty() ? 0 : position);
+    previousTime = timeBefore;
+
+  }
+
+  /**
+   * Reads the delta of the event at the cursor, working out its time.
+   *
+   * @return the time of the event
+   */
+
+  private long nextTime() {
+
+    previousTime += CaptureJournal.getVarint(cursor);
+    return previousTime;
+
+  }
+
+  /**
+   * Moves past the message that follows an event's delta.
+   *
+   * @param events the buffer positioned at the message
+   */
+
+  private static void skipMessage(final ByteBuffer events) {
+
+    final int status = events.get() & 0xff;
+
+    if ( status == CaptureJournal.SYSEX_MARKER ) {
+
+      CaptureJournal.getVarint(events);
+      CaptureJournal.getVarint(events);
+
+    } else {
+
+      ((Buffer) events).position(events.position() + CaptureJournal.dataLength(status));
+
+    }
+
+  }
+
+  /**
+   * Finds the last entry in a sorted array of times which is at or before a particular time.
+   *
+   * @param times the sorted times
+   * @param count how many of them are in use
+   * @param time  the time to look for
+   *
+   * @return the index of the entry, or 0 if they are all after the time
+   */
+
+  private static int lastAtOrBefore(final long[] times, final int count, final long time) {
+
+    int low = 0;
+    int high = count - 1;
+    int found = 0;
+
+    while ( low <= high ) {
+
+      final int middle = (low + high) >>> 1;
+
+      if ( times[middle] <= time ) {
+
+        found = middle;
+        low = middle + 1;
+
+      } else {
+
+        high = middle - 1;
+
+      }
+
+    }
+
+    return found;
+
+  }
+
+  /**
+   * Maps a segment file into memory for reading.
+   *
+   * @param file the segment file
+   *
+   * @return the mapped file
+   *
+   * @throws IOException if the file cannot be mapped
+   */
+
+  private static ByteBuffer map(final File file) throws IOException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+    }
+
+  }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>Continuously keeps the last few minutes of what a {@link CoreMidiSource} received, so that a performance can be
+ * recovered after the fact even though nobody started recording. Messages are packed into fixed-size slots in a
+ * circular buffer allocated outside the Java heap, so keeping the ring up to date allocates nothing and costs a few
+ * memory writes per message; when the buffer is full the oldest messages are overwritten.</p>
+ *
+ * <p>A snapshot of the window can be taken at any time, and exported as a Standard MIDI File or a
+ * {@link CaptureJournal}. Taking a snapshot copies the ring and then checks which slots were overwritten during the
+ * copy, so the source keeps being recorded throughout and never waits for the snapshot.</p>
+ *
+ */
+
+public class CaptureRing implements Closeable {
+
+  /**
+   * The default length of time kept by a ring, in microseconds: five minutes.
+   */
+
+  public static final long DEFAULT_WINDOW = 5L * 60 * 1000000;
+
+  /**
+   * The default size of a ring's buffer in bytes, enough for more than 250,000 short messages.
+   */
+
+  public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+  /**
+   * The number of bytes taken by each message in the buffer. System Exclusive messages take one slot plus one for
+   * every {@value #SLOT_SIZE} - 1 bytes of data, and are not kept if that is more than a sixty-fourth of the ring
+   * (about 61 KB with the default capacity).
+   */
+
+  public static final int SLOT_SIZE = 16;
+
+  // The layout of a message slot: a type byte, which is 0 for a slot continuing System Exclusive data, followed by
+  // either up to two data bytes, or a System Exclusive length, and the time.
+  private static final int TYPE_OFFSET = 0;
+  private static final int DATA1_OFFSET = 1;
+  private static final int DATA2_OFFSET = 2;
+  private static final int LENGTH_OFFSET = 4;
+  private static final int TIME_OFFSET = 8;
+  private static final int CONTINUATION = 0;
+  private static final int CONTINUATION_DATA = SLOT_SIZE - 1;
+
+  private final CoreMidiSource source;
+  private final long window;
+  private final ByteBuffer ring;
+  private final int slots;
+  private final int margin;                           // Slots near the overwrite point that snapshots do not trust
+  private final AtomicLong written = new AtomicLong(); // The number of slots ever written, published after writing
+  private final AtomicLong eventCount = new AtomicLong();
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      final long slot = written.get();
+      final int position = (int) (slot % slots) * SLOT_SIZE;
+      ring.put(position + TYPE_OFFSET, (byte) status);
+      ring.put(position + DATA1_OFFSET, (byte) data1);
+      ring.put(position + DATA2_OFFSET, (byte) data2);
+      ring.putLong(position + TIME_OFFSET, CaptureJournal.now());
+      written.lazySet(slot + 1);
+      eventCount.lazySet(eventCount.get() + 1);
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      final int continuations = (length + CONTINUATION_DATA - 1) / CONTINUATION_DATA;
+
+      if ( continuations + 1 > margin ) {
+
+        // Written ahead of the published count, so must fit in the slots snapshots do not trust
+        return;
+
+      }
+
+      long slot = written.get();
+      int position = (int) (slot % slots) * SLOT_SIZE;
+      ring.put(position + TYPE_OFFSET, (byte) SysexMessage.SYSTEM_EXCLUSIVE);
+      ring.putInt(position + LENGTH_OFFSET, length);
+      ring.putLong(position + TIME_OFFSET, CaptureJournal.now());
+
+      for ( int offset = 0; offset < length; offset += CONTINUATION_DATA ) {
+
+        position = (int) (++slot % slots) * SLOT_SIZE;
+        ring.put(position + TYPE_OFFSET, (byte) CONTINUATION);
+
+        for ( int i = 0; i < CONTINUATION_DATA && offset + i < length; i++ ) {
+
+          ring.put(position + 1 + i, data[offset + i]);
+
+        }
+
+      }
+
+      written.lazySet(slot + 1);
+      eventCount.lazySet(eventCount.get() + 1);
+
+    }
+
+  };
+
+  /**
+   * Starts keeping the last five minutes of what a source receives, in a buffer of the default size.
+   *
+   * @param source the source to record, which must be open for anything to be received
+   */
+
+  public CaptureRing(final CoreMidiSource source) {
+
+    this(source, DEFAULT_WINDOW, DEFAULT_CAPACITY);
+
+  }
+
+  /**
+   * Starts keeping a period of what a source receives. The ring holds whichever is shorter: the window, or as many
+   * messages as fit in the buffer.
+   *
+   * @param source   the source to record, which must be open for anything to be received
+   * @param window   how far back to keep messages, in microseconds
+   * @param capacity the size of the buffer in bytes, which is allocated outside the Java heap
+   *
+   * @throws IllegalArgumentException if the window is not positive or the capacity is less than 64 slots
+   */
+
+  public CaptureRing(final CoreMidiSource source, final long window, final int capacity) {
+
+    if ( window <= 0 ) {
+
+      throw new IllegalArgumentException("window must be positive");
+
+    }
+
+    if ( capacity < 64 * SLOT_SIZE ) {
+
+      throw new IllegalArgumentException("capacity must be at least " + (64 * SLOT_SIZE) + " bytes");
+
+    }
+
+    this.source = source;
+    this.window = window;
+    slots = capacity / SLOT_SIZE;
+    margin = Math.max(4, slots / 64);
+    ring = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Gets the source whose messages are being kept.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Gets the length of time the ring keeps.
+   *
+   * @return the window, in microseconds
+   */
+
+  public long getWindow() {
+
+    return window;
+
+  }
+
+  /**
+   * Gets the number of messages received since the ring was created, including those no longer held.
+   *
+   * @return the number of messages received
+   */
+
+  public long getEventCount() {
+
+    return eventCount.get();
+
+  }
+
+  /**
+   * Stops recording the source. Snapshots can still be taken of what was kept.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(listener);
+
+  }
+
+  /**
+   * Takes a snapshot of the messages in the window, oldest first. Recording continues while the snapshot is taken.
+   *
+   * @return the messages received within the window before the snapshot was taken, with their times in microseconds
+   *         since the epoch
+   */
+
+  public List<CaptureJournalReader.Event> snapshot() {
+
+    final long end = written.get();
+    final long start = Math.max(0, end - slots);
+    final byte[] copy = new byte[(int) (end - start) * SLOT_SIZE];
+    final ByteBuffer view = ring.duplicate();
+
+    // Copy in at most two pieces, the ring wrapping around between them
+    final int first = (int) (start % slots) * SLOT_SIZE;
+    final int firstLength = Math.min(copy.length, ring.capacity() - first);
+    ((Buffer) view).position(first);
+    view.get(copy, 0, firstLength);
+    ((Buffer) view).position(0);
+    view.get(copy, firstLength, copy.length - firstLength);
+
+    // Anything the writer has since reached, or come close to, may have been overwritten while copying
+    final long trusted = Math.max(start, written.get() - slots + margin);
+    final ByteBuffer slotsCopy = ByteBuffer.wrap(copy);
+    final long cutoff = CaptureJournal.now() - window;
+    final List<CaptureJournalReader.Event> events = new ArrayList<>();
+
+    for ( long slot = trusted; slot < end; slot++ ) {
+
+      final int position = (int) (slot - start) * SLOT_SIZE;
+      final int type = slotsCopy.get(position + TYPE_OFFSET) & 0xff;
+
+      if ( type == CONTINUATION ) {
+
+        continue;  // The start of this message has already been overwritten
+
+      }
+
+      final long time = slotsCopy.getLong(position + TIME_OFFSET);
+
+      try {
+
+        if ( type == SysexMessage.SYSTEM_EXCLUSIVE ) {
+
+          final int length = slotsCopy.getInt(position + LENGTH_OFFSET);
+
+          if ( length < 1 || slot + (length + CONTINUATION_DATA - 1) / CONTINUATION_DATA >= end ) {
+
+            continue;  // Not a complete message
+
+          }
+
+          final byte[] data = new byte[length];
+
+          for ( int offset = 0; offset < length; offset += CONTINUATION_DATA ) {
+
+            final int dataPosition = (int) (++slot - start) * SLOT_SIZE + 1;
+            ((Buffer) slotsCopy).position(dataPosition);
+            slotsCopy.get(data, offset, Math.min(CONTINUATION_DATA, length - offset));
+
+          }
+
+          if ( time >= cutoff ) {
+
+            events.add(new CaptureJournalReader.Event(time, new SysexMessage(data, length)));
+
+          }
+
+        } else if ( time >= cutoff ) {
+
+          events.add(new CaptureJournalReader.Event(time, new ShortMessage(type,
+              slotsCopy.get(position + DATA1_OFFSET) & 0xff, slotsCopy.get(position + DATA2_OFFSET) & 0xff)));
+
+        }
+
+      } catch (InvalidMidiDataException e) {
+
+        System.err.println("Skipping unreadable message in capture ring for " + source + ": " + e);
+
+      }
+
+    }
+
+    return events;
+
+  }
+
+  /**
+   * Takes a snapshot of the window and writes it to a single-track Standard MIDI File, with the first message at
+   * the start of the file. The file is written by a {@link StandardMidiFileWriter} at its default resolution, so
+   * times are kept to within 100 microseconds. System real-time and system common messages cannot be stored in a
+   * MIDI file, so they are left out.
+   *
+   * @param file the file to write
+   *
+   * @return the number of messages written
+   *
+   * @throws IOException if the file cannot be written
+   */
+
+  public int exportMidiFile(final File file) throws IOException {
+
+    final List<CaptureJournalReader.Event> events = snapshot();
+    final StandardMidiFileWriter writer = new StandardMidiFileWriter(file);
+    final long origin = events.isEmpty() ? 0 : events.get(0).getTime();
+    int count = 0;
+
+    try {
+
+      for ( CaptureJournalReader.Event event : events ) {
+
+        if ( writer.write(writer.microsecondsToTicks(event.getTime() - origin), event.getMessage()) ) {
+
+          count++;
+
+        }
+
+      }
+
+    } finally {
+
+      writer.finish();
+
+    }
+
+    return count;
+
+  }
+
+  /**
+   * Takes a snapshot of the window and writes it as a capture journal, which keeps every message with its original
+   * time and can be read with {@link CaptureJournalReader}.
+   *
+   * @param directory the directory to write the journal into, which should not already contain one
+   *
+   * @return the number of messages written
+   *
+   * @throws IOException if the journal cannot be written
+   */
+
+  public int exportJournal(final File directory) throws IOException {
+
+    final List<CaptureJournalReader.Event> events = snapshot();
+    final CaptureJournal journal = new CaptureJournal(directory);
+
+    try {
+
+      for ( CaptureJournalReader.Event event : events ) {
+
+        final MidiMessage message = event.getMessage();
+
+        if ( message instanceof SysexMessage ) {
+
+          journal.recordSysex(event.getTime(), message.getMessage(), message.getLength());
+
+        } else {
+
+          final ShortMessage shortMessage = (ShortMessage) message;
+          journal.record(event.getTime(), shortMessage.getStatus(), shortMessage.getData1(),
+                         shortMessage.getData2());
+
+        }
+
+      }
+
+    } finally {
+
+      journal.close();
+
+    }
+
+    return events.size();
+
+  }
+
+}
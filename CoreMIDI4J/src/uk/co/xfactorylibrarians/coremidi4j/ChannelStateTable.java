@@ -0,0 +1,496 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * The current state of each MIDI channel received by a {@link CoreMidiSource}: the value of every controller, the
+ * program, pitch bend and channel pressure, and which notes are held. The table is kept up to date by the source's
+ * parser as messages arrive (see {@link CoreMidiSource#trackChannelState()}), and can be read from any thread, as
+ * often as needed, without taking a lock or slowing down the input.
+ *
+ * <p>Each individual value read is always one that was actually received. To read several values that are
+ * consistent with each other, take a {@link #snapshot()}: updates are made under a sequence number, and the
+ * snapshot is simply taken again if an update happened while it was being copied.</p>
+ *
+ */
+
+public class ChannelStateTable {
+
+  /**
+   * The value reported for controllers and programs which have not been received.
+   */
+
+  public static final int UNKNOWN = -1;
+
+  /**
+   * The pitch bend value of a wheel at rest.
+   */
+
+  public static final int PITCH_BEND_CENTER = 0x2000;
+
+  private static final int CHANNELS = 16;
+  private static final int CONTROLLERS = 128;
+  private static final int NOTE_WORDS = 2;       // Two 64-bit words hold a bit for each of the 128 notes
+  private static final int ALL_SOUND_OFF = 120;
+  private static final int RESET_ALL_CONTROLLERS = 121;
+  private static final int ALL_NOTES_OFF = 123;
+  private static final int POLY_MODE_ON = 127;
+
+  /**
+   * A consistent copy of the whole table, taken at one moment.
+   */
+
+  public static final class Snapshot {
+
+    private final int[] controllers;
+    private final int[] programs;
+    private final int[] pitchBends;
+    private final int[] pressures;
+    private final long[] notes;
+
+    Snapshot(final int[] controllers, final int[] programs, final int[] pitchBends, final int[] pressures,
+             final long[] notes) {
+
+      this.controllers = controllers;
+      this.programs = programs;
+      this.pitchBends = pitchBends;
+      this.pressures = pressures;
+      this.notes = notes;
+
+    }
+
+    /**
+     * Gets the value of a controller.
+     *
+     * @param channel    the channel, from 0 to 15
+     * @param controller the controller number, from 0 to 127
+     *
+     * @return the value last received, or {@link #UNKNOWN}
+     */
+
+    public int getController(final int channel, final int controller) {
+
+      return controllers[channel * CONTROLLERS + controller];
+
+    }
+
+    /**
+     * Gets the program selected on a channel.
+     *
+     * @param channel the channel, from 0 to 15
+     *
+     * @return the program last received, or {@link #UNKNOWN}
+     */
+
+    public int getProgram(final int channel) {
+
+      return programs[channel];
+
+    }
+
+    /**
+     * Gets the pitch bend of a channel.
+     *
+     * @param channel the channel, from 0 to 15
+     *
+     * @return the 14-bit pitch bend value, {@link #PITCH_BEND_CENTER} if none has been received
+     */
+
+    public int getPitchBend(final int channel) {
+
+      return pitchBends[channel];
+
+    }
+
+    /**
+     * Gets the channel pressure (aftertouch) of a channel.
+     *
+     * @param channel the channel, from 0 to 15
+     *
+     * @return the pressure, 0 if none has been received
+     */
+
+    public int getChannelPressure(final int channel) {
+
+      return pressures[channel];
+
+    }
+
+    /**
+     * Checks whether a note is held.
+     *
+     * @param channel the channel, from 0 to 15
+     * @param note    the note number, from 0 to 127
+     *
+     * @return true if a Note On has been received for the note and no Note Off since
+     */
+
+    public boolean isNoteHeld(final int channel, final int note) {
+
+      return (notes[channel * NOTE_WORDS + (note >> 6)] & (1L << note)) != 0;
+
+    }
+
+    /**
+     * Gets the notes held on a channel.
+     *
+     * @param channel the channel, from 0 to 15
+     *
+     * @return the numbers of the held notes, in ascending order
+     */
+
+    public int[] getHeldNotes(final int channel) {
+
+      return heldNotes(notes[channel * NOTE_WORDS], notes[channel * NOTE_WORDS + 1]);
+
+    }
+
+  }
+
+  private final AtomicIntegerArray controllers = new AtomicIntegerArray(CHANNELS * CONTROLLERS);
+  private final AtomicIntegerArray programs = new AtomicIntegerArray(CHANNELS);
+  private final AtomicIntegerArray pitchBends = new AtomicIntegerArray(CHANNELS);
+  private final AtomicIntegerArray pressures = new AtomicIntegerArray(CHANNELS);
+  private final AtomicLongArray notes = new AtomicLongArray(CHANNELS * NOTE_WORDS);
+  private volatile int sequence;  // Odd while an update is being made
+
+  /**
+   * Creates a table in which nothing has been received.
+   */
+
+  ChannelStateTable() {
+
+    clear();
+
+  }
+
+  /**
+   * Updates the table with a message. Called by the source's parser on the CoreMIDI input thread, which is the
+   * only thread that writes to the table.
+   *
+   * @param status the status byte of the message
+   * @param data1  the first data byte, or 0
+   * @param data2  the second data byte, or 0
+   */
+
+  void update(final int status, final int data1, final int data2) {
+
+    if ( (status & 0xf0) == 0xf0 ) {
+
+      return;  // System messages do not affect channels
+
+    }
+
+    final int channel = status & 0x0f;
+    sequence++;
+
+    switch ( status & 0xf0 ) {
+
+      case ShortMessage.NOTE_ON:
+        setNote(channel, data1, data2 > 0);  // Velocity 0 means Note Off
+        break;
+
+      case ShortMessage.NOTE_OFF:
+        setNote(channel, data1, false);
+        break;
+
+      case ShortMessage.CONTROL_CHANGE:
+        controlChange(channel, data1, data2);
+        break;
+
+      case ShortMessage.PROGRAM_CHANGE:
+        programs.set(channel, data1);
+        break;
+
+      case ShortMessage.CHANNEL_PRESSURE:
+        pressures.set(channel, data1);
+        break;
+
+      case ShortMessage.PITCH_BEND:
+        pitchBends.set(channel, (data2 << 7) | data1);
+        break;
+
+      default:
+        break;
+
+    }
+
+    sequence++;
+
+  }
+
+  /**
+   * Gets the value of a controller.
+   *
+   * @param channel    the channel, from 0 to 15
+   * @param controller the controller number, from 0 to 127
+   *
+   * @return the value last received, or {@link #UNKNOWN}
+   */
+
+  public int getController(final int channel, final int controller) {
+
+    return controllers.get(channel * CONTROLLERS + controller);
+
+  }
+
+  /**
+   * Gets the program selected on a channel.
+   *
+   * @param channel the channel, from 0 to 15
+   *
+   * @return the program last received, or {@link #UNKNOWN}
+   */
+
+  public int getProgram(final int channel) {
+
+    return programs.get(channel);
+
+  }
+
+  /**
+   * Gets the pitch bend of a channel.
+   *
+   * @param channel the channel, from 0 to 15
+   *
+   * @return the 14-bit pitch bend value, {@link #PITCH_BEND_CENTER} if none has been received
+   */
+
+  public int getPitchBend(final int channel) {
+
+    return pitchBends.get(channel);
+
+  }
+
+  /**
+   * Gets the channel pressure (aftertouch) of a channel.
+   *
+   * @param channel the channel, from 0 to 15
+   *
+   * @return the pressure, 0 if none has been received
+   */
+
+  public int getChannelPressure(final int channel) {
+
+    return pressures.get(channel);
+
+  }
+
+  /**
+   * Checks whether a note is held.
+   *
+   * @param channel the channel, from 0 to 15
+   * @param note    the note number, from 0 to 127
+   *
+   * @return true if a Note On has been received for the note and no Note Off since
+   */
+
+  public boolean isNoteHeld(final int channel, final int note) {
+
+    return (notes.get(channel * NOTE_WORDS + (note >> 6)) & (1L << note)) != 0;
+
+  }
+
+  /**
+   * Gets the notes held on a channel. The two halves of the keyboard are read separately, so to be sure the notes
+   * are consistent with each other, use a {@link #snapshot()}.
+   *
+   * @param channel the channel, from 0 to 15
+   *
+   * @return the numbers of the held notes, in ascending order
+   */
+
+  public int[] getHeldNotes(final int channel) {
+
+    return heldNotes(notes.get(channel * NOTE_WORDS), notes.get(channel * NOTE_WORDS + 1));
+
+  }
+
+  /**
+   * Takes a consistent copy of the whole table.
+   *
+   * @return the snapshot
+   */
+
+  public Snapshot snapshot() {
+
+    final int[] controllerCopy = new int[CHANNELS * CONTROLLERS];
+    final int[] programCopy = new int[CHANNELS];
+    final int[] pitchBendCopy = new int[CHANNELS];
+    final int[] pressureCopy = new int[CHANNELS];
+    final long[] noteCopy = new long[CHANNELS * NOTE_WORDS];
+
+    while ( true ) {
+
+      final int before = sequence;
+
+      if ( (before & 1) == 0 ) {
+
+        for ( int i = 0; i < controllerCopy.length; i++ ) {
+
+          controllerCopy[i] = controllers.get(i);
+
+        }
+
+        for ( int i = 0; i < CHANNELS; i++ ) {
+
+          programCopy[i] = programs.get(i);
+          pitchBendCopy[i] = pitchBends.get(i);
+          pressureCopy[i] = pressures.get(i);
+
+        }
+
+        for ( int i = 0; i < noteCopy.length; i++ ) {
+
+          noteCopy[i] = notes.get(i);
+
+        }
+
+        if ( sequence == before ) {
+
+          return new Snapshot(controllerCopy, programCopy, pitchBendCopy, pressureCopy, noteCopy);
+
+        }
+
+      }
+
+      Thread.yield();
+
+    }
+
+  }
+
+  /**
+   * Sets every value to what is reported before anything has been received.
+   */
+
+  private void clear() {
+
+    sequence++;
+
+    for ( int i = 0; i < CHANNELS * CONTROLLERS; i++ ) {
+
+      controllers.set(i, UNKNOWN);
+
+    }
+
+    for ( int i = 0; i < CHANNELS; i++ ) {
+
+      programs.set(i, UNKNOWN);
+      pitchBends.set(i, PITCH_BEND_CENTER);
+      pressures.set(i, 0);
+
+    }
+
+    for ( int i = 0; i < CHANNELS * NOTE_WORDS; i++ ) {
+
+      notes.set(i, 0);
+
+    }
+
+    sequence++;
+
+  }
+
+  /**
+   * Records a control change. Channel mode messages which silence the channel release its notes, and Reset All
+   * Controllers resets the values which the MIDI Manufacturers Association's recommended practice RP-015 says it
+   * should.
+   *
+   * @param channel    the channel
+   * @param controller the controller number
+   * @param value      the value
+   */
+
+  private void controlChange(final int channel, final int controller, final int value) {
+
+    controllers.set(channel * CONTROLLERS + controller, value);
+
+    if ( controller == ALL_SOUND_OFF || (controller >= ALL_NOTES_OFF && controller <= POLY_MODE_ON) ) {
+
+      notes.set(channel * NOTE_WORDS, 0);
+      notes.set(channel * NOTE_WORDS + 1, 0);
+
+    } else if ( controller == RESET_ALL_CONTROLLERS ) {
+
+      pitchBends.set(channel, PITCH_BEND_CENTER);
+      pressures.set(channel, 0);
+      final int base = channel * CONTROLLERS;
+      controllers.set(base + 1, 0);      // Modulation
+      controllers.set(base + 11, 127);   // Expression
+      controllers.set(base + 64, 0);     // Sustain, portamento, sostenuto and soft pedals
+      controllers.set(base + 65, 0);
+      controllers.set(base + 66, 0);
+      controllers.set(base + 67, 0);
+      controllers.set(base + 98, 127);   // Parameter numbers, set to the null parameter
+      controllers.set(base + 99, 127);
+      controllers.set(base + 100, 127);
+      controllers.set(base + 101, 127);
+
+    }
+
+  }
+
+  /**
+   * Sets or clears the bit for a note.
+   *
+   * @param channel the channel
+   * @param note    the note number
+   * @param held    whether the note is now held
+   */
+
+  private void setNote(final int channel, final int note, final boolean held) {
+
+    final int index = channel * NOTE_WORDS + (note >> 6);
+    final long bit = 1L << note;
+    final long word = notes.get(index);  // Only the input thread writes, so no need to compare and set
+    notes.set(index, held ? (word | bit) : (word & ~bit));
+
+  }
+
+  /**
+   * Lists the notes whose bits are set in a channel's bitmap.
+   *
+   * @param low  the bits for notes 0 to 63
+   * @param high the bits for notes 64 to 127
+   *
+   * @return the note numbers, in ascending order
+   */
+
+  private static int[] heldNotes(final long low, final long high) {
+
+    final int[] result = new int[Long.bitCount(low) + Long.bitCount(high)];
+    int count = 0;
+
+    for ( long bits = low; bits != 0; bits &= bits - 1 ) {
+
+      result[count++] = Long.numberOfTrailingZeros(bits);
+
+    }
+
+    for ( long bits = high; bits != 0; bits &= bits - 1 ) {
+
+      result[count++] = 64 + Long.numberOfTrailingZeros(bits);
+
+    }
+
+    return result;
+
+  }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Puts together the control change messages received by a {@link CoreMidiSource} which only mean something in
+ * combination: the most and least significant bytes of the 14-bit controllers 0 to 31, and the parameter number
+ * and Data Entry, Increment and Decrement messages of registered and non-registered parameters. The combined values
+ * are delivered to a {@link HighResolutionControllerListener}. Messages are taken straight from the source's
+ * parser, and the state of each channel is kept in arrays of primitives.
+ *
+ * <p>Senders may follow a most significant byte with a least significant one, or send the most significant byte on
+ * its own. By default, as the MIDI specification suggests, a most significant byte is delivered straight away (with
+ * the least significant byte reset to 0), and delivered again when a least significant byte follows. With an MSB
+ * timeout set, the assembler instead waits up to that long for the least significant byte, so that a change which
+ * comes as a pair is delivered once, with its full value.</p>
+ *
+ */
+
+public class ControllerAssembler implements Closeable {
+
+  private static final int CHANNELS = 16;
+  private static final int PAIRS = 32;                // Controllers 0-31 have least significant bytes at 32-63
+  private static final int DATA_ENTRY = 6;
+  private static final int DATA_INCREMENT = 96;
+  private static final int DATA_DECREMENT = 97;
+  private static final int NRPN_LSB = 98;
+  private static final int NRPN_MSB = 99;
+  private static final int RPN_LSB = 100;
+  private static final int RPN_MSB = 101;
+  private static final int NULL_PARAMETER = 0x3fff;
+  private static final int MAXIMUM_VALUE = 0x3fff;
+
+  private static final int NO_PARAMETER = 0;
+  private static final int REGISTERED = 1;
+  private static final int NON_REGISTERED = 2;
+
+  private final CoreMidiSource source;
+  private final HighResolutionControllerListener listener;
+  private long msbTimeout;
+
+  // Indexed by channel * PAIRS + controller; -1 until a most significant byte has been received
+  private final int[] msb = new int[CHANNELS * PAIRS];
+  private final int[] lsb = new int[CHANNELS * PAIRS];
+  private final long[] pendingSince = new long[CHANNELS * PAIRS];   // When an unpaired MSB arrived
+  private final long[] pendingTimestamp = new long[CHANNELS * PAIRS];
+  private final int[] pending = new int[CHANNELS];                  // A bit for each controller awaiting its LSB
+  private ScheduledFuture<?> timeoutTask;
+
+  // Indexed by channel
+  private final int[] parameterType = new int[CHANNELS];
+  private final int[] parameterMsb = new int[CHANNELS];
+  private final int[] parameterLsb = new int[CHANNELS];
+
+  private final CoreMidiSourceListener sourceListener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      if ( (status & 0xf0) == ShortMessage.CONTROL_CHANGE ) {
+
+        controlChange(status & 0x0f, data1, data2, timestamp);
+
+      }
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      // System Exclusive messages carry no controller changes
+
+    }
+
+  };
+
+  private final Runnable timeoutChecker = new Runnable() {
+
+    @Override
+    public void run() {
+
+      checkTimeouts();
+
+    }
+
+  };
+
+  /**
+   * Starts putting together the controller changes received by a source.
+   *
+   * @param source   the source to listen to, which must be open for anything to be received
+   * @param listener the listener to deliver the combined changes to
+   */
+
+  public ControllerAssembler(final CoreMidiSource source, final HighResolutionControllerListener listener) {
+
+    this.source = source;
+    this.listener = listener;
+    Arrays.fill(msb, -1);
+    Arrays.fill(parameterMsb, 0x7f);
+    Arrays.fill(parameterLsb, 0x7f);
+    source.addSourceListener(sourceListener);
+
+  }
+
+  /**
+   * Gets the source whose controller changes are being put together.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Controls what happens when a most significant byte arrives. With a timeout of 0, the default, it is delivered
+   * straight away, and again if a least significant byte follows. Otherwise delivery waits for the least significant
+   * byte, for no longer than the timeout, after which the most significant byte is delivered on its own.
+   *
+   * @param micros how long to wait for a least significant byte, in microseconds, from 0 to 1,000,000
+   *
+   * @throws IllegalArgumentException if the timeout is negative or more than a second
+   */
+
+  public synchronized void setMsbTimeout(final long micros) {
+
+    if ( micros < 0 || micros > 1000000 ) {
+
+      throw new IllegalArgumentException("MSB timeout must be between 0 and 1000000 microseconds");
+
+    }
+
+    msbTimeout = micros;
+
+    if ( micros == 0 ) {
+
+      flushPending(Long.MAX_VALUE);
+
+    }
+
+  }
+
+  /**
+   * Check how long the assembler waits for a least significant byte.
+   *
+   * @return the MSB timeout in microseconds, or 0 if most significant bytes are delivered straight away
+   */
+
+  public synchronized long getMsbTimeout() {
+
+    return msbTimeout;
+
+  }
+
+  /**
+   * Stops listening to the source. Any most significant bytes still waiting for their partners are delivered first.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(sourceListener);
+
+    synchronized (this) {
+
+      flushPending(Long.MAX_VALUE);
+
+      if ( timeoutTask != null ) {
+
+        timeoutTask.cancel(false);
+        timeoutTask = null;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Handles a control change message.
+   *
+   * @param channel    the channel
+   * @param controller the controller number
+   * @param value      the value
+   * @param timestamp  when the message took effect, or -1 if not known
+   */
+
+  private synchronized void controlChange(final int channel, final int controller, final int value,
+                                          final long timestamp) {
+
+    if ( controller < PAIRS ) {
+
+      mostSignificantByte(channel, controller, value, timestamp);
+
+    } else if ( controller < PAIRS * 2 ) {
+
+      leastSignificantByte(channel, controller - PAIRS, value, timestamp);
+
+    } else {
+
+      switch ( controller ) {
+
+        case NRPN_MSB:
+        case RPN_MSB:
+          selectParameter(channel, (controller == RPN_MSB) ? REGISTERED : NON_REGISTERED, value,
+                          parameterLsb[channel]);
+          break;
+
+        case NRPN_LSB:
+        case RPN_LSB:
+          selectParameter(channel, (controller == RPN_LSB) ? REGISTERED : NON_REGISTERED, parameterMsb[channel],
+                          value);
+          break;
+
+        case DATA_INCREMENT:
+        case DATA_DECREMENT:
+          stepParameter(channel, (controller == DATA_INCREMENT) ? 1 : -1, timestamp);
+          break;
+
+        default:
+          break;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Handles the most significant byte of a controller pair, which resets the least significant byte.
+   *
+   * @param channel    the channel
+   * @param controller the controller number, from 0 to 31
+   * @param value      the most significant byte
+   * @param timestamp  when the message took effect
+   */
+
+  private void mostSignificantByte(final int channel, final int controller, final int value, final long timestamp) {
+
+    final int index = channel * PAIRS + controller;
+    msb[index] = value;
+    lsb[index] = 0;
+
+    if ( msbTimeout == 0 ) {
+
+      deliver(channel, controller, timestamp);
+      return;
+
+    }
+
+    pending[channel] |= 1 << controller;
+    pendingSince[index] = LookaheadScheduler.now();
+    pendingTimestamp[index] = timestamp;
+
+    if ( timeoutTask == null ) {
+
+      timeoutTask = CoreMidiScheduler.getBackgroundExecutor().schedule(timeoutChecker, msbTimeout,
+                                                                       TimeUnit.MICROSECONDS);
+
+    }
+
+  }
+
+  /**
+   * Handles the least significant byte of a controller pair. One arriving before any most significant byte
+   * is remembered but not delivered, since the value is not yet known.
+   *
+   * @param channel    the channel
+   * @param controller the controller number of the most significant byte, from 0 to 31
+   * @param value      the least significant byte
+   * @param timestamp  when the message took effect
+   */
+
+  private void leastSignificantByte(final int channel, final int controller, final int value, final long timestamp) {
+
+    final int index = channel * PAIRS + controller;
+    lsb[index] = value;
+    pending[channel] &= ~(1 << controller);
+
+    if ( msb[index] >= 0 ) {
+
+      deliver(channel, controller, timestamp);
+
+    }
+
+  }
+
+  /**
+   * Selects the parameter which Data Entry, Increment and Decrement apply to on a channel. A Data Entry most
+   * significant byte still waiting for its partner belongs to the old parameter, so is delivered first.
+   *
+   * @param channel the channel
+   * @param type    whether the parameter is registered or not
+   * @param high    the most significant byte of the parameter number
+   * @param low     the least significant byte of the parameter number
+   */
+
+  private void selectParameter(final int channel, final int type, final int high, final int low) {
+
+    final int index = channel * PAIRS + DATA_ENTRY;
+
+    if ( (pending[channel] & (1 << DATA_ENTRY)) != 0 ) {
+
+      pending[channel] &= ~(1 << DATA_ENTRY);
+      deliver(channel, DATA_ENTRY, pendingTimestamp[index]);
+
+    }
+
+    parameterMsb[channel] = high;
+    parameterLsb[channel] = low;
+    parameterType[channel] = (((high << 7) | low) == NULL_PARAMETER) ? NO_PARAMETER : type;
+    msb[index] = -1;  // The value of the newly selected parameter is not known
+    lsb[index] = 0;
+
+  }
+
+  /**
+   * Handles Data Increment or Decrement, which move the value of the current parameter by one. Nothing is
+   * delivered unless the value is known from an earlier Data Entry.
+   *
+   * @param channel   the channel
+   * @param step      1 to increment, -1 to decrement
+   * @param timestamp when the message took effect
+   */
+
+  private void stepParameter(final int channel, final int step, final long timestamp) {
+
+    final int index = channel * PAIRS + DATA_ENTRY;
+
+    if ( parameterType[channel] == NO_PARAMETER || msb[index] < 0 ) {
+
+      return;
+
+    }
+
+    pending[channel] &= ~(1 << DATA_ENTRY);
+    final int value = Math.max(0, Math.min(MAXIMUM_VALUE, ((msb[index] << 7) | lsb[index]) + step));
+    msb[index] = value >> 7;
+    lsb[index] = value & 0x7f;
+    deliver(channel, DATA_ENTRY, timestamp);
+
+  }
+
+  /**
+   * Delivers the combined value of a controller pair, or of the current parameter for Data Entry.
+   *
+   * @param channel    the channel
+   * @param controller the controller number of the most significant byte
+   * @param timestamp  when the last message making up the value took effect
+   */
+
+  private void deliver(final int channel, final int controller, final long timestamp) {
+
+    final int index = channel * PAIRS + controller;
+    final int value = (msb[index] << 7) | lsb[index];
+
+    try {
+
+      if ( controller != DATA_ENTRY ) {
+
+        listener.controllerChanged(source, channel, controller, value, timestamp);
+
+      } else if ( parameterType[channel] != NO_PARAMETER ) {
+
+        listener.parameterChanged(source, channel, parameterType[channel] == REGISTERED,
+                                  (parameterMsb[channel] << 7) | parameterLsb[channel], value, timestamp);
+
+      }
+
+    } catch (Throwable t) {
+
+      System.err.println("Problem delivering controller change to " + listener + ": " + t);
+      t.printStackTrace(System.err);
+
+    }
+
+  }
+
+  /**
+   * Delivers the most significant bytes which have waited long enough for their partners, and arranges to check
+   * again if any are still waiting. Runs on the {@link CoreMidiScheduler} background thread, so that listeners are
+   * never called on the thread which times MIDI output.
+   */
+
+  private synchronized void checkTimeouts() {
+
+    timeoutTask = null;
+    final long now = LookaheadScheduler.now();
+    final long next = flushPending(now - msbTimeout);
+
+    if ( next != Long.MAX_VALUE ) {
+
+      timeoutTask = CoreMidiScheduler.getBackgroundExecutor().schedule(timeoutChecker,
+                                                                       Math.max(0, next + msbTimeout - now),
+                                                                       TimeUnit.MICROSECONDS);
+
+    }
+
+  }
+
+  /**
+   * Delivers the most significant bytes which have been waiting since before a time.
+   *
+   * @param before deliver the bytes which arrived before this time
+   *
+   * @return when the earliest byte still waiting arrived, or {@link Long#MAX_VALUE} if none are
+   */
+
+  private long flushPending(final long before) {
+
+    long earliest = Long.MAX_VALUE;
+
+    for ( int channel = 0; channel < CHANNELS; channel++ ) {
+
+      int bits = pending[channel];
+
+      while ( bits != 0 ) {
+
+        final int controller = Integer.numberOfTrailingZeros(bits);
+        final int index = channel * PAIRS + controller;
+        bits &= bits - 1;
+
+        if ( pendingSince[index] <= before ) {
+
+          pending[channel] &= ~(1 << controller);
+          deliver(channel, controller, pendingTimestamp[index]);
+
+        } else {
+
+          earliest = Math.min(earliest, pendingSince[index]);
+
+        }
+
+      }
+
+    }
+
+    return earliest;
+
+  }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Library-wide lifecycle operations. The most important is {@link #warmUp()}, which lets an application get the
+ * expensive parts of starting CoreMidi4J out of the way on a background thread, rather than having them happen on
+ * whatever thread (often the user interface thread) first touches {@code javax.sound.midi}.</p>
+ *
+ * <p>This class deliberately refers to the rest of the library only from within the warm-up task, so calling
+ * {@link #warmUp()} does not itself cause the native library to be loaded on the calling thread.</p>
+ *
+ * <p>It also decides which backend carries out the CoreMIDI operations: normally the native library, but a pure
+ * Java simulation can be selected instead through {@link #BACKEND_PROPERTY}.</p>
+ *
+ */
+
+public final class CoreMidi4J {
+
+  /**
+   * The system property which selects the backend that carries out CoreMIDI operations. The default, {@code native},
+   * uses CoreMIDI itself through the native library. Setting it to {@code simulated} uses
+   * {@link SimulatedCoreMidiBackend} instead, which works on any operating system. The property is read once, the
+   * first time the library needs a backend.
+   */
+
+  public static final String BACKEND_PROPERTY = "coremidi4j.backend";
+
+  /**
+   * Holds the backend, chosen the first time it is needed.
+   */
+
+  private static final class BackendHolder {
+
+    static final CoreMidiBackend BACKEND = selectBackend();
+
+  }
+
+  /**
+   * Holds how long each phase of starting up took, in microseconds, in the order the phases completed.
+   */
+
+  private static final Map<String, Long> startupTimings = new LinkedHashMap<>();
+
+  /**
+   * Holds the warm-up task, once it has been requested.
+   */
+
+  private static FutureTask<Boolean> warmUpTask;
+
+  /**
+   * Holds the topology currently being served: provisional until the device provider publishes a live one.
+   */
+
+  private static TopologySnapshot topology;
+
+  /**
+   * Holds the listeners to be told when the topology changes.
+   */
+
+  private static final Set<TopologyListener> topologyListeners =
+          Collections.newSetFromMap(new ConcurrentHashMap<TopologyListener, Boolean>());
+
+  /**
+   * Prevent instantiation.
+   */
+
+  private CoreMidi4J() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * <p>Starts preparing the library on a background daemon thread: loading the native library, creating the CoreMIDI
+   * client and output port, enumerating the available end points, and priming the {@code javax.sound.midi} device
+   * list. Enumerating also starts rebinding any open persistent end points and publishing the live topology, on the
+   * shared background thread. Device providers constructed later by the Java MIDI system share the result of this
+   * work, so they become cheap to create; if one is constructed while warm-up is still in progress, it simply waits
+   * for it to finish rather than repeating it.</p>
+   *
+   * <p>This can safely be called any number of times, from any thread, on any platform; only the first call
+   * starts the work, and every call returns the same future.</p>
+   *
+   * @return a future which completes once the library is ready, with the value {@code true} if CoreMIDI is
+   *         available (in other words, this is a Mac and the native library loaded), or {@code false} if the
+   *         library will stay inactive
+   */
+
+  public static synchronized Future<Boolean> warmUp() {
+
+    if ( warmUpTask == null ) {
+
+      warmUpTask = new FutureTask<>(new Callable<Boolean>() {
+
+        @Override
+        public Boolean call() throws Exception {
+
+          final long start = System.nanoTime();
+
+          // Loading the library is timed by the loader itself, and initialising the provider by the provider.
+          final boolean available = CoreMidiDeviceProvider.isLibraryLoaded();
+
+          if ( available ) {
+
+            new CoreMidiDeviceProvider();
+
+          }
+
+          final long systemStart = System.nanoTime();
+          CoreMidiDeviceProvider.getMidiDeviceInfo();
+          recordPhase("javax.sound.midi device list", systemStart);
+          recordPhase("warm-up total", start);
+
+          return available;
+
+        }
+
+      });
+
+      final Thread thread = new Thread(warmUpTask, "CoreMidi4J Warm-up");
+      thread.setDaemon(true);
+      thread.start();
+
+    }
+
+    return warmUpTask;
+
+  }
+
+  /**
+   * Checks whether warm-up has been requested and has finished.
+   *
+   * @return true if {@link #warmUp()} has been called and its work is complete
+   */
+
+  public static synchronized boolean isWarmedUp() {
+
+    return warmUpTask != null && warmUpTask.isDone();
+
+  }
+
+  /**
+   * <p>Reports how long each phase of starting the library took, for startup diagnostics. Phases are recorded
+   * whether or not {@link #warmUp()} was used, and include locating and loading the native library, creating the
+   * CoreMIDI client and output port, and enumerating devices.</p>
+   *
+   * @return the duration of each phase that has completed so far, in microseconds, keyed by phase name in the
+   *         order the phases completed
+   */
+
+  public static Map<String, Long> getStartupTimings() {
+
+    synchronized (startupTimings) {
+
+      return Collections.unmodifiableMap(new LinkedHashMap<>(startupTimings));
+
+    }
+
+  }
+
+  /**
+   * <p>Gets the set of CoreMIDI end points, as quickly as possible. Shortly after the device provider has
+   * enumerated the devices, this is the live topology. Before then, if the system property
+   * {@value TopologySnapshot#SNAPSHOT_FILE_PROPERTY} names a snapshot file written by an earlier run, its contents
+   * are returned as a provisional topology, without waiting for (or even triggering) the native enumeration; use
+   * {@link TopologySnapshot#isProvisional()} to tell the two apart, and register a {@link TopologyListener} to learn
+   * what the live enumeration changed.</p>
+   *
+   * @return the current topology, which is empty if nothing has been enumerated yet and there is no usable snapshot
+   */
+
+  public static synchronized TopologySnapshot getTopology() {
+
+    if ( topology == null ) {
+
+      final long start = System.nanoTime();
+      topology = new TopologySnapshot(Collections.<TopologySnapshot.Entry>emptyList(), true);
+      final File file = TopologySnapshot.configuredFile();
+
+      if ( file != null && file.isFile() ) {
+
+        try {
+
+          topology = TopologySnapshot.read(file);
+          recordPhase("read topology snapshot", start);
+
+        } catch (IOException e) {
+
+          System.err.println("Ignoring unusable topology snapshot " + file + ": " + e.getMessage());
+
+        }
+
+      }
+
+    }
+
+    return topology;
+
+  }
+
+  /**
+   * Adds a listener to be told whenever the topology changes, including when the live enumeration replaces the
+   * provisional topology read at startup.
+   *
+   * @param listener the listener to add
+   */
+
+  public static void addTopologyListener(final TopologyListener listener) {
+
+    if ( listener != null ) {
+
+      topologyListeners.add(listener);
+
+    }
+
+  }
+
+  /**
+   * Removes a listener that had been added with {@link #addTopologyListener(TopologyListener)}.
+   *
+   * @param listener the listener to remove
+   */
+
+  public static void removeTopologyListener(final TopologyListener listener) {
+
+    topologyListeners.remove(listener);
+
+  }
+
+  /**
+   * Called by the device provider on the shared background thread whenever it has rebuilt its device map. Replaces
+   * the topology being served, and if it differs from the previous one, rewrites the snapshot file and tells the
+   * listeners.
+   *
+   * @param live a snapshot of the live device map
+   */
+
+  static void publishTopology(final TopologySnapshot live) {
+
+    final TopologySnapshot previous;
+
+    synchronized (CoreMidi4J.class) {
+
+      previous = getTopology();
+      topology = live;
+
+    }
+
+    final TopologySnapshot.Diff diff = previous.diff(live);
+
+    if ( diff.isEmpty() ) {
+
+      return;  // Nothing has changed, or the live enumeration confirmed the provisional topology exactly
+
+    }
+
+    final File file = TopologySnapshot.configuredFile();
+
+    if ( file != null ) {
+
+      try {
+
+        live.write(file);
+
+      } catch (IOException e) {
+
+        System.err.println("Problem writing topology snapshot " + file + ": " + e.getMessage());
+
+      }
+
+    }
+
+    for ( TopologyListener listener : topologyListeners ) {
+
+      try {
+
+        listener.topologyChanged(previous, live, diff);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem delivering topology change notification: " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Gets the backend which carries out CoreMIDI operations.
+   *
+   * @return the backend selected by {@link #BACKEND_PROPERTY}
+   */
+
+  static CoreMidiBackend getBackend() {
+
+    return BackendHolder.BACKEND;
+
+  }
+
+  /**
+   * Chooses the backend according to {@link #BACKEND_PROPERTY}.
+   *
+   * @return the simulated backend if that was asked for, otherwise the native one
+   */
+
+  private static CoreMidiBackend selectBackend() {
+
+    final String choice = System.getProperty(BACKEND_PROPERTY, "native");
+
+    if ( "simulated".equalsIgnoreCase(choice) ) {
+
+      return SimulatedCoreMidiBackend.getInstance();
+
+    }
+
+    if ( !"native".equalsIgnoreCase(choice) ) {
+
+      System.err.println("Unknown CoreMidi4J backend \"" + choice + "\", using the native one.");
+
+    }
+
+    return new NativeCoreMidiBackend();
+
+  }
+
+  /**
+   * Records the duration of a startup phase.
+   *
+   * @param phase     the name of the phase which has just completed
+   * @param startTime the value of {@link System#nanoTime()} when the phase began
+   *
+   * @return the current value of {@link System#nanoTime()}, so that consecutive phases can be chained
+   */
+
+  static long recordPhase(final String phase, final long startTime) {
+
+    final long now = System.nanoTime();
+
+    synchronized (startupTimings) {
+
+      startupTimings.put(phase, TimeUnit.NANOSECONDS.toMicros(now - startTime));
+
+    }
+
+    return now;
+
+  }
+
+}
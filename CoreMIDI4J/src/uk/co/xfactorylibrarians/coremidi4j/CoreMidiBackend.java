@@ -0,0 +1,211 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * <p>The operations the rest of the library needs from CoreMIDI. Normally these are carried out by
+ * {@link NativeCoreMidiBackend}, which hands them to the JNI code, but setting the system property
+ * {@value CoreMidi4J#BACKEND_PROPERTY} to {@code simulated} selects {@link SimulatedCoreMidiBackend} instead, which
+ * implements them in plain Java so the library can be exercised on any operating system.</p>
+ *
+ * <p>Each operation is given the Java object on whose behalf it is being performed, since that is the object the
+ * corresponding native method is bound to. This is an internal interface which is managed by the library itself.</p>
+ *
+ */
+
+interface CoreMidiBackend {
+
+  /**
+   * Checks whether the backend can be used on this system.
+   *
+   * @return true if the backend is operational
+   *
+   * @throws CoreMidiException if something unexpected happens while preparing the backend
+   */
+
+  boolean isAvailable() throws CoreMidiException;
+
+  /**
+   * Creates a MIDI client, which will be told about changes in the MIDI environment through
+   * {@link CoreMidiClient#notifyCallback()}.
+   *
+   * @param client     the client being created
+   * @param clientName the name of the client
+   *
+   * @return a reference to the MIDI client
+   *
+   * @throws CoreMidiException if the client cannot be created
+   */
+
+  int createClient(CoreMidiClient client, String clientName) throws CoreMidiException;
+
+  /**
+   * Creates an input port.
+   *
+   * @param port            the port being created
+   * @param clientReference the MIDI client reference
+   * @param portName        the name of the input port
+   *
+   * @return a reference to the created input port
+   *
+   * @throws CoreMidiException if the port cannot be created
+   */
+
+  int createInputPort(CoreMidiInputPort port, int clientReference, String portName) throws CoreMidiException;
+
+  /**
+   * Connects a source end point to an input port, so that its messages are delivered to
+   * {@link CoreMidiSource#messageCallback(long, int, byte[])}.
+   *
+   * @param port               the port being connected to
+   * @param inputPortReference the reference to the input port
+   * @param sourceDevice       the source device that wishes to connect to the port
+   *
+   * @return a handle for the connection, to be passed back when disconnecting
+   *
+   * @throws CoreMidiException if there is a problem connecting the source
+   */
+
+  long connectSource(CoreMidiInputPort port, int inputPortReference, CoreMidiSource sourceDevice)
+          throws CoreMidiException;
+
+  /**
+   * Disconnects a source end point from an input port.
+   *
+   * @param port               the port being disconnected from
+   * @param inputPortReference the reference to the input port
+   * @param connectionHandle   the handle returned when the source was connected
+   * @param sourceDevice       the source device that wishes to disconnect from the port
+   *
+   * @throws CoreMidiException if there is a problem disconnecting the source
+   */
+
+  void disconnectSource(CoreMidiInputPort port, int inputPortReference, long connectionHandle,
+                        CoreMidiSource sourceDevice) throws CoreMidiException;
+
+  /**
+   * Creates an output port.
+   *
+   * @param port            the port being created
+   * @param clientReference the MIDI client reference
+   * @param portName        the name of the output port
+   *
+   * @return a reference to the created output port
+   *
+   * @throws CoreMidiException if the port cannot be created
+   */
+
+  int createOutputPort(CoreMidiOutputPort port, int clientReference, String portName) throws CoreMidiException;
+
+  /**
+   * Sends a MIDI message to a destination end point.
+   *
+   * @param port                         the port sending the message
+   * @param outputPortReference          the reference to the output port
+   * @param destinationEndPointReference the destination end point to send the message to
+   * @param message                      the message to send
+   * @param timestamp                    the time at which the message should take effect, in microseconds on the
+   *                                     backend clock, with zero meaning immediately
+   *
+   * @throws CoreMidiException if there is a problem sending the message
+   */
+
+  void send(CoreMidiOutputPort port, int outputPortReference, int destinationEndPointReference, MidiMessage message,
+            long timestamp) throws CoreMidiException;
+
+  /**
+   * Gets the number of source end points in the system.
+   *
+   * @param provider the provider enumerating the end points
+   *
+   * @return the number of sources
+   */
+
+  int getNumberOfSources(CoreMidiDeviceProvider provider);
+
+  /**
+   * Gets the number of destination end points in the system.
+   *
+   * @param provider the provider enumerating the end points
+   *
+   * @return the number of destinations
+   */
+
+  int getNumberOfDestinations(CoreMidiDeviceProvider provider);
+
+  /**
+   * Gets the specified source end point.
+   *
+   * @param provider    the provider enumerating the end points
+   * @param sourceIndex the index of the source to get
+   *
+   * @return the reference of the source end point
+   *
+   * @throws CoreMidiException if the source index is not valid
+   */
+
+  int getSource(CoreMidiDeviceProvider provider, int sourceIndex) throws CoreMidiException;
+
+  /**
+   * Gets the specified destination end point.
+   *
+   * @param provider         the provider enumerating the end points
+   * @param destinationIndex the index of the destination to get
+   *
+   * @return the reference of the destination end point
+   *
+   * @throws CoreMidiException if the destination index is not valid
+   */
+
+  int getDestination(CoreMidiDeviceProvider provider, int destinationIndex) throws CoreMidiException;
+
+  /**
+   * Gets the unique ID of an end point.
+   *
+   * @param provider  the provider enumerating the end points
+   * @param reference the reference to the end point
+   *
+   * @return the unique ID of the referenced end point
+   *
+   * @throws CoreMidiException if the reference is not valid
+   */
+
+  int getUniqueID(CoreMidiDeviceProvider provider, int reference) throws CoreMidiException;
+
+  /**
+   * Gets the device information for an end point.
+   *
+   * @param provider  the provider enumerating the end points
+   * @param reference the reference to the end point
+   *
+   * @return the device information describing the end point
+   *
+   * @throws CoreMidiException if the reference is not valid
+   */
+
+  CoreMidiDeviceInfo getMidiDeviceInfo(CoreMidiDeviceProvider provider, int reference) throws CoreMidiException;
+
+  /**
+   * Obtains the current time on the backend clock, against which message timestamps are measured.
+   *
+   * @param device the {@link CoreMidiSource} or {@link CoreMidiDestination} asking for the time
+   *
+   * @return the current time in microseconds
+   */
+
+  long getMicroSecondTime(MidiDevice device);
+
+}
@@ -35,7 +35,7 @@ public class CoreMidiClient {
 
   public CoreMidiClient(String name) throws CoreMidiException {
 
-    midiClientReference = this.createClient(name);
+    midiClientReference = CoreMidi4J.getBackend().createClient(this, name);
 
   }
 
@@ -124,7 +124,7 @@ public class CoreMidiClient {
    *
    */
 
-  private native int createClient(String clientName) throws CoreMidiException;
+  native int createClient(String clientName) throws CoreMidiException;
 
   /**
    * Disposes of a CoreMIDI Client
@@ -23,6 +23,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.Transmitter;
@@ -38,6 +39,8 @@ public class CoreMidiDestination implements MidiDevice {
   private final AtomicBoolean isOpen;  // Tracks whether we are conneted to CoreMIDI and can be used
   private final AtomicLong startTime;  // The system time in microseconds when the port was opened
   private final Set<CoreMidiReceiver> receivers;
+  private final ActiveNoteMap activeNotes = new ActiveNoteMap();  // Notes sent by any receiver and not yet ended
+  private final AtomicLong latestTimestamp = new AtomicLong(0);   // The latest CoreMIDI timestamp sent, or 0 if none
 
   /**
    * Default constructor. 
@@ -95,20 +98,27 @@ public class CoreMidiDestination implements MidiDevice {
     if ( isOpen.compareAndSet(false, true) ) {
 
       // Track the system time in microseconds
-      startTime.set(getMicroSecondTime());
+      startTime.set(CoreMidi4J.getBackend().getMicroSecondTime(this));
 
     }
 
   }
 
   /**
-   * Closes the Core MIDI Device, which also closes all of its receivers
+   * Closes the Core MIDI Device, which also closes all of its receivers. Any notes which have been sent to the
+   * device but not ended are first ended by sending it note offs, so they are not left stuck.
    * 
    */
 
   @Override
   public void close() {
 
+    if ( isOpen.get() && !activeNotes.isEmpty() ) {
+
+      releaseActiveNotes();
+
+    }
+
     if ( isOpen.compareAndSet(true, false) ) {
 
       // Reset the context data
@@ -126,6 +136,91 @@ public class CoreMidiDestination implements MidiDevice {
 
   }
 
+  /**
+   * Closes the device because the underlying CoreMIDI destination has disappeared. Behaves like {@link #close()},
+   * except that any active notes are forgotten rather than ended, since there is nothing left to send note offs to.
+   */
+
+  void deviceDisappeared() {
+
+    activeNotes.clear();
+    close();
+
+  }
+
+  /**
+   * Gets the notes which have been sent to this destination, through any of its receivers, and not yet ended.
+   *
+   * @return the map of active notes, which is kept up to date as messages are sent
+   *
+   */
+
+  public ActiveNoteMap getActiveNotes() {
+
+    return activeNotes;
+
+  }
+
+  /**
+   * Records the CoreMIDI timestamp of a message sent to this destination, so that note offs sent to release its
+   * active notes are not delivered before messages which are still waiting for their time.
+   *
+   * @param coreTimestamp the timestamp the message was sent with, in CoreMIDI microseconds, or 0 for immediately
+   *
+   */
+
+  void sentAt(final long coreTimestamp) {
+
+    long latest;
+
+    while ( coreTimestamp > (latest = latestTimestamp.get()) ) {
+
+      if ( latestTimestamp.compareAndSet(latest, coreTimestamp) ) {
+
+        return;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Ends every note which has been sent to this destination and not yet ended, by sending it note offs. They are
+   * sent immediately, unless messages have been sent with timestamps which have not yet been reached, in which case
+   * the note offs are timed to follow the last of them, so that a note on still waiting to be delivered does not
+   * start a note after it has been released. Only the notes actually sounding are ended, rather than every note on
+   * every channel, so this makes an efficient panic. It happens automatically when the device is closed.
+   *
+   * @return the number of note offs sent
+   *
+   */
+
+  public int releaseActiveNotes() {
+
+    int count = 0;
+    final long timestamp = latestTimestamp.get();  // Already past, and so immediate, unless messages are waiting
+
+    for ( MidiMessage noteOff : activeNotes.release() ) {
+
+      try {
+
+        CoreMidiDeviceProvider.getOutputPort().send(info.getEndPointReference(), noteOff, timestamp);
+        count++;
+
+      } catch (CoreMidiException e) {
+
+        System.err.println("Problem sending note off to MIDI destination " + this + ": " + e);
+        e.printStackTrace(System.err);
+
+      }
+
+    }
+
+    return count;
+
+  }
+
   /**
    * Checks to see if the MIDI Device is open
    * 
@@ -155,7 +250,7 @@ public class CoreMidiDestination implements MidiDevice {
   public long getMicrosecondPosition() {
 
     // Return the elapsed time in Microseconds
-    return getMicroSecondTime() - startTime.get();
+    return CoreMidi4J.getBackend().getMicroSecondTime(this) - startTime.get();
 
   }
 
@@ -319,6 +414,6 @@ public class CoreMidiDestination implements MidiDevice {
    * 
    */
 
-  private native long getMicroSecondTime();
+  native long getMicroSecondTime();
 
 }
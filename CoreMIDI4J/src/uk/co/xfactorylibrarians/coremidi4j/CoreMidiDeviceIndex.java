@@ -0,0 +1,533 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.sound.midi.MidiDevice;
+
+/**
+ * <p>Indexes the CoreMIDI devices known to {@link CoreMidiDeviceProvider} by each of the identifying values carried
+ * in their {@link CoreMidiDeviceInfo}, so that saved setups can be resolved without scanning the whole device list.
+ * Lookups by end point unique ID, name, entity unique ID and device unique ID are single hash lookups, and names can
+ * also be searched by case-insensitive prefix.</p>
+ *
+ * <p>The index is maintained by the device provider alongside its device map, and is updated incrementally as
+ * devices appear, disappear or are renamed. It can be read from any thread without locking; each query returns an
+ * immutable result reflecting the index at the time of the call.</p>
+ *
+ * <p>Obtain the index through {@link CoreMidiDeviceProvider#getDeviceIndex()}.</p>
+ *
+ */
+
+public class CoreMidiDeviceIndex {
+
+  /**
+   * Records the device information under which a device was indexed, so that the right keys can be removed
+   * when it changes or disappears.
+   */
+
+  private final Map<MidiDevice, CoreMidiDeviceInfo> indexedInfo = new HashMap<>();
+
+  private final ConcurrentMap<Integer, MidiDevice> byEndPointUniqueID = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, List<MidiDevice>> byName = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, List<MidiDevice>> byEndPointName = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, List<MidiDevice>> byEntityUniqueID = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, List<MidiDevice>> byDeviceUniqueID = new ConcurrentHashMap<>();
+  private final ConcurrentNavigableMap<String, List<MidiDevice>> bySearchName = new ConcurrentSkipListMap<>();
+
+  /**
+   * Constructor; only the device provider creates indices.
+   */
+
+  CoreMidiDeviceIndex() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * Adds a device which has just appeared, or updates the index entries of one whose information has changed
+   * (for example because the user renamed it).
+   *
+   * @param device the device to be indexed under its current device information
+   *
+   */
+
+  synchronized void put(final MidiDevice device) {
+
+    final CoreMidiDeviceInfo info = (CoreMidiDeviceInfo) device.getDeviceInfo();
+    final CoreMidiDeviceInfo previous = indexedInfo.put(device, info);
+
+    if ( previous != null && sameKeys(previous, info) ) {
+
+      return;  // Nothing that we index has changed
+
+    }
+
+    if ( previous != null ) {
+
+      removeKeys(device, previous);
+
+    }
+
+    addKeys(device, info);
+
+  }
+
+  /**
+   * Removes a device which has disappeared from the index.
+   *
+   * @param device the device to be removed
+   *
+   */
+
+  synchronized void remove(final MidiDevice device) {
+
+    final CoreMidiDeviceInfo previous = indexedInfo.remove(device);
+
+    if ( previous != null ) {
+
+      removeKeys(device, previous);
+
+    }
+
+  }
+
+  /**
+   * Checks whether two device information objects would be indexed under exactly the same keys.
+   *
+   * @param a the first device information object
+   * @param b the second device information object
+   *
+   * @return true if re-indexing a device from one to the other would make no difference
+   */
+
+  private static boolean sameKeys(final CoreMidiDeviceInfo a, final CoreMidiDeviceInfo b) {
+
+    return a.getEndPointUniqueID() == b.getEndPointUniqueID() &&
+           a.getEntityUniqueID() == b.getEntityUniqueID() &&
+           a.getdeviceUniqueID() == b.getdeviceUniqueID() &&
+           a.getEntityReference() == b.getEntityReference() &&
+           a.getDeviceReference() == b.getDeviceReference() &&
+           a.getName().equals(b.getName()) &&
+           ( (a.getEndPointName() == null) ? (b.getEndPointName() == null) : a.getEndPointName().equals(b.getEndPointName()) );
+
+  }
+
+  /**
+   * Adds all of the index entries for a device.
+   *
+   * @param device the device being indexed
+   * @param info   the device information whose values should be used as keys
+   *
+   */
+
+  private void addKeys(final MidiDevice device, final CoreMidiDeviceInfo info) {
+
+    byEndPointUniqueID.put(info.getEndPointUniqueID(), device);
+    addTo(byName, info.getName(), device);
+    addTo(byEndPointName, info.getEndPointName(), device);
+
+    // Virtual end points have no entity or device, so do not lump them all together under a zero ID.
+    if ( info.getEntityReference() != 0 ) {
+
+      addTo(byEntityUniqueID, info.getEntityUniqueID(), device);
+
+    }
+
+    if ( info.getDeviceReference() != 0 ) {
+
+      addTo(byDeviceUniqueID, info.getdeviceUniqueID(), device);
+
+    }
+
+    for ( String searchName : searchNames(info) ) {
+
+      addTo(bySearchName, searchName, device);
+
+    }
+
+  }
+
+  /**
+   * Removes all of the index entries for a device.
+   *
+   * @param device the device being removed from the index
+   * @param info   the device information whose values were used as keys
+   *
+   */
+
+  private void removeKeys(final MidiDevice device, final CoreMidiDeviceInfo info) {
+
+    byEndPointUniqueID.remove(info.getEndPointUniqueID(), device);
+    removeFrom(byName, info.getName(), device);
+    removeFrom(byEndPointName, info.getEndPointName(), device);
+    removeFrom(byEntityUniqueID, info.getEntityUniqueID(), device);
+    removeFrom(byDeviceUniqueID, info.getdeviceUniqueID(), device);
+
+    for ( String searchName : searchNames(info) ) {
+
+      removeFrom(bySearchName, searchName, device);
+
+    }
+
+  }
+
+  /**
+   * Determines the lower-case names under which a device can be found by case-insensitive and prefix searches:
+   * its name without the CoreMidi4J prefix, and its end point name.
+   *
+   * @param info the device information being indexed
+   *
+   * @return the distinct search keys for the device
+   */
+
+  private static Set<String> searchNames(final CoreMidiDeviceInfo info) {
+
+    final Set<String> result = new HashSet<>(2);
+    result.add(searchKey(info.getRawName()));
+
+    if ( info.getEndPointName() != null ) {
+
+      result.add(searchKey(info.getEndPointName()));
+
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Converts a name to the form used as a key for case-insensitive searches.
+   *
+   * @param name the name to be converted, which may be null
+   *
+   * @return the search key, or null if the name was null
+   */
+
+  private static String searchKey(final String name) {
+
+    return (name == null) ? null : name.toLowerCase(Locale.ROOT);
+
+  }
+
+  /**
+   * Adds a device to the list held under a key, replacing the list so that readers never see it change.
+   *
+   * @param map    the index being updated
+   * @param key    the key under which the device should be found
+   * @param device the device to add
+   * @param <K>    the type of key used by the index
+   *
+   */
+
+  private static <K> void addTo(final Map<K, List<MidiDevice>> map, final K key, final MidiDevice device) {
+
+    if ( key == null ) {
+
+      return;
+
+    }
+
+    final List<MidiDevice> existing = map.get(key);
+    final List<MidiDevice> updated = new ArrayList<>((existing == null) ? 1 : existing.size() + 1);
+
+    if ( existing != null ) {
+
+      updated.addAll(existing);
+
+    }
+
+    updated.add(device);
+    map.put(key, Collections.unmodifiableList(updated));
+
+  }
+
+  /**
+   * Removes a device from the list held under a key, replacing the list so that readers never see it change,
+   * and dropping the key entirely when no devices remain.
+   *
+   * @param map    the index being updated
+   * @param key    the key under which the device was found
+   * @param device the device to remove
+   * @param <K>    the type of key used by the index
+   *
+   */
+
+  private static <K> void removeFrom(final Map<K, List<MidiDevice>> map, final K key, final MidiDevice device) {
+
+    if ( key == null ) {
+
+      return;
+
+    }
+
+    final List<MidiDevice> existing = map.get(key);
+
+    if ( existing == null || !existing.contains(device) ) {
+
+      return;
+
+    }
+
+    if ( existing.size() == 1 ) {
+
+      map.remove(key);
+
+    } else {
+
+      final List<MidiDevice> updated = new ArrayList<>(existing);
+      updated.remove(device);
+      map.put(key, Collections.unmodifiableList(updated));
+
+    }
+
+  }
+
+  /**
+   * Gets a list from an index, substituting an empty list when there is no entry.
+   *
+   * @param map the index to consult
+   * @param key the key to look up
+   * @param <K> the type of key used by the index
+   *
+   * @return the devices found under the key, which will never be null
+   */
+
+  private static <K> List<MidiDevice> lookup(final Map<K, List<MidiDevice>> map, final K key) {
+
+    final List<MidiDevice> result = (key == null) ? null : map.get(key);
+    return (result == null) ? Collections.<MidiDevice>emptyList() : result;
+
+  }
+
+  /**
+   * Finds the device with a particular end point unique ID, which is the most reliable way to identify a
+   * MIDI port across runs and reconnections.
+   *
+   * @param endPointUniqueID the OS X unique identifier of the end point
+   *
+   * @return the corresponding {@link CoreMidiSource} or {@link CoreMidiDestination}, or null if none is present
+   */
+
+  public MidiDevice getByEndPointUniqueID(final int endPointUniqueID) {
+
+    return byEndPointUniqueID.get(endPointUniqueID);
+
+  }
+
+  /**
+   * Finds the devices with a particular name, exactly as reported by {@link MidiDevice.Info#getName()}
+   * (including the {@code CoreMIDI4J - } prefix).
+   *
+   * @param name the device information name to look for
+   *
+   * @return the devices with that name, in the order they were discovered; empty if there are none
+   */
+
+  public List<MidiDevice> getByName(final String name) {
+
+    return lookup(byName, name);
+
+  }
+
+  /**
+   * Finds the devices whose end points have a particular name, exactly as reported by
+   * {@link CoreMidiDeviceInfo#getEndPointName()}.
+   *
+   * @param endPointName the end point name to look for
+   *
+   * @return the devices with that end point name, in the order they were discovered; empty if there are none
+   */
+
+  public List<MidiDevice> getByEndPointName(final String endPointName) {
+
+    return lookup(byEndPointName, endPointName);
+
+  }
+
+  /**
+   * Finds the devices belonging to a particular entity, usually a single port of a multi-port interface,
+   * which will generally contain a source and a destination.
+   *
+   * @param entityUniqueID the OS X unique identifier of the entity
+   *
+   * @return the devices belonging to that entity; empty if there are none
+   */
+
+  public List<MidiDevice> getByEntityUniqueID(final int entityUniqueID) {
+
+    return lookup(byEntityUniqueID, entityUniqueID);
+
+  }
+
+  /**
+   * Finds all of the end points of a physical device, such as every input and output of a USB interface.
+   *
+   * @param deviceUniqueID the OS X unique identifier of the device
+   *
+   * @return the sources and destinations belonging to that device; empty if there are none
+   */
+
+  public List<MidiDevice> getByDeviceUniqueID(final int deviceUniqueID) {
+
+    return lookup(byDeviceUniqueID, deviceUniqueID);
+
+  }
+
+  /**
+   * Finds all of the end points which belong to the same physical device as the supplied one, including
+   * the device itself. Virtual end points have no physical device, so only the device itself is returned.
+   *
+   * @param device a source or destination provided by CoreMidi4J
+   *
+   * @return all of the sources and destinations of the same physical device
+   */
+
+  public List<MidiDevice> getPhysicalDeviceEndPoints(final MidiDevice device) {
+
+    final CoreMidiDeviceInfo info = (CoreMidiDeviceInfo) device.getDeviceInfo();
+
+    if ( info.getDeviceReference() == 0 ) {
+
+      return Collections.singletonList(device);
+
+    }
+
+    return getByDeviceUniqueID(info.getdeviceUniqueID());
+
+  }
+
+  /**
+   * Finds the source which belongs to the same physical device as the supplied end point, for talking to the
+   * device in both directions. If the device has several sources, one on the same entity (port) as the end point is
+   * preferred.
+   *
+   * @param device a source or destination provided by CoreMidi4J
+   *
+   * @return the source, which is the device itself if it is a source, or null if the physical device has none
+   */
+
+  public CoreMidiSource getPairedSource(final MidiDevice device) {
+
+    return (CoreMidiSource) getPairedEndPoint(device, CoreMidiSource.class);
+
+  }
+
+  /**
+   * Finds the destination which belongs to the same physical device as the supplied end point, for talking to the
+   * device in both directions. If the device has several destinations, one on the same entity (port) as the end
+   * point is preferred.
+   *
+   * @param device a source or destination provided by CoreMidi4J
+   *
+   * @return the destination, which is the device itself if it is a destination, or null if the physical device has
+   *         none
+   */
+
+  public CoreMidiDestination getPairedDestination(final MidiDevice device) {
+
+    return (CoreMidiDestination) getPairedEndPoint(device, CoreMidiDestination.class);
+
+  }
+
+  /**
+   * Finds an end point of a particular kind on the same physical device as the supplied one, preferring one on the
+   * same entity.
+   *
+   * @param device a source or destination provided by CoreMidi4J
+   * @param kind   the class of end point wanted
+   *
+   * @return the end point, or null if there is none
+   */
+
+  private MidiDevice getPairedEndPoint(final MidiDevice device, final Class<? extends MidiDevice> kind) {
+
+    final int entity = ((CoreMidiDeviceInfo) device.getDeviceInfo()).getEntityUniqueID();
+    MidiDevice result = null;
+
+    for ( MidiDevice candidate : getPhysicalDeviceEndPoints(device) ) {
+
+      if ( kind.isInstance(candidate) ) {
+
+        if ( ((CoreMidiDeviceInfo) candidate.getDeviceInfo()).getEntityUniqueID() == entity ) {
+
+          return candidate;
+
+        }
+
+        if ( result == null ) {
+
+          result = candidate;
+
+        }
+
+      }
+
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Finds devices by name, ignoring case. Both the device name (without the {@code CoreMIDI4J - } prefix)
+   * and the end point name are considered.
+   *
+   * @param name the name to look for
+   *
+   * @return the matching devices, without duplicates; empty if there are none, or the name is null
+   */
+
+  public List<MidiDevice> findByNameIgnoreCase(final String name) {
+
+    return lookup(bySearchName, searchKey(name));
+
+  }
+
+  /**
+   * Finds devices whose names start with the supplied text, ignoring case. Both the device name (without the
+   * {@code CoreMIDI4J - } prefix) and the end point name are considered. Results are ordered by name.
+   *
+   * @param prefix the start of the names to look for
+   *
+   * @return the matching devices, without duplicates; empty if there are none, or the prefix is null
+   */
+
+  public List<MidiDevice> findByNamePrefix(final String prefix) {
+
+    if ( prefix == null ) {
+
+      return Collections.emptyList();
+
+    }
+
+    final String from = searchKey(prefix);
+    final Set<MidiDevice> result = new LinkedHashSet<>();
+
+    for ( List<MidiDevice> devices : bySearchName.subMap(from, true, from + Character.MAX_VALUE, false).values() ) {
+
+      result.addAll(devices);
+
+    }
+
+    return Collections.unmodifiableList(new ArrayList<>(result));
+
+  }
+
+}
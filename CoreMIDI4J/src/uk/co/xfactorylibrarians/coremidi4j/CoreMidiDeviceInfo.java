@@ -23,6 +23,8 @@ import javax.sound.midi.MidiDevice;
 
 public class CoreMidiDeviceInfo extends MidiDevice.Info {
 
+  static final String NAME_PREFIX = "CoreMIDI4J - ";  // Added to device names to distinguish them from broken ones
+
   private final String deviceName;   // OS X Device Name
   private final int deviceReference; // OS X Device Reference
   private final int deviceUniqueID;  // OS X Device UID
@@ -90,7 +92,7 @@ public class CoreMidiDeviceInfo extends MidiDevice.Info {
                             final int endPointReference, 
                             final int endPointUniqueID) {
 
-    super("CoreMIDI4J - " + name, defaultForNull(vendor, "<Unknown vendor>"), defaultForNull(description, name), version);
+    super(NAME_PREFIX + name, defaultForNull(vendor, "<Unknown vendor>"), defaultForNull(description, name), version);
 
     this.deviceName        = deviceName;
     this.deviceReference   = deviceReference;
@@ -104,6 +106,19 @@ public class CoreMidiDeviceInfo extends MidiDevice.Info {
        
   }
 
+  /**
+   * Gets the name of the device as CoreMIDI reports it, without the prefix which identifies it as a CoreMidi4J device
+   *
+   * @return the name that was supplied when this object was constructed
+   *
+   */
+
+  String getRawName() {
+
+    return getName().substring(NAME_PREFIX.length());
+
+  }
+
   /**
    * Gets a string describing the device
    * 
@@ -16,6 +16,7 @@ package uk.co.xfactorylibrarians.coremidi4j;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -35,28 +36,52 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
   private static final class MidiProperties {
 
-    private CoreMidiClient client;
-    private CoreMidiOutputPort output;
+    private volatile CoreMidiClient client;
+    private volatile CoreMidiOutputPort output;
+    private volatile boolean initialised;  // Set last, once the device map has been built
     private final Map<Integer, MidiDevice> deviceMap = new LinkedHashMap<>(DEVICE_MAP_SIZE);
+    private final CoreMidiDeviceIndex deviceIndex = new CoreMidiDeviceIndex();
+    private final CoreMidiInputPortPool inputPorts = new CoreMidiInputPortPool();
 
   }
 
   private static final MidiProperties midiProperties = new MidiProperties();
 
   /**
-   * Initialises the system
+   * Initialises the system. This is shared by every instance of the provider, and only happens once; if another
+   * thread (such as the one started by {@link CoreMidi4J#warmUp()}) is already doing it, we wait for it to finish.
+   * The time taken by each phase is recorded for {@link CoreMidi4J#getStartupTimings()}.
    * 
    * @throws CoreMidiException if there is a problem communicating with CoreMIDI
    * 
    */
 
-  private synchronized void initialise() throws CoreMidiException {
+  private void initialise() throws CoreMidiException {
 
-    if ( midiProperties.client == null ) {
+    TopologySnapshot live = null;
 
-      midiProperties.client = new CoreMidiClient("Core MIDI Provider");
-      midiProperties.output = midiProperties.client.outputPortCreate("Core Midi Provider Output");
-      buildDeviceMap();
+    synchronized (midiProperties) {
+
+      if ( midiProperties.client == null ) {
+
+        long phaseStart = System.nanoTime();
+        midiProperties.client = new CoreMidiClient("Core MIDI Provider");
+        phaseStart = CoreMidi4J.recordPhase("create client", phaseStart);
+        midiProperties.output = midiProperties.client.outputPortCreate("Core Midi Provider Output");
+        phaseStart = CoreMidi4J.recordPhase("create output port", phaseStart);
+        live = buildDeviceMap();
+        CoreMidi4J.recordPhase("enumerate devices", phaseStart);
+
+      }
+
+      // Only now may other threads skip the lock, since the client exists before the device map has been built
+      midiProperties.initialised = true;
+
+    }
+
+    if ( live != null ) {
+
+      deviceMapUpdated(live);
 
     }
 
@@ -75,8 +100,9 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
     // an empty device map.
     if (isLibraryLoaded()) {
 
-      // If the client has not been initialised then we need to set up the static fields in the class
-      if ( midiProperties.client == null ) {
+      // If initialisation has not finished then we need to set up the static fields in the class, or wait for the
+      // thread which is doing so
+      if ( !midiProperties.initialised ) {
 
         initialise();
 
@@ -89,22 +115,26 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   }
 
   /**
-   * Builds the device map
+   * Builds the device map. This must be called with the lock on the device map held, and the snapshot it returns
+   * passed to {@link #deviceMapUpdated(TopologySnapshot)} once the lock has been released.
+   * 
+   * @return a snapshot of the topology described by the new device map
    * 
    * @throws CoreMidiException if there is a problem communicating with CoreMIDI
    * 
    */
 
-  private void buildDeviceMap() throws CoreMidiException {
+  private TopologySnapshot buildDeviceMap() throws CoreMidiException {
 
+    final CoreMidiBackend backend = CoreMidi4J.getBackend();
     Set<Integer> devicesSeen = new HashSet<>();
 
     // Iterate through the sources
-    for (int i = 0; i < getNumberOfSources(); i++) {
+    for (int i = 0; i < backend.getNumberOfSources(this); i++) {
 
       // Get the end point reference and its unique ID
-      final int endPointReference = getSource(i);
-      final int uniqueID = getUniqueID(endPointReference);
+      final int endPointReference = backend.getSource(this, i);
+      final int uniqueID = backend.getUniqueID(this, endPointReference);
 
       // Keep track of the IDs of all the devices we see
       devicesSeen.add(uniqueID);
@@ -112,23 +142,26 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
       // If the unique ID of the end point is not in the map then create a CoreMidiSource object and add it to the map.
       if ( !midiProperties.deviceMap.containsKey(uniqueID) ) {
 
-        midiProperties.deviceMap.put(uniqueID, new CoreMidiSource(getMidiDeviceInfo(endPointReference)));
+        CoreMidiSource newDevice = new CoreMidiSource(backend.getMidiDeviceInfo(this, endPointReference));
+        midiProperties.deviceMap.put(uniqueID, newDevice);
+        midiProperties.deviceIndex.put(newDevice);
 
       } else {  // We already know about the device, but may need to update its information (e.g. user renamed it).
 
         CoreMidiSource existingDevice = (CoreMidiSource) midiProperties.deviceMap.get(uniqueID);
-        existingDevice.updateDeviceInfo(getMidiDeviceInfo(endPointReference));
+        existingDevice.updateDeviceInfo(backend.getMidiDeviceInfo(this, endPointReference));
+        midiProperties.deviceIndex.put(existingDevice);
 
       }
 
     }
 
     // Iterate through the destinations
-    for (int i = 0; i < getNumberOfDestinations(); i++) {
+    for (int i = 0; i < backend.getNumberOfDestinations(this); i++) {
 
       // Get the end point reference and its unique ID
-      final int endPointReference = getDestination(i);
-      final int uniqueID = getUniqueID(endPointReference);
+      final int endPointReference = backend.getDestination(this, i);
+      final int uniqueID = backend.getUniqueID(this, endPointReference);
 
       // Keep track of the IDs of all the devices we see
       devicesSeen.add(uniqueID);
@@ -136,12 +169,15 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
       // If the unique ID of the end point is not in the map then create a CoreMidiDestination object and add it to the map.
       if ( !midiProperties.deviceMap.containsKey(uniqueID) ) {
 
-        midiProperties.deviceMap.put(uniqueID, new CoreMidiDestination(getMidiDeviceInfo(endPointReference)));
+        CoreMidiDestination newDevice = new CoreMidiDestination(backend.getMidiDeviceInfo(this, endPointReference));
+        midiProperties.deviceMap.put(uniqueID, newDevice);
+        midiProperties.deviceIndex.put(newDevice);
 
       } else {  // We already know about the device, but may need to update its information (e.g. user renamed it).
 
         CoreMidiDestination existingDevice = (CoreMidiDestination) midiProperties.deviceMap.get(uniqueID);
-        existingDevice.updateDeviceInfo(getMidiDeviceInfo(endPointReference));
+        existingDevice.updateDeviceInfo(backend.getMidiDeviceInfo(this, endPointReference));
+        midiProperties.deviceIndex.put(existingDevice);
 
       }
 
@@ -156,6 +192,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
       if ( !devicesSeen.contains(uniqueID) ) {
 
         MidiDevice vanishedDevice = midiProperties.deviceMap.remove(uniqueID);
+        midiProperties.deviceIndex.remove(vanishedDevice);
 
         try {
 
@@ -166,7 +203,8 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
           } else {
 
-            vanishedDevice.close();  // CoreMidiDestination close is safe to call even after the device is gone
+            // Forgets its active notes, since there is nowhere left to send note offs, then closes normally
+            ((CoreMidiDestination) vanishedDevice).deviceDisappeared();
 
           }
 
@@ -181,6 +219,37 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
     }
 
+    // Capture the topology while the map cannot change; it is published once the lock has been released.
+    return TopologySnapshot.capture(midiProperties.deviceMap.values());
+
+  }
+
+  /**
+   * Finishes dealing with a rebuilt device map on the shared background thread, where opening devices, writing the
+   * topology file and calling listeners cannot hold up, or deadlock with, anything waiting for the device map. Since
+   * that thread runs one task at a time, successive updates are handled in the order the map was rebuilt.
+   *
+   * @param live a snapshot of the topology described by the rebuilt device map
+   *
+   */
+
+  private static void deviceMapUpdated(final TopologySnapshot live) {
+
+    CoreMidiScheduler.getBackgroundExecutor().execute(new Runnable() {
+
+      @Override
+      public void run() {
+
+        // Let any persistent handles unbind from vanished devices and rebind to ones which have returned.
+        PersistentEndPoint.reconcileOpenEndPoints();
+
+        // Replace any provisional topology read at startup with the live one, and persist it for next time.
+        CoreMidi4J.publishTopology(live);
+
+      }
+
+    });
+
   }
 
   /**
@@ -235,8 +304,101 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
 
 
+  /**
+   * Gets the pool of input ports shared by the sources
+   *
+   * @return	the input port pool
+   *
+   */
+
+  static CoreMidiInputPortPool getInputPortPool() {
+
+    return midiProperties.inputPorts;
+
+  }
+
+  /**
+   * Controls how many CoreMIDI input ports the open sources are spread across. Rather than each source having a
+   * port of its own, every source is connected to whichever of these ports has the fewest sources, so a handful of
+   * ports serves any number of sources. Each source is connected to its port only once, however many times it is
+   * opened, and is disconnected when the last user closes it. Ports are only created as sources need them. Lowering
+   * the count does not move sources that are already open. CoreMIDI does not document which threads it uses to
+   * deliver input to different ports, so a larger count is not guaranteed to spread the work across threads. The
+   * default is 1.
+   *
+   * @param count the number of input ports to use
+   * @throws IllegalArgumentException if {@code count} is less than 1 or more than 64.
+   */
+
+  public static void setInputPortCount(int count) {
+
+    if (count < 1 || count > 64) {
+
+      throw new IllegalArgumentException("count must be between 1 and 64");
+
+    }
+
+    midiProperties.inputPorts.setPortCount(count);
+
+  }
+
+  /**
+   * Check how many CoreMIDI input ports the open sources are spread across.
+   *
+   * @return the number of input ports that will be used
+   */
+
+  public static int getInputPortCount() {
+
+    return midiProperties.inputPorts.getPortCount();
+
+  }
+
+  /**
+   * Reports how the open sources are currently spread across the input ports, for diagnostics.
+   *
+   * @return the number of sources connected to each input port that has been created so far
+   */
+
+  public static int[] getInputPortLoads() {
+
+    return midiProperties.inputPorts.getConnectedSourceCounts();
+
+  }
+
+  /**
+   * Gets the index of the CoreMIDI devices currently available, which allows them to be found by unique ID,
+   * name, entity or physical device without scanning the result of {@link #getDeviceInfo()}. The index is kept
+   * up to date as the MIDI environment changes. If the native library is not available, it is always empty.
+   *
+   * @return the index of available CoreMidi4J sources and destinations
+   *
+   */
+
+  public static CoreMidiDeviceIndex getDeviceIndex() {
+
+    return midiProperties.deviceIndex;
+
+  }
+
+  /**
+   * Gets the object which is locked while the device map is being built, so that other classes in the package can
+   * see a consistent version of it. Nothing slow, and nothing which could call back into user code, should be done
+   * while holding this lock.
+   *
+   * @return the device map lock
+   *
+   */
+
+  static Object getDeviceMapLock() {
+
+    return midiProperties;
+
+  }
+
   /** 
-   * Gets information on the installed Core MIDI Devices
+   * Gets information on the installed Core MIDI Devices, followed by the {@link CoreMidiSequencer}. If the native
+   * library is not available, there are no devices and the sequencer is not listed either.
    * 
    * @return an array of MidiDevice.Info objects
    * 
@@ -245,15 +407,15 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   @Override
   public MidiDevice.Info[] getDeviceInfo() {
 
-    // If there are no devices in the map, then return an empty array
-    if (midiProperties.deviceMap == null) {
+    // If there are no devices in the map, or we are not operational, then return an empty array
+    if (midiProperties.deviceMap == null || !isOperational()) {
 
       return new MidiDevice.Info[0];
 
     }
 
-    // Create the array and iterator
-    final MidiDevice.Info[] info = new MidiDevice.Info[midiProperties.deviceMap.size()];
+    // Create the array and iterator, leaving room for the sequencer at the end
+    final MidiDevice.Info[] info = new MidiDevice.Info[midiProperties.deviceMap.size() + 1];
     final Iterator<MidiDevice> iterator = midiProperties.deviceMap.values().iterator();
 
     int counter = 0;
@@ -269,6 +431,8 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
     }
 
+    info[counter] = CoreMidiSequencer.INFO;
+
     return info;
 
   }
@@ -295,6 +459,12 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
     }
 
+    if ( info == CoreMidiSequencer.INFO ) {
+
+      return new CoreMidiSequencer();  // Only supported when we are operational
+
+    }
+
     return midiProperties.deviceMap.get(((CoreMidiDeviceInfo) info).getEndPointUniqueID());
 
   }
@@ -313,7 +483,8 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   @Override
   public boolean isDeviceSupported(final MidiDevice.Info info) {
 
-    boolean foundDevice = false;
+    // The sequencer is only offered alongside the devices it would play to
+    boolean foundDevice = (info == CoreMidiSequencer.INFO) && isOperational();
 
     // The device map must be created and the info object must be a CoreMIDIDeviceInfo object 
     if ( ( midiProperties.deviceMap != null ) && ( info instanceof CoreMidiDeviceInfo ) ) {
@@ -340,31 +511,48 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
   public void midiSystemUpdated() throws CoreMidiException {
 
-    // Update the device map
-    buildDeviceMap();
+    final TopologySnapshot live;
+
+    // Update the device map, making sure we are not racing with initialisation
+    synchronized (midiProperties) {
+
+      live = buildDeviceMap();
+
+    }
+
+    deviceMapUpdated(live);
 
   }
 
   /**
-   * Will hold the thread that is watching for MIDI environment changes on non-macOS platforms if
+   * Will hold the scanner that is watching for MIDI environment changes on non-macOS platforms if
    * the user has asked to be notified of them by adding a notification listener.
    */
 
-  private static final AtomicReference<Thread> changeScanner = new AtomicReference<>(null);
+  private static final AtomicReference<EnvironmentScanner> changeScanner = new AtomicReference<>(null);
 
   /**
    * Holds the interval, in milliseconds, at which we will scan for MIDI environment changes on
    * non-macOS platforms if the user has requested that we report them by adding a notification
-   * listener.
+   * listener. While nothing changes, scans back off from this interval towards {@link #maxScanInterval}.
    */
 
   private static final AtomicInteger scanInterval = new AtomicInteger(500);
 
+  /**
+   * Holds the longest interval, in milliseconds, that we will back off to between scans for MIDI
+   * environment changes on non-macOS platforms while the environment stays the same.
+   */
+
+  private static final AtomicInteger maxScanInterval = new AtomicInteger(8000);
+
   /**
    * Controls how often, in milliseconds, the MIDI environment should be examined for changes to report.
    * This will have no effect on macOS, because changes are delivered by CoreMIDI as soon as they occur.
    * It will also have no effect if there are currently no listeners registered via
    * {@link #addNotificationListener(CoreMidiNotification)}. The default interval is 500, or half a second.
+   * This is the interval used right after a change has been seen; while the environment stays the same,
+   * the interval doubles after each scan until it reaches {@link #getMaxScanInterval()}.
    *
    * @param interval how often to check the MIDI environment for changes in the list of available devices, in ms
    * @throws IllegalArgumentException if {@code interval} is less than 10 or more than 60000 (one minute).
@@ -397,72 +585,238 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   }
 
   /**
-   * Holds a snapshot of the current devices in the system, used when we are scanning for MIDI environment
-   * changes on non-macOS systems. Each device is represented as a list of its device information strings,
-   * for ease of comparison, since Sun didn't know how to write comparable data objects yet when the MIDI
-   * classes were created.
+   * Controls the longest interval, in milliseconds, that we will wait between examinations of the MIDI
+   * environment while it is not changing. Scanning starts at {@link #getScanInterval()} and doubles after each
+   * scan that finds no change, up to this limit; as soon as a change is found, it drops back to the scan
+   * interval. Setting this to the same value as the scan interval disables the back-off. Like the scan interval,
+   * this has no effect on macOS. The default is 8000, or eight seconds.
+   *
+   * @param interval the longest time to wait between checks of an unchanging MIDI environment, in ms
+   * @throws IllegalArgumentException if {@code interval} is less than 10 or more than 60000 (one minute).
    */
 
-  private static final AtomicReference<Set<List<String>>> currentDevices = new AtomicReference<>(null);
+  public static void setMaxScanInterval(int interval) {
+
+    if (interval < 10 || interval > 60000) {
+
+      throw new IllegalArgumentException("interval must be between 10 and 60000");
+
+    }
+
+    maxScanInterval.set(interval);
+
+  }
 
   /**
-   * Build a snapshot of the current MIDI devices in the system. Each device is represented as a list of its
-   * device information strings, for ease of comparison, since Sun didn’t know how to write comparable data
-   * objects yet when the MIDI classes were created.
+   * Check the longest interval, in milliseconds, that we will wait between examinations of the MIDI environment
+   * while it is not changing. This value is meaningless on macOS, because changes are delivered by CoreMIDI as
+   * soon as they occur. The default is 8000, or eight seconds.
    *
-   * @return a summary of the current MIDI environment that can be deep-compared by calling {@link Set#equals(Object)}
+   * @return the longest time that will pass between checks of an unchanging MIDI environment, in ms
    */
 
-  private static Set<List<String>> snapshotCurrentEnvironment() {
+  public static int getMaxScanInterval() {
 
-    Set<List<String>> results = new HashSet<>();
+    return maxScanInterval.get();
 
-    for (MidiDevice.Info info : getSystemMidiDeviceInfo()) {
+  }
+
+  /**
+   * Seed for the FNV-1a hash used to fingerprint device information strings.
+   */
+
+  private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+
+  /**
+   * Multiplier for the FNV-1a hash used to fingerprint device information strings.
+   */
+
+  private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+  /**
+   * Folds a device information string into a running FNV-1a hash, one character at a time so that no
+   * intermediate objects need to be created. A null string hashes differently from an empty one.
+   *
+   * @param hash  the hash value accumulated so far
+   * @param value the string to be folded in, which may be null
+   *
+   * @return the updated hash value
+   */
+
+  private static long fingerprint(long hash, final String value) {
+
+    if (value == null) {
+
+      return (hash ^ 0xff) * FINGERPRINT_PRIME;
+
+    }
+
+    for (int i = 0; i < value.length(); i++) {
+
+      hash = (hash ^ value.charAt(i)) * FINGERPRINT_PRIME;
+
+    }
+
+    return (hash ^ 0xfe) * FINGERPRINT_PRIME;  // Separate this string from the next one.
+
+  }
+
+  /**
+   * Spreads the bits of a hash value so that it can be safely combined with others by addition.
+   *
+   * @param hash the value to be mixed
+   *
+   * @return the mixed value
+   */
+
+  private static long mix(long hash) {
+
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+
+  }
+
+  /**
+   * Computes a fingerprint of the current MIDI devices in the system. Each device's information strings are
+   * hashed, and the device hashes are combined in a way that does not depend on the order in which the devices
+   * are reported, since Sun didn't know how to write comparable data objects yet when the MIDI classes were
+   * created. Apart from the array returned by the JDK itself, this allocates nothing, so an unchanging
+   * environment can be watched without creating garbage.
+   *
+   * @return a value which will differ from the previous one if the set of available MIDI devices has changed
+   */
+
+  private static long fingerprintCurrentEnvironment() {
+
+    final MidiDevice.Info[] allInfo = getSystemMidiDeviceInfo();
+    long sum = 0;
+    long xor = 0;
 
-      List<String> summary = new LinkedList<>();
-      summary.add(info.getName());
-      summary.add(info.getDescription());
-      summary.add(info.getVendor());
-      summary.add(info.getVersion());
-      results.add(Collections.unmodifiableList(summary));
+    for (MidiDevice.Info info : allInfo) {
+
+      long hash = FINGERPRINT_SEED;
+      hash = fingerprint(hash, info.getName());
+      hash = fingerprint(hash, info.getDescription());
+      hash = fingerprint(hash, info.getVendor());
+      hash = fingerprint(hash, info.getVersion());
+      hash = mix(hash);
+
+      sum += hash;
+      xor ^= hash;
 
     }
 
-    return Collections.unmodifiableSet(results);
+    return mix(sum ^ Long.rotateLeft(xor, 31) ^ allInfo.length);
+
   }
 
   /**
-   * This method is run on a daemon thread when we have been asked to report MIDI environment
-   * changes and we are not on a macOS system, so CoreMIDI will not deliver them to us.
+   * Watches for MIDI environment changes when we have been asked to report them and we are not on a macOS system,
+   * so CoreMIDI will not deliver them to us. Each scan is a task on the shared {@link CoreMidiScheduler} background
+   * executor which reschedules itself, waiting longer each time nothing has changed, until it is cancelled.
    */
 
-  private static void watchForChanges() {
+  private static final class EnvironmentScanner implements Runnable {
+
+    private volatile boolean cancelled = false;  // Set when there are no more listeners that need us.
+    private long fingerprint;                     // The fingerprint of the environment at our last scan.
+    private int delay;                            // How long we will wait before the next scan, in ms.
+
+    /**
+     * Establish a baseline for our first comparison, and schedule the first scan.
+     */
+
+    void start() {
+
+      CoreMidiScheduler.getBackgroundExecutor().execute(new Runnable() {
+
+        @Override
+        public void run() {
+
+          try {
+
+            fingerprint = fingerprintCurrentEnvironment();
 
-    currentDevices.set(snapshotCurrentEnvironment());  // Establish a baseline for our first comparison.
+          } catch (Throwable t) {
 
-    // Keep running as long as we are needed. As soon as there are no listeners left, changeScanner will
-    // be set to null. Even if a new listener is then added and a new thread is started up before we wake
-    // from our sleep, the comparison below will fail, and we will exit.
-    while (changeScanner.get() == Thread.currentThread()) {
+            System.err.println("Problem while watching for MIDI environment changes: " + t);
+            t.printStackTrace(System.err);
+
+          }
+
+          delay = getScanInterval();
+          scheduleNextScan();
+
+        }
+
+      });
+
+    }
+
+    /**
+     * Arrange for our next scan to happen after the current delay, unless we have been cancelled.
+     */
+
+    private void scheduleNextScan() {
+
+      if ( !cancelled ) {
+
+        CoreMidiScheduler.getBackgroundExecutor().schedule(this, delay, TimeUnit.MILLISECONDS);
+
+      }
+
+    }
+
+    /**
+     * Stop scanning. A scan which is already in progress will complete, but will not schedule another.
+     */
+
+    void cancel() {
+
+      cancelled = true;
+
+    }
+
+    @Override
+    public void run() {
+
+      if ( cancelled ) {
+
+        return;
+
+      }
 
       try {
 
-        Thread.sleep(getScanInterval());
-        Set<List<String>> newDevices = snapshotCurrentEnvironment();
+        final long newFingerprint = fingerprintCurrentEnvironment();
 
-        if (!newDevices.equals(currentDevices.get())) {  // There has been a change to the MIDI environment.
+        if ( newFingerprint != fingerprint ) {  // There has been a change to the MIDI environment.
 
-          currentDevices.set(newDevices);
+          fingerprint = newFingerprint;
+          delay = getScanInterval();  // Things are happening, so look again soon.
           deliverCallbackToListeners();
 
+        } else {
+
+          // Nothing has changed, so back off, but never further than the configured maximum.
+          delay = Math.max(getScanInterval(), Math.min(delay * 2, getMaxScanInterval()));
+
         }
+
       } catch (Throwable t) {
 
         System.err.println("Problem while watching for MIDI environment changes: " + t);
         t.printStackTrace(System.err);
 
       }
+
+      scheduleNextScan();
+
     }
+
   }
 
   /**
@@ -483,21 +837,21 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
   /**
    * <p>Adds a listener to be notified when the MIDI environment changes. If the current system
-   * is not running macOS, then ensure that our watcher daemon thread is running in order to
+   * is not running macOS, then ensure that our environment scanner is running in order to
    * be able to deliver these notifications, since we don't have CoreMIDI to initiate them.</p>
    *
    * <p>If you are using this capability on a non-macOS system, you must be sure to only call
    * {@link #getMidiDeviceInfo()} on this class, and never call {@link MidiSystem#getMidiDeviceInfo()}
    * directly, because the latter is not thread-safe, and you can run into exceptions trying to
    * get information about MIDI devices if your call happens to occur at the same time that our
-   * watcher daemon thread is gathering information. The version provided by this class uses
+   * environment scanner is gathering information. The version provided by this class uses
    * synchronization to avoid such conflicts.</p>
    *
    * <p>Instances of {@link CoreMidiDeviceProvider} register themselves when they are constructed,
    * so they can keep their lists of working CoreMIDI-backed devices up to date. We only keep the
    * most recent one, since the Java MIDI subsystem will create many, and we only want to update
    * the device map once when the MIDI environment changes. This self-registration will also not
-   * cause the daemon thread to be started because such updates are only needed on macOS.</p>
+   * cause the environment scanner to be started because such updates are only needed on macOS.</p>
    * 
    * @param listener The {@code CoreMidiNotification} listener to add
    *
@@ -518,17 +872,10 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
         notificationListeners.add(listener);
 
-        // If the dynamic library is not loadable, set up our own daemon thread provide notifications.
+        // If the dynamic library is not loadable, start scanning for changes ourselves to provide notifications.
         if (!isLibraryLoaded() && changeScanner.get() == null) {
 
-          Thread scanner = new Thread(new Runnable() {
-            @Override
-            public void run() {
-              watchForChanges();
-            }
-          }, "CoreMidi4J Environment Change Scanner");
-
-          scanner.setDaemon(true);
+          EnvironmentScanner scanner = new EnvironmentScanner();
           changeScanner.set(scanner);
           scanner.start();
 
@@ -543,7 +890,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   /**
    * Removes a listener that had been receiving notifications of MIDI environment changes. If there are
    * none remaining (other than {@link CoreMidiDeviceProvider} itself) after this operation, arranges
-   * for the non-macOS daemon thread to stop running.
+   * for the non-macOS environment scanner to stop running.
    * 
    * @param listener	The CoreMidiNotification listener to remove
    * 
@@ -557,7 +904,13 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
 
     if (notificationListeners.isEmpty()) {
 
-      changeScanner.set(null);  // The thread will notice it is no longer desired and gracefully exit.
+      EnvironmentScanner scanner = changeScanner.getAndSet(null);
+
+      if (scanner != null) {
+
+        scanner.cancel();  // Any scan in progress will notice it is no longer desired and not reschedule itself.
+
+      }
 
     }
 
@@ -663,7 +1016,8 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   }
 
   /**
-   * Check whether we have been able to load the native library.
+   * Check whether we have been able to load the native library. If the simulated backend has been selected
+   * (see {@link CoreMidi4J#BACKEND_PROPERTY}), we are always operational, on any operating system.
    *
    * @return true if the library was loaded successfully, and we are operational, and false if the library was
    *         not available, so we are idle and not going to return any devices or post any notifications.
@@ -673,7 +1027,27 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
   
   public static boolean isLibraryLoaded() throws CoreMidiException {
 
-    return Loader.isAvailable();
+    return CoreMidi4J.getBackend().isAvailable();
+
+  }
+
+  /**
+   * Check whether we are operational, treating a failure to load the native library the same as its absence.
+   *
+   * @return true if the native library (or the simulated backend) is available
+   */
+
+  private static boolean isOperational() {
+
+    try {
+
+      return isLibraryLoaded();
+
+    } catch (CoreMidiException e) {
+
+      return false;
+
+    }
 
   }
 
@@ -800,7 +1174,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native int getNumberOfSources();
+  native int getNumberOfSources();
 
   /**
    * Gets the number of destinations supported by the system
@@ -809,7 +1183,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native int getNumberOfDestinations();
+  native int getNumberOfDestinations();
 
   /**
    * Gets the specified MIDI Source EndPoint
@@ -822,7 +1196,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native int getSource(int sourceIndex) throws CoreMidiException;
+  native int getSource(int sourceIndex) throws CoreMidiException;
 
   /**
    * Gets the specified MIDI Destination EndPoint
@@ -835,7 +1209,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native int getDestination(int destinationIndex) throws CoreMidiException;
+  native int getDestination(int destinationIndex) throws CoreMidiException;
 
   /**
    * Gets the unique ID for an object reference
@@ -848,7 +1222,7 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native int getUniqueID(int reference) throws CoreMidiException; 
+  native int getUniqueID(int reference) throws CoreMidiException; 
 
   /**
    * Gets a MidiDevice.Info class for the specified reference
@@ -861,6 +1235,6 @@ public class CoreMidiDeviceProvider extends MidiDeviceProvider implements CoreMi
    * 
    */
 
-  private native CoreMidiDeviceInfo getMidiDeviceInfo(int reference) throws CoreMidiException;
+  native CoreMidiDeviceInfo getMidiDeviceInfo(int reference) throws CoreMidiException;
 
 }
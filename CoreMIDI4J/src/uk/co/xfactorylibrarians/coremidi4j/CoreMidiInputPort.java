@@ -14,18 +14,43 @@
 
 package uk.co.xfactorylibrarians.coremidi4j;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Wraps a native macOS Core MIDI input port.
+ * Wraps a native macOS Core MIDI input port. A single port can have any number of sources connected to it, each of
+ * which is connected in CoreMIDI only once however many times it is connected here, and disconnected when the last
+ * of those connections is removed.
  *
  */
 
 public class CoreMidiInputPort {
 
+  /**
+   * Tracks the connection of one source to the port.
+   */
+
+  private static final class Connection {
+
+    /** For each connection to an OSX EndPoint, some data is allocated on the native side. This handle tracks the allocation so that it can be returned when the source is disconnected */
+    final long memoryHandle;
+
+    /** How many times the source has been connected without being disconnected */
+    int references = 1;
+
+    Connection(final long memoryHandle) {
+
+      this.memoryHandle = memoryHandle;
+
+    }
+
+  }
+
   /** The OSX MIDI port reference */
   private final int midiPortReference;
 
-  /** For each connection to an OSX EndPoint, some data is allocated on the native side. This handle tracks the allocation so that it can be returned when this port is disconnected */
-  private long memoryHandle;
+  /** The sources currently connected to this port */
+  private final Map<CoreMidiSource, Connection> connections = new HashMap<>();
 
   /**
    * Constructor
@@ -38,12 +63,12 @@ public class CoreMidiInputPort {
 
   public CoreMidiInputPort(final int clientReference, String portName) throws CoreMidiException {
 
-    this.midiPortReference = this.createInputPort(clientReference, portName);
+    this.midiPortReference = CoreMidi4J.getBackend().createInputPort(this, clientReference, portName);
 
   }
 
   /**
-   * Connects a source to this input port
+   * Connects a source to this input port, or counts an additional reference to it if it is already connected
    * 
    * @param sourceDevice		The source device that wishes to connect to the port
    * 
@@ -51,14 +76,24 @@ public class CoreMidiInputPort {
    * 
    */
 
-  public void connectSource(final CoreMidiSource sourceDevice) throws CoreMidiException {
+  public synchronized void connectSource(final CoreMidiSource sourceDevice) throws CoreMidiException {
 
-    memoryHandle = midiPortConnectSource(midiPortReference, sourceDevice);
+    final Connection existing = connections.get(sourceDevice);
+
+    if ( existing != null ) {
+
+      existing.references++;
+
+    } else {
+
+      connections.put(sourceDevice, new Connection(CoreMidi4J.getBackend().connectSource(this, midiPortReference, sourceDevice)));
+
+    }
 
   }
 
   /**
-   * Disconnects a source from input port
+   * Removes a reference to a source connected to this input port, disconnecting it once there are none left
    * 
    * @param sourceDevice	The source device that wishes to disconnect from the port
    * 
@@ -66,9 +101,57 @@ public class CoreMidiInputPort {
    * 
    */
 
-  public void disconnectSource(final CoreMidiSource sourceDevice) throws CoreMidiException {
+  public synchronized void disconnectSource(final CoreMidiSource sourceDevice) throws CoreMidiException {
+
+    final Connection connection = connections.get(sourceDevice);
+
+    if ( connection != null && --connection.references == 0 ) {
+
+      connections.remove(sourceDevice);
+      CoreMidi4J.getBackend().disconnectSource(this, midiPortReference, connection.memoryHandle, sourceDevice);
+
+    }
+
+  }
+
+  /**
+   * Forgets about a source whose underlying CoreMIDI device has disappeared, without trying to interact with it
+   *
+   * @param sourceDevice	The source device that has gone away
+   *
+   */
+
+  synchronized void sourceDisappeared(final CoreMidiSource sourceDevice) {
+
+    connections.remove(sourceDevice);
+
+  }
+
+  /**
+   * Checks whether a source is currently connected to this port
+   *
+   * @param sourceDevice	The source device to check
+   *
+   * @return true if the source is connected
+   *
+   */
+
+  synchronized boolean isConnected(final CoreMidiSource sourceDevice) {
+
+    return connections.containsKey(sourceDevice);
+
+  }
+
+  /**
+   * Gets the number of distinct sources currently connected to this port
+   *
+   * @return the number of connected sources
+   *
+   */
+
+  public synchronized int getConnectedSourceCount() {
 
-    midiPortDisconnectSource(midiPortReference, memoryHandle, sourceDevice);
+    return connections.size();
 
   }
 
@@ -107,7 +190,7 @@ public class CoreMidiInputPort {
    * 
    */
 
-  private native int createInputPort(int clientReference, String portName) throws CoreMidiException;
+  native int createInputPort(int clientReference, String portName) throws CoreMidiException;
 
   /**
    * Connects a source end point to a MIDI input
@@ -121,7 +204,7 @@ public class CoreMidiInputPort {
    * 
    */
 
-  private native long midiPortConnectSource(int inputPortReference, CoreMidiSource sourceDevice) throws CoreMidiException;
+  native long midiPortConnectSource(int inputPortReference, CoreMidiSource sourceDevice) throws CoreMidiException;
 
   /**
    * Disconnects a source end point to a MIDI input
@@ -134,6 +217,6 @@ public class CoreMidiInputPort {
    * 
    */
 
-  private native void midiPortDisconnectSource(int inputPortReference, long memoryReference, CoreMidiSource sourceDevice) throws CoreMidiException;
+  native void midiPortDisconnectSource(int inputPortReference, long memoryReference, CoreMidiSource sourceDevice) throws CoreMidiException;
 
 }
@@ -0,0 +1,177 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a small number of CoreMIDI input ports between all the open sources, rather than creating a port for each
+ * one. Each source is connected to whichever of the allowed ports currently has the fewest sources connected, and
+ * ports are only created when a source needs one, up to the configured number. This is an internal class which is
+ * managed by the library itself; the number of ports is controlled through
+ * {@link CoreMidiDeviceProvider#setInputPortCount(int)}.
+ *
+ */
+
+final class CoreMidiInputPortPool {
+
+  private final List<CoreMidiInputPort> ports = new ArrayList<>();
+  private final Map<CoreMidiSource, CoreMidiInputPort> assignments = new HashMap<>();
+  private int portCount = 1;
+
+  /**
+   * Controls how many input ports sources are spread across. Reducing the count does not move sources which are
+   * already connected, but no further sources will be connected to the ports beyond the new count.
+   *
+   * @param count the number of ports to use
+   */
+
+  synchronized void setPortCount(final int count) {
+
+    portCount = count;
+
+  }
+
+  /**
+   * Check how many input ports sources are spread across.
+   *
+   * @return the number of ports to use
+   */
+
+  synchronized int getPortCount() {
+
+    return portCount;
+
+  }
+
+  /**
+   * Connects a source to the least busy port, creating a new port if that one is already in use and the configured
+   * number of ports has not yet been reached. If the source is already connected, counts another reference to its
+   * existing connection.
+   *
+   * @param source the source to connect
+   *
+   * @return the port the source is connected to
+   *
+   * @throws CoreMidiException if there is a problem creating the port or establishing the connection
+   */
+
+  synchronized CoreMidiInputPort connect(final CoreMidiSource source) throws CoreMidiException {
+
+    CoreMidiInputPort port = assignments.get(source);
+
+    if ( port == null ) {
+
+      final int usable = Math.min(portCount, ports.size());
+
+      for ( int i = 0; i < usable; i++ ) {
+
+        final CoreMidiInputPort candidate = ports.get(i);
+
+        if ( port == null || candidate.getConnectedSourceCount() < port.getConnectedSourceCount() ) {
+
+          port = candidate;
+
+        }
+
+      }
+
+      if ( port == null || (port.getConnectedSourceCount() > 0 && ports.size() < portCount) ) {
+
+        port = CoreMidiDeviceProvider.getMIDIClient().inputPortCreate("Core Midi Provider Input " + (ports.size() + 1));
+        ports.add(port);
+
+      }
+
+    }
+
+    port.connectSource(source);
+    assignments.put(source, port);
+    return port;
+
+  }
+
+  /**
+   * Removes a reference to a source's connection, disconnecting it once there are none left.
+   *
+   * @param source the source to disconnect
+   *
+   * @throws CoreMidiException if there is a problem removing the connection
+   */
+
+  synchronized void disconnect(final CoreMidiSource source) throws CoreMidiException {
+
+    final CoreMidiInputPort port = assignments.get(source);
+
+    if ( port != null ) {
+
+      try {
+
+        port.disconnectSource(source);
+
+      } finally {
+
+        if ( !port.isConnected(source) ) {
+
+          assignments.remove(source);
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Forgets about a source whose underlying CoreMIDI device has disappeared, without trying to interact with it.
+   *
+   * @param source the source that has gone away
+   */
+
+  synchronized void sourceDisappeared(final CoreMidiSource source) {
+
+    final CoreMidiInputPort port = assignments.remove(source);
+
+    if ( port != null ) {
+
+      port.sourceDisappeared(source);
+
+    }
+
+  }
+
+  /**
+   * Gets the number of sources connected to each port that has been created, for diagnostics.
+   *
+   * @return the number of sources connected to each port, in the order the ports were created
+   */
+
+  synchronized int[] getConnectedSourceCounts() {
+
+    final int[] counts = new int[ports.size()];
+
+    for ( int i = 0; i < counts.length; i++ ) {
+
+      counts[i] = ports.get(i).getConnectedSourceCount();
+
+    }
+
+    return counts;
+
+  }
+
+}
@@ -37,7 +37,7 @@ public class CoreMidiOutputPort {
 
   public CoreMidiOutputPort(final int clientReference, String portName) throws CoreMidiException {
 
-    this.midiPortReference = this.createOutputPort(clientReference,portName);
+    this.midiPortReference = CoreMidi4J.getBackend().createOutputPort(this, clientReference, portName);
 
   }
 
@@ -54,7 +54,7 @@ public class CoreMidiOutputPort {
 
   public void send(int destinationEndPointReference, MidiMessage message, long timestamp) throws CoreMidiException {
 
-    sendMidiMessage(midiPortReference, destinationEndPointReference, message, timestamp);
+    CoreMidi4J.getBackend().send(this, midiPortReference, destinationEndPointReference, message, timestamp);
 
   }
 
@@ -93,7 +93,7 @@ public class CoreMidiOutputPort {
    * 
    */
 
-  private native int createOutputPort(int clientReference, String portName) throws CoreMidiException;
+  native int createOutputPort(int clientReference, String portName) throws CoreMidiException;
 
   /**
    * Transmits a MIDI message to the OSX CoreMidi device
@@ -108,6 +108,6 @@ public class CoreMidiOutputPort {
    * 
    */
 
-  private native void sendMidiMessage(int midiPortReference, int destinationEndPointReference, MidiMessage message, long timestamp) throws CoreMidiException;
+  native void sendMidiMessage(int midiPortReference, int destinationEndPointReference, MidiMessage message, long timestamp) throws CoreMidiException;
 
 }
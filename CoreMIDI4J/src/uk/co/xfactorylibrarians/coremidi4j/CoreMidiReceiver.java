@@ -14,20 +14,85 @@
 
 package uk.co.xfactorylibrarians.coremidi4j;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiDeviceReceiver;
 import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Used to receive data from the application and send it to the connected device.
  *
+ * <p>As well as ordinary messages, the receiver can send notes of a known duration with
+ * {@link #sendNote(int, int, int, long)}, taking care of their note offs itself. Each pending note off waits on the
+ * library's shared timing wheel until {@link #NOTE_OFF_LOOKAHEAD} before it is due, and is then handed to CoreMIDI
+ * with its exact timestamp, so it costs the application nothing and is sent on time.</p>
+ *
  */
 
 public class CoreMidiReceiver implements MidiDeviceReceiver {
 
+  /**
+   * How long before a note off from {@link #sendNote(int, int, int, long)} is due that it is handed to CoreMIDI, in
+   * microseconds. Until then it can still be cancelled, or pushed back by the note being started again.
+   */
+
+  public static final long NOTE_OFF_LOOKAHEAD = 2 * TimingWheel.SHARED_TICK;
+
+  private static final int NOTES_PER_CHANNEL = 128;
+
   private final CoreMidiDestination device;
   private final AtomicBoolean closed = new AtomicBoolean(false);
+  private PendingNoteOff[] pendingNoteOffs;  // Indexed by channel and note, created by the first sendNote()
+
+  /**
+   * A note off which has been promised by {@link #sendNote(int, int, int, long)}.
+   */
+
+  private final class PendingNoteOff implements Runnable {
+
+    private final int channel;
+    private final int note;
+    private long end;                       // When the note should stop, on the LookaheadScheduler clock
+    private long timestamp;                 // The device timestamp we were handed to CoreMIDI with, once committed
+    private boolean restarted;              // Set if a note on already handed to CoreMIDI starts the note again
+    private long restartTimestamp;          // The device timestamp of that note on
+    private TimingWheel.Timeout timeout;    // Our place on the timing wheel, until we are handed to CoreMIDI
+    private boolean committed;              // Set once we have been handed to CoreMIDI, and can no longer change
+
+    /**
+     * Creates a pending note off.
+     *
+     * @param channel the MIDI channel
+     * @param note    the note number
+     * @param end     when the note should stop
+     */
+
+    PendingNoteOff(final int channel, final int note, final long end) {
+
+      this.channel = channel;
+      this.note = note;
+      this.end = end;
+
+    }
+
+    @Override
+    public void run() {
+
+      synchronized (CoreMidiReceiver.this) {
+
+        if ( pendingNoteOffs != null && pendingNoteOffs[channel * NOTES_PER_CHANNEL + note] == this && !committed ) {
+
+          commit(this);
+
+        }
+
+      }
+
+    }
+
+  }
 
 
   /**
@@ -71,6 +136,8 @@ public class CoreMidiReceiver implements MidiDeviceReceiver {
       final long coreTimestamp = (timeStamp == -1) ? 0 : timeStamp + device.getStartTime();
 
       CoreMidiDeviceProvider.getOutputPort().send(((CoreMidiDeviceInfo)device.getDeviceInfo()).getEndPointReference(), message, coreTimestamp);
+      device.sentAt(coreTimestamp);
+      device.getActiveNotes().update(message);
 
     } catch (CoreMidiException e) {
 
@@ -80,8 +147,276 @@ public class CoreMidiReceiver implements MidiDeviceReceiver {
 
   }
 
+  /**
+   * Sends a note on now, and the matching note off once a duration has passed, without the caller having to keep
+   * track of it. If the same note is started again on the same channel before it has stopped, it sounds until the
+   * later of the two ends, with a single note off; if the first note off has already been handed to CoreMIDI, the new
+   * note starts just as it takes effect, so that it is not cut off.
+   *
+   * @param channel  the MIDI channel, from 0 to 15
+   * @param note     the note number, from 0 to 127
+   * @param velocity the velocity, from 1 to 127
+   * @param duration how long the note should sound, in microseconds
+   *
+   * @throws InvalidMidiDataException if the channel, note or velocity is out of range
+   * @throws IllegalArgumentException if the duration is negative
+   * @throws IllegalStateException if the receiver or its device is closed
+   */
+
+  public synchronized void sendNote(final int channel, final int note, final int velocity, final long duration)
+      throws InvalidMidiDataException {
+
+    if ( velocity == 0 ) {
+
+      throw new InvalidMidiDataException("velocity must be from 1 to 127: a note on with velocity 0 is a note off");
+
+    }
+
+    if ( duration < 0 ) {
+
+      throw new IllegalArgumentException("duration must not be negative");
+
+    }
+
+    final ShortMessage noteOn = new ShortMessage(ShortMessage.NOTE_ON, channel, note, velocity);
+    final long now = LookaheadScheduler.now();
+
+    if ( pendingNoteOffs == null ) {
+
+      pendingNoteOffs = new PendingNoteOff[16 * NOTES_PER_CHANNEL];
+
+    }
+
+    final int index = channel * NOTES_PER_CHANNEL + note;
+    PendingNoteOff pending = pendingNoteOffs[index];
+
+    if ( pending != null && pending.committed && pending.end > now ) {
+
+      // The note off is already on its way, so start the note again as it arrives. Reusing its exact timestamp
+      // means CoreMIDI delivers the two in the order they were sent.
+      send(noteOn, pending.timestamp);
+      final PendingNoteOff restarted = new PendingNoteOff(channel, note, pending.end + duration);
+      restarted.restarted = true;
+      restarted.restartTimestamp = pending.timestamp;
+      pending = restarted;
+
+    } else if ( pending != null && !pending.committed ) {
+
+      // The note is still sounding, so keep it going until whichever end is later.
+      send(noteOn, -1);
+      TimingWheel.getShared().cancel(pending.timeout);
+      pending.end = Math.max(pending.end, now + duration);
+
+    } else {
+
+      send(noteOn, -1);
+      pending = new PendingNoteOff(channel, note, now + duration);
+
+    }
+
+    pendingNoteOffs[index] = pending;
+
+    if ( pending.end - now <= NOTE_OFF_LOOKAHEAD ) {
+
+      commit(pending);
+
+    } else {
+
+      pending.timeout = TimingWheel.getShared().schedule(pending, pending.end - NOTE_OFF_LOOKAHEAD);
+
+    }
+
+  }
+
+  /**
+   * Cancels the note off promised for a note by {@link #sendNote(int, int, int, long)}, leaving the note sounding
+   * until something else stops it. Note offs which are due within {@link #NOTE_OFF_LOOKAHEAD} have already been
+   * handed to CoreMIDI and can no longer be cancelled. If the note was started again just as an earlier note off
+   * takes effect, that note on is already waiting in CoreMIDI; to stop the note before then, use
+   * {@link #flushPendingNoteOffs()}, which allows for it, rather than cancelling and sending a note off directly.
+   *
+   * @param channel the MIDI channel
+   * @param note    the note number
+   *
+   * @return true if a note off was cancelled
+   */
+
+  public synchronized boolean cancelNoteOff(final int channel, final int note) {
+
+    if ( pendingNoteOffs == null || channel < 0 || channel > 15 || note < 0 || note >= NOTES_PER_CHANNEL ) {
+
+      return false;
+
+    }
+
+    final int index = channel * NOTES_PER_CHANNEL + note;
+    final PendingNoteOff pending = pendingNoteOffs[index];
+
+    if ( pending == null || pending.committed ) {
+
+      return false;
+
+    }
+
+    TimingWheel.getShared().cancel(pending.timeout);
+    pendingNoteOffs[index] = null;
+    return true;
+
+  }
+
+  /**
+   * Cancels every note off promised by {@link #sendNote(int, int, int, long)} which has not yet been handed to
+   * CoreMIDI, leaving those notes sounding.
+   *
+   * @return the number of note offs cancelled
+   */
+
+  public synchronized int cancelPendingNoteOffs() {
+
+    int count = 0;
+
+    if ( pendingNoteOffs != null ) {
+
+      for ( int index = 0; index < pendingNoteOffs.length; index++ ) {
+
+        final PendingNoteOff pending = pendingNoteOffs[index];
+
+        if ( pending != null && !pending.committed ) {
+
+          TimingWheel.getShared().cancel(pending.timeout);
+          count++;
+
+        }
+
+        pendingNoteOffs[index] = null;
+
+      }
+
+    }
+
+    return count;
+
+  }
+
+  /**
+   * Sends every note off promised by {@link #sendNote(int, int, int, long)} straight away, stopping all those notes
+   * now rather than when they were due to end. This happens automatically when the receiver is closed. A note which
+   * was started again just as its earlier note off takes effect has its note on already waiting in CoreMIDI, so it
+   * is sent a second note off timestamped for that moment as well, or it would be left sounding.
+   *
+   * @return the number of note offs sent
+   *
+   * @throws IllegalStateException if the receiver or its device is closed
+   */
+
+  public synchronized int flushPendingNoteOffs() {
+
+    int count = 0;
+
+    if ( pendingNoteOffs != null ) {
+
+      final long now = LookaheadScheduler.now();
+
+      for ( int index = 0; index < pendingNoteOffs.length; index++ ) {
+
+        final PendingNoteOff pending = pendingNoteOffs[index];
+
+        if ( pending != null && (!pending.committed || pending.end > now) ) {
+
+          if ( !pending.committed ) {
+
+            TimingWheel.getShared().cancel(pending.timeout);
+
+          }
+
+          send(noteOff(pending), -1);
+
+          if ( pending.restarted ) {
+
+            // Delivered just after the waiting note on, or at once, harmlessly, if that has already played
+            send(noteOff(pending), pending.restartTimestamp);
+
+          }
+
+          count++;
+
+        }
+
+        pendingNoteOffs[index] = null;
+
+      }
+
+    }
+
+    return count;
+
+  }
+
+  /**
+   * Hands a pending note off to CoreMIDI, timestamped for when the note should stop. Must be called while
+   * synchronized on the receiver.
+   *
+   * @param pending the note off
+   */
+
+  private void commit(final PendingNoteOff pending) {
+
+    pending.committed = true;
+    pending.timeout = null;
+    pending.timestamp = toDeviceTime(pending.end, LookaheadScheduler.now());
+
+    try {
+
+      send(noteOff(pending), pending.timestamp);
+
+    } catch (IllegalStateException e) {
+
+      // We or our device have been closed, so there is nothing left to stop.
+
+    }
+
+  }
+
+  /**
+   * Builds the note off for a pending note off.
+   *
+   * @param pending the note off
+   *
+   * @return the message to send
+   */
+
+  private static ShortMessage noteOff(final PendingNoteOff pending) {
+
+    try {
+
+      return new ShortMessage(ShortMessage.NOTE_OFF, pending.channel, pending.note, 0);
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build note off", e);
+
+    }
+
+  }
+
+  /**
+   * Translates a time on the {@link LookaheadScheduler} clock into a timestamp for {@link #send(MidiMessage, long)}.
+   *
+   * @param time the time to translate
+   * @param now  the current time on the same clock
+   *
+   * @return the timestamp, relative to when the device was opened, or -1 if the time has already come
+   */
+
+  private long toDeviceTime(final long time, final long now) {
+
+    return (time <= now) ? -1 : device.getMicrosecondPosition() + (time - now);
+
+  }
+
   /** 
-   * Closes the MIDI Receiver
+   * Closes the MIDI Receiver, first stopping any notes sent by {@link #sendNote(int, int, int, long)} which are
+   * still sounding.
    * 
    * @see javax.sound.midi.Receiver#close()
    * 
@@ -90,6 +425,24 @@ public class CoreMidiReceiver implements MidiDeviceReceiver {
   @Override
   public void close() {
 
+    try {
+
+      if ( !closed.get() && device.isOpen() ) {
+
+        flushPendingNoteOffs();
+
+      }
+
+    } catch (IllegalStateException e) {
+
+      // Our device was closed underneath us, so there is nothing left to stop.
+
+    } finally {
+
+      cancelPendingNoteOffs();
+
+    }
+
     if ( closed.compareAndSet(false, true) == true ) {
 
       device.receiverClosed(this);
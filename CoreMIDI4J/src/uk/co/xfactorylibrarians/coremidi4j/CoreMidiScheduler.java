@@ -0,0 +1,146 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the scheduled executors shared by the work the library does in the background, so that we do not need a
+ * dedicated sleeping thread for each kind of task. There are two: a timing executor, for work which has to happen
+ * on time, such as turning the timing wheel and dispatching sequencer events, and a background executor, for
+ * slower housekeeping like scanning the MIDI environment and writing topology snapshots, so that a slow scan or a
+ * disk stall can never delay a timing deadline. Each runs on a single daemon thread, is only created when first
+ * needed, and lets its thread expire when there is nothing left to do. This is an internal class which is managed
+ * by the library itself.
+ *
+ */
+
+final class CoreMidiScheduler {
+
+  /**
+   * How long, in seconds, an idle timing thread is kept around before being allowed to exit.
+   */
+
+  private static final long KEEP_ALIVE_SECONDS = 5;
+
+  /**
+   * How long, in seconds, an idle background thread is kept around before being allowed to exit. This is longer
+   * than the longest interval allowed between environment scans, so that an idle scanner reuses its thread rather
+   * than creating a new one for every scan.
+   */
+
+  private static final long BACKGROUND_KEEP_ALIVE_SECONDS = 65;
+
+  /**
+   * Holds the timing executor, once it has been created.
+   */
+
+  private static ScheduledThreadPoolExecutor executor;
+
+  /**
+   * Holds the background executor, once it has been created.
+   */
+
+  private static ScheduledThreadPoolExecutor backgroundExecutor;
+
+  /**
+   * Prevent instantiation.
+   */
+
+  private CoreMidiScheduler() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * Gets the shared timing executor, creating it if this is the first time it has been needed. Tasks run on it must
+   * be quick, and must never block on I/O, since other tasks waiting for their deadlines are held up behind them.
+   *
+   * @return the executor on which time-critical library tasks should be scheduled
+   *
+   */
+
+  static synchronized ScheduledExecutorService getExecutor() {
+
+    if ( executor == null ) {
+
+      executor = createExecutor("CoreMidi4J Scheduler ", KEEP_ALIVE_SECONDS, Thread.MAX_PRIORITY);
+
+    }
+
+    return executor;
+
+  }
+
+  /**
+   * Gets the shared background executor, creating it if this is the first time it has been needed.
+   *
+   * @return the executor on which slow or periodic housekeeping tasks should be scheduled
+   *
+   */
+
+  static synchronized ScheduledExecutorService getBackgroundExecutor() {
+
+    if ( backgroundExecutor == null ) {
+
+      backgroundExecutor = createExecutor("CoreMidi4J Background ", BACKGROUND_KEEP_ALIVE_SECONDS,
+                                          Thread.NORM_PRIORITY);
+
+    }
+
+    return backgroundExecutor;
+
+  }
+
+  /**
+   * Creates a single-threaded scheduled executor whose daemon thread exits when it has been idle for a while.
+   *
+   * @param namePrefix the start of the names of its threads, which are numbered
+   * @param keepAlive  how long an idle thread is kept around, in seconds
+   * @param priority   the priority of its threads
+   *
+   * @return the executor
+   */
+
+  private static ScheduledThreadPoolExecutor createExecutor(final String namePrefix, final long keepAlive,
+                                                            final int priority) {
+
+    final AtomicInteger threadCount = new AtomicInteger(0);
+
+    final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+
+        Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+
+      }
+
+    });
+
+    result.setKeepAliveTime(keepAlive, TimeUnit.SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    result.setRemoveOnCancelPolicy(true);
+    return result;
+
+  }
+
+}
@@ -0,0 +1,1868 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.ControllerEventListener;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiDeviceTransmitter;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.sound.midi.Transmitter;
+
+/**
+ * <p>A {@link Sequencer} which plays sequences with the timing accuracy of CoreMIDI itself. Rather than sending each
+ * event at the moment it is due from a sleeping thread, as the JDK's sequencer does, it hands events to CoreMIDI a
+ * few milliseconds ahead of time with the exact timestamp at which they should be delivered, so that delays in
+ * waking the playback thread have no effect on the output as long as they are shorter than the lookahead. How well
+ * the playback thread has kept up is reported by {@link #getSchedulingStatistics()}.</p>
+ *
+ * <p>Connect the sequencer's transmitters to the receivers of one or more {@link CoreMidiDestination}s. Receivers of
+ * other devices that report their position, such as the JDK's software synthesizer, are also sent timestamps;
+ * anything else is sent each event as soon as it is scheduled. Tempo changes (both in the sequence and through the
+ * tempo methods), tempo factors, looping, and track mute and solo are supported. Recording and synchronization
+ * modes other than {@link Sequencer.SyncMode#NO_SYNC} are not; use a {@link StandardMidiFileWriter} or
+ * {@link CaptureJournal} to record.</p>
+ *
+ * <p>The sequencer is available through {@link MidiSystem} as the device called "CoreMIDI4J Sequencer", or can be
+ * constructed directly.</p>
+ *
+ */
+
+public class CoreMidiSequencer implements Sequencer {
+
+  /**
+   * The name under which the sequencer is listed by {@link CoreMidiDeviceProvider}.
+   */
+
+  public static final String NAME = "CoreMIDI4J Sequencer";
+
+  /**
+   * The information describing the sequencer.
+   */
+
+  static final MidiDevice.Info INFO = new MidiDevice.Info(NAME, "x.factory Librarians",
+      "Sequencer which schedules events ahead of time with CoreMIDI timestamps", libraryVersion()) { };
+
+  private static final int META_END_OF_TRACK = StandardMidiFileWriter.META_END_OF_TRACK;
+  private static final int ALL_NOTES_OFF = 123;
+  private static final SyncMode[] SYNC_MODES = { SyncMode.NO_SYNC };
+
+  private final LookaheadScheduler scheduler = new LookaheadScheduler(NAME) {
+
+    @Override
+    protected long dispatch(final long horizon) {
+
+      return dispatchEvents(horizon);
+
+    }
+
+  };
+
+  private final List<SequencerTransmitter> transmitters = new CopyOnWriteArrayList<>();
+  private final List<MetaEventListener> metaEventListeners = new CopyOnWriteArrayList<>();
+  private final Map<ControllerEventListener, boolean[]> controllerEventListeners = new ConcurrentHashMap<>();
+
+  private boolean open;
+  private Sequence sequence;
+
+  // The sequence flattened into time order, rebuilt whenever playback starts
+  private long[] ticks = new long[0];
+  private MidiMessage[] messages = new MidiMessage[0];
+  private int[] tracks = new int[0];
+  private long[] tempoTicks = new long[0];  // The tempo map: where each tempo change happens,
+  private float[] tempoValues = new float[0]; // and the tempo it sets in microseconds per quarter note
+  private long tickLength;
+
+  private boolean[] mutes = new boolean[0];
+  private boolean[] solos = new boolean[0];
+
+  private float tempoMPQ = StandardMidiFileWriter.DEFAULT_TEMPO;
+  private float tempoFactor = 1.0f;
+  private long loopStart;
+  private long loopEnd = -1;
+  private int loopCount;
+
+  // Playback state: times are on the scheduler's clock
+  private boolean running;
+  private long tickPosition;    // Where playback will start, while stopped
+  private int cursor;           // The next event to be scheduled
+  private int loopsDone;
+  private long anchorTick;      // A tick at which the timing is known
+  private long anchorTime;      // The time at which that tick plays
+  private double microsPerTick;
+  private long previousAnchorTick;
+  private long previousAnchorTime;
+  private double previousMicrosPerTick;
+  private long lastDue;         // The latest time for which an event has been handed over or skipped
+
+  /**
+   * A transmitter which carries the sequencer's output to a receiver.
+   */
+
+  private final class SequencerTransmitter implements MidiDeviceTransmitter {
+
+    private volatile TimestampedOutput output;
+
+    @Override
+    public void setReceiver(final Receiver receiver) {
+
+      final TimestampedOutput newOutput = (receiver == null) ? null : new TimestampedOutput(receiver);
+
+      if ( newOutput != null ) {
+
+        newOutput.synchronize();
+
+      }
+
+      output = newOutput;
+
+    }
+
+    @Override
+    public Receiver getReceiver() {
+
+      final TimestampedOutput current = output;
+      return (current == null) ? null : current.getReceiver();
+
+    }
+
+    @Override
+    public void close() {
+
+      transmitters.remove(this);
+
+    }
+
+    @Override
+    public MidiDevice getMidiDevice() {
+
+      return CoreMidiSequencer.this;
+
+    }
+
+  }
+
+  /**
+   * Creates a sequencer. It must be opened, and its transmitters connected, before it can play anything.
+   */
+
+  public CoreMidiSequencer() {
+
+  }
+
+  /**
+   * Gets the information describing the sequencer.
+   *
+   * @return the device information
+   */
+
+  @Override
+  public Info getDeviceInfo() {
+
+    return INFO;
+
+  }
+
+  /**
+   * Opens the sequencer, so that it can play.
+   *
+   * @throws MidiUnavailableException never, since the sequencer needs no system resources until it plays
+   */
+
+  @Override
+  public synchronized void open() throws MidiUnavailableException {
+
+    open = true;
+
+  }
+
+  /**
+   * Stops playback, closes the sequencer and disconnects its transmitters.
+   */
+
+  @Override
+  public void close() {
+
+    stop();
+
+    synchronized (this) {
+
+      open = false;
+
+    }
+
+    transmitters.clear();
+
+  }
+
+  /**
+   * Checks whether the sequencer is open.
+   *
+   * @return true if it has been opened and not closed
+   */
+
+  @Override
+  public synchronized boolean isOpen() {
+
+    return open;
+
+  }
+
+  /**
+   * Gets the maximum number of receivers the sequencer supports.
+   *
+   * @return 0, since recording is not supported
+   */
+
+  @Override
+  public int getMaxReceivers() {
+
+    return 0;
+
+  }
+
+  /**
+   * Gets the maximum number of transmitters the sequencer supports.
+   *
+   * @return -1, since any number of transmitters can be created
+   */
+
+  @Override
+  public int getMaxTransmitters() {
+
+    return -1;
+
+  }
+
+  /**
+   * Would get a receiver for recording, which is not supported.
+   *
+   * @return never returns
+   *
+   * @throws MidiUnavailableException always
+   */
+
+  @Override
+  public Receiver getReceiver() throws MidiUnavailableException {
+
+    throw new MidiUnavailableException("CoreMidiSequencer does not support recording");
+
+  }
+
+  /**
+   * Gets the sequencer's receivers.
+   *
+   * @return an empty list, since recording is not supported
+   */
+
+  @Override
+  public List<Receiver> getReceivers() {
+
+    return Collections.emptyList();
+
+  }
+
+  /**
+   * Creates a transmitter which will carry everything the sequencer plays to a receiver.
+   *
+   * @return the new transmitter
+   */
+
+  @Override
+  public Transmitter getTransmitter() throws MidiUnavailableException {
+
+    final SequencerTransmitter transmitter = new SequencerTransmitter();
+    transmitters.add(transmitter);
+    return transmitter;
+
+  }
+
+  /**
+   * Gets the transmitters which have been created and not closed.
+   *
+   * @return the open transmitters
+   */
+
+  @Override
+  public List<Transmitter> getTransmitters() {
+
+    return Collections.<Transmitter>unmodifiableList(new ArrayList<>(transmitters));
+
+  }
+
+  /**
+   * Sets the sequence to play, stopping any current playback and moving to the start.
+   *
+   * @param newSequence the sequence to play
+   *
+   * @throws InvalidMidiDataException never; the sequence is checked when played
+   */
+
+  @Override
+  public synchronized void setSequence(final Sequence newSequence) throws InvalidMidiDataException {
+
+    if ( running ) {
+
+      stopPlayback();
+
+    }
+
+    sequence = newSequence;
+    tickPosition = 0;
+    loopStart = 0;
+    loopEnd = -1;
+    flatten();
+    tempoMPQ = tempoAt(0);
+
+  }
+
+  /**
+   * Reads a MIDI file and sets it as the sequence to play.
+   *
+   * @param stream the MIDI file data
+   *
+   * @throws IOException if the data cannot be read
+   * @throws InvalidMidiDataException if the data is not a MIDI file
+   */
+
+  @Override
+  public void setSequence(final InputStream stream) throws IOException, InvalidMidiDataException {
+
+    setSequence(MidiSystem.getSequence(stream));
+
+  }
+
+  /**
+   * Gets the sequence being played.
+   *
+   * @return the current sequence, or null if none has been set
+   */
+
+  @Override
+  public synchronized Sequence getSequence() {
+
+    return sequence;
+
+  }
+
+  /**
+   * Starts playing from the current position. Changes made to the sequence while stopped are picked up.
+   *
+   * @throws IllegalStateException if the sequencer is not open or has no sequence
+   */
+
+  @Override
+  public void start() {
+
+    synchronized (this) {
+
+      if ( !open ) {
+
+        throw new IllegalStateException("The sequencer is not open");
+
+      }
+
+      if ( sequence == null ) {
+
+        throw new IllegalStateException("No sequence has been set");
+
+      }
+
+      if ( running ) {
+
+        return;
+
+      }
+
+      flatten();  // Pick up any changes made to the sequence's tracks
+
+      for ( SequencerTransmitter transmitter : transmitters ) {
+
+        final TimestampedOutput output = transmitter.output;
+
+        if ( output != null ) {
+
+          output.synchronize();
+
+        }
+
+      }
+
+      loopsDone = 0;
+      cursor = firstEventAtOrAfter(tickPosition);
+      reanchor(tickPosition, LookaheadScheduler.now() + scheduler.getLookahead());
+      previousAnchorTick = anchorTick;
+      previousAnchorTime = anchorTime;
+      previousMicrosPerTick = microsPerTick;
+      lastDue = 0;
+      running = true;
+
+    }
+
+    scheduler.start();
+
+  }
+
+  /**
+   * Stops playing, remembering the position. Notes still sounding are silenced once everything already
+   * handed to CoreMIDI has been played.
+   */
+
+  @Override
+  public void stop() {
+
+    synchronized (this) {
+
+      if ( running ) {
+
+        stopPlayback();
+
+      }
+
+    }
+
+    scheduler.stop();
+
+  }
+
+  /**
+   * Checks whether the sequencer is playing.
+   *
+   * @return true while playing
+   */
+
+  @Override
+  public synchronized boolean isRunning() {
+
+    return running;
+
+  }
+
+  /**
+   * Stops playback where it is, silencing any notes that are sounding once everything already handed to CoreMIDI
+   * has been played. Must be called with the lock held.
+   */
+
+  private void stopPlayback() {
+
+    tickPosition = currentTick();
+    running = false;
+    allNotesOff(Math.max(LookaheadScheduler.now(), lastDue));
+
+  }
+
+  /**
+   * Would start recording, which is not supported.
+   *
+   * @throws UnsupportedOperationException always
+   */
+
+  @Override
+  public void startRecording() {
+
+    throw new UnsupportedOperationException("CoreMidiSequencer does not support recording");
+
+  }
+
+  /**
+   * Does nothing, since recording is not supported.
+   */
+
+  @Override
+  public void stopRecording() {
+
+  }
+
+  /**
+   * Checks whether the sequencer is recording.
+   *
+   * @return false, since recording is not supported
+   */
+
+  @Override
+  public boolean isRecording() {
+
+    return false;
+
+  }
+
+  /**
+   * Does nothing, since recording is not supported.
+   *
+   * @param track   ignored
+   * @param channel ignored
+   */
+
+  @Override
+  public void recordEnable(final Track track, final int channel) {
+
+  }
+
+  /**
+   * Does nothing, since recording is not supported.
+   *
+   * @param track ignored
+   */
+
+  @Override
+  public void recordDisable(final Track track) {
+
+  }
+
+  /**
+   * Gets the current tempo, without the tempo factor.
+   *
+   * @return the tempo in beats per minute
+   */
+
+  @Override
+  public synchronized float getTempoInBPM() {
+
+    return 60000000.0f / tempoMPQ;
+
+  }
+
+  /**
+   * Changes the tempo, until the next tempo change in the sequence.
+   *
+   * @param bpm the tempo in beats per minute
+   */
+
+  @Override
+  public void setTempoInBPM(final float bpm) {
+
+    setTempoInMPQ(60000000.0f / bpm);
+
+  }
+
+  /**
+   * Gets the current tempo, without the tempo factor.
+   *
+   * @return the tempo in microseconds per quarter note
+   */
+
+  @Override
+  public synchronized float getTempoInMPQ() {
+
+    return tempoMPQ;
+
+  }
+
+  /**
+   * Changes the tempo, until the next tempo change in the sequence. While playing, events already handed to CoreMIDI
+   * (those within the lookahead) keep their original timing.
+   *
+   * @param mpq the tempo in microseconds per quarter note
+   */
+
+  @Override
+  public synchronized void setTempoInMPQ(final float mpq) {
+
+    if ( mpq <= 0 ) {
+
+      throw new IllegalArgumentException("tempo must be positive");
+
+    }
+
+    changeTiming(mpq, tempoFactor);
+
+  }
+
+  /**
+   * Scales the tempo of the sequence, including its tempo changes.
+   *
+   * @param factor the factor by which to speed up playback, 1.0 for normal speed
+   */
+
+  @Override
+  public synchronized void setTempoFactor(final float factor) {
+
+    if ( factor <= 0 ) {
+
+      throw new IllegalArgumentException("tempo factor must be positive");
+
+    }
+
+    changeTiming(tempoMPQ, factor);
+
+  }
+
+  /**
+   * Gets the factor by which the tempo is scaled.
+   *
+   * @return the tempo factor
+   */
+
+  @Override
+  public synchronized float getTempoFactor() {
+
+    return tempoFactor;
+
+  }
+
+  /**
+   * Applies a new tempo or tempo factor from now on. Must be called with the lock held.
+   *
+   * @param mpq    the new tempo in microseconds per quarter note
+   * @param factor the new tempo factor
+   */
+
+  private void changeTiming(final float mpq, final float factor) {
+
+    tempoMPQ = mpq;
+    tempoFactor = factor;
+
+    if ( running ) {
+
+      // Events already handed over keep the timing they were given, so the new timing can only take effect after
+      // the last of them, or from now if that is later.
+      final long boundary = Math.max(LookaheadScheduler.now(), lastDue);
+
+      if ( boundary < anchorTime ) {
+
+        // Nothing has been handed over from the reference point on, as just after starting, seeking or looping, so
+        // it can simply play at the new rate.
+        microsPerTick = timingRate();
+
+      } else {
+
+        reanchor(anchorTick + (long) ((boundary - anchorTime) / microsPerTick), boundary);
+
+      }
+
+      scheduler.wake();
+
+    }
+
+  }
+
+  /**
+   * Gets the length of the sequence.
+   *
+   * @return the length in ticks
+   */
+
+  @Override
+  public synchronized long getTickLength() {
+
+    return tickLength;
+
+  }
+
+  /**
+   * Gets the length of the sequence at its own tempo.
+   *
+   * @return the length in microseconds
+   */
+
+  @Override
+  public synchronized long getMicrosecondLength() {
+
+    return (sequence == null) ? 0 : ticksToMicroseconds(tickLength);
+
+  }
+
+  /**
+   * Gets the position of playback.
+   *
+   * @return the current tick
+   */
+
+  @Override
+  public synchronized long getTickPosition() {
+
+    return running ? currentTick() : tickPosition;
+
+  }
+
+  /**
+   * Moves playback to a tick, silencing any notes that are sounding if the sequencer is playing.
+   *
+   * @param tick the new position
+   */
+
+  @Override
+  public synchronized void setTickPosition(final long tick) {
+
+    final long position = Math.max(0, Math.min(tick, tickLength));
+    tempoMPQ = tempoAt(position);
+
+    if ( running ) {
+
+      allNotesOff(Math.max(LookaheadScheduler.now(), lastDue));
+      cursor = firstEventAtOrAfter(position);
+      reanchor(position, Math.max(LookaheadScheduler.now() + scheduler.getLookahead(), lastDue));
+      scheduler.wake();
+
+    } else {
+
+      tickPosition = position;
+
+    }
+
+  }
+
+  /**
+   * Gets the position of playback, in microseconds from the start of the sequence at its own tempo (ignoring any
+   * tempo factor or tempo set through this sequencer).
+   *
+   * @return the position in microseconds
+   */
+
+  @Override
+  public synchronized long getMicrosecondPosition() {
+
+    return ticksToMicroseconds(getTickPosition());
+
+  }
+
+  /**
+   * Moves playback to a time, measured at the sequence's own tempo.
+   *
+   * @param microseconds the new position in microseconds
+   */
+
+  @Override
+  public synchronized void setMicrosecondPosition(final long microseconds) {
+
+    setTickPosition(microsecondsToTicks(microseconds));
+
+  }
+
+  /**
+   * Sets the master synchronization mode; only {@link Sequencer.SyncMode#NO_SYNC} is supported.
+   *
+   * @param sync the mode
+   *
+   * @throws IllegalArgumentException for any other mode
+   */
+
+  @Override
+  public void setMasterSyncMode(final SyncMode sync) {
+
+    if ( sync != SyncMode.NO_SYNC ) {
+
+      throw new IllegalArgumentException("Unsupported master sync mode: " + sync);
+
+    }
+
+  }
+
+  /**
+   * Gets the master synchronization mode.
+   *
+   * @return {@link Sequencer.SyncMode#NO_SYNC}
+   */
+
+  @Override
+  public SyncMode getMasterSyncMode() {
+
+    return SyncMode.NO_SYNC;
+
+  }
+
+  /**
+   * Gets the supported master synchronization modes.
+   *
+   * @return an array containing only {@link Sequencer.SyncMode#NO_SYNC}
+   */
+
+  @Override
+  public SyncMode[] getMasterSyncModes() {
+
+    return SYNC_MODES.clone();
+
+  }
+
+  /**
+   * Sets the slave synchronization mode; only {@link Sequencer.SyncMode#NO_SYNC} is supported.
+   *
+   * @param sync the mode
+   *
+   * @throws IllegalArgumentException for any other mode
+   */
+
+  @Override
+  public void setSlaveSyncMode(final SyncMode sync) {
+
+    if ( sync != SyncMode.NO_SYNC ) {
+
+      throw new IllegalArgumentException("Unsupported slave sync mode: " + sync);
+
+    }
+
+  }
+
+  /**
+   * Gets the slave synchronization mode.
+   *
+   * @return {@link Sequencer.SyncMode#NO_SYNC}
+   */
+
+  @Override
+  public SyncMode getSlaveSyncMode() {
+
+    return SyncMode.NO_SYNC;
+
+  }
+
+  /**
+   * Gets the supported slave synchronization modes.
+   *
+   * @return an array containing only {@link Sequencer.SyncMode#NO_SYNC}
+   */
+
+  @Override
+  public SyncMode[] getSlaveSyncModes() {
+
+    return SYNC_MODES.clone();
+
+  }
+
+  /**
+   * Mutes or unmutes a track. Tempo changes on muted tracks still take effect.
+   *
+   * @param track the track number
+   * @param mute  true to mute the track
+   */
+
+  @Override
+  public synchronized void setTrackMute(final int track, final boolean mute) {
+
+    if ( track >= 0 && track < mutes.length ) {
+
+      mutes[track] = mute;
+
+    }
+
+  }
+
+  /**
+   * Checks whether a track is muted.
+   *
+   * @param track the track number
+   *
+   * @return true if the track is muted
+   */
+
+  @Override
+  public synchronized boolean getTrackMute(final int track) {
+
+    return track >= 0 && track < mutes.length && mutes[track];
+
+  }
+
+  /**
+   * Solos or unsolos a track. While any track is soloed, only soloed tracks are heard.
+   *
+   * @param track the track number
+   * @param solo  true to solo the track
+   */
+
+  @Override
+  public synchronized void setTrackSolo(final int track, final boolean solo) {
+
+    if ( track >= 0 && track < solos.length ) {
+
+      solos[track] = solo;
+
+    }
+
+  }
+
+  /**
+   * Checks whether a track is soloed.
+   *
+   * @param track the track number
+   *
+   * @return true if the track is soloed
+   */
+
+  @Override
+  public synchronized boolean getTrackSolo(final int track) {
+
+    return track >= 0 && track < solos.length && solos[track];
+
+  }
+
+  /**
+   * Registers a listener for meta events, which are delivered when they play. An end of track event is
+   * delivered when playback reaches the end of the sequence.
+   *
+   * @param listener the listener to notify
+   *
+   * @return true
+   */
+
+  @Override
+  public boolean addMetaEventListener(final MetaEventListener listener) {
+
+    if ( !metaEventListeners.contains(listener) ) {
+
+      metaEventListeners.add(listener);
+
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Removes a meta event listener.
+   *
+   * @param listener the listener to remove
+   */
+
+  @Override
+  public void removeMetaEventListener(final MetaEventListener listener) {
+
+    metaEventListeners.remove(listener);
+
+  }
+
+  /**
+   * Registers a listener for control change events. Passing a null array listens to every controller.
+   *
+   * @param listener    the listener to notify
+   * @param controllers the controller numbers to listen to, in addition to any already registered, or null for all
+   *
+   * @return the controllers the listener is now registered for
+   */
+
+  @Override
+  public int[] addControllerEventListener(final ControllerEventListener listener, final int[] controllers) {
+
+    boolean[] wanted = controllerEventListeners.get(listener);
+    wanted = (wanted == null) ? new boolean[128] : wanted.clone();
+
+    if ( controllers == null ) {
+
+      Arrays.fill(wanted, true);
+
+    } else {
+
+      for ( int controller : controllers ) {
+
+        if ( controller >= 0 && controller < 128 ) {
+
+          wanted[controller] = true;
+
+        }
+
+      }
+
+    }
+
+    controllerEventListeners.put(listener, wanted);
+    return registered(wanted);
+
+  }
+
+  /**
+   * Removes a listener's registration for some or all control change events.
+   *
+   * @param listener    the listener
+   * @param controllers the controller numbers to stop listening to, or null for all
+   *
+   * @return the controllers the listener is still registered for
+   */
+
+  @Override
+  public int[] removeControllerEventListener(final ControllerEventListener listener, final int[] controllers) {
+
+    final boolean[] current = controllerEventListeners.get(listener);
+
+    if ( current == null ) {
+
+      return new int[0];
+
+    }
+
+    final boolean[] wanted = current.clone();
+
+    if ( controllers == null ) {
+
+      Arrays.fill(wanted, false);
+
+    } else {
+
+      for ( int controller : controllers ) {
+
+        if ( controller >= 0 && controller < 128 ) {
+
+          wanted[controller] = false;
+
+        }
+
+      }
+
+    }
+
+    final int[] remaining = registered(wanted);
+
+    if ( remaining.length == 0 ) {
+
+      controllerEventListeners.remove(listener);
+
+    } else {
+
+      controllerEventListeners.put(listener, wanted);
+
+    }
+
+    return remaining;
+
+  }
+
+  /**
+   * Sets where each repetition of a loop starts.
+   *
+   * @param tick the loop start
+   *
+   * @throws IllegalArgumentException if it is outside the sequence or after the loop end
+   */
+
+  @Override
+  public synchronized void setLoopStartPoint(final long tick) {
+
+    if ( tick < 0 || tick > tickLength || (loopEnd >= 0 && tick > loopEnd) ) {
+
+      throw new IllegalArgumentException("Invalid loop start point: " + tick);
+
+    }
+
+    loopStart = tick;
+
+  }
+
+  /**
+   * Gets where each repetition of a loop starts.
+   *
+   * @return the loop start tick
+   */
+
+  @Override
+  public synchronized long getLoopStartPoint() {
+
+    return loopStart;
+
+  }
+
+  /**
+   * Sets where each repetition of a loop ends.
+   *
+   * @param tick the loop end, or -1 for the end of the sequence
+   *
+   * @throws IllegalArgumentException if it is outside the sequence or before the loop start
+   */
+
+  @Override
+  public synchronized void setLoopEndPoint(final long tick) {
+
+    if ( tick < -1 || tick > tickLength || (tick >= 0 && tick < loopStart) ) {
+
+      throw new IllegalArgumentException("Invalid loop end point: " + tick);
+
+    }
+
+    loopEnd = tick;
+
+  }
+
+  /**
+   * Gets where each repetition of a loop ends.
+   *
+   * @return the loop end tick, or -1 for the end of the sequence
+   */
+
+  @Override
+  public synchronized long getLoopEndPoint() {
+
+    return loopEnd;
+
+  }
+
+  /**
+   * Sets how many times the loop repeats.
+   *
+   * @param count the number of repetitions, 0 for none, or {@link #LOOP_CONTINUOUSLY}
+   *
+   * @throws IllegalArgumentException if the count is negative
+   */
+
+  @Override
+  public synchronized void setLoopCount(final int count) {
+
+    if ( count < 0 && count != LOOP_CONTINUOUSLY ) {
+
+      throw new IllegalArgumentException("Invalid loop count: " + count);
+
+    }
+
+    loopCount = count;
+    loopsDone = 0;
+
+  }
+
+  /**
+   * Gets how many times the loop repeats.
+   *
+   * @return the number of repetitions, or {@link #LOOP_CONTINUOUSLY}
+   */
+
+  @Override
+  public synchronized int getLoopCount() {
+
+    return loopCount;
+
+  }
+
+  /**
+   * Controls how far ahead of time events are handed to CoreMIDI. A longer lookahead tolerates longer delays in
+   * waking the playback thread, but tempo changes take longer to be heard.
+   *
+   * @param micros the lookahead in microseconds, from 500 to 1,000,000 (the default is 5,000)
+   */
+
+  public void setLookahead(final long micros) {
+
+    scheduler.setLookahead(micros);
+
+  }
+
+  /**
+   * Check how far ahead of time events are handed to CoreMIDI.
+   *
+   * @return the lookahead in microseconds
+   */
+
+  public long getLookahead() {
+
+    return scheduler.getLookahead();
+
+  }
+
+  /**
+   * Gets measurements of how well the playback thread has kept up with the sequence.
+   *
+   * @return the scheduling statistics since the sequencer was created or they were last reset
+   */
+
+  public SchedulingStatistics getSchedulingStatistics() {
+
+    return scheduler.getStatistics();
+
+  }
+
+  /**
+   * Clears the scheduling statistics.
+   */
+
+  public void resetSchedulingStatistics() {
+
+    scheduler.resetStatistics();
+
+  }
+
+  /**
+   * Hands over every event due before a horizon, following tempo changes and loops. Called on the playback thread.
+   *
+   * @param horizon the time up to which events should be handed over
+   *
+   * @return the time of the next event, or -1 if playback has stopped
+   */
+
+  private synchronized long dispatchEvents(final long horizon) {
+
+    while ( running ) {
+
+      final long end = (loopEnd < 0) ? tickLength : loopEnd;
+      final boolean looping = end > loopStart && (loopCount == LOOP_CONTINUOUSLY || loopsDone < loopCount);
+      final long nextTick = (cursor < ticks.length) ? ticks[cursor] : Long.MAX_VALUE;
+
+      if ( looping && nextTick >= end ) {
+
+        final long loopTime = timeOf(end);
+
+        if ( loopTime > horizon ) {
+
+          return loopTime;
+
+        }
+
+        tempoMPQ = tempoAt(loopStart);
+        reanchor(loopStart, loopTime);
+        cursor = firstEventAtOrAfter(loopStart);
+        loopsDone++;
+        continue;
+
+      }
+
+      if ( cursor >= ticks.length ) {
+
+        final long endTime = timeOf(tickLength);
+
+        if ( endTime > horizon ) {
+
+          return endTime;
+
+        }
+
+        running = false;
+        tickPosition = tickLength;
+        notifyMeta(endOfTrack(), endTime);
+        return -1;
+
+      }
+
+      final long due = timeOf(nextTick);
+
+      if ( due > horizon ) {
+
+        return due;
+
+      }
+
+      final MidiMessage message = messages[cursor];
+
+      if ( message instanceof MetaMessage ) {
+
+        final MetaMessage meta = (MetaMessage) message;
+
+        if ( meta.getType() == StandardMidiFileWriter.META_TEMPO && meta.getData().length == 3 ) {
+
+          tempoMPQ = tempoFromData(meta.getData());
+          reanchor(nextTick, due);
+
+        }
+
+        notifyMeta(meta, due);
+
+      } else if ( audible(tracks[cursor]) ) {
+
+        for ( SequencerTransmitter transmitter : transmitters ) {
+
+          final TimestampedOutput output = transmitter.output;
+
+          if ( output != null ) {
+
+            output.send(message, due);
+
+          }
+
+        }
+
+        scheduler.recordEvent(due);
+        notifyController(message, due);
+
+      }
+
+      lastDue = Math.max(lastDue, due);
+      cursor++;
+
+    }
+
+    return -1;
+
+  }
+
+  /**
+   * Makes a tick the reference point for timing, at the current tempo, remembering the previous reference point
+   * for positions before it. Must be called with the lock held.
+   *
+   * @param tick the tick
+   * @param time when it plays
+   */
+
+  private void reanchor(final long tick, final long time) {
+
+    previousAnchorTick = anchorTick;
+    previousAnchorTime = anchorTime;
+    previousMicrosPerTick = microsPerTick;
+    anchorTick = tick;
+    anchorTime = time;
+    microsPerTick = timingRate();
+
+  }
+
+  /**
+   * Works out how long each tick lasts at the current tempo and tempo factor. Must be called with the lock held.
+   *
+   * @return the length of a tick in microseconds
+   */
+
+  private double timingRate() {
+
+    final float divisionType = (sequence == null) ? Sequence.PPQ : sequence.getDivisionType();
+    final int resolution = (sequence == null) ? 1 : sequence.getResolution();
+
+    if ( divisionType == Sequence.PPQ ) {
+
+      return tempoMPQ / resolution / tempoFactor;
+
+    }
+
+    return 1000000.0 / (divisionType * resolution) / tempoFactor;
+
+  }
+
+  /**
+   * Works out when a tick plays, at the current timing.
+   *
+   * @param tick the tick
+   *
+   * @return the time on the scheduler's clock
+   */
+
+  private long timeOf(final long tick) {
+
+    return anchorTime + (long) ((tick - anchorTick) * microsPerTick);
+
+  }
+
+  /**
+   * Works out which tick is playing now. Must be called with the lock held while running.
+   *
+   * @return the current tick
+   */
+
+  private long currentTick() {
+
+    final long now = LookaheadScheduler.now();
+    final long tick;
+
+    if ( now >= anchorTime ) {
+
+      tick = anchorTick + (long) ((now - anchorTime) / microsPerTick);
+
+    } else {  // The current reference point is still in the future, because of the lookahead
+
+      tick = previousAnchorTick + (long) ((now - previousAnchorTime) / previousMicrosPerTick);
+
+    }
+
+    return Math.max(0, Math.min(tick, tickLength));
+
+  }
+
+  /**
+   * Checks whether events on a track should be heard, given the mute and solo settings.
+   *
+   * @param track the track number
+   *
+   * @return true if the track is audible
+   */
+
+  private boolean audible(final int track) {
+
+    if ( mutes[track] ) {
+
+      return false;
+
+    }
+
+    for ( boolean solo : solos ) {
+
+      if ( solo ) {
+
+        return solos[track];
+
+      }
+
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Sends All Notes Off on every channel to every output, to be delivered at a particular time.
+   *
+   * @param due when the messages should be delivered
+   */
+
+  private void allNotesOff(final long due) {
+
+    try {
+
+      for ( int channel = 0; channel < 16; channel++ ) {
+
+        final ShortMessage message = new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, ALL_NOTES_OFF, 0);
+
+        for ( SequencerTransmitter transmitter : transmitters ) {
+
+          final TimestampedOutput output = transmitter.output;
+
+          if ( output != null ) {
+
+            output.send(message, due);
+
+          }
+
+        }
+
+      }
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build All Notes Off message", e);
+
+    }
+
+  }
+
+  /**
+   * Delivers a meta event to the registered listeners when it is due.
+   *
+   * @param meta the meta event
+   * @param due  when it plays
+   */
+
+  private void notifyMeta(final MetaMessage meta, final long due) {
+
+    if ( metaEventListeners.isEmpty() ) {
+
+      return;
+
+    }
+
+    CoreMidiScheduler.getExecutor().schedule(new Runnable() {
+
+      @Override
+      public void run() {
+
+        for ( MetaEventListener listener : metaEventListeners ) {
+
+          try {
+
+            listener.meta(meta);
+
+          } catch (Throwable t) {
+
+            System.err.println("Problem delivering meta event to " + listener + ": " + t);
+            t.printStackTrace(System.err);
+
+          }
+
+        }
+
+      }
+
+    }, Math.max(0, due - LookaheadScheduler.now()), TimeUnit.MICROSECONDS);
+
+  }
+
+  /**
+   * Delivers a control change event to the listeners registered for its controller when it is due.
+   *
+   * @param message the message that has been scheduled
+   * @param due     when it plays
+   */
+
+  private void notifyController(final MidiMessage message, final long due) {
+
+    if ( controllerEventListeners.isEmpty() || !(message instanceof ShortMessage)
+         || ((ShortMessage) message).getCommand() != ShortMessage.CONTROL_CHANGE ) {
+
+      return;
+
+    }
+
+    final ShortMessage controlChange = (ShortMessage) message;
+
+    CoreMidiScheduler.getExecutor().schedule(new Runnable() {
+
+      @Override
+      public void run() {
+
+        for ( Map.Entry<ControllerEventListener, boolean[]> entry : controllerEventListeners.entrySet() ) {
+
+          if ( entry.getValue()[controlChange.getData1()] ) {
+
+            try {
+
+              entry.getKey().controlChange(controlChange);
+
+            } catch (Throwable t) {
+
+              System.err.println("Problem delivering control change to " + entry.getKey() + ": " + t);
+              t.printStackTrace(System.err);
+
+            }
+
+          }
+
+        }
+
+      }
+
+    }, Math.max(0, due - LookaheadScheduler.now()), TimeUnit.MICROSECONDS);
+
+  }
+
+  /**
+   * Flattens the tracks of the sequence into arrays in time order, and builds the tempo map. Events at the same
+   * tick keep their order within their track, and lower-numbered tracks come first. Must be called with the lock
+   * held.
+   */
+
+  private void flatten() {
+
+    if ( sequence == null ) {
+
+      return;
+
+    }
+
+    final Track[] sequenceTracks = sequence.getTracks();
+    final List<long[]> order = new ArrayList<>();  // tick, track, index within track
+    long length = 0;
+
+    for ( int t = 0; t < sequenceTracks.length; t++ ) {
+
+      final Track track = sequenceTracks[t];
+
+      for ( int i = 0; i < track.size(); i++ ) {
+
+        final MidiEvent event = track.get(i);
+        final MidiMessage message = event.getMessage();
+        length = Math.max(length, event.getTick());
+
+        if ( !(message instanceof MetaMessage && ((MetaMessage) message).getType() == META_END_OF_TRACK) ) {
+
+          order.add(new long[] { event.getTick(), t, i });
+
+        }
+
+      }
+
+    }
+
+    Collections.sort(order, new Comparator<long[]>() {
+
+      @Override
+      public int compare(final long[] a, final long[] b) {
+
+        for ( int i = 0; i < 3; i++ ) {
+
+          if ( a[i] != b[i] ) {
+
+            return (a[i] < b[i]) ? -1 : 1;
+
+          }
+
+        }
+
+        return 0;
+
+      }
+
+    });
+
+    ticks = new long[order.size()];
+    messages = new MidiMessage[order.size()];
+    tracks = new int[order.size()];
+    final List<Long> changeTicks = new ArrayList<>();
+    final List<Float> changeValues = new ArrayList<>();
+
+    for ( int i = 0; i < ticks.length; i++ ) {
+
+      final long[] entry = order.get(i);
+      ticks[i] = entry[0];
+      tracks[i] = (int) entry[1];
+      messages[i] = sequenceTracks[tracks[i]].get((int) entry[2]).getMessage();
+
+      if ( messages[i] instanceof MetaMessage ) {
+
+        final MetaMessage meta = (MetaMessage) messages[i];
+
+        if ( meta.getType() == StandardMidiFileWriter.META_TEMPO && meta.getData().length == 3 ) {
+
+          changeTicks.add(ticks[i]);
+          changeValues.add(tempoFromData(meta.getData()));
+
+        }
+
+      }
+
+    }
+
+    tempoTicks = new long[changeTicks.size()];
+    tempoValues = new float[changeTicks.size()];
+
+    for ( int i = 0; i < tempoTicks.length; i++ ) {
+
+      tempoTicks[i] = changeTicks.get(i);
+      tempoValues[i] = changeValues.get(i);
+
+    }
+
+    tickLength = length;
+
+    if ( mutes.length != sequenceTracks.length ) {
+
+      mutes = Arrays.copyOf(mutes, sequenceTracks.length);
+      solos = Arrays.copyOf(solos, sequenceTracks.length);
+
+    }
+
+  }
+
+  /**
+   * Finds the first event at or after a tick.
+   *
+   * @param tick the tick
+   *
+   * @return the index of the event, or the number of events if there is none
+   */
+
+  private int firstEventAtOrAfter(final long tick) {
+
+    int low = 0;
+    int high = ticks.length;
+
+    while ( low < high ) {
+
+      final int middle = (low + high) >>> 1;
+
+      if ( ticks[middle] < tick ) {
+
+        low = middle + 1;
+
+      } else {
+
+        high = middle;
+
+      }
+
+    }
+
+    return low;
+
+  }
+
+  /**
+   * Finds the tempo the sequence sets for a tick.
+   *
+   * @param tick the tick
+   *
+   * @return the tempo in microseconds per quarter note
+   */
+
+  private float tempoAt(final long tick) {
+
+    float tempo = StandardMidiFileWriter.DEFAULT_TEMPO;
+
+    for ( int i = 0; i < tempoTicks.length && tempoTicks[i] <= tick; i++ ) {
+
+      tempo = tempoValues[i];
+
+    }
+
+    return tempo;
+
+  }
+
+  /**
+   * Converts a tick to microseconds from the start of the sequence, following its tempo map.
+   *
+   * @param tick the tick
+   *
+   * @return the time in microseconds
+   */
+
+  private long ticksToMicroseconds(final long tick) {
+
+    if ( sequence == null ) {
+
+      return 0;
+
+    }
+
+    if ( sequence.getDivisionType() != Sequence.PPQ ) {
+
+      return (long) (tick * 1000000.0 / (sequence.getDivisionType() * sequence.getResolution()));
+
+    }
+
+    double micros = 0;
+    long from = 0;
+    float tempo = StandardMidiFileWriter.DEFAULT_TEMPO;
+
+    for ( int i = 0; i < tempoTicks.length && tempoTicks[i] < tick; i++ ) {
+
+      micros += (tempoTicks[i] - from) * (double) tempo / sequence.getResolution();
+      from = tempoTicks[i];
+      tempo = tempoValues[i];
+
+    }
+
+    return (long) (micros + (tick - from) * (double) tempo / sequence.getResolution());
+
+  }
+
+  /**
+   * Converts microseconds from the start of the sequence to a tick, following its tempo map.
+   *
+   * @param microseconds the time in microseconds
+   *
+   * @return the tick
+   */
+
+  private long microsecondsToTicks(final long microseconds) {
+
+    if ( sequence == null ) {
+
+      return 0;
+
+    }
+
+    if ( sequence.getDivisionType() != Sequence.PPQ ) {
+
+      return (long) (microseconds * sequence.getDivisionType() * sequence.getResolution() / 1000000.0);
+
+    }
+
+    double micros = 0;
+    long from = 0;
+    float tempo = StandardMidiFileWriter.DEFAULT_TEMPO;
+
+    for ( int i = 0; i < tempoTicks.length; i++ ) {
+
+      final double next = micros + (tempoTicks[i] - from) * (double) tempo / sequence.getResolution();
+
+      if ( next > microseconds ) {
+
+        break;
+
+      }
+
+      micros = next;
+      from = tempoTicks[i];
+      tempo = tempoValues[i];
+
+    }
+
+    return from + (long) ((microseconds - micros) * sequence.getResolution() / tempo);
+
+  }
+
+  /**
+   * Decodes the data of a tempo meta event.
+   *
+   * @param data the three data bytes
+   *
+   * @return the tempo in microseconds per quarter note
+   */
+
+  private static float tempoFromData(final byte[] data) {
+
+    return ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+
+  }
+
+  /**
+   * Determines the version to report in the sequencer's device information.
+   *
+   * @return the implementation version of the library, or "Unknown" if it is not running from a JAR
+   */
+
+  private static String libraryVersion() {
+
+    final String version = CoreMidiSequencer.class.getPackage().getImplementationVersion();
+    return (version == null) ? "Unknown" : version;
+
+  }
+
+  /**
+   * Builds the end of track meta event which tells listeners that playback has finished.
+   *
+   * @return the meta event
+   */
+
+  private static MetaMessage endOfTrack() {
+
+    try {
+
+      return new MetaMessage(META_END_OF_TRACK, new byte[0], 0);
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build end of track message", e);
+
+    }
+
+  }
+
+  /**
+   * Lists the controllers marked in an array.
+   *
+   * @param wanted which controllers are wanted
+   *
+   * @return the wanted controller numbers
+   */
+
+  private static int[] registered(final boolean[] wanted) {
+
+    int count = 0;
+
+    for ( boolean w : wanted ) {
+
+      if ( w ) {
+
+        count++;
+
+      }
+
+    }
+
+    final int[] result = new int[count];
+    int next = 0;
+
+    for ( int i = 0; i < wanted.length; i++ ) {
+
+      if ( wanted[i] ) {
+
+        result[next++] = i;
+
+      }
+
+    }
+
+    return result;
+
+  }
+
+}
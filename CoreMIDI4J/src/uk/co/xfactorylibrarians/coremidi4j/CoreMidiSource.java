@@ -35,6 +35,13 @@ import javax.sound.midi.Transmitter;
 
 public class CoreMidiSource implements MidiDevice {
 
+  /**
+   * How long a source which has sent Active Sensing can go without sending anything before it is considered to have
+   * been disconnected, in microseconds. This is the 300 milliseconds given by the MIDI specification.
+   */
+
+  public static final long ACTIVE_SENSING_TIMEOUT = 300000;
+
   private CoreMidiDeviceInfo info;
   private final AtomicBoolean isOpen;
   private final AtomicReference<CoreMidiInputPort> input;
@@ -47,6 +54,24 @@ public class CoreMidiSource implements MidiDevice {
   private Vector<byte[]> sysexMessageData;  			// Accumulates runs of SYSEX data values until we see the end of message.
   private int sysexMessageLength = 0;  						// Tracks the total SYSEX data length accumulated.
   private long startTime;                         // The system time in microseconds when the port was opened
+  private volatile CoreMidiSourceListener[] listeners = new CoreMidiSourceListener[0];  // Replaced, never modified
+  private volatile ChannelStateTable channelState;  // Null unless channel state is being tracked
+  private final ActiveNoteMap activeNotes = new ActiveNoteMap();  // Notes received and passed on, but not yet ended
+  private final Object deliveryLock = new Object();  // Held while delivering, so only one thread delivers at a time
+  private volatile long lastActivity;             // When the last packet arrived, on the LookaheadScheduler clock
+  private final AtomicBoolean activeSensing = new AtomicBoolean(false);  // Whether Active Sensing has been seen
+  private volatile TimingWheel.Timeout activeSensingTimeout;  // When we next check for silence, while sensing
+  private volatile ActiveSensingListener[] activeSensingListeners = new ActiveSensingListener[0];  // Never modified
+  private final Runnable activeSensingCheck = new Runnable() {
+
+    @Override
+    public void run() {
+
+      checkActiveSensing();
+
+    }
+
+  };
 
   /**
    * Default constructor.
@@ -104,18 +129,11 @@ public class CoreMidiSource implements MidiDevice {
 
       try {
 
-        // Create the input port if not already created
-        if (input.get() == null) {
-
-          input.set(CoreMidiDeviceProvider.getMIDIClient().inputPortCreate("Core Midi Provider Input"));
-
-        }
-
-        // And connect to it
-        input.get().connectSource(this);
+        // Connect to one of the input ports shared by all sources
+        input.set(CoreMidiDeviceProvider.getInputPortPool().connect(this));
 
         // Get the system time in microseconds
-        startTime = this.getMicroSecondTime();
+        startTime = CoreMidi4J.getBackend().getMicroSecondTime(this);
 
       } catch (CoreMidiException e) {
 
@@ -129,7 +147,9 @@ public class CoreMidiSource implements MidiDevice {
   }
 
   /**
-   * Closes the Core MIDI Device, which also closes all its transmitters
+   * Closes the Core MIDI Device, which also closes all its transmitters. Any notes which have been received but not
+   * ended are first ended by sending note offs to the source listeners and transmitters, so they are not left stuck
+   * in whatever the source was feeding.
    * 
    */
 
@@ -140,12 +160,12 @@ public class CoreMidiSource implements MidiDevice {
 
       try {
 
-        // If the port is created then disconnect from it
+        // If we are connected to a port then disconnect from it
         if (input.get() != null) {
 
           try {
 
-            input.get().disconnectSource(this);
+            CoreMidiDeviceProvider.getInputPortPool().disconnect(this);
 
           } finally {
 
@@ -155,6 +175,28 @@ public class CoreMidiSource implements MidiDevice {
 
         }
 
+        // Stop watching for silence, since that is now expected.
+        activeSensing.set(false);
+        final TimingWheel.Timeout timeout = activeSensingTimeout;
+
+        if (timeout != null) {
+
+          TimingWheel.getShared().cancel(timeout);
+
+        }
+
+        // Nothing more will arrive, so end any notes which would otherwise sound forever downstream.
+        try {
+
+          releaseActiveNotes();
+
+        } catch (RuntimeException e) {
+
+          System.err.println("Problem ending active notes while closing MIDI source " + this + ": " + e);
+          e.printStackTrace(System.err);
+
+        }
+
         // Close all our transmitters, which will also clear the list.
         // We iterate on a copy of the transmitter list to avoid issues with concurrent modification.
         for (Transmitter transmitter : getTransmitters()) {
@@ -180,7 +222,12 @@ public class CoreMidiSource implements MidiDevice {
 
   void deviceDisappeared() {
 
-    input.set(null);
+    if (input.getAndSet(null) != null) {
+
+      CoreMidiDeviceProvider.getInputPortPool().sourceDisappeared(this);
+
+    }
+
     close();
 
   }
@@ -214,7 +261,7 @@ public class CoreMidiSource implements MidiDevice {
   public long getMicrosecondPosition() {
 
     // Return the elapsed time in Microseconds
-    return this.getMicroSecondTime() - startTime;
+    return CoreMidi4J.getBackend().getMicroSecondTime(this) - startTime;
 
   }
 
@@ -320,6 +367,327 @@ public class CoreMidiSource implements MidiDevice {
 
   }
 
+  /**
+   * Adds a listener which will be given each message received by this source as soon as it has been parsed, before
+   * it is sent to any transmitters, and without a {@code MidiMessage} object having to be created for it. This is
+   * intended for code such as routers and recorders which must keep up with the input without generating garbage.
+   * Listeners are called on the CoreMIDI input thread, so they must return quickly. Adding a listener which is
+   * already present has no effect.
+   *
+   * @param listener the listener to add
+   *
+   */
+
+  public synchronized void addSourceListener(CoreMidiSourceListener listener) {
+
+    if (listener != null && !Arrays.asList(listeners).contains(listener)) {
+
+      final CoreMidiSourceListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+      updated[listeners.length] = listener;
+      listeners = updated;
+
+    }
+
+  }
+
+  /**
+   * Removes a listener that had been added with {@link #addSourceListener(CoreMidiSourceListener)}.
+   *
+   * @param listener the listener to remove
+   *
+   */
+
+  public synchronized void removeSourceListener(CoreMidiSourceListener listener) {
+
+    final List<CoreMidiSourceListener> updated = new ArrayList<>(Arrays.asList(listeners));
+
+    if (updated.remove(listener)) {
+
+      listeners = updated.toArray(new CoreMidiSourceListener[updated.size()]);
+
+    }
+
+  }
+
+  /**
+   * Adds a listener which will be told if this source, having sent Active Sensing, then goes silent for longer than
+   * {@link #ACTIVE_SENSING_TIMEOUT}. Whether or not there are any listeners, the notes the source left sounding are
+   * ended when that happens, as the MIDI specification requires. Adding a listener which is already present has no
+   * effect.
+   *
+   * @param listener the listener to add
+   *
+   */
+
+  public synchronized void addActiveSensingListener(ActiveSensingListener listener) {
+
+    if (listener != null && !Arrays.asList(activeSensingListeners).contains(listener)) {
+
+      final ActiveSensingListener[] updated = Arrays.copyOf(activeSensingListeners, activeSensingListeners.length + 1);
+      updated[activeSensingListeners.length] = listener;
+      activeSensingListeners = updated;
+
+    }
+
+  }
+
+  /**
+   * Removes a listener that had been added with {@link #addActiveSensingListener(ActiveSensingListener)}.
+   *
+   * @param listener the listener to remove
+   *
+   */
+
+  public synchronized void removeActiveSensingListener(ActiveSensingListener listener) {
+
+    final List<ActiveSensingListener> updated = new ArrayList<>(Arrays.asList(activeSensingListeners));
+
+    if (updated.remove(listener)) {
+
+      activeSensingListeners = updated.toArray(new ActiveSensingListener[updated.size()]);
+
+    }
+
+  }
+
+  /**
+   * Checks whether this source is sending Active Sensing, and so is being watched for silence. This becomes true when
+   * an Active Sensing message is received, and false again if the source then goes silent for longer than
+   * {@link #ACTIVE_SENSING_TIMEOUT}, or is closed.
+   *
+   * @return true if the source is being watched for silence
+   *
+   */
+
+  public boolean isActiveSensing() {
+
+    return activeSensing.get();
+
+  }
+
+  /**
+   * Starts watching for silence, on the timing wheel shared by all sources, because Active Sensing has been received.
+   * After this, all the input thread does to keep the source alive is record when each packet arrives.
+   *
+   */
+
+  private void startActiveSensing() {
+
+    if (activeSensing.compareAndSet(false, true)) {
+
+      activeSensingTimeout = TimingWheel.getShared().schedule(activeSensingCheck,
+                                                              lastActivity + ACTIVE_SENSING_TIMEOUT);
+
+    }
+
+  }
+
+  /**
+   * Called by the timing wheel when the source might have gone silent. If anything has arrived since the check was
+   * scheduled, the check is simply pushed back. Otherwise the source has timed out, and ending its notes and telling
+   * the listeners is left to the background executor, so the wheel thread only ever does this quick test.
+   *
+   */
+
+  private void checkActiveSensing() {
+
+    if (!activeSensing.get()) {
+
+      return;
+
+    }
+
+    final long last = lastActivity;
+    final long silence = LookaheadScheduler.now() - last;
+
+    if (silence < ACTIVE_SENSING_TIMEOUT) {
+
+      activeSensingTimeout = TimingWheel.getShared().schedule(activeSensingCheck, last + ACTIVE_SENSING_TIMEOUT);
+      return;
+
+    }
+
+    if (activeSensing.compareAndSet(true, false)) {
+
+      activeSensingTimeout = null;
+
+      CoreMidiScheduler.getBackgroundExecutor().execute(new Runnable() {
+
+        @Override
+        public void run() {
+
+          activeSensingTimedOut(last, silence);
+
+        }
+
+      });
+
+    }
+
+  }
+
+  /**
+   * Ends the notes of a source which has timed out and tells the listeners, unless it has been closed or has sent
+   * something since, in which case it goes back to being watched. This holds the same lock as the input thread does
+   * while it delivers a packet, so the note offs and listener calls never overlap with, or overtake, messages being
+   * delivered from the input thread.
+   *
+   * @param last    when the last packet had arrived at the time the source was found to be silent
+   * @param silence how long the source had been silent by then, in microseconds
+   *
+   */
+
+  private void activeSensingTimedOut(final long last, final long silence) {
+
+    // Deliver the note offs and the news in order with whatever the input thread is delivering.
+    synchronized (deliveryLock) {
+
+      if (!isOpen()) {
+
+        return;
+
+      }
+
+      if (lastActivity != last) {
+
+        startActiveSensing();  // It has spoken again since, so it is not silent after all
+        return;
+
+      }
+
+      try {
+
+        releaseActiveNotes();
+
+      } catch (RuntimeException e) {
+
+        System.err.println("Problem ending active notes of silent MIDI source " + this + ": " + e);
+        e.printStackTrace(System.err);
+
+      }
+
+      for (ActiveSensingListener listener : activeSensingListeners) {
+
+        try {
+
+          listener.activeSensingTimedOut(this, silence);
+
+        } catch (Throwable t) {
+
+          System.err.println("Problem notifying Active Sensing listener " + listener + ": " + t);
+          t.printStackTrace(System.err);
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Starts keeping track of the state of each MIDI channel received by this source, in a table which is updated as
+   * each message is parsed and can be read from any thread without locking. Calling this again while already
+   * tracking returns the same table.
+   *
+   * @return the table of channel state
+   *
+   */
+
+  public synchronized ChannelStateTable trackChannelState() {
+
+    if (channelState == null) {
+
+      channelState = new ChannelStateTable();
+
+    }
+
+    return channelState;
+
+  }
+
+  /**
+   * Stops keeping track of the state of each MIDI channel. The table stops being updated, but can still be read.
+   *
+   */
+
+  public synchronized void stopTrackingChannelState() {
+
+    channelState = null;
+
+  }
+
+  /**
+   * Gets the table of channel state, if it is being tracked.
+   *
+   * @return the table, or null if {@link #trackChannelState()} has not been called
+   *
+   */
+
+  public ChannelStateTable getChannelState() {
+
+    return channelState;
+
+  }
+
+  /**
+   * Gets the notes which have been received from this source and not yet ended.
+   *
+   * @return the map of active notes, which is kept up to date as messages arrive
+   *
+   */
+
+  public ActiveNoteMap getActiveNotes() {
+
+    return activeNotes;
+
+  }
+
+  /**
+   * Ends every note which has been received from this source and not yet ended, by delivering note offs to the
+   * channel state table, source listeners and transmitters, as if they had been received, so that
+   * {@link #getChannelState()} no longer reports them as held. Only the notes actually sounding are ended,
+   * rather than every note on every channel. This happens automatically when the source is closed or disappears,
+   * but can also be called at any time, from any thread, as a panic; the note offs are delivered between packets
+   * from the input thread, never in the middle of one.
+   *
+   * @return the number of note offs delivered
+   *
+   */
+
+  public int releaseActiveNotes() {
+
+    synchronized (deliveryLock) {
+
+      final List<ShortMessage> noteOffs = activeNotes.release();
+      final ChannelStateTable table = channelState;
+
+      try {
+
+        for (ShortMessage noteOff : noteOffs) {
+
+          if (table != null) {
+
+            table.update(noteOff.getStatus(), noteOff.getData1(), noteOff.getData2());
+
+          }
+
+          dispatchShortMessage(noteOff.getStatus(), noteOff.getData1(), noteOff.getData2(), -1);
+
+        }
+
+      } catch (InvalidMidiDataException e) {
+
+        throw new IllegalStateException("Unable to deliver note off", e);
+
+      }
+
+      return noteOffs.size();
+
+    }
+
+  }
+
   /**
    * Gets the list of transmitters registered with this MIDI device
    *
@@ -469,6 +837,31 @@ public class CoreMidiSource implements MidiDevice {
 
   public void messageCallback(long coreTimestamp, int packetlength, byte data[]) throws InvalidMidiDataException {
 
+    // The only thing the Active Sensing watchdog needs from us; it works out the rest on its own thread.
+    lastActivity = LookaheadScheduler.now();
+
+    // Only one thread at a time may deliver messages from this source; see checkActiveSensing().
+    synchronized (deliveryLock) {
+
+      parsePacket(coreTimestamp, packetlength, data);
+
+    }
+
+  }
+
+  /**
+   * Parses a packet of MIDI data, delivering each message as soon as it is complete.
+   *
+   * @param coreTimestamp  The time in microseconds since boot at which the messages should take effect
+   * @param packetlength   The length of the packet of messages
+   * @param data           The data array that holds the messages
+   *
+   * @throws InvalidMidiDataException if the message contained values that could not be interpreted as valid MIDI
+   *
+   */
+
+  private void parsePacket(long coreTimestamp, int packetlength, byte data[]) throws InvalidMidiDataException {
+
     int offset = 0;
 
     // Convert from CoreMIDI-oriented boot-relative microseconds to Java-oriented port-relative microsecends,
@@ -493,7 +886,7 @@ public class CoreMidiSource implements MidiDevice {
         } else if (currentDataIsSingleByte) {
 
           // We are processing a message which only needs one data byte, this completes it
-          transmitMessage(new ShortMessage(currentMessage, data[offset++], 0), timestamp);
+          deliverShortMessage(currentMessage, data[offset++], 0, timestamp);
           if (!isRunningStatusMessage(currentMessage)) currentMessage = 0;
 
         } else {
@@ -502,7 +895,7 @@ public class CoreMidiSource implements MidiDevice {
           if (wasFirstByteReceived) {
 
             // We have the second data byte, the message is now complete
-            transmitMessage(new ShortMessage(currentMessage, firstDataByte, data[offset++]), timestamp);
+            deliverShortMessage(currentMessage, firstDataByte, data[offset++], timestamp);
             wasFirstByteReceived = false;
             if (!isRunningStatusMessage(currentMessage)) currentMessage = 0;
 
@@ -522,8 +915,16 @@ public class CoreMidiSource implements MidiDevice {
         if (isRealTimeMessage(data[offset])) {
 
           // Real-time messages can come anywhere, including in between data bytes of other messages.
-          // Simply transmit it and move on.
-          transmitMessage(new ShortMessage(data[offset++] & 0xff), timestamp);
+          // Simply transmit it and move on, first starting to watch for silence if it is the first Active Sensing.
+          final int status = data[offset++] & 0xff;
+
+          if (status == ShortMessage.ACTIVE_SENSING && !activeSensing.get()) {
+
+            startActiveSensing();
+
+          }
+
+          deliverShortMessage(status, 0, 0, timestamp);
 
         } else if (data[offset] == (byte) ShortMessage.END_OF_EXCLUSIVE) {
 
@@ -552,7 +953,7 @@ public class CoreMidiSource implements MidiDevice {
           switch (expectedDataLength(data[offset])) {
 
             case 0:  // No data bytes, this is a standalone message, so we can send it right away.
-              transmitMessage(new ShortMessage(data[offset++] & 0xff), timestamp);
+              deliverShortMessage(data[offset++] & 0xff, 0, 0, timestamp);
               currentMessage = 0;  // If we were in a running status, it's over now
               break;
 
@@ -582,16 +983,14 @@ public class CoreMidiSource implements MidiDevice {
   }
 
   /**
-   * Creates a SYSEX message from the received (potentially partial) messages. This function is called when F7 was
+   * Assembles a SYSEX message from the received (potentially partial) messages. This function is called when F7 was
    * detected in the most recent message gathered, indicating the end of the SYSEX.
    *
-   * @return The constructed SYSEX message
-   * 
-   * @throws InvalidMidiDataException if the data is not properly formed
+   * @return The bytes of the complete SYSEX message
    * 
    */
 
-  private SysexMessage constructSysexMessage() throws InvalidMidiDataException {
+  private byte[] assembleSysexData() {
 
     // Create the array to hold the constructed message and reset the index (where the data will be copied)
     byte data[] = new byte[sysexMessageLength];
@@ -612,8 +1011,7 @@ public class CoreMidiSource implements MidiDevice {
     // We are done with the message fragments, so allow them to be garbage collected
     sysexMessageData = null;
 
-    // Create and return the new SYSYEX Message
-    return new SysexMessage(data, sysexMessageLength);
+    return data;
 
   }
 
@@ -714,7 +1112,7 @@ public class CoreMidiSource implements MidiDevice {
 
       // Again, here we could refrain from sending if currentMessage != 0, because that indicates we received
       // a partial SYSEX message, i.e. the next message started before we received the End of Exclusive marker.
-      transmitMessage(constructSysexMessage(), timestamp);
+      deliverSysexMessage(timestamp);
 
     }
 
@@ -723,6 +1121,111 @@ public class CoreMidiSource implements MidiDevice {
   }
 
 
+  /**
+   * Delivers a complete short MIDI message to our channel state table if there is one, then to our source listeners,
+   * and then to our transmitters. A {@code ShortMessage} object is only created if there are transmitters to send it
+   * to.
+   *
+   * @param status    the status byte of the message
+   * @param data1     the first data byte, or 0 if there is none
+   * @param data2     the second data byte, or 0 if there is none
+   * @param timestamp the time stamp
+   *
+   * @throws InvalidMidiDataException if the message is not valid
+   *
+   */
+
+  private void deliverShortMessage(final int status, final int data1, final int data2, final long timestamp)
+      throws InvalidMidiDataException {
+
+    final ChannelStateTable table = channelState;
+
+    if (table != null) {
+
+      table.update(status, data1, data2);
+
+    }
+
+    activeNotes.update(status, data1, data2);
+    dispatchShortMessage(status, data1, data2, timestamp);
+
+  }
+
+  /**
+   * Delivers a short message to our source listeners, and then to our transmitters.
+   *
+   * @param status    the status byte
+   * @param data1     the first data byte, or 0 if there is none
+   * @param data2     the second data byte, or 0 if there is none
+   * @param timestamp the time stamp
+   *
+   * @throws InvalidMidiDataException if the message is not valid
+   *
+   */
+
+  private void dispatchShortMessage(final int status, final int data1, final int data2, final long timestamp)
+      throws InvalidMidiDataException {
+
+    for (CoreMidiSourceListener listener : listeners) {
+
+      try {
+
+        listener.shortMessageReceived(this, status, data1, data2, timestamp);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem delivering MIDI message to source listener " + listener + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+    if (!transmitters.isEmpty()) {
+
+      transmitMessage(new ShortMessage(status, data1, data2), timestamp);
+
+    }
+
+  }
+
+  /**
+   * Delivers the SYSEX message which has just been gathered to our source listeners, and then to our transmitters.
+   *
+   * @param timestamp the time stamp
+   *
+   * @throws InvalidMidiDataException if the message is not valid
+   *
+   */
+
+  private void deliverSysexMessage(final long timestamp) throws InvalidMidiDataException {
+
+    final int length = sysexMessageLength;
+    final byte[] data = assembleSysexData();
+
+    for (CoreMidiSourceListener listener : listeners) {
+
+      try {
+
+        listener.sysexMessageReceived(this, data, length, timestamp);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem delivering SYSEX message to source listener " + listener + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+    if (!transmitters.isEmpty()) {
+
+      transmitMessage(new SysexMessage(data, length), timestamp);
+
+    }
+
+  }
+
   /**
    * Sends a MIDI message to all of the registered transmitters
    *
@@ -813,6 +1316,6 @@ public class CoreMidiSource implements MidiDevice {
    * 
    */
 
-  private native long getMicroSecondTime();
+  native long getMicroSecondTime();
 
 }
@@ -0,0 +1,50 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * The interface for a class that wants to see the messages received by a {@link CoreMidiSource} in raw form, as soon
+ * as they have been parsed. Methods are called on the CoreMIDI input thread, one message at a time, so they must
+ * return quickly and must not block. See {@link CoreMidiSource#addSourceListener(CoreMidiSourceListener)}.
+ *
+ */
+
+public interface CoreMidiSourceListener {
+
+  /**
+   * Called when a message other than a System Exclusive message has been received.
+   *
+   * @param source    the source which received the message
+   * @param status    the status byte of the message, from 0x80 to 0xFF
+   * @param data1     the first data byte, or 0 if the message has none
+   * @param data2     the second data byte, or 0 if the message has fewer than two
+   * @param timestamp the time at which the message took effect, in microseconds relative to when the source was
+   *                  opened, or -1 if it is not known
+   */
+
+  void shortMessageReceived(CoreMidiSource source, int status, int data1, int data2, long timestamp);
+
+  /**
+   * Called when a System Exclusive message has been received.
+   *
+   * @param source    the source which received the message
+   * @param data      the bytes of the message, starting with the 0xF0 status byte; this array is shared with the
+   *                  other listeners, so it must not be modified, and must be copied if it is needed after returning
+   * @param length    the number of bytes in the message
+   * @param timestamp the time at which the message took effect, in microseconds relative to when the source was
+   *                  opened, or -1 if it is not known
+   */
+
+  void sysexMessageReceived(CoreMidiSource source, byte[] data, int length, long timestamp);
+
+}
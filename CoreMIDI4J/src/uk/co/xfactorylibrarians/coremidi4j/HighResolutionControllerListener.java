@@ -0,0 +1,54 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * The interface for a class that wants to be told about 14-bit controller values and registered or non-registered
+ * parameter changes put together by a {@link ControllerAssembler}, rather than the separate control change messages
+ * they are sent as. Methods are called on the CoreMIDI input thread, or on the library's background thread when an
+ * MSB timeout expires, so they must return quickly and must not block.
+ *
+ */
+
+public interface HighResolutionControllerListener {
+
+  /**
+   * Called when one of the controllers which have a fine adjustment (0 to 31, other than Data Entry) changes.
+   *
+   * @param source     the source which received the change
+   * @param channel    the MIDI channel, from 0 to 15
+   * @param controller the controller number of the most significant byte, from 0 to 31
+   * @param value      the combined value, from 0 to 16383
+   * @param timestamp  the time at which the last message making up the change took effect, in microseconds relative
+   *                   to when the source was opened, or -1 if it is not known
+   */
+
+  void controllerChanged(CoreMidiSource source, int channel, int controller, int value, long timestamp);
+
+  /**
+   * Called when a registered (RPN) or non-registered (NRPN) parameter is changed by Data Entry, Data Increment or
+   * Data Decrement.
+   *
+   * @param source     the source which received the change
+   * @param channel    the MIDI channel, from 0 to 15
+   * @param registered true for a registered parameter, false for a non-registered one
+   * @param parameter  the parameter number, from 0 to 16383
+   * @param value      the combined value, from 0 to 16383
+   * @param timestamp  the time at which the last message making up the change took effect, in microseconds relative
+   *                   to when the source was opened, or -1 if it is not known
+   */
+
+  void parameterChanged(CoreMidiSource source, int channel, boolean registered, int parameter, int value,
+                        long timestamp);
+
+}
@@ -1,11 +1,18 @@
 package uk.co.xfactorylibrarians.coremidi4j;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Loads the native library when we are running on a Mac. If necessary, extracts a copy
@@ -13,6 +20,10 @@ import java.net.URL;
  * of having to install it on their system. Arranges for that directory to be deleted when
  * we exit.
  *
+ * If the system property {@value #CACHE_DIRECTORY_PROPERTY} names a directory, the library
+ * is instead extracted there under a name derived from a hash of its content, and reused by
+ * later launches for as long as it remains intact, saving the extraction on every start.
+ *
  * Inspired by the techniques used by usb4java, and the loader written by Klaus Raimer, k@ailis.de
  *
  * @author James Elliott
@@ -31,6 +42,38 @@ public class Loader {
   
   public static final String NATIVE_LIBRARY_NAME = "libCoreMidi4J.dylib";
 
+  /**
+   * The system property which, when set to the path of a directory, enables caching of the extracted native
+   * library in that directory across launches.
+   */
+
+  public static final String CACHE_DIRECTORY_PROPERTY = "coremidi4j.library.cache";
+
+  /**
+   * The start of the names of cached copies of the native library; the content hash and extension follow.
+   */
+
+  private static final String CACHE_PREFIX = "libCoreMidi4J-";
+
+  /**
+   * The extension of cached copies of the native library.
+   */
+
+  private static final String CACHE_SUFFIX = ".dylib";
+
+  /**
+   * The extension of partially-written cached copies, which are renamed into place once complete.
+   */
+
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  /**
+   * How long, in milliseconds, a cached copy of another version of the library must have gone unused before it is
+   * considered stale and deleted, so that we do not pull it out from under another JVM which is about to load it.
+   */
+
+  private static final long STALE_AGE = 24L * 60 * 60 * 1000;
+
   /**
    * Prevent instantiation.
    */
@@ -144,6 +187,227 @@ public class Loader {
     
   }
 
+  /**
+   * Reads the entire content of a resource from our jar.
+   *
+   * @param source the absolute resource path
+   *
+   * @return the bytes of the resource
+   *
+   * @throws IOException if the resource cannot be found or read
+   */
+
+  private static byte[] readResource(final String source) throws IOException {
+
+    try (InputStream stream = Loader.class.getResourceAsStream(source)) {
+
+      if (stream == null) {
+
+        throw new IOException("Unable to find " + source + " in the classpath");
+
+      }
+
+      final ByteArrayOutputStream result = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+
+      while ((read = stream.read(buffer)) != -1) {
+
+        result.write(buffer, 0, read);
+
+      }
+
+      return result.toByteArray();
+
+    }
+
+  }
+
+  /**
+   * Computes the hash we use to identify a particular build of the native library.
+   *
+   * @param content the bytes of the library
+   *
+   * @return the SHA-256 hash of the content, as lower-case hexadecimal
+   */
+
+  static String contentHash(final byte[] content) {
+
+    try {
+
+      final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      final StringBuilder result = new StringBuilder(digest.length * 2);
+
+      for (byte b : digest) {
+
+        result.append(Character.forDigit((b >> 4) & 0xf, 16));
+        result.append(Character.forDigit(b & 0xf, 16));
+
+      }
+
+      return result.toString();
+
+    } catch (final NoSuchAlgorithmException e) {
+
+      throw new IllegalStateException("SHA-256 is required to be supported by every Java platform", e);
+
+    }
+
+  }
+
+  /**
+   * Checks whether a cached copy of the library is complete and uncorrupted.
+   *
+   * @param cached   the cached file
+   * @param expected the content it is supposed to have
+   *
+   * @return true if the file exists and its content matches exactly
+   */
+
+  private static boolean isIntact(final File cached, final byte[] expected) {
+
+    if ( !cached.isFile() || cached.length() != expected.length ) {
+
+      return false;
+
+    }
+
+    try {
+
+      return MessageDigest.isEqual(Files.readAllBytes(cached.toPath()), expected);
+
+    } catch (final IOException e) {
+
+      return false;
+
+    }
+
+  }
+
+  /**
+   * Makes sure an intact copy of the library is present in the cache directory, writing it if needed, and
+   * removes stale copies of other versions. Safe to run in several JVMs at once: copies are written under a
+   * unique temporary name and then atomically renamed into place, so no JVM can ever see a partial file under
+   * the final name. This does not depend on running on a Mac, so it can be exercised with any content.
+   *
+   * @param library   the content of the native library
+   * @param directory the cache directory, which will be created if necessary
+   *
+   * @return the cached copy of the library, ready to be loaded
+   *
+   * @throws IOException if the cache directory cannot be created or written
+   */
+
+  static File extractToCache(final byte[] library, final File directory) throws IOException {
+
+    if ( !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+
+      throw new IOException("Unable to create cache directory " + directory);
+
+    }
+
+    final File cached = new File(directory, CACHE_PREFIX + contentHash(library) + CACHE_SUFFIX);
+
+    if ( isIntact(cached, library) ) {
+
+      // Record that this copy is still in use, so other JVMs do not consider it stale.
+      if ( !cached.setLastModified(System.currentTimeMillis()) ) {
+
+        System.err.println("Unable to update timestamp of cached native library " + cached);
+
+      }
+
+    } else {
+
+      final File partial = File.createTempFile(CACHE_PREFIX, PARTIAL_SUFFIX, directory);
+
+      try {
+
+        try (FileOutputStream stream = new FileOutputStream(partial)) {
+
+          stream.write(library);
+          stream.getFD().sync();
+
+        }
+
+        try {
+
+          Files.move(partial.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (final AtomicMoveNotSupportedException e) {
+
+          Files.move(partial.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        }
+
+      } finally {
+
+        Files.deleteIfExists(partial.toPath());  // Only still present if something went wrong.
+
+      }
+
+      if ( !isIntact(cached, library) ) {
+
+        throw new IOException("Cached native library " + cached + " failed its integrity check");
+
+      }
+
+    }
+
+    removeStaleCopies(directory, cached);
+    return cached;
+
+  }
+
+  /**
+   * Deletes copies of other versions of the library, and abandoned partial copies, which have not been used for
+   * a day. Failures are ignored, since another JVM may be doing the same thing.
+   *
+   * @param directory the cache directory
+   * @param current   the copy we are using, which must be kept
+   */
+
+  private static void removeStaleCopies(final File directory, final File current) {
+
+    final File[] candidates = directory.listFiles(new FilenameFilter() {
+
+      @Override
+      public boolean accept(File dir, String name) {
+
+        return name.startsWith(CACHE_PREFIX) && (name.endsWith(CACHE_SUFFIX) || name.endsWith(PARTIAL_SUFFIX));
+
+      }
+
+    });
+
+    if ( candidates == null ) {
+
+      return;
+
+    }
+
+    final long cutoff = System.currentTimeMillis() - STALE_AGE;
+
+    for (File candidate : candidates) {
+
+      if ( !candidate.equals(current) && candidate.lastModified() < cutoff ) {
+
+        try {
+
+          Files.deleteIfExists(candidate.toPath());
+
+        } catch (final IOException e) {
+
+          // Someone else got to it first, or it is not ours to delete; either way, leave it.
+
+        }
+
+      }
+
+    }
+
+  }
+
   /**
    * Locates the native library, extracting a temporary copy from our jar it does not already exist in the file system.
    *
@@ -181,6 +445,24 @@ public class Loader {
       
     }
 
+    // If the user has asked for the library to be cached across launches, use or refresh the cached copy.
+    final String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+
+    if ( cacheDirectory != null && !cacheDirectory.isEmpty() ) {
+
+      try {
+
+        return extractToCache(readResource(source), new File(cacheDirectory)).getAbsolutePath();
+
+      } catch (final IOException e) {
+
+        // The cache is only an optimisation, so fall back to a temporary copy.
+        System.err.println("Unable to use native library cache " + cacheDirectory + ", extracting temporary copy: " + e);
+
+      }
+
+    }
+
     // Extract the library and return the path to the extracted file.
     final File dest = new File(createTempDirectory(), NATIVE_LIBRARY_NAME);
 
@@ -239,7 +521,11 @@ public class Loader {
 
     if ( isMacOSX() ) {
 
-      System.load(locateLibrary());
+      long phaseStart = System.nanoTime();
+      final String path = locateLibrary();
+      phaseStart = CoreMidi4J.recordPhase("locate library", phaseStart);
+      System.load(path);
+      CoreMidi4J.recordPhase("load library", phaseStart);
       available = true;
 
     }
@@ -0,0 +1,333 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a component that sends messages ahead of time with timestamps. A dedicated thread repeatedly asks the
+ * component to send everything due before a horizon a short lookahead into the future, then sleeps until the next
+ * message comes within the lookahead. Since CoreMIDI delivers each message at its timestamp, the thread only needs to
+ * wake up roughly on time, and how roughly is measured and reported as {@link SchedulingStatistics}.
+ *
+ * <p>Times are in microseconds on the clock returned by {@link #now()}; {@link TimestampedOutput} translates them
+ * for each receiver.</p>
+ *
+ */
+
+abstract class LookaheadScheduler {
+
+  /**
+   * The default lookahead, in microseconds.
+   */
+
+  static final long DEFAULT_LOOKAHEAD = 5000;
+
+  /**
+   * The longest the thread sleeps at a time, so that it notices changes without needing to be woken.
+   */
+
+  private static final long MAXIMUM_SLEEP = 20000;
+
+  private final String name;
+  private volatile long lookahead = DEFAULT_LOOKAHEAD;
+  private volatile Thread thread;
+
+  private long eventCount;
+  private long lateEventCount;
+  private long minimumLead = Long.MAX_VALUE;
+  private long wakeupCount;
+  private long totalWakeupLateness;
+  private long maximumWakeupLateness;
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param name the name to give the scheduling thread
+   */
+
+  LookaheadScheduler(final String name) {
+
+    this.name = name;
+
+  }
+
+  /**
+   * Gets the current time on the clock used for scheduling. On OS X this is the same clock CoreMIDI uses.
+   *
+   * @return the current time in microseconds
+   */
+
+  static long now() {
+
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+  }
+
+  /**
+   * Sends every message due before a horizon. Called on the scheduling thread.
+   *
+   * @param horizon the time up to which messages should be sent
+   *
+   * @return the time of the next message that has not yet been sent, {@link Long#MAX_VALUE} if there is none yet,
+   *         or -1 if the scheduler should stop
+   */
+
+  protected abstract long dispatch(long horizon);
+
+  /**
+   * Controls how far ahead of time messages are sent.
+   *
+   * @param micros the lookahead in microseconds
+   *
+   * @throws IllegalArgumentException if the lookahead is less than 500 microseconds or more than a second
+   */
+
+  void setLookahead(final long micros) {
+
+    if ( micros < 500 || micros > 1000000 ) {
+
+      throw new IllegalArgumentException("lookahead must be between 500 and 1000000 microseconds");
+
+    }
+
+    lookahead = micros;
+
+  }
+
+  /**
+   * Check how far ahead of time messages are sent.
+   *
+   * @return the lookahead in microseconds
+   */
+
+  long getLookahead() {
+
+    return lookahead;
+
+  }
+
+  /**
+   * Starts the scheduling thread, if it is not already running.
+   */
+
+  synchronized void start() {
+
+    if ( thread == null ) {
+
+      final Thread newThread = new Thread(new Runnable() {
+
+        @Override
+        public void run() {
+
+          runLoop();
+
+        }
+
+      }, name);
+
+      newThread.setDaemon(true);
+      newThread.setPriority(Thread.MAX_PRIORITY);
+      thread = newThread;
+      newThread.start();
+
+    }
+
+  }
+
+  /**
+   * Stops the scheduling thread, waiting for it to finish unless called from the thread itself.
+   */
+
+  void stop() {
+
+    final Thread stopping;
+
+    synchronized (this) {
+
+      stopping = thread;
+      thread = null;
+
+    }
+
+    if ( stopping != null && stopping != Thread.currentThread() ) {
+
+      LockSupport.unpark(stopping);
+
+      try {
+
+        stopping.join();
+
+      } catch (InterruptedException e) {
+
+        Thread.currentThread().interrupt();
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Checks whether the scheduling thread is running.
+   *
+   * @return true if messages are being scheduled
+   */
+
+  boolean isRunning() {
+
+    return thread != null;
+
+  }
+
+  /**
+   * Wakes the scheduling thread early, because something has changed.
+   */
+
+  void wake() {
+
+    final Thread current = thread;
+
+    if ( current != null ) {
+
+      LockSupport.unpark(current);
+
+    }
+
+  }
+
+  /**
+   * Notes that a message has been handed over, for the statistics.
+   *
+   * @param due when the message is due
+   */
+
+  synchronized void recordEvent(final long due) {
+
+    final long lead = due - now();
+    eventCount++;
+    minimumLead = Math.min(minimumLead, lead);
+
+    if ( lead < 0 ) {
+
+      lateEventCount++;
+
+    }
+
+  }
+
+  /**
+   * Gets the statistics gathered since the scheduler was created or the statistics were last reset.
+   *
+   * @return the scheduling statistics
+   */
+
+  synchronized SchedulingStatistics getStatistics() {
+
+    return new SchedulingStatistics(lookahead, eventCount, lateEventCount,
+                                    (eventCount == 0) ? 0 : minimumLead, wakeupCount,
+                                    (wakeupCount == 0) ? 0 : totalWakeupLateness / wakeupCount,
+                                    maximumWakeupLateness);
+
+  }
+
+  /**
+   * Clears the statistics.
+   */
+
+  synchronized void resetStatistics() {
+
+    eventCount = 0;
+    lateEventCount = 0;
+    minimumLead = Long.MAX_VALUE;
+    wakeupCount = 0;
+    totalWakeupLateness = 0;
+    maximumWakeupLateness = 0;
+
+  }
+
+  /**
+   * Notes how late the thread woke up, for the statistics.
+   *
+   * @param lateness how long after the requested time the thread woke, in microseconds
+   */
+
+  private synchronized void recordWakeup(final long lateness) {
+
+    wakeupCount++;
+    totalWakeupLateness += lateness;
+    maximumWakeupLateness = Math.max(maximumWakeupLateness, lateness);
+
+  }
+
+  /**
+   * The body of the scheduling thread.
+   */
+
+  private void runLoop() {
+
+    final Thread self = Thread.currentThread();
+
+    while ( thread == self ) {
+
+      long next;
+
+      try {
+
+        next = dispatch(now() + lookahead);
+
+      } catch (RuntimeException e) {
+
+        System.err.println("Problem scheduling MIDI messages in " + name + ": " + e);
+        e.printStackTrace(System.err);
+        next = -1;
+
+      }
+
+      if ( next < 0 ) {
+
+        synchronized (this) {
+
+          if ( thread == self ) {
+
+            thread = null;
+
+          }
+
+        }
+
+        return;
+
+      }
+
+      final long wakeAt = Math.min(next == Long.MAX_VALUE ? Long.MAX_VALUE : next - lookahead, now() + MAXIMUM_SLEEP);
+      final long sleep = wakeAt - now();
+
+      if ( sleep > 0 ) {
+
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(sleep));
+
+        if ( thread == self ) {
+
+          recordWakeup(Math.max(0, now() - wakeAt));
+
+        }
+
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,572 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Follows the MIDI beat clock arriving at a {@link CoreMidiSource}, working out a smoothed tempo and a continuous
+ * position in the song. Clock, Start, Continue, Stop and Song Position Pointer messages are taken straight from the
+ * source's parser, without any message objects being created, and the time of each clock is fed into a phase-locked
+ * loop (a second order delay-locked loop), which filters out the jitter picked up on the way from the clock master.
+ *
+ * <p>The results can be read from any thread with {@link #getState()}, which never blocks the source's input
+ * thread: the follower publishes each update under a sequence number, and readers simply try again if an update
+ * happened while they were reading.</p>
+ *
+ */
+
+public class MidiClockFollower implements Closeable {
+
+  /**
+   * The default bandwidth of the phase-locked loop, in hertz. Lower bandwidths smooth out more jitter but take
+   * longer to follow tempo changes.
+   */
+
+  public static final double DEFAULT_BANDWIDTH = 1.0;
+
+  /**
+   * How many clocks must be received before the loop is considered locked.
+   */
+
+  private static final int CLOCKS_TO_LOCK = MidiClockGenerator.CLOCKS_PER_QUARTER_NOTE;
+
+  /**
+   * The longest gap between clocks that is treated as part of a steady clock, in microseconds. After a longer gap
+   * the loop starts again from scratch.
+   */
+
+  private static final long MAXIMUM_CLOCK_INTERVAL = 500000;
+
+  /**
+   * How many times the loop's current period the gap between clocks may be before the loop starts again.
+   */
+
+  private static final int MAXIMUM_INTERVAL_RATIO = 4;
+
+  /**
+   * A consistent view of the clock being followed, at a particular time.
+   */
+
+  public static final class State {
+
+    private final long time;
+    private final boolean running;
+    private final boolean locked;
+    private final double tempo;
+    private final double beatPosition;
+    private final long jitterSamples;
+    private final double jitter;
+    private final long maximumJitter;
+
+    State(final long time, final boolean running, final boolean locked, final double tempo,
+          final double beatPosition, final long jitterSamples, final double jitter, final long maximumJitter) {
+
+      this.time = time;
+      this.running = running;
+      this.locked = locked;
+      this.tempo = tempo;
+      this.beatPosition = beatPosition;
+      this.jitterSamples = jitterSamples;
+      this.jitter = jitter;
+      this.maximumJitter = maximumJitter;
+
+    }
+
+    /**
+     * Gets the time this state describes.
+     *
+     * @return the time in microseconds, relative to when the source was opened
+     */
+
+    public long getTime() {
+
+      return time;
+
+    }
+
+    /**
+     * Checks whether the clock master is playing: it has sent Start or Continue, and not yet Stop.
+     *
+     * @return true if the song position is advancing
+     */
+
+    public boolean isRunning() {
+
+      return running;
+
+    }
+
+    /**
+     * Checks whether the phase-locked loop has settled on the incoming clock, so that the tempo can be relied on.
+     *
+     * @return true once enough regular clocks have been received
+     */
+
+    public boolean isLocked() {
+
+      return locked;
+
+    }
+
+    /**
+     * Gets the smoothed tempo of the incoming clock.
+     *
+     * @return the tempo in quarter notes per minute, or 0 if no steady clock has been received
+     */
+
+    public double getTempo() {
+
+      return tempo;
+
+    }
+
+    /**
+     * Gets the position in the song, which moves smoothly between clocks while the master is playing.
+     *
+     * @return the position in quarter notes from the start of the song
+     */
+
+    public double getBeatPosition() {
+
+      return beatPosition;
+
+    }
+
+    /**
+     * Gets the position in the song in the units of the Song Position Pointer.
+     *
+     * @return the number of whole MIDI beats (sixteenth notes) from the start of the song
+     */
+
+    public int getSongPosition() {
+
+      return (int) (beatPosition * MidiClockGenerator.CLOCKS_PER_QUARTER_NOTE
+                    / MidiClockGenerator.CLOCKS_PER_MIDI_BEAT);
+
+    }
+
+    /**
+     * Gets the number of clocks whose jitter has been measured.
+     *
+     * @return the number of clocks measured since the follower was created or its statistics were reset
+     */
+
+    public long getJitterSamples() {
+
+      return jitterSamples;
+
+    }
+
+    /**
+     * Gets the jitter of the incoming clock: the root mean square difference between when clocks arrived and when
+     * the loop expected them.
+     *
+     * @return the jitter in microseconds
+     */
+
+    public double getJitter() {
+
+      return jitter;
+
+    }
+
+    /**
+     * Gets the largest difference between when a clock arrived and when the loop expected it.
+     *
+     * @return the maximum jitter in microseconds
+     */
+
+    public long getMaximumJitter() {
+
+      return maximumJitter;
+
+    }
+
+    @Override
+    public String toString() {
+
+      return "MidiClockFollower.State[time=" + time + "us, running=" + running + ", locked=" + locked + ", tempo="
+          + tempo + ", beatPosition=" + beatPosition + ", jitter=" + jitter + "us, maximumJitter=" + maximumJitter
+          + "us, jitterSamples=" + jitterSamples + "]";
+
+    }
+
+  }
+
+  private final CoreMidiSource source;
+  private volatile double bandwidth = DEFAULT_BANDWIDTH;
+  private volatile boolean resetRequested;
+
+  // The loop, only touched by the source's input thread
+  private int clocksSinceReset;    // Clocks since the loop started again, up to CLOCKS_TO_LOCK
+  private long lastArrival;        // The raw time the latest clock arrived
+  private double expected;         // When the loop expects the next clock
+  private long nextClock;          // The position in the song, in clocks, that the next clock plays
+  private boolean rephase;         // Set by Start and Continue, since the master may restart its clock
+  private double squaredJitter;    // The sum of the squares of each clock's jitter
+
+  // Published to readers under the sequence number, which is odd while an update is being made
+  private volatile int sequence;
+  private volatile boolean running;
+  private volatile boolean locked;
+  private volatile double period;          // The filtered time between clocks, or 0 if not known yet
+  private volatile double clockTime;       // The filtered time of the clock at clockPosition
+  private volatile long clockPosition;     // Where the song was at clockTime, in clocks
+  private volatile boolean advancing;      // Whether the position moves on from there with time
+  private volatile long jitterSamples;
+  private volatile double jitter;
+  private volatile long maximumJitter;
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      switch ( status ) {
+
+        case ShortMessage.TIMING_CLOCK:
+          clock(arrivalTime(timestamp));
+          break;
+
+        case ShortMessage.START:
+          begin(0);
+          break;
+
+        case ShortMessage.CONTINUE:
+          begin(nextClock);
+          break;
+
+        case ShortMessage.STOP:
+          end();
+          break;
+
+        case ShortMessage.SONG_POSITION_POINTER:
+          songPosition((data2 << 7) | data1);
+          break;
+
+        default:
+          break;
+
+      }
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      // System Exclusive messages play no part in the clock
+
+    }
+
+  };
+
+  /**
+   * Starts following the clock received by a source.
+   *
+   * @param source the source to follow, which must be open for anything to be received
+   */
+
+  public MidiClockFollower(final CoreMidiSource source) {
+
+    this.source = source;
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Gets the source whose clock is being followed.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Controls how quickly the phase-locked loop follows changes in the incoming clock. Takes effect from the next
+   * clock.
+   *
+   * @param hertz the bandwidth of the loop, from 0.01 to 10 hertz (the default is 1)
+   *
+   * @throws IllegalArgumentException if the bandwidth is out of range
+   */
+
+  public void setBandwidth(final double hertz) {
+
+    if ( !(hertz >= 0.01 && hertz <= 10.0) ) {
+
+      throw new IllegalArgumentException("bandwidth must be between 0.01 and 10 hertz");
+
+    }
+
+    bandwidth = hertz;
+
+  }
+
+  /**
+   * Check how quickly the phase-locked loop follows changes in the incoming clock.
+   *
+   * @return the bandwidth of the loop in hertz
+   */
+
+  public double getBandwidth() {
+
+    return bandwidth;
+
+  }
+
+  /**
+   * Gets the state of the clock now.
+   *
+   * @return the tempo, position and jitter of the clock at the source's current time
+   */
+
+  public State getState() {
+
+    return getState(source.getMicrosecondPosition());
+
+  }
+
+  /**
+   * Gets the state of the clock at a particular time, such as the timestamp of a message from the same source. The
+   * position is extrapolated from the latest clock, but never by more than one clock, so it does not run on if the
+   * master stops sending clocks without sending Stop.
+   *
+   * @param time the time in microseconds, relative to when the source was opened
+   *
+   * @return the tempo, position and jitter of the clock at that time
+   */
+
+  public State getState(final long time) {
+
+    while ( true ) {
+
+      final int before = sequence;
+
+      if ( (before & 1) == 0 ) {
+
+        final boolean isRunning = running;
+        final boolean isLocked = locked;
+        final double currentPeriod = period;
+        final double currentClockTime = clockTime;
+        final long currentClockPosition = clockPosition;
+        final boolean isAdvancing = advancing;
+        final long samples = jitterSamples;
+        final double currentJitter = jitter;
+        final long currentMaximumJitter = maximumJitter;
+
+        if ( sequence == before ) {
+
+          double clocks = currentClockPosition;
+
+          if ( isAdvancing && currentPeriod > 0 ) {
+
+            clocks += Math.max(0.0, Math.min(1.0, (time - currentClockTime) / currentPeriod));
+
+          }
+
+          final double tempo = (currentPeriod > 0)
+              ? 60000000.0 / (currentPeriod * MidiClockGenerator.CLOCKS_PER_QUARTER_NOTE) : 0.0;
+          return new State(time, isRunning, isLocked, tempo, clocks / MidiClockGenerator.CLOCKS_PER_QUARTER_NOTE,
+                           samples, currentJitter, currentMaximumJitter);
+
+        }
+
+      }
+
+      Thread.yield();
+
+    }
+
+  }
+
+  /**
+   * Clears the jitter statistics, as soon as the next clock arrives.
+   */
+
+  public void resetStatistics() {
+
+    resetRequested = true;
+
+  }
+
+  /**
+   * Stops following the clock.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(listener);
+
+  }
+
+  /**
+   * Works out when a message arrived, for messages which CoreMIDI did not timestamp.
+   *
+   * @param timestamp the timestamp of the message, or -1 if it has none
+   *
+   * @return the time in microseconds relative to when the source was opened
+   */
+
+  private long arrivalTime(final long timestamp) {
+
+    return (timestamp >= 0) ? timestamp : source.getMicrosecondPosition();
+
+  }
+
+  /**
+   * Runs the loop for a clock. The second clock after the loop starts gives a first estimate of the period; from
+   * then on the difference between when each clock arrives and when it was expected nudges both the phase and the
+   * period, with coefficients set by the bandwidth. The first clock after Start or Continue only resets the phase,
+   * since masters often restart their clock at that point.
+   *
+   * @param arrival when the clock arrived
+   */
+
+  private void clock(final long arrival) {
+
+    final double currentPeriod = period;
+    final long interval = arrival - lastArrival;
+    final boolean restart = clocksSinceReset == 0 || interval <= 0 || interval > MAXIMUM_CLOCK_INTERVAL
+        || (currentPeriod > 0 && interval > MAXIMUM_INTERVAL_RATIO * currentPeriod);
+    sequence++;
+
+    if ( resetRequested ) {
+
+      resetRequested = false;
+      squaredJitter = 0;
+      jitterSamples = 0;
+      jitter = 0;
+      maximumJitter = 0;
+
+    }
+
+    if ( restart ) {
+
+      clocksSinceReset = 1;
+      clockTime = arrival;
+      expected = arrival + currentPeriod;
+      locked = false;
+
+    } else if ( rephase && clocksSinceReset > 1 ) {
+
+      clockTime = arrival;
+      expected = arrival + currentPeriod;
+
+    } else if ( clocksSinceReset == 1 ) {
+
+      clocksSinceReset = 2;
+      period = interval;
+      clockTime = arrival;
+      expected = arrival + interval;
+
+    } else {
+
+      final double error = arrival - expected;
+      final double omega = 2 * Math.PI * bandwidth * currentPeriod / 1000000.0;
+      clockTime = expected;
+      expected += Math.sqrt(2) * omega * error + currentPeriod;
+      period = currentPeriod + omega * omega * error;
+
+      final long samples = jitterSamples + 1;
+      squaredJitter += error * error;
+      jitterSamples = samples;
+      jitter = Math.sqrt(squaredJitter / samples);
+      maximumJitter = Math.max(maximumJitter, Math.round(Math.abs(error)));
+
+      if ( clocksSinceReset < CLOCKS_TO_LOCK ) {
+
+        clocksSinceReset++;
+
+      } else {
+
+        locked = true;
+
+      }
+
+    }
+
+    if ( running ) {
+
+      clockPosition = nextClock++;
+      advancing = true;
+
+    }
+
+    sequence++;
+    lastArrival = arrival;
+    rephase = false;
+
+  }
+
+  /**
+   * Handles Start or Continue: the next clock plays a position in the song.
+   *
+   * @param fromClock the position in clocks that the next clock plays
+   */
+
+  private void begin(final long fromClock) {
+
+    sequence++;
+    nextClock = fromClock;
+    clockPosition = fromClock;
+    advancing = false;
+    rephase = true;
+    running = true;
+    sequence++;
+
+  }
+
+  /**
+   * Handles Stop: the position stays after the last clock played.
+   */
+
+  private void end() {
+
+    sequence++;
+    running = false;
+    advancing = false;
+    clockPosition = nextClock;
+    sequence++;
+
+  }
+
+  /**
+   * Handles a Song Position Pointer, which moves the position while stopped.
+   *
+   * @param midiBeats the new position in MIDI beats (sixteenth notes)
+   */
+
+  private void songPosition(final int midiBeats) {
+
+    if ( !running ) {
+
+      sequence++;
+      nextClock = (long) midiBeats * MidiClockGenerator.CLOCKS_PER_MIDI_BEAT;
+      clockPosition = nextClock;
+      sequence++;
+
+    }
+
+  }
+
+}
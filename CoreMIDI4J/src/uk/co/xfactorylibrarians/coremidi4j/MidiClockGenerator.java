@@ -0,0 +1,607 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Sends MIDI beat clock (24 clocks per quarter note) to any number of destinations, together with Start, Stop,
+ * Continue and Song Position Pointer messages. Rather than sending each clock from a sleeping thread, which makes
+ * the tempo wobble by however late the thread wakes, the time of every clock is calculated from the tempo and the
+ * time the clock started, and clocks are handed to CoreMIDI a few milliseconds early with that exact timestamp.
+ *
+ * <p>Tempo changes, whether immediate or ramped over a number of clocks, apply to clocks which have not yet been
+ * handed over, so they are heard within the lookahead (5 milliseconds by default).</p>
+ *
+ */
+
+public class MidiClockGenerator implements Closeable {
+
+  /**
+   * The number of clock messages in a quarter note.
+   */
+
+  public static final int CLOCKS_PER_QUARTER_NOTE = 24;
+
+  /**
+   * The number of clock messages in a MIDI beat (a sixteenth note), the unit of the Song Position Pointer.
+   */
+
+  public static final int CLOCKS_PER_MIDI_BEAT = 6;
+
+  /**
+   * The tempo clocks are sent at until another is chosen, in beats per minute.
+   */
+
+  public static final double DEFAULT_TEMPO = 120.0;
+
+  private static final String NAME = "CoreMIDI4J Clock Generator";
+  private static final double MINIMUM_TEMPO = 1.0;
+  private static final double MAXIMUM_TEMPO = 1000.0;
+  private static final int MAXIMUM_SONG_POSITION = 0x3fff;
+
+  private static final MidiMessage CLOCK = realTimeMessage(ShortMessage.TIMING_CLOCK);
+  private static final MidiMessage START = realTimeMessage(ShortMessage.START);
+  private static final MidiMessage CONTINUE = realTimeMessage(ShortMessage.CONTINUE);
+  private static final MidiMessage STOP = realTimeMessage(ShortMessage.STOP);
+
+  private final LookaheadScheduler scheduler = new LookaheadScheduler(NAME) {
+
+    @Override
+    protected long dispatch(final long horizon) {
+
+      return dispatchClocks(horizon);
+
+    }
+
+  };
+
+  private final ScheduledOutputs outputs = new ScheduledOutputs();
+
+  // Clocks are numbered from 0, the first sent after Start or Continue. Times are on the scheduler's clock
+  private boolean running;
+  private long position;        // Clocks since the start of the song
+  private double tempo = DEFAULT_TEMPO; // The tempo at the anchor
+  private long anchorClock;     // A clock whose time is known
+  private double anchorTime;    // The time of that clock
+  private double rampTarget;    // The tempo a ramp from the anchor arrives at,
+  private long rampLength;      // and the number of clocks it takes, or 0 if the tempo is steady
+  private long lastClock;       // The latest clock handed over
+  private double lastTime;      // The time of that clock
+  private long lastDue;         // The latest time for which a message has been handed over
+
+  /**
+   * Creates a clock generator with no destinations, at the default tempo.
+   */
+
+  public MidiClockGenerator() {
+
+    // Nothing to set up until destinations are added
+
+  }
+
+  /**
+   * Builds one of the real-time messages the generator sends. These are never modified, so can be shared.
+   *
+   * @param status the status byte of the message
+   *
+   * @return the message
+   */
+
+  private static MidiMessage realTimeMessage(final int status) {
+
+    try {
+
+      return new ShortMessage(status, 0, 0);
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build MIDI real-time message", e);
+
+    }
+
+  }
+
+  /**
+   * Adds a destination to send clock to, opening it if necessary.
+   *
+   * @param destination the destination
+   *
+   * @throws MidiUnavailableException if the destination cannot be opened
+   */
+
+  public synchronized void addDestination(final CoreMidiDestination destination) throws MidiUnavailableException {
+
+    outputs.addDestination(destination);
+
+  }
+
+  /**
+   * Stops sending clock to a destination, closing the receivers which were opened on it by
+   * {@link #addDestination(CoreMidiDestination)}. The destination itself is left open.
+   *
+   * @param destination the destination
+   */
+
+  public void removeDestination(final CoreMidiDestination destination) {
+
+    outputs.removeDestination(destination);
+
+  }
+
+  /**
+   * Adds a receiver to send clock to. Receivers of devices which report their position, such as
+   * {@link CoreMidiDestination}, are sent timestamped messages; any other receiver is sent each message as soon as
+   * it is scheduled, without a timestamp.
+   *
+   * @param receiver the receiver
+   */
+
+  public synchronized void addReceiver(final Receiver receiver) {
+
+    outputs.addReceiver(receiver);
+
+  }
+
+  /**
+   * Stops sending clock to a receiver. The receiver is not closed.
+   *
+   * @param receiver the receiver
+   */
+
+  public void removeReceiver(final Receiver receiver) {
+
+    outputs.removeReceiver(receiver);
+
+  }
+
+  /**
+   * Sends Start and begins sending clock from the beginning of the song. Does nothing if the clock is already
+   * running.
+   */
+
+  public void start() {
+
+    begin(false);
+
+  }
+
+  /**
+   * Sends Continue and resumes sending clock from the current song position. Does nothing if the clock is already
+   * running.
+   */
+
+  public void continuePlayback() {
+
+    begin(true);
+
+  }
+
+  /**
+   * Stops sending clock, and sends Stop once every clock already handed to CoreMIDI has been delivered. The song
+   * position is kept, so that {@link #continuePlayback()} carries on from where the devices stopped. A tempo ramp
+   * under way is cut short at the tempo it had reached.
+   */
+
+  public void stop() {
+
+    synchronized (this) {
+
+      if ( running ) {
+
+        tempo = currentTempo();
+        rampLength = 0;
+        running = false;
+        lastDue = Math.max(LookaheadScheduler.now(), lastDue);
+        outputs.send(STOP, lastDue);
+
+      }
+
+    }
+
+    scheduler.stop();
+
+  }
+
+  /**
+   * Checks whether clock is being sent.
+   *
+   * @return true between {@link #start()} or {@link #continuePlayback()} and {@link #stop()}
+   */
+
+  public synchronized boolean isRunning() {
+
+    return running;
+
+  }
+
+  /**
+   * Moves to a new song position, sending a Song Position Pointer so that the devices follow. Devices only act on
+   * this while stopped, so the clock must not be running.
+   *
+   * @param midiBeats the new position, in MIDI beats (sixteenth notes) from the start of the song, from 0 to 16383
+   *
+   * @throws IllegalArgumentException if the position is out of range
+   * @throws IllegalStateException if the clock is running
+   */
+
+  public synchronized void setSongPosition(final int midiBeats) {
+
+    if ( midiBeats < 0 || midiBeats > MAXIMUM_SONG_POSITION ) {
+
+      throw new IllegalArgumentException("song position must be between 0 and " + MAXIMUM_SONG_POSITION);
+
+    }
+
+    if ( running ) {
+
+      throw new IllegalStateException("The song position cannot be changed while the clock is running");
+
+    }
+
+    try {
+
+      final ShortMessage message = new ShortMessage(ShortMessage.SONG_POSITION_POINTER, midiBeats & 0x7f,
+                                                    midiBeats >> 7);
+      lastDue = Math.max(LookaheadScheduler.now(), lastDue);
+      outputs.send(message, lastDue);
+      position = (long) midiBeats * CLOCKS_PER_MIDI_BEAT;
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build Song Position Pointer message", e);
+
+    }
+
+  }
+
+  /**
+   * Gets the song position: how far the devices have been told to play, counting clocks already handed to CoreMIDI.
+   *
+   * @return the position in MIDI beats (sixteenth notes) from the start of the song
+   */
+
+  public synchronized int getSongPosition() {
+
+    return (int) (position / CLOCKS_PER_MIDI_BEAT);
+
+  }
+
+  /**
+   * Changes the tempo, starting with the next clock to be handed over.
+   *
+   * @param bpm the new tempo in quarter notes per minute, from 1 to 1000
+   *
+   * @throws IllegalArgumentException if the tempo is out of range
+   */
+
+  public synchronized void setTempo(final double bpm) {
+
+    checkTempo(bpm);
+    reanchor();
+    tempo = bpm;
+    rampLength = 0;
+    scheduler.wake();
+
+  }
+
+  /**
+   * Changes the tempo gradually: the interval before each of the next clocks is calculated from a tempo moving in a
+   * straight line from the current one to the new one, which is reached at the last of them. While stopped, the ramp
+   * begins at the next {@link #start()} or {@link #continuePlayback()}.
+   *
+   * @param bpm    the tempo to arrive at, in quarter notes per minute, from 1 to 1000
+   * @param clocks the number of clocks over which to change the tempo; 0 changes it immediately
+   *
+   * @throws IllegalArgumentException if the tempo is out of range or the number of clocks is negative
+   */
+
+  public synchronized void rampTempo(final double bpm, final int clocks) {
+
+    checkTempo(bpm);
+
+    if ( clocks < 0 ) {
+
+      throw new IllegalArgumentException("clocks must not be negative");
+
+    }
+
+    reanchor();
+    rampTarget = bpm;
+    rampLength = clocks;
+
+    if ( clocks == 0 ) {
+
+      tempo = bpm;
+
+    }
+
+    scheduler.wake();
+
+  }
+
+  /**
+   * Gets the tempo at which the next clock will be sent, which changes clock by clock during a ramp.
+   *
+   * @return the tempo in quarter notes per minute
+   */
+
+  public synchronized double getTempo() {
+
+    return currentTempo();
+
+  }
+
+  /**
+   * Controls how far ahead of time clocks are handed to CoreMIDI. A longer lookahead tolerates longer delays in
+   * waking the clock thread, but tempo changes take longer to be heard.
+   *
+   * @param micros the lookahead in microseconds, from 500 to 1,000,000 (the default is 5,000)
+   */
+
+  public void setLookahead(final long micros) {
+
+    scheduler.setLookahead(micros);
+
+  }
+
+  /**
+   * Check how far ahead of time clocks are handed to CoreMIDI.
+   *
+   * @return the lookahead in microseconds
+   */
+
+  public long getLookahead() {
+
+    return scheduler.getLookahead();
+
+  }
+
+  /**
+   * Gets measurements of how well the clock thread has kept up.
+   *
+   * @return the scheduling statistics since the generator was created or they were last reset
+   */
+
+  public SchedulingStatistics getSchedulingStatistics() {
+
+    return scheduler.getStatistics();
+
+  }
+
+  /**
+   * Clears the scheduling statistics.
+   */
+
+  public void resetSchedulingStatistics() {
+
+    scheduler.resetStatistics();
+
+  }
+
+  /**
+   * Stops the clock if it is running, and forgets all destinations and receivers, closing the receivers opened by
+   * {@link #addDestination(CoreMidiDestination)}.
+   */
+
+  @Override
+  public void close() {
+
+    stop();
+    outputs.close();
+
+  }
+
+  /**
+   * Sends Start or Continue and sets the clock running, with the first clock at the same time as the message.
+   *
+   * @param continuing true to send Continue and keep the song position, false to send Start from the beginning
+   */
+
+  private void begin(final boolean continuing) {
+
+    synchronized (this) {
+
+      if ( running ) {
+
+        return;
+
+      }
+
+      outputs.synchronize();
+
+      final long startTime = Math.max(LookaheadScheduler.now() + scheduler.getLookahead(), lastDue);
+      outputs.send(continuing ? CONTINUE : START, startTime);
+      lastDue = startTime;
+
+      if ( !continuing ) {
+
+        position = 0;
+
+      }
+
+      anchorClock = 0;
+      anchorTime = startTime;
+      lastClock = -1;
+      running = true;
+
+    }
+
+    scheduler.start();
+
+  }
+
+  /**
+   * Hands over every clock due before a horizon. Called on the clock thread.
+   *
+   * @param horizon the time up to which clocks should be handed over
+   *
+   * @return the time of the next clock, or -1 if the clock has stopped
+   */
+
+  private synchronized long dispatchClocks(final long horizon) {
+
+    while ( running ) {
+
+      final double time = nextClockTime();
+      final long due = Math.round(time);
+
+      if ( due > horizon ) {
+
+        return due;
+
+      }
+
+      outputs.send(CLOCK, due);
+      scheduler.recordEvent(due);
+      lastClock++;
+      lastTime = time;
+      lastDue = due;
+      position++;
+
+    }
+
+    return -1;
+
+  }
+
+  /**
+   * Works out when the clock after the last one handed over is due. Steady tempos are calculated directly from the
+   * anchor, so no rounding error builds up; during a ramp each interval is added to the time of the clock before.
+   *
+   * @return the time of the next clock
+   */
+
+  private double nextClockTime() {
+
+    final long next = lastClock + 1;
+
+    if ( next == anchorClock ) {
+
+      return anchorTime;
+
+    }
+
+    if ( rampLength > 0 ) {
+
+      final long step = next - anchorClock;
+
+      if ( step <= rampLength ) {
+
+        return lastTime + clockInterval(rampTempo(step));
+
+      }
+
+      // The ramp has finished, so the tempo is steady from its final clock on
+      tempo = rampTarget;
+      rampLength = 0;
+      anchorClock = lastClock;
+      anchorTime = lastTime;
+
+    }
+
+    return anchorTime + (next - anchorClock) * clockInterval(tempo);
+
+  }
+
+  /**
+   * Makes the last clock handed over the anchor, freezing the tempo it was sent at, so that a new tempo applies
+   * from the next clock. While stopped, or before the first clock, the anchor is left where playback will start.
+   */
+
+  private void reanchor() {
+
+    tempo = currentTempo();
+
+    if ( running && lastClock >= anchorClock ) {
+
+      anchorClock = lastClock;
+      anchorTime = lastTime;
+
+    }
+
+  }
+
+  /**
+   * Works out the tempo of the interval before the next clock.
+   *
+   * @return the tempo in quarter notes per minute
+   */
+
+  private double currentTempo() {
+
+    if ( rampLength > 0 && running && lastClock >= anchorClock ) {
+
+      final long step = lastClock + 1 - anchorClock;
+      return (step <= rampLength) ? rampTempo(step) : rampTarget;
+
+    }
+
+    return tempo;
+
+  }
+
+  /**
+   * Works out the tempo of one interval of a ramp.
+   *
+   * @param step which interval after the anchor, from 1 to the length of the ramp
+   *
+   * @return the tempo in quarter notes per minute
+   */
+
+  private double rampTempo(final long step) {
+
+    return tempo + (rampTarget - tempo) * step / rampLength;
+
+  }
+
+  /**
+   * Works out the time between clocks at a tempo.
+   *
+   * @param bpm the tempo in quarter notes per minute
+   *
+   * @return the interval in microseconds
+   */
+
+  private static double clockInterval(final double bpm) {
+
+    return 60000000.0 / (bpm * CLOCKS_PER_QUARTER_NOTE);
+
+  }
+
+  /**
+   * Checks that a tempo is in the supported range.
+   *
+   * @param bpm the tempo in quarter notes per minute
+   *
+   * @throws IllegalArgumentException if it is not
+   */
+
+  private static void checkTempo(final double bpm) {
+
+    if ( !(bpm >= MINIMUM_TEMPO && bpm <= MAXIMUM_TEMPO) ) {
+
+      throw new IllegalArgumentException("tempo must be between " + MINIMUM_TEMPO + " and " + MAXIMUM_TEMPO
+                                         + " beats per minute");
+
+    }
+
+  }
+
+}
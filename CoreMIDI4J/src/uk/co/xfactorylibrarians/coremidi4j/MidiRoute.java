@@ -0,0 +1,540 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>Describes one connection in a {@link MidiRouter}: which messages from a source should reach a receiver, and how
+ * they should be transformed on the way. By default every message passes through unchanged. Filters and transforms
+ * are added with the setters, and apply in this order: the channel and command filters, then the note range, then
+ * the note map (built from the transposition plus any explicit note mappings), then the velocity table for note on
+ * messages, the controller map for control changes, and finally the channel map.</p>
+ *
+ * <p>A route is only a description. Its settings are compiled into flat lookup tables when it is given to
+ * {@link MidiRouter#setRoutes(java.util.Collection)}, so changing a route afterwards has no effect until the routes
+ * are set again.</p>
+ *
+ */
+
+public class MidiRoute {
+
+  private static final int SYSTEM_COMMAND_BIT = 1 << 7;   // Bits 0-6 are the channel message commands 0x80-0xE0
+
+  private final CoreMidiSource source;
+  private final Receiver destination;
+  private int channelMask = 0xffff;
+  private int commandMask = 0xff;
+  private boolean passSysex = true;
+  private int lowestNote = 0;
+  private int highestNote = 127;
+  private int transpose = 0;
+  private final int[] noteOverrides = new int[128];       // Explicit mappings, or NO_OVERRIDE
+  private final int[] channelMap = new int[16];
+  private final int[] controllerMap = new int[128];
+  private final int[] velocityTable = new int[128];
+
+  private static final int NO_OVERRIDE = -2;
+
+  /**
+   * Creates a route which passes every message from a source to a receiver unchanged.
+   *
+   * @param source      the source whose messages should be routed
+   * @param destination where the messages should be sent; each message sent to it is a new object, which it may
+   *                    keep, except for the receivers of {@link CoreMidiDestination}s, which copy messages out
+   *                    straight away and so are given a reused message object rather than a new one
+   */
+
+  public MidiRoute(final CoreMidiSource source, final Receiver destination) {
+
+    if ( source == null || destination == null ) {
+
+      throw new IllegalArgumentException("source and destination must not be null");
+
+    }
+
+    this.source = source;
+    this.destination = destination;
+    Arrays.fill(noteOverrides, NO_OVERRIDE);
+
+    for ( int i = 0; i < 128; i++ ) {
+
+      controllerMap[i] = i;
+      velocityTable[i] = i;
+
+    }
+
+    for ( int i = 0; i < 16; i++ ) {
+
+      channelMap[i] = i;
+
+    }
+
+  }
+
+  /**
+   * Gets the source whose messages are routed.
+   *
+   * @return the source of the route
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Gets the receiver to which messages are routed.
+   *
+   * @return the destination of the route
+   */
+
+  public Receiver getDestination() {
+
+    return destination;
+
+  }
+
+  /**
+   * Controls which MIDI channels are passed for channel messages. System messages are not affected.
+   *
+   * @param mask a bit mask with bit <em>n</em> set if channel <em>n</em> (counting from 0) should pass; the default
+   *             is 0xFFFF, which passes every channel
+   */
+
+  public void setChannelFilter(final int mask) {
+
+    channelMask = mask & 0xffff;
+
+  }
+
+  /**
+   * Controls whether a kind of channel message is passed.
+   *
+   * @param command the kind of message: one of the channel message commands, from {@link ShortMessage#NOTE_OFF}
+   *                to {@link ShortMessage#PITCH_BEND}
+   * @param enabled whether messages of that kind should pass; by default every kind passes
+   *
+   * @throws IllegalArgumentException if {@code command} is not a channel message command
+   */
+
+  public void setCommandEnabled(final int command, final boolean enabled) {
+
+    if ( command < ShortMessage.NOTE_OFF || command > ShortMessage.PITCH_BEND || (command & 0x0f) != 0 ) {
+
+      throw new IllegalArgumentException("Not a channel message command: " + command);
+
+    }
+
+    final int bit = 1 << ((command >> 4) - 8);
+    commandMask = enabled ? (commandMask | bit) : (commandMask & ~bit);
+
+  }
+
+  /**
+   * Controls whether system common and system real-time messages, such as MIDI clock, are passed.
+   *
+   * @param enabled whether those messages should pass; by default they do
+   */
+
+  public void setSystemMessagesEnabled(final boolean enabled) {
+
+    commandMask = enabled ? (commandMask | SYSTEM_COMMAND_BIT) : (commandMask & ~SYSTEM_COMMAND_BIT);
+
+  }
+
+  /**
+   * Controls whether System Exclusive messages are passed.
+   *
+   * @param enabled whether those messages should pass; by default they do
+   */
+
+  public void setSysexEnabled(final boolean enabled) {
+
+    passSysex = enabled;
+
+  }
+
+  /**
+   * Restricts note messages (note on, note off and polyphonic pressure) to a range of notes; others are dropped.
+   *
+   * @param lowest  the lowest note to pass
+   * @param highest the highest note to pass
+   *
+   * @throws IllegalArgumentException if the notes are not valid or are in the wrong order
+   */
+
+  public void setNoteRange(final int lowest, final int highest) {
+
+    checkDataByte(lowest, "lowest");
+    checkDataByte(highest, "highest");
+
+    if ( lowest > highest ) {
+
+      throw new IllegalArgumentException("lowest must not be above highest");
+
+    }
+
+    lowestNote = lowest;
+    highestNote = highest;
+
+  }
+
+  /**
+   * Shifts every note by a number of semitones. Notes which would be shifted outside the MIDI range are dropped.
+   * Notes given explicit mappings with {@link #mapNote(int, int)} are not transposed.
+   *
+   * @param semitones how far to shift notes, which may be negative
+   */
+
+  public void setTranspose(final int semitones) {
+
+    transpose = semitones;
+
+  }
+
+  /**
+   * Maps a particular incoming note to a different outgoing note, or drops it.
+   *
+   * @param from the incoming note
+   * @param to   the note it should become, or -1 to drop it
+   *
+   * @throws IllegalArgumentException if the notes are not valid
+   */
+
+  public void mapNote(final int from, final int to) {
+
+    checkDataByte(from, "from");
+
+    if ( to != -1 ) {
+
+      checkDataByte(to, "to");
+
+    }
+
+    noteOverrides[from] = to;
+
+  }
+
+  /**
+   * Replaces the velocities of note on messages using a lookup table. A note on with velocity zero is a note off, so
+   * it is never changed, and no other velocity is ever mapped to zero.
+   *
+   * @param table 128 entries, giving the outgoing velocity for each incoming velocity
+   *
+   * @throws IllegalArgumentException if the table is the wrong size or contains invalid velocities
+   */
+
+  public void setVelocityTable(final int[] table) {
+
+    if ( table.length != 128 ) {
+
+      throw new IllegalArgumentException("The velocity table must have 128 entries");
+
+    }
+
+    for ( int velocity : table ) {
+
+      checkDataByte(velocity, "velocity");
+
+    }
+
+    System.arraycopy(table, 0, velocityTable, 0, 128);
+
+  }
+
+  /**
+   * Sets a velocity curve for note on messages, as a convenience for {@link #setVelocityTable(int[])}.
+   *
+   * @param exponent the power to which velocities, scaled to the range 0 to 1, are raised; values above 1 make the
+   *                 response softer, and values below 1 make it harder
+   *
+   * @throws IllegalArgumentException if {@code exponent} is not positive
+   */
+
+  public void setVelocityCurve(final double exponent) {
+
+    if ( !(exponent > 0) ) {
+
+      throw new IllegalArgumentException("exponent must be positive");
+
+    }
+
+    for ( int i = 0; i < 128; i++ ) {
+
+      velocityTable[i] = (int) Math.round(127 * Math.pow(i / 127.0, exponent));
+
+    }
+
+  }
+
+  /**
+   * Maps a controller number to a different one, or drops it.
+   *
+   * @param from the incoming controller number
+   * @param to   the controller number it should become, or -1 to drop it
+   *
+   * @throws IllegalArgumentException if the controller numbers are not valid
+   */
+
+  public void mapController(final int from, final int to) {
+
+    checkDataByte(from, "from");
+
+    if ( to != -1 ) {
+
+      checkDataByte(to, "to");
+
+    }
+
+    controllerMap[from] = to;
+
+  }
+
+  /**
+   * Maps a MIDI channel to a different one.
+   *
+   * @param from the incoming channel, counting from 0
+   * @param to   the channel it should become, counting from 0
+   *
+   * @throws IllegalArgumentException if the channels are not valid
+   */
+
+  public void mapChannel(final int from, final int to) {
+
+    if ( from < 0 || from > 15 || to < 0 || to > 15 ) {
+
+      throw new IllegalArgumentException("Channels must be between 0 and 15");
+
+    }
+
+    channelMap[from] = to;
+
+  }
+
+  /**
+   * Checks that a value fits in a MIDI data byte.
+   *
+   * @param value the value to check
+   * @param name  what the value represents, for the error message
+   *
+   * @throws IllegalArgumentException if the value is not between 0 and 127
+   */
+
+  private static void checkDataByte(final int value, final String name) {
+
+    if ( value < 0 || value > 127 ) {
+
+      throw new IllegalArgumentException(name + " must be between 0 and 127");
+
+    }
+
+  }
+
+  /**
+   * Flattens the route's current settings into lookup tables.
+   *
+   * @return the compiled form of the route
+   */
+
+  Compiled compile() {
+
+    final byte[] notes = new byte[128];
+    final byte[] velocities = new byte[128];
+    final byte[] controllers = new byte[128];
+    final byte[] channels = new byte[16];
+
+    for ( int i = 0; i < 128; i++ ) {
+
+      int note = (noteOverrides[i] != NO_OVERRIDE) ? noteOverrides[i] : i + transpose;
+
+      if ( i < lowestNote || i > highestNote || note < 0 || note > 127 ) {
+
+        note = -1;
+
+      }
+
+      notes[i] = (byte) note;
+      velocities[i] = (byte) ((i == 0) ? 0 : Math.max(1, velocityTable[i]));
+      controllers[i] = (byte) controllerMap[i];
+
+    }
+
+    for ( int i = 0; i < 16; i++ ) {
+
+      channels[i] = (byte) channelMap[i];
+
+    }
+
+    return new Compiled(destination, channelMask, commandMask, passSysex, notes, velocities, controllers, channels);
+
+  }
+
+  @Override
+  public String toString() {
+
+    return "MidiRoute[source=" + source + ", destination=" + destination + "]";
+
+  }
+
+  /**
+   * The compiled form of a route, which can be evaluated with nothing more than table lookups.
+   */
+
+  static final class Compiled {
+
+    private final Receiver destination;
+    private final boolean reuseMessages;  // The destination copies messages out before send() returns
+    private final int channelMask;
+    private final int commandMask;
+    private final boolean passSysex;
+    private final byte[] notes;          // -1 drops the note
+    private final byte[] velocities;
+    private final byte[] controllers;    // -1 drops the controller
+    private final byte[] channels;
+
+    Compiled(final Receiver destination, final int channelMask, final int commandMask, final boolean passSysex,
+             final byte[] notes, final byte[] velocities, final byte[] controllers, final byte[] channels) {
+
+      this.destination = destination;
+      reuseMessages = destination instanceof CoreMidiReceiver;
+      this.channelMask = channelMask;
+      this.commandMask = commandMask;
+      this.passSysex = passSysex;
+      this.notes = notes;
+      this.velocities = velocities;
+      this.controllers = controllers;
+      this.channels = channels;
+
+    }
+
+    /**
+     * Sends a short message through the route, if it passes the filters. Messages for the receivers of
+     * {@link CoreMidiDestination}s are sent in a reused message object, so nothing is allocated; other receivers may
+     * keep the messages they are sent, so they are each given a new one.
+     *
+     * @param scratch a message object to fill in and send to destinations which copy it straight away, which must
+     *                not be in use by another thread
+     * @param status  the status byte of the message
+     * @param data1   the first data byte
+     * @param data2   the second data byte
+     */
+
+    void route(final ShortMessage scratch, int status, int data1, int data2) {
+
+      if ( status < 0xf0 ) {
+
+        final int command = status & 0xf0;
+        final int channel = status & 0x0f;
+
+        if ( (channelMask & (1 << channel)) == 0 || (commandMask & (1 << ((command >> 4) - 8))) == 0 ) {
+
+          return;
+
+        }
+
+        switch ( command ) {
+
+          case ShortMessage.NOTE_ON:
+          case ShortMessage.NOTE_OFF:
+          case ShortMessage.POLY_PRESSURE:
+            if ( command == ShortMessage.NOTE_ON ) {
+
+              data2 = velocities[data2];
+
+            }
+
+            data1 = notes[data1];
+
+            if ( data1 < 0 ) {
+
+              return;
+
+            }
+
+            break;
+
+          case ShortMessage.CONTROL_CHANGE:
+            data1 = controllers[data1];
+
+            if ( data1 < 0 ) {
+
+              return;
+
+            }
+
+            break;
+
+          default:
+            break;
+
+        }
+
+        status = command | channels[channel];
+
+      } else if ( (commandMask & SYSTEM_COMMAND_BIT) == 0 ) {
+
+        return;
+
+      }
+
+      final ShortMessage message;
+
+      try {
+
+        if ( reuseMessages ) {
+
+          scratch.setMessage(status, data1, data2);
+          message = scratch;
+
+        } else {
+
+          message = new ShortMessage(status, data1, data2);
+
+        }
+
+      } catch (InvalidMidiDataException e) {
+
+        return;  // Cannot happen, since the parser and our tables only produce valid values
+
+      }
+
+      destination.send(message, -1);
+
+    }
+
+    /**
+     * Sends a System Exclusive message through the route, if it passes the filters.
+     *
+     * @param message the message to send
+     */
+
+    void route(final SysexMessage message) {
+
+      if ( passSysex ) {
+
+        destination.send(message, -1);
+
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>An in-process patchbay, which routes the messages received by {@link CoreMidiSource}s to receivers (typically
+ * those of {@link CoreMidiDestination}s), filtering and transforming them according to a set of {@link MidiRoute}s.
+ * </p>
+ *
+ * <p>The routes are compiled into lookup tables, and messages are routed directly on the CoreMIDI input thread as
+ * soon as they are parsed, without going through transmitters. Short messages are routed to the receivers of
+ * {@link CoreMidiDestination}s without allocating anything. Routed messages are sent to be delivered immediately.
+ * The whole set of routes can be replaced at any time with {@link #setRoutes(Collection)}: each message is routed
+ * either entirely by the old routes or entirely by the new ones, and none are lost during the switch.</p>
+ *
+ * <p>A note which is sounding when the routes are replaced is ended by the routes that started it, so its note off
+ * reaches the same receiver, channel and note as its note on did, even if the new routes would send it elsewhere or
+ * no longer route its source at all. If the note is started again under the new routes, it is first ended under the
+ * old ones; All Notes Off and All Sound Off are sent through the old routes as well as the new ones.</p>
+ *
+ * <p>The router does not open or close devices; sources must be open for their messages to arrive, and
+ * destinations must be open for their receivers to accept messages.</p>
+ *
+ */
+
+public class MidiRouter {
+
+  private static final MidiRoute.Compiled[] NO_ROUTES = new MidiRoute.Compiled[0];
+  private static final int ALL_SOUND_OFF = 120;
+  private static final int ALL_NOTES_OFF = 123;
+
+  /**
+   * The compiled routes for a single source, along with the message object used to send its routed messages, and
+   * the routes through which each of its sounding notes was started. Each source's messages arrive on a single
+   * thread, so the message object is never used by two threads at once. The message object and the sounding notes
+   * are handed on from one set of routes to the next when the routes are replaced.
+   */
+
+  private static final class SourceRoutes {
+
+    final MidiRoute.Compiled[] routes;
+    final ShortMessage scratch;
+    final AtomicReferenceArray<MidiRoute.Compiled[]> sounding;  // Indexed by channel and note
+
+    /**
+     * Sets up the routes for a source.
+     *
+     * @param routes   the compiled routes
+     * @param previous the routes the source had before, if any, whose sounding notes are carried over
+     */
+
+    SourceRoutes(final MidiRoute.Compiled[] routes, final SourceRoutes previous) {
+
+      this.routes = routes;
+      scratch = (previous == null) ? new ShortMessage() : previous.scratch;
+      sounding = (previous == null) ? new AtomicReferenceArray<MidiRoute.Compiled[]>(16 * 128) : previous.sounding;
+
+    }
+
+    /**
+     * Routes a short message, sending note offs through the routes that started their notes.
+     *
+     * @param status the status byte of the message
+     * @param data1  the first data byte
+     * @param data2  the second data byte
+     */
+
+    void route(final int status, final int data1, final int data2) {
+
+      final int command = status & 0xf0;
+
+      if ( command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF ) {
+
+        final int index = ((status & 0x0f) << 7) | data1;
+        final MidiRoute.Compiled[] startedBy = sounding.get(index);
+
+        if ( command == ShortMessage.NOTE_ON && data2 != 0 ) {
+
+          if ( startedBy != null && startedBy != routes ) {
+
+            send(startedBy, ShortMessage.NOTE_OFF | (status & 0x0f), data1, 0);
+
+          }
+
+          sounding.set(index, (routes.length == 0) ? null : routes);
+          send(routes, status, data1, data2);
+
+        } else {
+
+          if ( startedBy != null ) {
+
+            sounding.set(index, null);
+
+          }
+
+          send((startedBy == null) ? routes : startedBy, status, data1, data2);
+
+        }
+
+      } else {
+
+        if ( command == ShortMessage.CONTROL_CHANGE && (data1 == ALL_SOUND_OFF || data1 >= ALL_NOTES_OFF) ) {
+
+          endChannel(status, data1, data2);
+
+        }
+
+        send(routes, status, data1, data2);
+
+      }
+
+    }
+
+    /**
+     * Sends a channel mode message which ends every note on a channel through each older set of routes that started
+     * notes on the channel, and forgets those notes.
+     *
+     * @param status the status byte of the message
+     * @param data1  the controller number
+     * @param data2  the controller value
+     */
+
+    private void endChannel(final int status, final int data1, final int data2) {
+
+      final int first = (status & 0x0f) << 7;
+      MidiRoute.Compiled[] lastSent = routes;
+
+      for ( int index = first; index < first + 128; index++ ) {
+
+        final MidiRoute.Compiled[] startedBy = sounding.getAndSet(index, null);
+
+        if ( startedBy != null && startedBy != routes && startedBy != lastSent ) {
+
+          send(startedBy, status, data1, data2);
+          lastSent = startedBy;
+
+        }
+
+      }
+
+    }
+
+    /**
+     * Sends a short message through a set of routes.
+     *
+     * @param through the routes
+     * @param status  the status byte of the message
+     * @param data1   the first data byte
+     * @param data2   the second data byte
+     */
+
+    private void send(final MidiRoute.Compiled[] through, final int status, final int data1, final int data2) {
+
+      for ( MidiRoute.Compiled route : through ) {
+
+        route.route(scratch, status, data1, data2);
+
+      }
+
+    }
+
+    /**
+     * Checks whether any notes started through these or earlier routes are still sounding.
+     *
+     * @return true if there is at least one note which has not been ended
+     */
+
+    boolean hasSoundingNotes() {
+
+      for ( int index = 0; index < sounding.length(); index++ ) {
+
+        if ( sounding.get(index) != null ) {
+
+          return true;
+
+        }
+
+      }
+
+      return false;
+
+    }
+
+  }
+
+  /**
+   * An immutable, compiled set of routes, which is replaced as a whole.
+   */
+
+  private static final class Graph {
+
+    final List<MidiRoute> routes;
+    final Map<CoreMidiSource, SourceRoutes> bySource;
+
+    Graph(final List<MidiRoute> routes, final Map<CoreMidiSource, SourceRoutes> bySource) {
+
+      this.routes = routes;
+      this.bySource = bySource;
+
+    }
+
+  }
+
+  private static final Graph EMPTY = new Graph(Collections.<MidiRoute>emptyList(),
+                                               new IdentityHashMap<CoreMidiSource, SourceRoutes>());
+
+  private volatile Graph graph = EMPTY;
+
+  /**
+   * Receives the messages from every source in the current graph, and routes them.
+   */
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      final SourceRoutes sourceRoutes = graph.bySource.get(source);
+
+      if ( sourceRoutes != null ) {
+
+        sourceRoutes.route(status, data1, data2);
+
+      }
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      final SourceRoutes sourceRoutes = graph.bySource.get(source);
+
+      if ( sourceRoutes != null ) {
+
+        try {
+
+          final SysexMessage message = new SysexMessage(data, length);
+
+          for ( MidiRoute.Compiled route : sourceRoutes.routes ) {
+
+            route.route(message);
+
+          }
+
+        } catch (InvalidMidiDataException e) {
+
+          System.err.println("Unable to route SYSEX message from " + source + ": " + e);
+
+        }
+
+      }
+
+    }
+
+  };
+
+  /**
+   * Replaces every route with a new set. The routes are compiled first, then the router starts listening to any
+   * sources which are new, then the new routes take effect in a single step, and finally the router stops listening
+   * to sources which no longer have any routes. A source whose routes have been removed while notes it routed are
+   * still sounding is listened to until the next call, so that their note offs can be routed as their note ons were.
+   *
+   * @param routes the routes which should be in effect
+   */
+
+  public synchronized void setRoutes(final Collection<MidiRoute> routes) {
+
+    final Map<CoreMidiSource, List<MidiRoute.Compiled>> grouped = new IdentityHashMap<>();
+
+    for ( MidiRoute route : routes ) {
+
+      List<MidiRoute.Compiled> list = grouped.get(route.getSource());
+
+      if ( list == null ) {
+
+        list = new ArrayList<>();
+        grouped.put(route.getSource(), list);
+
+      }
+
+      list.add(route.compile());
+
+    }
+
+    final Graph previous = graph;
+    final Map<CoreMidiSource, SourceRoutes> bySource = new IdentityHashMap<>();
+
+    for ( Map.Entry<CoreMidiSource, List<MidiRoute.Compiled>> entry : grouped.entrySet() ) {
+
+      final List<MidiRoute.Compiled> list = entry.getValue();
+      bySource.put(entry.getKey(), new SourceRoutes(list.toArray(new MidiRoute.Compiled[list.size()]),
+                                                    previous.bySource.get(entry.getKey())));
+
+    }
+
+    for ( Map.Entry<CoreMidiSource, SourceRoutes> entry : previous.bySource.entrySet() ) {
+
+      if ( !bySource.containsKey(entry.getKey()) && entry.getValue().hasSoundingNotes() ) {
+
+        bySource.put(entry.getKey(), new SourceRoutes(NO_ROUTES, entry.getValue()));
+
+      }
+
+    }
+
+    for ( CoreMidiSource source : bySource.keySet() ) {
+
+      source.addSourceListener(listener);  // Has no effect if we were already listening
+
+    }
+
+    graph = new Graph(Collections.unmodifiableList(new ArrayList<>(routes)), bySource);
+
+    for ( CoreMidiSource source : previous.bySource.keySet() ) {
+
+      if ( !bySource.containsKey(source) ) {
+
+        source.removeSourceListener(listener);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Gets the routes currently in effect.
+   *
+   * @return the routes most recently passed to {@link #setRoutes(Collection)}
+   */
+
+  public List<MidiRoute> getRoutes() {
+
+    return graph.routes;
+
+  }
+
+  /**
+   * Removes every route, so the router stops listening to all sources.
+   */
+
+  public void clear() {
+
+    setRoutes(Collections.<MidiRoute>emptyList());
+
+  }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * An SMPTE time, as carried by MIDI Time Code: hours, minutes, seconds and frames at one of the four MTC frame
+ * rates, plus how far through the frame the time is. Times convert to and from frame numbers counted from midnight,
+ * taking account of the frame numbers skipped by drop-frame time code.
+ *
+ */
+
+public final class MidiTimeCode {
+
+  /**
+   * The frame rates MIDI Time Code can carry, with the codes used for them in quarter-frame and full-frame
+   * messages.
+   */
+
+  public enum Rate {
+
+    /**
+     * 24 frames per second, used for film.
+     */
+
+    FPS_24(0, 24, false, 1000000.0 / 24),
+
+    /**
+     * 25 frames per second, used for PAL video.
+     */
+
+    FPS_25(1, 25, false, 1000000.0 / 25),
+
+    /**
+     * 29.97 frames per second drop-frame, used for NTSC video: frame numbers 0 and 1 are skipped at the start of
+     * each minute except every tenth, so that the time code keeps pace with the clock.
+     */
+
+    FPS_29_97_DROP(2, 30, true, 1001000.0 / 30),
+
+    /**
+     * 30 frames per second.
+     */
+
+    FPS_30(3, 30, false, 1000000.0 / 30);
+
+    private final int code;
+    private final int framesPerSecond;
+    private final boolean dropFrame;
+    private final double frameDuration;
+
+    Rate(final int code, final int framesPerSecond, final boolean dropFrame, final double frameDuration) {
+
+      this.code = code;
+      this.framesPerSecond = framesPerSecond;
+      this.dropFrame = dropFrame;
+      this.frameDuration = frameDuration;
+
+    }
+
+    /**
+     * Gets the code for this rate in MIDI Time Code messages.
+     *
+     * @return the code, from 0 to 3
+     */
+
+    public int getCode() {
+
+      return code;
+
+    }
+
+    /**
+     * Gets the number of frames in each second of time code, which for drop-frame time code is not quite how many
+     * frames there are in a second of real time.
+     *
+     * @return the highest frame number plus one
+     */
+
+    public int getFramesPerSecond() {
+
+      return framesPerSecond;
+
+    }
+
+    /**
+     * Checks whether some frame numbers are skipped.
+     *
+     * @return true for drop-frame time code
+     */
+
+    public boolean isDropFrame() {
+
+      return dropFrame;
+
+    }
+
+    /**
+     * Gets the real time each frame lasts.
+     *
+     * @return the frame duration in microseconds
+     */
+
+    public double getFrameDuration() {
+
+      return frameDuration;
+
+    }
+
+    /**
+     * Finds the rate with a code from a MIDI Time Code message.
+     *
+     * @param code the code, of which only the lowest two bits are used
+     *
+     * @return the rate
+     */
+
+    public static Rate fromCode(final int code) {
+
+      return values()[code & 3];
+
+    }
+
+  }
+
+  // Drop-frame time code skips two frame numbers a minute, except every tenth minute
+  private static final int DROP_FRAMES_PER_MINUTE = 30 * 60 - 2;
+  private static final int DROP_FRAMES_PER_TEN_MINUTES = DROP_FRAMES_PER_MINUTE * 10 + 2;
+
+  private final int hours;
+  private final int minutes;
+  private final int seconds;
+  private final int frames;
+  private final double fraction;
+  private final Rate rate;
+
+  /**
+   * Creates a time at the start of a frame.
+   *
+   * @param hours   the hours, from 0 to 23
+   * @param minutes the minutes, from 0 to 59
+   * @param seconds the seconds, from 0 to 59
+   * @param frames  the frames, from 0 to one less than the number of frames per second
+   * @param rate    the frame rate
+   *
+   * @throws IllegalArgumentException if any field is out of range, or names a frame that drop-frame time code skips
+   */
+
+  public MidiTimeCode(final int hours, final int minutes, final int seconds, final int frames, final Rate rate) {
+
+    this(hours, minutes, seconds, frames, 0.0, rate);
+
+  }
+
+  /**
+   * Creates a time part of the way through a frame.
+   *
+   * @param hours    the hours, from 0 to 23
+   * @param minutes  the minutes, from 0 to 59
+   * @param seconds  the seconds, from 0 to 59
+   * @param frames   the frames, from 0 to one less than the number of frames per second
+   * @param fraction how far through the frame, at least 0 and less than 1
+   * @param rate     the frame rate
+   *
+   * @throws IllegalArgumentException if any field is out of range, or names a frame that drop-frame time code skips
+   */
+
+  public MidiTimeCode(final int hours, final int minutes, final int seconds, final int frames, final double fraction,
+                      final Rate rate) {
+
+    if ( hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59 || frames < 0
+         || frames >= rate.getFramesPerSecond() || !(fraction >= 0.0 && fraction < 1.0) ) {
+
+      throw new IllegalArgumentException("Invalid time code " + format(hours, minutes, seconds, frames, rate));
+
+    }
+
+    if ( rate.isDropFrame() && seconds == 0 && frames < 2 && minutes % 10 != 0 ) {
+
+      throw new IllegalArgumentException("Drop-frame time code skips "
+                                         + format(hours, minutes, seconds, frames, rate));
+
+    }
+
+    this.hours = hours;
+    this.minutes = minutes;
+    this.seconds = seconds;
+    this.frames = frames;
+    this.fraction = fraction;
+    this.rate = rate;
+
+  }
+
+  /**
+   * Works out the time of a frame number, wrapping around at 24 hours.
+   *
+   * @param frameNumber the number of frames since midnight, which may include a fraction of a frame
+   * @param rate        the frame rate
+   *
+   * @return the time
+   */
+
+  public static MidiTimeCode fromFrameNumber(final double frameNumber, final Rate rate) {
+
+    final long framesPerDay = framesPerDay(rate);
+    final double wrapped = ((frameNumber % framesPerDay) + framesPerDay) % framesPerDay;
+    long whole = (long) Math.floor(wrapped);
+    final double fraction = Math.max(0.0, Math.min(wrapped - whole, Math.nextAfter(1.0, 0.0)));
+
+    if ( rate.isDropFrame() ) {
+
+      final long tens = whole / DROP_FRAMES_PER_TEN_MINUTES;
+      final long rest = whole % DROP_FRAMES_PER_TEN_MINUTES;
+      whole += 18 * tens + ((rest > 1) ? 2 * ((rest - 2) / DROP_FRAMES_PER_MINUTE) : 0);
+
+    }
+
+    final int fps = rate.getFramesPerSecond();
+    final long totalSeconds = whole / fps;
+    return new MidiTimeCode((int) (totalSeconds / 3600), (int) (totalSeconds / 60 % 60), (int) (totalSeconds % 60),
+                            (int) (whole % fps), fraction, rate);
+
+  }
+
+  /**
+   * Works out how many frames a frame rate has in 24 hours.
+   *
+   * @param rate the frame rate
+   *
+   * @return the number of frames
+   */
+
+  static long framesPerDay(final Rate rate) {
+
+    return rate.isDropFrame() ? 144L * DROP_FRAMES_PER_TEN_MINUTES : 24L * 3600 * rate.getFramesPerSecond();
+
+  }
+
+  /**
+   * Gets the hours.
+   *
+   * @return the hours, from 0 to 23
+   */
+
+  public int getHours() {
+
+    return hours;
+
+  }
+
+  /**
+   * Gets the minutes.
+   *
+   * @return the minutes, from 0 to 59
+   */
+
+  public int getMinutes() {
+
+    return minutes;
+
+  }
+
+  /**
+   * Gets the seconds.
+   *
+   * @return the seconds, from 0 to 59
+   */
+
+  public int getSeconds() {
+
+    return seconds;
+
+  }
+
+  /**
+   * Gets the frames.
+   *
+   * @return the frames, from 0 to one less than the number of frames per second
+   */
+
+  public int getFrames() {
+
+    return frames;
+
+  }
+
+  /**
+   * Gets how far through the frame this time is.
+   *
+   * @return the fraction of a frame, at least 0 and less than 1
+   */
+
+  public double getFraction() {
+
+    return fraction;
+
+  }
+
+  /**
+   * Gets the frame rate.
+   *
+   * @return the rate
+   */
+
+  public Rate getRate() {
+
+    return rate;
+
+  }
+
+  /**
+   * Works out the number of frames since midnight, leaving out any frame numbers skipped by drop-frame time code.
+   *
+   * @return the frame number, not including the fraction of a frame
+   */
+
+  public long getFrameNumber() {
+
+    return frameNumber(hours, minutes, seconds, frames, rate);
+
+  }
+
+  /**
+   * Works out the number of frames since midnight of a time code, without needing to build an object for it.
+   *
+   * @param hours   the hours
+   * @param minutes the minutes
+   * @param seconds the seconds
+   * @param frames  the frames
+   * @param rate    the frame rate
+   *
+   * @return the frame number
+   */
+
+  static long frameNumber(final int hours, final int minutes, final int seconds, final int frames, final Rate rate) {
+
+    final long totalMinutes = hours * 60L + minutes;
+    long number = (totalMinutes * 60 + seconds) * rate.getFramesPerSecond() + frames;
+
+    if ( rate.isDropFrame() ) {
+
+      number -= 2 * (totalMinutes - totalMinutes / 10);
+
+    }
+
+    return number;
+
+  }
+
+  /**
+   * Works out how much real time has passed since midnight at this time code.
+   *
+   * @return the time in microseconds
+   */
+
+  public long toMicroseconds() {
+
+    return Math.round((getFrameNumber() + fraction) * rate.getFrameDuration());
+
+  }
+
+  /**
+   * Formats a time code in the usual way, with a semicolon before the frames of drop-frame time code.
+   *
+   * @param hours   the hours
+   * @param minutes the minutes
+   * @param seconds the seconds
+   * @param frames  the frames
+   * @param rate    the frame rate
+   *
+   * @return the formatted time code
+   */
+
+  private static String format(final int hours, final int minutes, final int seconds, final int frames,
+                               final Rate rate) {
+
+    return String.format("%02d:%02d:%02d%s%02d", hours, minutes, seconds, rate.isDropFrame() ? ";" : ":", frames);
+
+  }
+
+  @Override
+  public boolean equals(final Object other) {
+
+    if ( !(other instanceof MidiTimeCode) ) {
+
+      return false;
+
+    }
+
+    final MidiTimeCode code = (MidiTimeCode) other;
+    return hours == code.hours && minutes == code.minutes && seconds == code.seconds && frames == code.frames
+        && Double.compare(fraction, code.fraction) == 0 && rate == code.rate;
+
+  }
+
+  @Override
+  public int hashCode() {
+
+    return ((((hours * 60 + minutes) * 60 + seconds) * 31 + frames) * 31 + rate.hashCode()) * 31
+        + Double.valueOf(fraction).hashCode();
+
+  }
+
+  @Override
+  public String toString() {
+
+    return format(hours, minutes, seconds, frames, rate);
+
+  }
+
+}
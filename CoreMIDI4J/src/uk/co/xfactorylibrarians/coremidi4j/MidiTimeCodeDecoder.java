@@ -0,0 +1,398 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Reads the MIDI Time Code arriving at a {@link CoreMidiSource}. Quarter-frame messages are taken straight from the
+ * source's parser, without any message objects being created, and the eight pieces of each time code are put
+ * together in a handful of primitive fields. Full-frame messages, which masters send when they locate while
+ * stopped, are recognised too.
+ *
+ * <p>Once a complete time code has been received, each further quarter frame moves the position on (or back, when
+ * the master plays in reverse), and {@link #getState()} interpolates between quarter frames. The state can be read
+ * from any thread without blocking the source's input thread: it is published under a sequence number, and readers
+ * simply try again if an update happened while they were reading.</p>
+ *
+ */
+
+public class MidiTimeCodeDecoder implements Closeable {
+
+  /**
+   * How many quarter frames may be missed before the time code is considered to have stopped.
+   */
+
+  private static final int QUARTER_FRAMES_TO_STOP = 8;
+
+  /**
+   * A consistent view of the time code being received, at a particular time.
+   */
+
+  public static final class State {
+
+    private final long time;
+    private final MidiTimeCode timeCode;
+    private final boolean running;
+    private final boolean reverse;
+
+    State(final long time, final MidiTimeCode timeCode, final boolean running, final boolean reverse) {
+
+      this.time = time;
+      this.timeCode = timeCode;
+      this.running = running;
+      this.reverse = reverse;
+
+    }
+
+    /**
+     * Gets the time this state describes.
+     *
+     * @return the time in microseconds, relative to when the source was opened
+     */
+
+    public long getTime() {
+
+      return time;
+
+    }
+
+    /**
+     * Gets the time code at that time, including the frame rate and how far through the frame it is.
+     *
+     * @return the time code, or null if no complete time code has been received yet
+     */
+
+    public MidiTimeCode getTimeCode() {
+
+      return timeCode;
+
+    }
+
+    /**
+     * Checks whether quarter frames are arriving, so that the time code is moving.
+     *
+     * @return true while the master is playing
+     */
+
+    public boolean isRunning() {
+
+      return running;
+
+    }
+
+    /**
+     * Checks whether the master is playing in reverse, sending the pieces of each time code in the opposite order.
+     *
+     * @return true if the time code is moving backwards
+     */
+
+    public boolean isReverse() {
+
+      return reverse;
+
+    }
+
+    @Override
+    public String toString() {
+
+      return "MidiTimeCodeDecoder.State[time=" + time + "us, timeCode=" + timeCode
+          + ((timeCode == null) ? "" : (" " + timeCode.getRate() + " +" + timeCode.getFraction())) + ", running="
+          + running + ", reverse=" + reverse + "]";
+
+    }
+
+  }
+
+  private final CoreMidiSource source;
+
+  // The pieces being put together, only touched by the source's input thread
+  private int pieces;              // Four bits from each quarter-frame message, the first in the lowest bits
+  private int piecesReceived;      // One bit for each piece received in the current run
+  private int lastPiece = -1;      // The piece most recently received, or -1 after a break in the run
+  private int direction;           // 1 while pieces arrive in order, -1 while they arrive in reverse order
+
+  // Published to readers under the sequence number, which is odd while an update is being made
+  private volatile int sequence;
+  private volatile boolean known;           // Whether a complete time code has been received
+  private volatile int rateCode;
+  private volatile long quarterFrame;       // The position in quarter frames since midnight,
+  private volatile long quarterFrameTime;   // and when it was reached
+  private volatile boolean moving;          // False after a full-frame message, until quarter frames resume
+  private volatile boolean reversed;
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(final CoreMidiSource source, final int status, final int data1,
+                                     final int data2, final long timestamp) {
+
+      if ( status == ShortMessage.MIDI_TIME_CODE ) {
+
+        quarterFrame(data1 >> 4, data1 & 0x0f, (timestamp >= 0) ? timestamp : source.getMicrosecondPosition());
+
+      }
+
+    }
+
+    @Override
+    public void sysexMessageReceived(final CoreMidiSource source, final byte[] data, final int length,
+                                     final long timestamp) {
+
+      // A full-frame message: F0 7F <device> 01 01 hr mn sc fr F7
+      if ( length == 10 && (data[1] & 0xff) == 0x7f && data[3] == 1 && data[4] == 1 ) {
+
+        fullFrame(data[5] & 0x7f, data[6] & 0x7f, data[7] & 0x7f, data[8] & 0x7f,
+                  (timestamp >= 0) ? timestamp : source.getMicrosecondPosition());
+
+      }
+
+    }
+
+  };
+
+  /**
+   * Starts reading the time code received by a source.
+   *
+   * @param source the source to read, which must be open for anything to be received
+   */
+
+  public MidiTimeCodeDecoder(final CoreMidiSource source) {
+
+    this.source = source;
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Gets the source whose time code is being read.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Gets the state of the time code now.
+   *
+   * @return the position, frame rate and direction of the time code at the source's current time
+   */
+
+  public State getState() {
+
+    return getState(source.getMicrosecondPosition());
+
+  }
+
+  /**
+   * Gets the state of the time code at a particular time, such as the timestamp of a message from the same source.
+   * While running, the position is interpolated from the latest quarter frame, but never by more than one quarter
+   * frame, so it does not run on if the quarter frames stop.
+   *
+   * @param time the time in microseconds, relative to when the source was opened
+   *
+   * @return the position, frame rate and direction of the time code at that time
+   */
+
+  public State getState(final long time) {
+
+    while ( true ) {
+
+      final int before = sequence;
+
+      if ( (before & 1) == 0 ) {
+
+        final boolean isKnown = known;
+        final int code = rateCode;
+        final long position = quarterFrame;
+        final long positionTime = quarterFrameTime;
+        final boolean isMoving = moving;
+        final boolean isReversed = reversed;
+
+        if ( sequence == before ) {
+
+          if ( !isKnown ) {
+
+            return new State(time, null, false, false);
+
+          }
+
+          final MidiTimeCode.Rate rate = MidiTimeCode.Rate.fromCode(code);
+          final double quarterFrameDuration = rate.getFrameDuration() / 4;
+          final double elapsed = (time - positionTime) / quarterFrameDuration;
+          final boolean isRunning = isMoving && elapsed < QUARTER_FRAMES_TO_STOP;
+          double frames = position / 4.0;
+
+          if ( isRunning ) {
+
+            frames += (isReversed ? -0.25 : 0.25) * Math.max(0.0, Math.min(1.0, elapsed));
+
+          }
+
+          return new State(time, MidiTimeCode.fromFrameNumber(frames, rate), isRunning, isRunning && isReversed);
+
+        }
+
+      }
+
+      Thread.yield();
+
+    }
+
+  }
+
+  /**
+   * Stops reading the time code.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(listener);
+
+  }
+
+  /**
+   * Handles a quarter-frame message. The pieces of a time code arrive in order from 0 to 7 while playing forwards,
+   * and from 7 to 0 in reverse; anything else breaks the run and starts putting a time code together again. A
+   * complete time code describes the frame at which piece 0 was sent, so the position is that frame plus however
+   * many quarter frames later the final piece arrived.
+   *
+   * @param piece the piece number, from 0 to 7
+   * @param value the four bits of the time code it carries
+   * @param time  when the message arrived
+   */
+
+  private void quarterFrame(final int piece, final int value, final long time) {
+
+    int step = 0;
+
+    if ( lastPiece >= 0 && piece == ((lastPiece + 1) & 7) ) {
+
+      step = 1;
+
+    } else if ( lastPiece >= 0 && piece == ((lastPiece - 1) & 7) ) {
+
+      step = -1;
+
+    }
+
+    if ( step == 0 || (direction != 0 && step != direction) ) {
+
+      piecesReceived = 0;  // A break in the run, or a change of direction
+
+    }
+
+    direction = step;
+    lastPiece = piece;
+    pieces = (pieces & ~(0x0f << (piece * 4))) | (value << (piece * 4));
+    piecesReceived |= 1 << piece;
+
+    final boolean complete = piecesReceived == 0xff && piece == ((step > 0) ? 7 : 0);
+    final MidiTimeCode.Rate rate = MidiTimeCode.Rate.fromCode(pieces >>> 29);
+    final long frameNumber = complete ? decodeFrameNumber(rate) : -1;
+
+    if ( frameNumber < 0 && !(known && step != 0) ) {
+
+      return;  // Nothing to publish until a complete time code has been received
+
+    }
+
+    sequence++;
+
+    if ( frameNumber >= 0 ) {
+
+      known = true;
+      rateCode = rate.getCode();
+      quarterFrame = frameNumber * 4 + piece;
+
+    } else {
+
+      quarterFrame += step;
+
+    }
+
+    quarterFrameTime = time;
+    moving = true;
+    reversed = step < 0;
+    sequence++;
+
+  }
+
+  /**
+   * Works out the frame number described by a complete set of pieces.
+   *
+   * @param rate the frame rate they describe
+   *
+   * @return the frame number, or -1 if the pieces do not describe a valid time code
+   */
+
+  private long decodeFrameNumber(final MidiTimeCode.Rate rate) {
+
+    final int frames = (pieces & 0x0f) | ((pieces >> 4) & 0x01) << 4;
+    final int seconds = ((pieces >> 8) & 0x0f) | ((pieces >> 12) & 0x03) << 4;
+    final int minutes = ((pieces >> 16) & 0x0f) | ((pieces >> 20) & 0x03) << 4;
+    final int hours = ((pieces >> 24) & 0x0f) | ((pieces >> 28) & 0x01) << 4;
+
+    if ( hours > 23 || minutes > 59 || seconds > 59 || frames >= rate.getFramesPerSecond() ) {
+
+      return -1;
+
+    }
+
+    return MidiTimeCode.frameNumber(hours, minutes, seconds, frames, rate);
+
+  }
+
+  /**
+   * Handles a full-frame message, which moves the time code while it is stopped.
+   *
+   * @param hoursAndRate the hours, with the rate code in bits 5 and 6
+   * @param minutes      the minutes
+   * @param seconds      the seconds
+   * @param frames       the frames
+   * @param time         when the message arrived
+   */
+
+  private void fullFrame(final int hoursAndRate, final int minutes, final int seconds, final int frames,
+                         final long time) {
+
+    final MidiTimeCode.Rate rate = MidiTimeCode.Rate.fromCode(hoursAndRate >> 5);
+    final int hours = hoursAndRate & 0x1f;
+
+    if ( hours > 23 || minutes > 59 || seconds > 59 || frames >= rate.getFramesPerSecond() ) {
+
+      return;
+
+    }
+
+    piecesReceived = 0;
+    lastPiece = -1;
+    sequence++;
+    known = true;
+    rateCode = rate.getCode();
+    quarterFrame = MidiTimeCode.frameNumber(hours, minutes, seconds, frames, rate) * 4;
+    quarterFrameTime = time;
+    moving = false;
+    reversed = false;
+    sequence++;
+
+  }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Sends MIDI Time Code to any number of destinations. While running, quarter-frame messages are sent four to a
+ * frame, the time of each calculated from the frame rate and the time the generator started, and handed to CoreMIDI
+ * a few milliseconds early with that exact timestamp, so that the time code does not pick up the jitter of a
+ * sleeping thread. While stopped, moving to a new position sends a full-frame message.
+ *
+ */
+
+public class MidiTimeCodeGenerator implements Closeable {
+
+  private static final String NAME = "CoreMIDI4J Time Code Generator";
+  private static final int PIECES = 8;
+
+  private final LookaheadScheduler scheduler = new LookaheadScheduler(NAME) {
+
+    @Override
+    protected long dispatch(final long horizon) {
+
+      return dispatchQuarterFrames(horizon);
+
+    }
+
+  };
+
+  private final ScheduledOutputs outputs = new ScheduledOutputs();
+  private final MidiTimeCode.Rate rate;
+  private final double quarterFrameDuration;
+
+  // Quarter frames are numbered from 0, the first sent after starting. Times are on the scheduler's clock
+  private boolean running;
+  private long startFrame;      // The frame at which the generator started, or is positioned while stopped
+  private long startTime;       // When quarter frame 0 is due
+  private long nextQuarterFrame;
+  private final int[] pieceValues = new int[PIECES]; // What the pieces of the current time code carry
+  private long lastDue;         // The latest time for which a message has been handed over
+
+  /**
+   * Creates a time code generator positioned at midnight.
+   *
+   * @param rate the frame rate of the time code
+   */
+
+  public MidiTimeCodeGenerator(final MidiTimeCode.Rate rate) {
+
+    this.rate = rate;
+    quarterFrameDuration = rate.getFrameDuration() / 4;
+
+  }
+
+  /**
+   * Gets the frame rate of the time code.
+   *
+   * @return the frame rate
+   */
+
+  public MidiTimeCode.Rate getRate() {
+
+    return rate;
+
+  }
+
+  /**
+   * Adds a destination to send time code to, opening it if necessary.
+   *
+   * @param destination the destination
+   *
+   * @throws MidiUnavailableException if the destination cannot be opened
+   */
+
+  public synchronized void addDestination(final CoreMidiDestination destination) throws MidiUnavailableException {
+
+    outputs.addDestination(destination);
+
+  }
+
+  /**
+   * Stops sending time code to a destination, closing the receivers which were opened on it by
+   * {@link #addDestination(CoreMidiDestination)}. The destination itself is left open.
+   *
+   * @param destination the destination
+   */
+
+  public void removeDestination(final CoreMidiDestination destination) {
+
+    outputs.removeDestination(destination);
+
+  }
+
+  /**
+   * Adds a receiver to send time code to. Receivers of devices which report their position, such as
+   * {@link CoreMidiDestination}, are sent timestamped messages; any other receiver is sent each message as soon as
+   * it is scheduled, without a timestamp.
+   *
+   * @param receiver the receiver
+   */
+
+  public synchronized void addReceiver(final Receiver receiver) {
+
+    outputs.addReceiver(receiver);
+
+  }
+
+  /**
+   * Stops sending time code to a receiver. The receiver is not closed.
+   *
+   * @param receiver the receiver
+   */
+
+  public void removeReceiver(final Receiver receiver) {
+
+    outputs.removeReceiver(receiver);
+
+  }
+
+  /**
+   * Moves to a new position, sending a full-frame message so that the devices follow. Devices only act on this
+   * while stopped, so the generator must not be running.
+   *
+   * @param position the new position, at the generator's frame rate; any fraction of a frame is ignored
+   *
+   * @throws IllegalArgumentException if the position is at a different frame rate
+   * @throws IllegalStateException if the generator is running
+   */
+
+  public synchronized void setPosition(final MidiTimeCode position) {
+
+    if ( position.getRate() != rate ) {
+
+      throw new IllegalArgumentException("Position " + position + " is at " + position.getRate()
+                                         + ", not " + rate);
+
+    }
+
+    if ( running ) {
+
+      throw new IllegalStateException("The position cannot be changed while the time code is running");
+
+    }
+
+    startFrame = position.getFrameNumber();
+
+    try {
+
+      final byte[] fullFrame = { (byte) 0xf0, 0x7f, 0x7f, 0x01, 0x01,
+                                 (byte) ((rate.getCode() << 5) | position.getHours()), (byte) position.getMinutes(),
+                                 (byte) position.getSeconds(), (byte) position.getFrames(), (byte) 0xf7 };
+      lastDue = Math.max(LookaheadScheduler.now(), lastDue);
+      outputs.send(new SysexMessage(fullFrame, fullFrame.length), lastDue);
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build MIDI Time Code full-frame message", e);
+
+    }
+
+  }
+
+  /**
+   * Gets the position of the time code now.
+   *
+   * @return the position, including how far through the current frame it is while running
+   */
+
+  public synchronized MidiTimeCode getPosition() {
+
+    double frame = startFrame;
+
+    if ( running ) {
+
+      frame += Math.max(0.0, LookaheadScheduler.now() - startTime) / rate.getFrameDuration();
+
+    }
+
+    return MidiTimeCode.fromFrameNumber(frame, rate);
+
+  }
+
+  /**
+   * Starts sending quarter frames from the current position. Does nothing if already running.
+   */
+
+  public void start() {
+
+    synchronized (this) {
+
+      if ( running ) {
+
+        return;
+
+      }
+
+      outputs.synchronize();
+      startTime = Math.max(LookaheadScheduler.now() + scheduler.getLookahead(), lastDue);
+      nextQuarterFrame = 0;
+      running = true;
+
+    }
+
+    scheduler.start();
+
+  }
+
+  /**
+   * Stops sending quarter frames. The position is left at the frame reached by the quarter frames already handed
+   * to CoreMIDI, so that starting again carries on from there.
+   */
+
+  public void stop() {
+
+    synchronized (this) {
+
+      if ( running ) {
+
+        running = false;
+        startFrame += nextQuarterFrame / 4;
+
+      }
+
+    }
+
+    scheduler.stop();
+
+  }
+
+  /**
+   * Checks whether quarter frames are being sent.
+   *
+   * @return true between {@link #start()} and {@link #stop()}
+   */
+
+  public synchronized boolean isRunning() {
+
+    return running;
+
+  }
+
+  /**
+   * Controls how far ahead of time quarter frames are handed to CoreMIDI.
+   *
+   * @param micros the lookahead in microseconds, from 500 to 1,000,000 (the default is 5,000)
+   */
+
+  public void setLookahead(final long micros) {
+
+    scheduler.setLookahead(micros);
+
+  }
+
+  /**
+   * Check how far ahead of time quarter frames are handed to CoreMIDI.
+   *
+   * @return the lookahead in microseconds
+   */
+
+  public long getLookahead() {
+
+    return scheduler.getLookahead();
+
+  }
+
+  /**
+   * Gets measurements of how well the generator's thread has kept up.
+   *
+   * @return the scheduling statistics since the generator was created or they were last reset
+   */
+
+  public SchedulingStatistics getSchedulingStatistics() {
+
+    return scheduler.getStatistics();
+
+  }
+
+  /**
+   * Clears the scheduling statistics.
+   */
+
+  public void resetSchedulingStatistics() {
+
+    scheduler.resetStatistics();
+
+  }
+
+  /**
+   * Stops the time code if it is running, and forgets all destinations and receivers, closing the receivers opened
+   * by {@link #addDestination(CoreMidiDestination)}.
+   */
+
+  @Override
+  public void close() {
+
+    stop();
+    outputs.close();
+
+  }
+
+  /**
+   * Hands over every quarter frame due before a horizon. Each run of eight carries the time code of the frame at
+   * which its first piece is sent, so a new time code is worked out every two frames. Called on the generator's
+   * thread.
+   *
+   * @param horizon the time up to which quarter frames should be handed over
+   *
+   * @return the time of the next quarter frame, or -1 if the generator has stopped
+   */
+
+  private synchronized long dispatchQuarterFrames(final long horizon) {
+
+    while ( running ) {
+
+      final long due = startTime + Math.round(nextQuarterFrame * quarterFrameDuration);
+
+      if ( due > horizon ) {
+
+        return due;
+
+      }
+
+      final int piece = (int) (nextQuarterFrame % PIECES);
+
+      if ( piece == 0 ) {
+
+        encode(MidiTimeCode.fromFrameNumber(startFrame + nextQuarterFrame / 4, rate));
+
+      }
+
+      try {
+
+        outputs.send(new ShortMessage(ShortMessage.MIDI_TIME_CODE, (piece << 4) | pieceValues[piece], 0), due);
+
+      } catch (InvalidMidiDataException e) {
+
+        throw new IllegalStateException("Unable to build MIDI Time Code quarter-frame message", e);
+
+      }
+
+      scheduler.recordEvent(due);
+      lastDue = due;
+      nextQuarterFrame++;
+
+    }
+
+    return -1;
+
+  }
+
+  /**
+   * Splits a time code into the values carried by the eight pieces of quarter-frame messages.
+   *
+   * @param timeCode the time code
+   */
+
+  private void encode(final MidiTimeCode timeCode) {
+
+    pieceValues[0] = timeCode.getFrames() & 0x0f;
+    pieceValues[1] = timeCode.getFrames() >> 4;
+    pieceValues[2] = timeCode.getSeconds() & 0x0f;
+    pieceValues[3] = timeCode.getSeconds() >> 4;
+    pieceValues[4] = timeCode.getMinutes() & 0x0f;
+    pieceValues[5] = timeCode.getMinutes() >> 4;
+    pieceValues[6] = timeCode.getHours() & 0x0f;
+    pieceValues[7] = (timeCode.getHours() >> 4) | (rate.getCode() << 1);
+
+  }
+
+}
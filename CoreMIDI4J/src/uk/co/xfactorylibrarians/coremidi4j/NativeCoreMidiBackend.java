@@ -0,0 +1,139 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * The normal backend, which hands every operation to the JNI methods of the class it belongs to, and so to CoreMIDI
+ * itself. This is an internal class which is managed by the library itself.
+ *
+ */
+
+final class NativeCoreMidiBackend implements CoreMidiBackend {
+
+  @Override
+  public boolean isAvailable() throws CoreMidiException {
+
+    return Loader.isAvailable();
+
+  }
+
+  @Override
+  public int createClient(final CoreMidiClient client, final String clientName) throws CoreMidiException {
+
+    return client.createClient(clientName);
+
+  }
+
+  @Override
+  public int createInputPort(final CoreMidiInputPort port, final int clientReference, final String portName)
+          throws CoreMidiException {
+
+    return port.createInputPort(clientReference, portName);
+
+  }
+
+  @Override
+  public long connectSource(final CoreMidiInputPort port, final int inputPortReference,
+                            final CoreMidiSource sourceDevice) throws CoreMidiException {
+
+    return port.midiPortConnectSource(inputPortReference, sourceDevice);
+
+  }
+
+  @Override
+  public void disconnectSource(final CoreMidiInputPort port, final int inputPortReference,
+                               final long connectionHandle, final CoreMidiSource sourceDevice)
+          throws CoreMidiException {
+
+    port.midiPortDisconnectSource(inputPortReference, connectionHandle, sourceDevice);
+
+  }
+
+  @Override
+  public int createOutputPort(final CoreMidiOutputPort port, final int clientReference, final String portName)
+          throws CoreMidiException {
+
+    return port.createOutputPort(clientReference, portName);
+
+  }
+
+  @Override
+  public void send(final CoreMidiOutputPort port, final int outputPortReference,
+                   final int destinationEndPointReference, final MidiMessage message, final long timestamp)
+          throws CoreMidiException {
+
+    port.sendMidiMessage(outputPortReference, destinationEndPointReference, message, timestamp);
+
+  }
+
+  @Override
+  public int getNumberOfSources(final CoreMidiDeviceProvider provider) {
+
+    return provider.getNumberOfSources();
+
+  }
+
+  @Override
+  public int getNumberOfDestinations(final CoreMidiDeviceProvider provider) {
+
+    return provider.getNumberOfDestinations();
+
+  }
+
+  @Override
+  public int getSource(final CoreMidiDeviceProvider provider, final int sourceIndex) throws CoreMidiException {
+
+    return provider.getSource(sourceIndex);
+
+  }
+
+  @Override
+  public int getDestination(final CoreMidiDeviceProvider provider, final int destinationIndex)
+          throws CoreMidiException {
+
+    return provider.getDestination(destinationIndex);
+
+  }
+
+  @Override
+  public int getUniqueID(final CoreMidiDeviceProvider provider, final int reference) throws CoreMidiException {
+
+    return provider.getUniqueID(reference);
+
+  }
+
+  @Override
+  public CoreMidiDeviceInfo getMidiDeviceInfo(final CoreMidiDeviceProvider provider, final int reference)
+          throws CoreMidiException {
+
+    return provider.getMidiDeviceInfo(reference);
+
+  }
+
+  @Override
+  public long getMicroSecondTime(final MidiDevice device) {
+
+    if ( device instanceof CoreMidiSource ) {
+
+      return ((CoreMidiSource) device).getMicroSecondTime();
+
+    }
+
+    return ((CoreMidiDestination) device).getMicroSecondTime();
+
+  }
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A record of the state that has been sent to a MIDI device: the program and bank, controller values, pitch bend,
+ * and registered and non-registered parameter values of each channel. Each message about to be sent is checked
+ * against the record with {@link #update(MidiMessage)}, which says whether it would change anything, so that
+ * messages which would not can be left unsent. When the device loses its state, because it was switched off and on
+ * again or its connection was reset, {@link #getReplayMessages()} gives the fewest messages needed to restore it.
+ *
+ * <p>Notes, System Exclusive and system messages are not recorded, and are always worth sending.
+ * {@link PersistentDestination#setShadowing(boolean)} puts a shadow to work on a destination.</p>
+ *
+ */
+
+public class OutputShadow {
+
+  private static final int CHANNELS = 16;
+  private static final int CONTROLLERS = 128;
+  private static final int UNKNOWN = -1;
+
+  private static final int BANK_SELECT_MSB = 0;
+  private static final int BANK_SELECT_LSB = 32;
+  private static final int DATA_ENTRY_MSB = 6;
+  private static final int DATA_ENTRY_LSB = 38;
+  private static final int DATA_INCREMENT = 96;
+  private static final int DATA_DECREMENT = 97;
+  private static final int NRPN_LSB = 98;
+  private static final int NRPN_MSB = 99;
+  private static final int RPN_LSB = 100;
+  private static final int RPN_MSB = 101;
+  private static final int ALL_SOUND_OFF = 120;
+  private static final int RESET_ALL_CONTROLLERS = 121;
+  private static final int NULL_PARAMETER = 0x7f;
+
+  private final int[] controllers = new int[CHANNELS * CONTROLLERS];
+  private final int[] programs = new int[CHANNELS];
+  private final int[] pitchBends = new int[CHANNELS];
+  private final boolean[] registeredSelected = new boolean[CHANNELS];  // Which kind of parameter was selected last
+
+  // Parameter values, keyed by parameterKey(), holding the MSB in bits 7-13 and the LSB, if sent, in bits 0-6
+  private final Map<Integer, Integer> parameters = new LinkedHashMap<>();
+  private static final int LSB_UNKNOWN = 0x8000;
+
+  /**
+   * Creates a shadow of a device which has not been sent anything.
+   */
+
+  public OutputShadow() {
+
+    clear();
+
+  }
+
+  /**
+   * Forgets everything that has been sent, as when the shadow is created.
+   */
+
+  public synchronized void clear() {
+
+    Arrays.fill(controllers, UNKNOWN);
+    Arrays.fill(programs, UNKNOWN);
+    Arrays.fill(pitchBends, UNKNOWN);
+    Arrays.fill(registeredSelected, false);
+    parameters.clear();
+
+  }
+
+  /**
+   * Records a message which is about to be sent, and checks whether sending it would change the state of the device.
+   *
+   * @param message the message
+   *
+   * @return false if the message would set state to what it already is, so need not be sent; true otherwise
+   */
+
+  public synchronized boolean update(final MidiMessage message) {
+
+    if ( !(message instanceof ShortMessage) ) {
+
+      return true;
+
+    }
+
+    final ShortMessage shortMessage = (ShortMessage) message;
+    final int channel = shortMessage.getChannel();
+
+    switch ( shortMessage.getCommand() ) {
+
+      case ShortMessage.CONTROL_CHANGE:
+        return controlChange(channel, shortMessage.getData1(), shortMessage.getData2());
+
+      case ShortMessage.PROGRAM_CHANGE:
+        return changed(programs, channel, shortMessage.getData1());
+
+      case ShortMessage.PITCH_BEND:
+        return changed(pitchBends, channel, (shortMessage.getData2() << 7) | shortMessage.getData1());
+
+      default:
+        return true;
+
+    }
+
+  }
+
+  /**
+   * Checks whether a message is one whose effect the shadow records, so that replaying the shadow restores it.
+   *
+   * @param message the message
+   *
+   * @return true for control, program and pitch bend changes
+   */
+
+  public static boolean isShadowed(final MidiMessage message) {
+
+    if ( !(message instanceof ShortMessage) ) {
+
+      return false;
+
+    }
+
+    final int command = ((ShortMessage) message).getCommand();
+    return command == ShortMessage.CONTROL_CHANGE || command == ShortMessage.PROGRAM_CHANGE
+        || command == ShortMessage.PITCH_BEND;
+
+  }
+
+  /**
+   * Builds the fewest messages which bring a device that has lost its state back to the state recorded. For each
+   * channel, the bank and program come first, since changing program may reset other values; then the controllers;
+   * then each parameter, selected and set in turn, after which the parameter that was selected is selected again if
+   * need be, whether or not a value was set for it; and finally the pitch bend.
+   *
+   * @return the messages to send, in order
+   */
+
+  public synchronized List<MidiMessage> getReplayMessages() {
+
+    final List<MidiMessage> result = new ArrayList<>();
+
+    try {
+
+      for ( int channel = 0; channel < CHANNELS; channel++ ) {
+
+        final int base = channel * CONTROLLERS;
+        addControlChange(result, channel, BANK_SELECT_MSB, controllers[base + BANK_SELECT_MSB]);
+        addControlChange(result, channel, BANK_SELECT_LSB, controllers[base + BANK_SELECT_LSB]);
+
+        if ( programs[channel] != UNKNOWN ) {
+
+          result.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, programs[channel], 0));
+
+        }
+
+        for ( int controller = 0; controller < CONTROLLERS; controller++ ) {
+
+          if ( isPlainController(controller) ) {
+
+            addControlChange(result, channel, controller, controllers[base + controller]);
+
+          }
+
+        }
+
+        int lastSelected = UNKNOWN;  // The parameter key selected by the messages built so far
+
+        for ( Map.Entry<Integer, Integer> entry : parameters.entrySet() ) {
+
+          final int key = entry.getKey();
+
+          if ( ((key >> 14) & 0x0f) == channel ) {
+
+            final boolean registered = (key >> 18) != 0;
+            final int value = entry.getValue();
+            addControlChange(result, channel, registered ? RPN_MSB : NRPN_MSB, (key >> 7) & 0x7f);
+            addControlChange(result, channel, registered ? RPN_LSB : NRPN_LSB, key & 0x7f);
+            addControlChange(result, channel, DATA_ENTRY_MSB, (value >> 7) & 0x7f);
+
+            if ( (value & LSB_UNKNOWN) == 0 ) {
+
+              addControlChange(result, channel, DATA_ENTRY_LSB, value & 0x7f);
+
+            }
+
+            lastSelected = key;
+
+          }
+
+        }
+
+        final Integer selected = selectedParameter(channel);
+
+        if ( selected == null || selected != lastSelected ) {
+
+          // Select what was selected, even without a value, since later Data Entry depends on it; anything unknown is
+          // left alone unless the parameters replayed above need deselecting
+          final boolean registered = registeredSelected[channel];
+          final int msb = controllers[base + (registered ? RPN_MSB : NRPN_MSB)];
+          final int lsb = controllers[base + (registered ? RPN_LSB : NRPN_LSB)];
+          final int fallback = (lastSelected == UNKNOWN) ? UNKNOWN : NULL_PARAMETER;
+          addControlChange(result, channel, registered ? RPN_MSB : NRPN_MSB, (msb == UNKNOWN) ? fallback : msb);
+          addControlChange(result, channel, registered ? RPN_LSB : NRPN_LSB, (lsb == UNKNOWN) ? fallback : lsb);
+
+        }
+
+        if ( pitchBends[channel] != UNKNOWN ) {
+
+          result.add(new ShortMessage(ShortMessage.PITCH_BEND, channel, pitchBends[channel] & 0x7f,
+                                      pitchBends[channel] >> 7));
+
+        }
+
+      }
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build MIDI message to replay", e);
+
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Records a control change, following parameter selection and Data Entry.
+   *
+   * @param channel    the channel
+   * @param controller the controller number
+   * @param value      the value
+   *
+   * @return whether the change needs to be sent
+   */
+
+  private boolean controlChange(final int channel, final int controller, final int value) {
+
+    final int base = channel * CONTROLLERS;
+
+    switch ( controller ) {
+
+      case DATA_ENTRY_MSB:
+      case DATA_ENTRY_LSB:
+        return dataEntry(channel, controller == DATA_ENTRY_MSB, value);
+
+      case DATA_INCREMENT:
+      case DATA_DECREMENT:
+        final Integer key = selectedParameter(channel);
+
+        if ( key != null ) {
+
+          parameters.remove(key);  // The device knows the new value, but we do not
+
+        }
+
+        return true;
+
+      case NRPN_MSB:
+      case NRPN_LSB:
+      case RPN_MSB:
+      case RPN_LSB:
+        final boolean registered = controller >= RPN_LSB;
+        final boolean kindChanged = registered != registeredSelected[channel];
+        registeredSelected[channel] = registered;
+        return changed(controllers, base + controller, value) || kindChanged;
+
+      case RESET_ALL_CONTROLLERS:
+        resetControllers(channel);
+        return true;
+
+      default:
+        if ( controller >= ALL_SOUND_OFF ) {
+
+          return true;  // Channel mode messages act rather than set state
+
+        }
+
+        return changed(controllers, base + controller, value);
+
+    }
+
+  }
+
+  /**
+   * Records Data Entry for the selected parameter.
+   *
+   * @param channel the channel
+   * @param msb     true for the most significant byte, false for the least
+   * @param value   the byte
+   *
+   * @return whether the Data Entry needs to be sent
+   */
+
+  private boolean dataEntry(final int channel, final boolean msb, final int value) {
+
+    final Integer key = selectedParameter(channel);
+
+    if ( key == null ) {
+
+      return true;  // The device ignores it, but we should not second guess that
+
+    }
+
+    final Integer old = parameters.get(key);
+    final int updated;
+
+    if ( msb ) {
+
+      updated = (value << 7) | LSB_UNKNOWN;  // A new most significant byte resets the least
+
+      if ( old != null && ((old >> 7) & 0x7f) == value && (old & LSB_UNKNOWN) != 0 ) {
+
+        return false;
+
+      }
+
+    } else {
+
+      if ( old == null ) {
+
+        return true;  // Without a most significant byte we cannot record the value
+
+      }
+
+      updated = (old & 0x3f80) | value;
+
+      if ( old == updated ) {
+
+        return false;
+
+      }
+
+    }
+
+    parameters.put(key, updated);
+    return true;
+
+  }
+
+  /**
+   * Works out which parameter Data Entry currently applies to on a channel.
+   *
+   * @param channel the channel
+   *
+   * @return the key of the parameter in the parameter map, or null if none is selected
+   */
+
+  private Integer selectedParameter(final int channel) {
+
+    final int base = channel * CONTROLLERS;
+    final boolean registered = registeredSelected[channel];
+    final int msb = controllers[base + (registered ? RPN_MSB : NRPN_MSB)];
+    final int lsb = controllers[base + (registered ? RPN_LSB : NRPN_LSB)];
+
+    if ( msb == UNKNOWN || lsb == UNKNOWN || (msb == NULL_PARAMETER && lsb == NULL_PARAMETER) ) {
+
+      return null;
+
+    }
+
+    return ((registered ? 1 : 0) << 18) | (channel << 14) | (msb << 7) | lsb;
+
+  }
+
+  /**
+   * Records Reset All Controllers, which sets the values that the MIDI Manufacturers Association's recommended
+   * practice RP-015 lists back to their defaults.
+   *
+   * @param channel the channel
+   */
+
+  private void resetControllers(final int channel) {
+
+    final int base = channel * CONTROLLERS;
+    pitchBends[channel] = ChannelStateTable.PITCH_BEND_CENTER;
+    controllers[base + 1] = 0;      // Modulation
+    controllers[base + 11] = 127;   // Expression
+    controllers[base + 64] = 0;     // Sustain, portamento, sostenuto and soft pedals
+    controllers[base + 65] = 0;
+    controllers[base + 66] = 0;
+    controllers[base + 67] = 0;
+    controllers[base + NRPN_LSB] = NULL_PARAMETER;
+    controllers[base + NRPN_MSB] = NULL_PARAMETER;
+    controllers[base + RPN_LSB] = NULL_PARAMETER;
+    controllers[base + RPN_MSB] = NULL_PARAMETER;
+
+  }
+
+  /**
+   * Checks whether a controller is replayed simply by sending its value, rather than being part of bank or
+   * parameter selection, Data Entry, or a channel mode message.
+   *
+   * @param controller the controller number
+   *
+   * @return true if the controller's value can be replayed on its own
+   */
+
+  private static boolean isPlainController(final int controller) {
+
+    return controller != BANK_SELECT_MSB && controller != BANK_SELECT_LSB && controller != DATA_ENTRY_MSB
+        && controller != DATA_ENTRY_LSB && (controller < DATA_INCREMENT || controller > RPN_MSB)
+        && controller < ALL_SOUND_OFF;
+
+  }
+
+  /**
+   * Records a value, and checks whether it has changed.
+   *
+   * @param values the array holding the value
+   * @param index  where in the array it is
+   * @param value  the new value
+   *
+   * @return true if the value is different from the one recorded
+   */
+
+  private static boolean changed(final int[] values, final int index, final int value) {
+
+    if ( values[index] == value ) {
+
+      return false;
+
+    }
+
+    values[index] = value;
+    return true;
+
+  }
+
+  /**
+   * Adds a control change to a list of messages, if its value is known.
+   *
+   * @param messages   the list
+   * @param channel    the channel
+   * @param controller the controller number
+   * @param value      the value, or {@link #UNKNOWN}
+   *
+   * @throws InvalidMidiDataException if the message cannot be built
+   */
+
+  private static void addControlChange(final List<MidiMessage> messages, final int channel, final int controller,
+                                       final int value) throws InvalidMidiDataException {
+
+    if ( value != UNKNOWN ) {
+
+      messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, value));
+
+    }
+
+  }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+
+/**
+ * <p>A handle to a {@link CoreMidiDestination} which survives the device disappearing and reappearing. The handle is
+ * itself a {@link Receiver}, so the application can keep sending to it regardless of the state of the device; when
+ * the device returns after having gone away, the handle opens it again and carries on sending to it.</p>
+ *
+ * <p>While the device is absent, messages are dropped by default. If a buffer limit is set with
+ * {@link #setBufferLimit(int)}, up to that many of the most recent messages are kept instead, and sent as soon as
+ * the device returns. Buffered messages are sent immediately rather than at their original timestamps, which
+ * would in any case refer to the previous incarnation of the device.</p>
+ *
+ * <p>With {@link #setShadowing(boolean)}, the handle also keeps an {@link OutputShadow} of the program, controller,
+ * pitch bend and parameter values it has sent. Messages which would not change any of them are then not sent at
+ * all, and when the device returns, the fewest messages needed to put it back in the state it was left in are sent
+ * before anything else. {@link #restoreState()} does the same for a device which has lost its state without going
+ * away, such as a synthesizer which has been switched off and on again behind a MIDI interface.</p>
+ *
+ * <p>The handle keeps track of the notes sent through it. Notes left sounding when the device went away are ended
+ * with note offs as soon as it returns, before anything else is sent, and any still sounding when the handle is
+ * closed are ended then.</p>
+ *
+ * <p>The handle must be opened with {@link #open()} before it starts following its device.</p>
+ *
+ */
+
+public class PersistentDestination extends PersistentEndPoint implements Receiver {
+
+  private final Deque<MidiMessage> buffer = new ArrayDeque<>();
+  private volatile Receiver current;        // The receiver we obtained from our current device, if any
+  private boolean openedDevice;             // Records whether we had to open the current device ourselves
+  private int bufferLimit = 0;              // How many messages to hold while the device is absent
+  private volatile OutputShadow shadow;     // The state we have sent, if we are keeping track of it
+  private final ActiveNoteMap activeNotes = new ActiveNoteMap();  // Notes sent through us and not yet ended
+
+  /**
+   * Creates a handle which will follow the destination with the specified unique ID, or the specified name.
+   *
+   * @param endPointUniqueID the OS X unique identifier of the destination end point
+   * @param name             the device information name to look for if the unique ID cannot be found, or null
+   *
+   */
+
+  public PersistentDestination(final int endPointUniqueID, final String name) {
+
+    super(endPointUniqueID, name);
+
+  }
+
+  /**
+   * Creates a handle which will follow the destination described by a device information object.
+   *
+   * @param info the device information of the destination
+   *
+   */
+
+  public PersistentDestination(final CoreMidiDeviceInfo info) {
+
+    this(info.getEndPointUniqueID(), info.getName());
+
+  }
+
+  /**
+   * Controls how many messages are held while the device is absent, to be sent when it returns. If more messages
+   * than this are sent, the oldest are discarded. The default is zero, which means messages sent while the device
+   * is absent are simply dropped.
+   *
+   * @param limit the maximum number of messages to buffer
+   *
+   * @throws IllegalArgumentException if {@code limit} is negative
+   *
+   */
+
+  public synchronized void setBufferLimit(final int limit) {
+
+    if ( limit < 0 ) {
+
+      throw new IllegalArgumentException("limit must not be negative");
+
+    }
+
+    bufferLimit = limit;
+
+    while ( buffer.size() > bufferLimit ) {
+
+      buffer.removeFirst();
+
+    }
+
+  }
+
+  /**
+   * Check how many messages are held while the device is absent.
+   *
+   * @return the maximum number of messages that will be buffered
+   *
+   */
+
+  public synchronized int getBufferLimit() {
+
+    return bufferLimit;
+
+  }
+
+  /**
+   * Controls whether the handle keeps track of the state it has sent, so that it can leave out messages which would
+   * not change it, and restore it when the device returns. Shadowing is off by default. Turning it on starts with
+   * nothing recorded, so the state the device was in beforehand is not known.
+   *
+   * @param enabled true to keep a shadow of the device's state, false to stop doing so
+   *
+   */
+
+  public synchronized void setShadowing(final boolean enabled) {
+
+    if ( enabled != (shadow != null) ) {
+
+      shadow = enabled ? new OutputShadow() : null;
+
+    }
+
+  }
+
+  /**
+   * Get the shadow of the state sent to the device, for example to {@link OutputShadow#clear()} it after sending a
+   * System Exclusive message which resets the device.
+   *
+   * @return the shadow, or null if shadowing is off
+   *
+   */
+
+  public OutputShadow getShadow() {
+
+    return shadow;
+
+  }
+
+  /**
+   * Sends the device the fewest messages needed to put it back into the state recorded by the shadow, for when it
+   * has lost that state while remaining connected. Nothing is sent if shadowing is off or the device is absent; in
+   * the latter case the state will be restored when the device returns.
+   *
+   */
+
+  public synchronized void restoreState() {
+
+    final OutputShadow currentShadow = shadow;
+    final Receiver receiver = current;
+
+    if ( currentShadow != null && receiver != null ) {
+
+      for ( MidiMessage message : currentShadow.getReplayMessages() ) {
+
+        receiver.send(message, -1);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Sends a MIDI message to the destination if it is present, or buffers or drops it if it is not.
+   *
+   * @param message   the message to send
+   * @param timeStamp the time at which the message should take effect, in microseconds relative to when the current
+   *                  device was opened, or -1 for immediately
+   *
+   * @see javax.sound.midi.Receiver#send(javax.sound.midi.MidiMessage, long)
+   *
+   */
+
+  @Override
+  public void send(final MidiMessage message, final long timeStamp) {
+
+    final OutputShadow currentShadow = shadow;
+
+    if ( currentShadow != null && !currentShadow.update(message) ) {
+
+      return;  // The device is already in the state this message would put it in
+
+    }
+
+    activeNotes.update(message);
+
+    final Receiver receiver = current;
+
+    if ( receiver != null ) {
+
+      try {
+
+        receiver.send(message, timeStamp);
+        return;
+
+      } catch (IllegalStateException e) {
+
+        // The device closed underneath us because it has just disappeared, so treat it as absent.
+
+      }
+
+    }
+
+    synchronized (this) {
+
+      if ( current != null && current != receiver ) {
+
+        current.send(message, -1);  // We were rebound while getting here
+
+      } else if ( bufferLimit > 0 && (shadow == null || !OutputShadow.isShadowed(message)) ) {
+
+        // Messages the shadow records are left out, since replaying the shadow restores their effect.
+
+        if ( buffer.size() == bufferLimit ) {
+
+          buffer.removeFirst();
+
+        }
+
+        buffer.addLast((MidiMessage) message.clone());
+
+      }
+
+    }
+
+  }
+
+  @Override
+  boolean accepts(final MidiDevice candidate) {
+
+    return candidate instanceof CoreMidiDestination;
+
+  }
+
+  @Override
+  void bind(final MidiDevice newDevice) throws MidiUnavailableException {
+
+    openedDevice = !newDevice.isOpen();
+
+    if ( openedDevice ) {
+
+      newDevice.open();
+
+    }
+
+    final Receiver receiver = newDevice.getReceiver();
+    activeNotes.release(receiver, -1);  // Anything left sounding when the device went away
+
+    if ( shadow != null ) {
+
+      for ( MidiMessage message : shadow.getReplayMessages() ) {
+
+        receiver.send(message, -1);
+
+      }
+
+    }
+
+    while ( !buffer.isEmpty() ) {
+
+      final MidiMessage message = buffer.removeFirst();
+      receiver.send(message, -1);
+      activeNotes.update(message);
+
+    }
+
+    current = receiver;
+
+  }
+
+  @Override
+  void unbind(final MidiDevice oldDevice) {
+
+    final Receiver receiver = current;
+    current = null;
+
+    if ( receiver != null ) {
+
+      receiver.close();
+
+    }
+
+    // Only close the device if we opened it and nobody else has started using it since.
+    if ( openedDevice && oldDevice.isOpen() && oldDevice.getReceivers().isEmpty() ) {
+
+      oldDevice.close();
+
+    }
+
+    openedDevice = false;
+
+  }
+
+  /**
+   * Gets the notes which have been sent through this handle and not yet ended.
+   *
+   * @return the map of active notes
+   *
+   */
+
+  public ActiveNoteMap getActiveNotes() {
+
+    return activeNotes;
+
+  }
+
+  /**
+   * Ends every note which has been sent through this handle and not yet ended, by sending note offs to the device if
+   * it is present. If it is absent, the notes are ended when it returns instead.
+   *
+   * @return the number of note offs sent
+   *
+   */
+
+  public synchronized int releaseActiveNotes() {
+
+    final Receiver receiver = current;
+    return (receiver == null) ? 0 : activeNotes.release(receiver, -1);
+
+  }
+
+  /**
+   * Closes the handle, first ending any notes sent through it which are still sounding, then releasing its device if
+   * it is bound to one, and discarding any buffered messages.
+   *
+   */
+
+  @Override
+  public void close() {
+
+    try {
+
+      releaseActiveNotes();
+
+    } catch (IllegalStateException e) {
+
+      // The device closed underneath us because it has just disappeared, so there is nothing to silence.
+
+    }
+
+    super.close();
+
+    synchronized (this) {
+
+      buffer.clear();
+
+    }
+
+  }
+
+}
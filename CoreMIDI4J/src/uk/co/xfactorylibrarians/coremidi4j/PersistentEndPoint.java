@@ -0,0 +1,447 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+
+/**
+ * <p>A handle to a CoreMIDI end point which stays valid while the underlying device disappears and reappears, for
+ * example when a USB interface glitches or is unplugged and reconnected. The end point is identified by its unique
+ * ID, with its name as a fallback in case it comes back with a different ID.</p>
+ *
+ * <p>While a handle is open, every change to the MIDI environment is checked against it: if its device has gone,
+ * it is unbound and listeners are told; when a matching device returns, the handle rebinds to it automatically and
+ * reports how long the reconnection took. See {@link PersistentSource} and {@link PersistentDestination}.</p>
+ *
+ */
+
+public abstract class PersistentEndPoint {
+
+  /**
+   * Holds the handles which are currently open, and so need to be reconciled when the MIDI environment changes.
+   */
+
+  private static final Set<PersistentEndPoint> openEndPoints =
+          Collections.newSetFromMap(new ConcurrentHashMap<PersistentEndPoint, Boolean>());
+
+  private final String name;                          // The device information name to fall back on
+  private final AtomicBoolean isOpen = new AtomicBoolean(false);
+  private final Set<PersistentEndPointListener> listeners =
+          Collections.newSetFromMap(new ConcurrentHashMap<PersistentEndPointListener, Boolean>());
+
+  private volatile int endPointUniqueID;              // The unique ID of the end point we are tracking
+  private volatile MidiDevice device;                 // The device we are currently bound to, if any
+  private long lostTime = -1;                         // System.nanoTime() when we noticed our device was gone
+  private volatile long lastReconnectMicros = -1;     // How long the most recent reconnection took
+
+  /**
+   * Constructor
+   *
+   * @param endPointUniqueID the OS X unique identifier of the end point to track
+   * @param name             the device information name (as returned by {@link MidiDevice.Info#getName()}) to look
+   *                         for if no end point with the unique ID can be found; may be null to disable the fallback
+   *
+   */
+
+  PersistentEndPoint(final int endPointUniqueID, final String name) {
+
+    this.endPointUniqueID = endPointUniqueID;
+    this.name = name;
+
+  }
+
+  /**
+   * Gets the unique ID of the end point being tracked. This can change if the device was found again by name
+   * after returning with a different unique ID.
+   *
+   * @return the OS X unique identifier of the end point
+   *
+   */
+
+  public int getEndPointUniqueID() {
+
+    return endPointUniqueID;
+
+  }
+
+  /**
+   * Gets the name used to find the end point if its unique ID is not present.
+   *
+   * @return the fallback device information name, or null if there is none
+   *
+   */
+
+  public String getName() {
+
+    return name;
+
+  }
+
+  /**
+   * Gets the device the handle is currently bound to.
+   *
+   * @return the current {@link CoreMidiSource} or {@link CoreMidiDestination}, or null if it is not present
+   *
+   */
+
+  public MidiDevice getDevice() {
+
+    return device;
+
+  }
+
+  /**
+   * Checks whether the handle is currently bound to a device.
+   *
+   * @return true if the end point is present and in use
+   *
+   */
+
+  public boolean isPresent() {
+
+    return device != null;
+
+  }
+
+  /**
+   * Checks whether the handle is open, in which case it will keep itself bound to its device whenever it is present.
+   *
+   * @return true if the handle is open
+   *
+   */
+
+  public boolean isOpen() {
+
+    return isOpen.get();
+
+  }
+
+  /**
+   * Gets how long the most recent reconnection took.
+   *
+   * @return the time, in microseconds, from noticing that the device had gone until the handle was rebound to it
+   *         when it returned, or -1 if the handle has never had to reconnect
+   *
+   */
+
+  public long getLastReconnectMicros() {
+
+    return lastReconnectMicros;
+
+  }
+
+  /**
+   * Adds a listener to be told when the device behind this handle disappears and returns.
+   *
+   * @param listener the listener to add
+   *
+   */
+
+  public void addListener(final PersistentEndPointListener listener) {
+
+    if ( listener != null ) {
+
+      listeners.add(listener);
+
+    }
+
+  }
+
+  /**
+   * Removes a listener that had been added with {@link #addListener(PersistentEndPointListener)}.
+   *
+   * @param listener the listener to remove
+   *
+   */
+
+  public void removeListener(final PersistentEndPointListener listener) {
+
+    listeners.remove(listener);
+
+  }
+
+  /**
+   * Opens the handle, binding it to its device if that is currently present, and keeping it bound across changes
+   * to the MIDI environment until {@link #close()} is called.
+   *
+   * @throws CoreMidiException if there is a problem initializing the device provider
+   *
+   */
+
+  public void open() throws CoreMidiException {
+
+    if ( isOpen.compareAndSet(false, true) ) {
+
+      new CoreMidiDeviceProvider();  // Make sure the device map has been built
+      openEndPoints.add(this);
+      reconcile();
+
+    }
+
+  }
+
+  /**
+   * Closes the handle, releasing its device if it is bound to one. It will no longer follow the device.
+   *
+   */
+
+  public void close() {
+
+    if ( isOpen.compareAndSet(true, false) ) {
+
+      openEndPoints.remove(this);
+
+      synchronized (this) {
+
+        if ( device != null ) {
+
+          unbind(device);
+          device = null;
+
+        }
+
+        lostTime = -1;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Finds the device this handle should be bound to, by unique ID if possible and otherwise by name.
+   *
+   * @return the matching device, or null if it is not present
+   */
+
+  private MidiDevice resolve() {
+
+    final CoreMidiDeviceIndex index = CoreMidiDeviceProvider.getDeviceIndex();
+    final MidiDevice byID = index.getByEndPointUniqueID(endPointUniqueID);
+
+    if ( byID != null && accepts(byID) ) {
+
+      return byID;
+
+    }
+
+    for ( MidiDevice candidate : index.getByName(name) ) {
+
+      if ( accepts(candidate) ) {
+
+        // Follow the device under its new identity from now on.
+        endPointUniqueID = ((CoreMidiDeviceInfo) candidate.getDeviceInfo()).getEndPointUniqueID();
+        return candidate;
+
+      }
+
+    }
+
+    return null;
+
+  }
+
+  /**
+   * Brings the handle up to date with the current MIDI environment: unbinds it if its device has gone or been
+   * replaced, and binds it if a matching device is present.
+   *
+   */
+
+  void reconcile() {
+
+    reconcile(resolve());
+
+  }
+
+  /**
+   * Brings the handle up to date with the device that has been found for it: unbinds it if its device has gone or
+   * been replaced, and binds it to the new device if there is one. Listeners are told what happened once the
+   * handle's lock has been released.
+   *
+   * @param current the device that matches the handle, or null if none is present
+   *
+   */
+
+  private void reconcile(final MidiDevice current) {
+
+    boolean lost = false;
+    long restoredMicros = -1;
+
+    synchronized (this) {
+
+      if ( !isOpen.get() ) {
+
+        return;
+
+      }
+
+      if ( device != null && current != device ) {
+
+        unbind(device);
+        device = null;
+        lostTime = System.nanoTime();
+        lost = true;
+
+      }
+
+      if ( device == null && current != null ) {
+
+        try {
+
+          bind(current);
+          device = current;
+
+          if ( lostTime >= 0 ) {
+
+            restoredMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - lostTime);
+            lastReconnectMicros = restoredMicros;
+            lostTime = -1;
+
+          }
+
+        } catch (MidiUnavailableException e) {
+
+          System.err.println("Problem rebinding to MIDI device " + current + ": " + e);
+
+        }
+
+      }
+
+    }
+
+    if ( lost ) {
+
+      for ( PersistentEndPointListener listener : listeners ) {
+
+        try {
+
+          listener.endPointLost(this);
+
+        } catch (Throwable t) {
+
+          System.err.println("Problem delivering end point loss notification: " + t);
+          t.printStackTrace(System.err);
+
+        }
+
+      }
+
+    }
+
+    if ( restoredMicros >= 0 ) {
+
+      for ( PersistentEndPointListener listener : listeners ) {
+
+        try {
+
+          listener.endPointRestored(this, restoredMicros);
+
+        } catch (Throwable t) {
+
+          System.err.println("Problem delivering end point restoration notification: " + t);
+          t.printStackTrace(System.err);
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Called by the device provider on the shared background thread once it has updated its device map after a
+   * change in the MIDI environment, to let every open handle rebind or unbind as needed. The devices the handles
+   * belong to are looked up while the device map is locked, so they all come from the same version of it, but
+   * devices are opened and listeners called only after the lock has been released, since either could need the
+   * device map themselves.
+   *
+   */
+
+  static void reconcileOpenEndPoints() {
+
+    final Map<PersistentEndPoint, MidiDevice> found = new LinkedHashMap<>();
+
+    synchronized (CoreMidiDeviceProvider.getDeviceMapLock()) {
+
+      for ( PersistentEndPoint endPoint : openEndPoints ) {
+
+        found.put(endPoint, endPoint.resolve());
+
+      }
+
+    }
+
+    for ( Map.Entry<PersistentEndPoint, MidiDevice> entry : found.entrySet() ) {
+
+      try {
+
+        entry.getKey().reconcile(entry.getValue());
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem reconciling persistent end point " + entry.getKey() + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Checks whether a device is of the right kind for this handle.
+   *
+   * @param candidate a device which has been found by unique ID or name
+   *
+   * @return true if the handle can be bound to the device
+   */
+
+  abstract boolean accepts(MidiDevice candidate);
+
+  /**
+   * Starts using a device which has been found for this handle.
+   *
+   * @param newDevice the device to bind to
+   *
+   * @throws MidiUnavailableException if the device cannot be opened
+   */
+
+  abstract void bind(MidiDevice newDevice) throws MidiUnavailableException;
+
+  /**
+   * Stops using the device this handle was bound to, either because it has gone or because the handle is closing.
+   *
+   * @param oldDevice the device to release
+   */
+
+  abstract void unbind(MidiDevice oldDevice);
+
+  @Override
+  public String toString() {
+
+    return getClass().getSimpleName() + "[endPointUniqueID=" + endPointUniqueID + ", name=" + name +
+           ", present=" + isPresent() + "]";
+
+  }
+
+}
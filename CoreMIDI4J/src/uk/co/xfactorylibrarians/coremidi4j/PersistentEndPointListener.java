@@ -0,0 +1,44 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * Listener interface which is used to register for notifications when the device behind a {@link PersistentEndPoint}
+ * disappears from the MIDI environment, and when it returns and the handle has been rebound to it. Methods are usually
+ * called on the library's background thread, without any of its locks held, so they are free to use the MIDI system.
+ *
+ */
+
+public interface PersistentEndPointListener {
+
+  /**
+   * Called when the device a handle was bound to has disappeared from the MIDI environment.
+   *
+   * @param endPoint the handle which has lost its device
+   *
+   */
+
+  void endPointLost(PersistentEndPoint endPoint);
+
+  /**
+   * Called when a device has reappeared and the handle has been rebound to it.
+   *
+   * @param endPoint        the handle which has been rebound
+   * @param reconnectMicros how long the handle was without its device, in microseconds, from the moment its
+   *                        disappearance was noticed until rebinding was complete
+   *
+   */
+
+  void endPointRestored(PersistentEndPoint endPoint, long reconnectMicros);
+
+}
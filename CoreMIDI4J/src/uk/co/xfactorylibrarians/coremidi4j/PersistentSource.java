@@ -0,0 +1,146 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * <p>A handle to a {@link CoreMidiSource} which survives the device disappearing and reappearing. Messages from the
+ * source are delivered to the receiver set with {@link #setReceiver(Receiver)}; whenever the device returns after
+ * having gone away, the handle opens it again and reconnects a transmitter to that same receiver, so nothing needs
+ * to be re-wired by the application.</p>
+ *
+ * <p>The handle must be opened with {@link #open()} before it starts following its device.</p>
+ *
+ */
+
+public class PersistentSource extends PersistentEndPoint {
+
+  private final AtomicReference<Receiver> receiver = new AtomicReference<>();
+  private Transmitter transmitter;          // The transmitter we obtained from our current device, if any
+  private boolean openedDevice;             // Records whether we had to open the current device ourselves
+
+  /**
+   * Creates a handle which will follow the source with the specified unique ID, or the specified name.
+   *
+   * @param endPointUniqueID the OS X unique identifier of the source end point
+   * @param name             the device information name to look for if the unique ID cannot be found, or null
+   *
+   */
+
+  public PersistentSource(final int endPointUniqueID, final String name) {
+
+    super(endPointUniqueID, name);
+
+  }
+
+  /**
+   * Creates a handle which will follow the source described by a device information object.
+   *
+   * @param info the device information of the source
+   *
+   */
+
+  public PersistentSource(final CoreMidiDeviceInfo info) {
+
+    this(info.getEndPointUniqueID(), info.getName());
+
+  }
+
+  /**
+   * Sets the receiver to which messages from the source should be delivered, replacing any previous value.
+   * It remains in place across reconnections.
+   *
+   * @param newReceiver the receiver which should get messages from the source, or null to discard them
+   *
+   */
+
+  public void setReceiver(final Receiver newReceiver) {
+
+    receiver.set(newReceiver);
+
+    synchronized (this) {
+
+      if ( transmitter != null ) {
+
+        transmitter.setReceiver(newReceiver);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Gets the receiver to which messages from the source are being delivered.
+   *
+   * @return the receiver set by {@link #setReceiver(Receiver)}
+   *
+   */
+
+  public Receiver getReceiver() {
+
+    return receiver.get();
+
+  }
+
+  @Override
+  boolean accepts(final MidiDevice candidate) {
+
+    return candidate instanceof CoreMidiSource;
+
+  }
+
+  @Override
+  void bind(final MidiDevice newDevice) throws MidiUnavailableException {
+
+    openedDevice = !newDevice.isOpen();
+
+    if ( openedDevice ) {
+
+      newDevice.open();
+
+    }
+
+    transmitter = newDevice.getTransmitter();
+    transmitter.setReceiver(receiver.get());
+
+  }
+
+  @Override
+  void unbind(final MidiDevice oldDevice) {
+
+    if ( transmitter != null ) {
+
+      transmitter.close();
+      transmitter = null;
+
+    }
+
+    // Only close the device if we opened it and nobody else has started using it since.
+    if ( openedDevice && oldDevice.isOpen() && oldDevice.getTransmitters().isEmpty() ) {
+
+      oldDevice.close();
+
+    }
+
+    openedDevice = false;
+
+  }
+
+}
@@ -0,0 +1,1546 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Sends samples to, and receives them from, a sampler using the MIDI Sample Dump Standard, through the sampler's
+ * source and destination. A sample travels as a header followed by packets of 120 bytes, each of which the receiver
+ * acknowledges or rejects. The engine sends with handshaking when the receiver acknowledges the header, sending each
+ * rejected packet again, and falls back to open loop, pacing the packets without waiting for acknowledgements, when
+ * the receiver never responds. With handshaking, {@link #setWindow(int)} lets several packets be outstanding at once,
+ * so that a receiver which can keep up is not held to one packet per round trip; the default window of one packet is
+ * what the standard describes and every sampler understands. When receiving, packets are checked, acknowledged as they
+ * arrive, and rejected if they are damaged or out of sequence, so that the sender repeats them.
+ *
+ * <p>Sample data is read from or written to a {@link ByteBuffer}, or a file which is memory-mapped for the transfer,
+ * in the format described by {@link SampleDumpHeader}. Each transfer runs on a thread of its own, and is tracked by a
+ * {@link SampleDumpTransfer}, which reports its progress and throughput. An engine runs one transfer at a time; to
+ * work with several samplers in parallel, use an engine for each. Times are in microseconds.</p>
+ *
+ */
+
+public class SampleDumpEngine implements Closeable {
+
+  /**
+   * How long to wait for each packet to be acknowledged before assuming that it was received, in microseconds, as
+   * set by the Sample Dump Standard.
+   */
+
+  public static final long DEFAULT_ACK_TIMEOUT = 20000;
+
+  /**
+   * How long to wait for the other side to respond at all before giving up on handshaking, or on the transfer, in
+   * microseconds, as set by the Sample Dump Standard.
+   */
+
+  public static final long DEFAULT_RESPONSE_TIMEOUT = 2000000;
+
+  /**
+   * The default time between packets sent without handshaking, in microseconds.
+   */
+
+  public static final long DEFAULT_PACKET_INTERVAL = 20000;
+
+  /**
+   * The default number of times a rejected packet is sent again before the transfer fails.
+   */
+
+  public static final int DEFAULT_RETRIES = 3;
+
+  /**
+   * The largest number of packets which can be waiting for acknowledgement at once, half the range of the seven-bit
+   * packet numbers, so that a packet number always identifies a single packet.
+   */
+
+  public static final int MAX_WINDOW = 64;
+
+  static final byte UNIVERSAL_NON_REAL_TIME = 0x7e;
+  static final byte DUMP_HEADER = 0x01;
+  static final byte DATA_PACKET = 0x02;
+  static final byte DUMP_REQUEST = 0x03;
+  static final byte WAIT = 0x7c;
+  static final byte CANCEL = 0x7d;
+  static final byte NAK = 0x7e;
+  static final byte ACK = 0x7f;
+
+  private static final int PACKET_LENGTH = 127;
+  private static final int HANDSHAKE_LENGTH = 6;
+  private static final int ALL_CHANNELS = 0x7f;
+  private static final long FOREVER = Long.MAX_VALUE;
+  private static final long POLL_INTERVAL = 100000;  // How often a waiting transfer checks whether it was cancelled
+
+  private final CoreMidiSource source;
+  private final CoreMidiDestination destination;
+  private final int channel;
+  private final Receiver receiver;
+  private final SysexDispatcher dispatcher;
+  private final BlockingQueue<byte[]> incoming = new LinkedBlockingQueue<>();
+  private volatile boolean listening;
+  private int window = 1;
+  private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+  private long responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+  private long packetInterval = DEFAULT_PACKET_INTERVAL;
+  private int retries = DEFAULT_RETRIES;
+  private boolean handshaking = true;
+  private SampleDumpTransfer current;
+  private Thread worker;
+  private boolean closed;
+
+  private final SysexHandler handler = new SysexHandler() {
+
+    @Override
+    public void sysexReceived(CoreMidiSource source, byte[] data, int length, long timestamp) {
+
+      if ( listening ) {
+
+        incoming.add(Arrays.copyOf(data, length));
+
+      }
+
+    }
+
+  };
+
+  /**
+   * A transfer in progress, run on its own thread.
+   */
+
+  private abstract class Job implements Runnable {
+
+    final SampleDumpTransfer transfer;
+    int window;
+    long ackTimeout;
+    long responseTimeout;
+    long packetInterval;
+    int retries;
+    boolean handshaking;
+
+    /**
+     * Creates a job.
+     *
+     * @param transfer the transfer it carries out
+     */
+
+    Job(final SampleDumpTransfer transfer) {
+
+      this.transfer = transfer;
+
+    }
+
+    /**
+     * Carries out the transfer, completing it if it succeeds.
+     *
+     * @throws Exception if the transfer fails
+     */
+
+    abstract void perform() throws Exception;
+
+    @Override
+    public void run() {
+
+      try {
+
+        perform();
+
+      } catch (CancellationException e) {
+
+        try {
+
+          sendHandshake(CANCEL, 0);
+
+        } catch (RuntimeException e2) {
+
+          // The destination has gone, so the other side will give up on its own.
+
+        }
+
+      } catch (Exception e) {
+
+        transfer.fail(e);
+
+      } finally {
+
+        finished();
+
+      }
+
+    }
+
+    /**
+     * Waits for the next message from the other side.
+     *
+     * @param deadline when to stop waiting, on the {@link LookaheadScheduler} clock, or {@link #FOREVER}
+     *
+     * @return the message, or null if the deadline passed first
+     *
+     * @throws InterruptedException if the thread is interrupted
+     * @throws CancellationException if the transfer has been cancelled
+     */
+
+    byte[] next(final long deadline) throws InterruptedException {
+
+      while ( true ) {
+
+        if ( transfer.isDone() ) {
+
+          throw new CancellationException();
+
+        }
+
+        final long remaining = (deadline == FOREVER) ? POLL_INTERVAL
+                                                     : Math.min(POLL_INTERVAL, deadline - LookaheadScheduler.now());
+
+        if ( remaining <= 0 ) {
+
+          return null;
+
+        }
+
+        final byte[] message = incoming.poll(remaining, TimeUnit.MICROSECONDS);
+
+        if ( message != null && message.length > 4 ) {
+
+          return message;
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Sends a sample to the device.
+   */
+
+  private final class SendJob extends Job {
+
+    private final SampleDumpHeader header;
+    private final ByteBuffer data;
+    private final int origin;
+
+    /**
+     * Creates a job to send a sample.
+     *
+     * @param header the header of the sample
+     * @param data   the sample data, starting at the buffer's position
+     */
+
+    SendJob(final SampleDumpHeader header, final ByteBuffer data) {
+
+      super(new SampleDumpTransfer(true, header, data));
+      this.header = header;
+      this.data = data;
+      origin = data.position();
+
+    }
+
+    @Override
+    void perform() throws Exception {
+
+      final byte[] headerMessage = header.toMessage(channel);
+      send(headerMessage);
+
+      if ( handshaking && awaitHeaderAcknowledgement(headerMessage) ) {
+
+        sendWithHandshaking();
+
+      } else {
+
+        transfer.setOpenLoop();
+        sendOpenLoop();
+
+      }
+
+      transfer.complete();
+
+    }
+
+    /**
+     * Waits for the receiver to acknowledge the header, sending it again if it is rejected.
+     *
+     * @param headerMessage the header
+     *
+     * @return true if the header was acknowledged, false if the receiver never responded
+     *
+     * @throws Exception if the receiver cancelled the dump or kept rejecting the header
+     */
+
+    private boolean awaitHeaderAcknowledgement(final byte[] headerMessage) throws Exception {
+
+      final long deadline = LookaheadScheduler.now() + responseTimeout;
+      int rejections = 0;
+      boolean waiting = false;
+
+      while ( true ) {
+
+        final byte[] message = next(waiting ? FOREVER : deadline);
+
+        if ( message == null ) {
+
+          return false;
+
+        }
+
+        if ( !isHandshake(message) ) {
+
+          continue;
+
+        }
+
+        waiting = false;
+
+        switch ( message[3] ) {
+
+          case ACK:
+            return true;
+
+          case NAK:
+            if ( ++rejections > retries ) {
+
+              throw new IOException("Sample dump header was rejected " + rejections + " times");
+
+            }
+            transfer.retransmitted();
+            send(headerMessage);
+            break;
+
+          case CANCEL:
+            throw new IOException("Sample dump was cancelled by the receiver");
+
+          default:
+            waiting = true;
+            break;
+
+        }
+
+      }
+
+    }
+
+    /**
+     * Sends the packets with handshaking, keeping up to a window of them waiting for acknowledgement. A packet whose
+     * acknowledgement never arrives is assumed to have been received, as the standard requires.
+     *
+     * @throws Exception if the receiver cancelled the dump or kept rejecting a packet
+     */
+
+    private void sendWithHandshaking() throws Exception {
+
+      final int count = header.getPacketCount();
+      final boolean[] acknowledged = new boolean[MAX_WINDOW];  // Indexed by packet modulo the largest window
+      final int[] rejections = new int[MAX_WINDOW];
+      final long[] sentAt = new long[MAX_WINDOW];
+      int base = 0;     // The oldest packet still waiting for acknowledgement
+      int next = 0;     // The next packet to send for the first time
+      boolean waiting = false;
+
+      while ( base < count ) {
+
+        while ( next < count && next < base + window ) {
+
+          final int slot = next & (MAX_WINDOW - 1);
+          acknowledged[slot] = false;
+          rejections[slot] = 0;
+          send(buildPacket(next));
+          sentAt[slot] = LookaheadScheduler.now();
+          next++;
+
+        }
+
+        final byte[] message = next(waiting ? FOREVER : sentAt[base & (MAX_WINDOW - 1)] + ackTimeout);
+
+        if ( message == null ) {
+
+          acknowledged[base & (MAX_WINDOW - 1)] = true;
+          transfer.unacknowledged();
+
+        } else if ( isHandshake(message) ) {
+
+          waiting = false;
+          final int packet = base + ((message[4] - base) & 0x7f);
+          final int slot = packet & (MAX_WINDOW - 1);
+          final boolean outstanding = packet < next;
+
+          switch ( message[3] ) {
+
+            case ACK:
+              if ( outstanding ) {
+
+                acknowledged[slot] = true;
+
+              }
+              break;
+
+            case NAK:
+              if ( outstanding && !acknowledged[slot] ) {
+
+                if ( ++rejections[slot] > retries ) {
+
+                  throw new IOException("Sample dump packet " + packet + " was rejected " + rejections[slot]
+                                        + " times");
+
+                }
+
+                transfer.retransmitted();
+                send(buildPacket(packet));
+                sentAt[slot] = LookaheadScheduler.now();
+
+              }
+              break;
+
+            case CANCEL:
+              throw new IOException("Sample dump was cancelled by the receiver");
+
+            default:
+              waiting = true;
+              break;
+
+          }
+
+        }
+
+        while ( base < next && acknowledged[base & (MAX_WINDOW - 1)] ) {
+
+          base++;
+
+        }
+
+        transfer.setPacketsTransferred(base);
+
+      }
+
+    }
+
+    /**
+     * Sends the packets without handshaking, pacing them by the packet interval. A receiver can still reject a
+     * packet, ask the sender to wait, or cancel the dump, and this is honoured.
+     *
+     * @throws Exception if the receiver cancelled the dump or kept rejecting a packet
+     */
+
+    private void sendOpenLoop() throws Exception {
+
+      final int count = header.getPacketCount();
+      final int[] rejections = new int[128];  // Indexed by packet number
+
+      for ( int sent = 0; sent < count; ) {
+
+        send(buildPacket(sent));
+        rejections[sent & 0x7f] = 0;
+        sent++;
+        transfer.setPacketsTransferred(sent);
+
+        final long deadline = LookaheadScheduler.now() + packetInterval;
+        boolean waiting = false;
+        byte[] message;
+
+        while ( (message = next(waiting ? FOREVER : deadline)) != null ) {
+
+          if ( !isHandshake(message) ) {
+
+            continue;
+
+          }
+
+          waiting = false;
+
+          if ( message[3] == NAK ) {
+
+            final int packet = sent - 1 - ((sent - 1 - message[4]) & 0x7f);
+
+            if ( packet >= 0 ) {
+
+              if ( ++rejections[packet & 0x7f] > retries ) {
+
+                throw new IOException("Sample dump packet " + packet + " was rejected " + rejections[packet & 0x7f]
+                                      + " times");
+
+              }
+
+              transfer.retransmitted();
+              send(buildPacket(packet));
+
+            }
+
+          } else if ( message[3] == CANCEL ) {
+
+            throw new IOException("Sample dump was cancelled by the receiver");
+
+          } else if ( message[3] == WAIT ) {
+
+            waiting = true;
+
+          }
+
+        }
+
+      }
+
+    }
+
+    /**
+     * Builds a data packet from the sample data, converting each word from signed bytes to the standard's unsigned
+     * seven-bit form. The last packet is padded with zeros.
+     *
+     * @param packet the index of the packet in the dump
+     *
+     * @return the message
+     */
+
+    private byte[] buildPacket(final int packet) {
+
+      final byte[] message = new byte[PACKET_LENGTH];
+      message[0] = (byte) 0xf0;
+      message[1] = UNIVERSAL_NON_REAL_TIME;
+      message[2] = (byte) channel;
+      message[3] = DATA_PACKET;
+      message[4] = (byte) (packet & 0x7f);
+
+      final int bits = header.getBitsPerSample();
+      final int bytesPerWord = header.getBytesPerWord();
+      final int packetBytesPerWord = header.getPacketBytesPerWord();
+      final int wordsPerPacket = header.getWordsPerPacket();
+      final int first = packet * wordsPerPacket;
+      final int words = Math.min(wordsPerPacket, header.getLength() - first);
+
+      for ( int word = 0; word < words; word++ ) {
+
+        final int index = origin + (first + word) * bytesPerWord;
+        int value = 0;
+
+        for ( int b = 0; b < bytesPerWord; b++ ) {
+
+          value |= (data.get(index + b) & 0xff) << (24 - 8 * b);
+
+        }
+
+        final int packed = ((value ^ 0x80000000) >>> (32 - bits)) << (packetBytesPerWord * 7 - bits);
+
+        for ( int b = 0; b < packetBytesPerWord; b++ ) {
+
+          message[5 + word * packetBytesPerWord + b] = (byte) ((packed >>> (7 * (packetBytesPerWord - 1 - b))) & 0x7f);
+
+        }
+
+      }
+
+      message[PACKET_LENGTH - 2] = checksum(message);
+      message[PACKET_LENGTH - 1] = (byte) 0xf7;
+      return message;
+
+    }
+
+  }
+
+  /**
+   * Receives a sample from the device.
+   */
+
+  private final class ReceiveJob extends Job {
+
+    private final int sampleNumber;
+    private final ByteBuffer target;
+    private final Path file;
+
+    /**
+     * Creates a job to receive a sample.
+     *
+     * @param sampleNumber the sample to request, or -1 to wait for the device to send one
+     * @param target       where to write the sample data, starting at the buffer's position, or null to use a file
+     * @param file         the file to write the sample data to, if there is no buffer
+     */
+
+    ReceiveJob(final int sampleNumber, final ByteBuffer target, final Path file) {
+
+      super(new SampleDumpTransfer(false, null, target));
+      this.sampleNumber = sampleNumber;
+      this.target = target;
+      this.file = file;
+
+    }
+
+    @Override
+    void perform() throws Exception {
+
+      if ( sampleNumber >= 0 ) {
+
+        send(new byte[] { (byte) 0xf0, UNIVERSAL_NON_REAL_TIME, (byte) channel, DUMP_REQUEST,
+                          (byte) (sampleNumber & 0x7f), (byte) (sampleNumber >> 7), (byte) 0xf7 });
+
+      }
+
+      final SampleDumpHeader header = awaitHeader();
+      FileChannel fileChannel = null;
+
+      try {
+
+        final ByteBuffer data;
+
+        if ( file != null ) {
+
+          fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+          data = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, header.getDataSize());
+
+        } else if ( target.remaining() < header.getDataSize() ) {
+
+          sendHandshake(CANCEL, 0);
+          throw new IOException("Sample needs " + header.getDataSize() + " bytes but the buffer only has room for "
+                                + target.remaining());
+
+        } else {
+
+          data = target;
+
+        }
+
+        transfer.started(header, data);
+        receivePackets(header, data);
+
+        if ( data instanceof MappedByteBuffer ) {
+
+          ((MappedByteBuffer) data).force();
+
+        }
+
+      } finally {
+
+        if ( fileChannel != null ) {
+
+          fileChannel.close();
+
+        }
+
+      }
+
+      transfer.complete();
+
+    }
+
+    /**
+     * Waits for the header of the sample. When a sample was requested, headers for other samples are ignored, and
+     * the device has the response timeout to start sending it; otherwise the first header is taken, however long
+     * it takes to arrive.
+     *
+     * @return the header
+     *
+     * @throws Exception if the device refused the request or never responded
+     */
+
+    private SampleDumpHeader awaitHeader() throws Exception {
+
+      final long deadline = (sampleNumber < 0) ? FOREVER : LookaheadScheduler.now() + responseTimeout;
+
+      while ( true ) {
+
+        final byte[] message = next(deadline);
+
+        if ( message == null ) {
+
+          throw new TimeoutException("No response to request for sample " + sampleNumber);
+
+        }
+
+        if ( message[3] == DUMP_HEADER ) {
+
+          try {
+
+            final SampleDumpHeader header = SampleDumpHeader.fromMessage(message, message.length);
+
+            if ( sampleNumber < 0 || header.getSampleNumber() == sampleNumber ) {
+
+              return header;
+
+            }
+
+          } catch (InvalidMidiDataException e) {
+
+            // Not a header we can use, so keep waiting for one.
+
+          }
+
+        } else if ( sampleNumber >= 0 && isHandshake(message) && (message[3] == CANCEL || message[3] == NAK) ) {
+
+          throw new IOException("Device refused the request for sample " + sampleNumber);
+
+        }
+
+      }
+
+    }
+
+    /**
+     * Receives the data packets, acknowledging each one which arrives intact and rejecting the rest. Packets within
+     * the largest window ahead of the first missing one are accepted in any order, and repeats of packets already
+     * received are acknowledged again, in case the first acknowledgement was lost.
+     *
+     * @param header the header of the sample
+     * @param data   where to write the sample data
+     *
+     * @throws Exception if the sender cancelled the dump or stopped sending
+     */
+
+    private void receivePackets(final SampleDumpHeader header, final ByteBuffer data) throws Exception {
+
+      final int count = header.getPacketCount();
+      final int origin = data.position();
+      final boolean[] received = new boolean[MAX_WINDOW];  // Indexed by packet modulo the largest window
+      int base = 0;  // The first packet not yet received
+
+      acknowledge(0);
+
+      while ( base < count ) {
+
+        final byte[] message = next(LookaheadScheduler.now() + responseTimeout);
+
+        if ( message == null ) {
+
+          throw new TimeoutException("Sample dump stopped after " + base + " of " + count + " packets");
+
+        }
+
+        if ( message[3] == DATA_PACKET && message.length == PACKET_LENGTH ) {
+
+          final int distance = (message[4] - base) & 0x7f;
+
+          if ( checksum(message) != message[PACKET_LENGTH - 2] ) {
+
+            reject(message[4]);
+
+          } else if ( distance >= MAX_WINDOW ) {
+
+            acknowledge(message[4]);
+
+          } else if ( base + distance >= count ) {
+
+            reject(message[4]);
+
+          } else {
+
+            final int slot = (base + distance) & (MAX_WINDOW - 1);
+
+            if ( !received[slot] ) {
+
+              unpackPacket(header, data, origin, base + distance, message);
+              received[slot] = true;
+
+            }
+
+            acknowledge(message[4]);
+
+          }
+
+          while ( base < count && received[base & (MAX_WINDOW - 1)] ) {
+
+            received[base & (MAX_WINDOW - 1)] = false;
+            base++;
+
+          }
+
+          transfer.setPacketsTransferred(base);
+
+        } else if ( message[3] == DUMP_HEADER && base == 0 ) {
+
+          // The sender missed our acknowledgement of the header.
+          acknowledge(0);
+
+        } else if ( isHandshake(message) && message[3] == CANCEL ) {
+
+          throw new IOException("Sample dump was cancelled by the sender");
+
+        }
+
+      }
+
+    }
+
+    /**
+     * Acknowledges a packet, if handshaking.
+     *
+     * @param packet the packet number
+     */
+
+    private void acknowledge(final int packet) {
+
+      if ( handshaking ) {
+
+        sendHandshake(ACK, packet);
+
+      }
+
+    }
+
+    /**
+     * Rejects a packet, so that the sender sends it again. Without handshaking there is no way to get it again, so
+     * the transfer fails.
+     *
+     * @param packet the packet number
+     *
+     * @throws IOException if handshaking is off
+     */
+
+    private void reject(final int packet) throws IOException {
+
+      transfer.retransmitted();
+
+      if ( !handshaking ) {
+
+        throw new IOException("Sample dump packet " + packet + " arrived damaged or out of sequence");
+
+      }
+
+      sendHandshake(NAK, packet);
+
+    }
+
+    /**
+     * Writes the words carried by a data packet to the sample data, converting each from the standard's unsigned
+     * seven-bit form to signed bytes.
+     *
+     * @param header  the header of the sample
+     * @param data    where to write the sample data
+     * @param origin  where the sample data starts in the buffer
+     * @param packet  the index of the packet in the dump
+     * @param message the packet
+     */
+
+    private void unpackPacket(final SampleDumpHeader header, final ByteBuffer data, final int origin,
+                              final int packet, final byte[] message) {
+
+      final int bits = header.getBitsPerSample();
+      final int bytesPerWord = header.getBytesPerWord();
+      final int packetBytesPerWord = header.getPacketBytesPerWord();
+      final int wordsPerPacket = header.getWordsPerPacket();
+      final int first = packet * wordsPerPacket;
+      final int words = Math.min(wordsPerPacket, header.getLength() - first);
+
+      for ( int word = 0; word < words; word++ ) {
+
+        int packed = 0;
+
+        for ( int b = 0; b < packetBytesPerWord; b++ ) {
+
+          packed = (packed << 7) | (message[5 + word * packetBytesPerWord + b] & 0x7f);
+
+        }
+
+        final int value = ((packed >>> (packetBytesPerWord * 7 - bits)) << (32 - bits)) ^ 0x80000000;
+        final int index = origin + (first + word) * bytesPerWord;
+
+        for ( int b = 0; b < bytesPerWord; b++ ) {
+
+          data.put(index + b, (byte) (value >>> (24 - 8 * b)));
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Creates an engine which sends to a sampler's destination and listens to its source, opening either of them if
+   * they are not already open.
+   *
+   * @param source      the source the sampler sends on
+   * @param destination the destination the sampler listens to
+   * @param channel     the sampler's device channel, from 0 to 127
+   *
+   * @throws IllegalArgumentException if the channel is out of range
+   * @throws MidiUnavailableException if the source or destination cannot be opened
+   */
+
+  public SampleDumpEngine(final CoreMidiSource source, final CoreMidiDestination destination, final int channel)
+      throws MidiUnavailableException {
+
+    if ( channel < 0 || channel > 127 ) {
+
+      throw new IllegalArgumentException("channel must be from 0 to 127");
+
+    }
+
+    this.source = source;
+    this.destination = destination;
+    this.channel = channel;
+
+    if ( !source.isOpen() ) {
+
+      source.open();
+
+    }
+
+    if ( !destination.isOpen() ) {
+
+      destination.open();
+
+    }
+
+    receiver = destination.getReceiver();
+    dispatcher = new SysexDispatcher(source);
+    dispatcher.register(handler, UNIVERSAL_NON_REAL_TIME, (channel == ALL_CHANNELS) ? SysexDispatcher.ANY : channel);
+
+  }
+
+  /**
+   * Creates an engine for the sampler that an end point belongs to, using its source and destination. If the device
+   * has several of either, the ones on the same entity (port) as the end point are preferred.
+   *
+   * @param endPoint any source or destination of the sampler
+   * @param channel  the sampler's device channel, from 0 to 127
+   *
+   * @return the engine
+   *
+   * @throws IllegalArgumentException if the device does not have both a source and a destination, or the channel is
+   *                                  out of range
+   * @throws MidiUnavailableException if the source or destination cannot be opened
+   */
+
+  public static SampleDumpEngine forDevice(final MidiDevice endPoint, final int channel)
+      throws MidiUnavailableException {
+
+    final CoreMidiDeviceIndex index = CoreMidiDeviceProvider.getDeviceIndex();
+    final CoreMidiSource source = index.getPairedSource(endPoint);
+    final CoreMidiDestination destination = index.getPairedDestination(endPoint);
+
+    if ( source == null || destination == null ) {
+
+      throw new IllegalArgumentException("Device of " + endPoint.getDeviceInfo().getName()
+                                         + " does not have both a source and a destination");
+
+    }
+
+    return new SampleDumpEngine(source, destination, channel);
+
+  }
+
+  /**
+   * Get the source the sampler sends on.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Get the destination the sampler listens to.
+   *
+   * @return the destination
+   */
+
+  public CoreMidiDestination getDestination() {
+
+    return destination;
+
+  }
+
+  /**
+   * Get the sampler's device channel.
+   *
+   * @return the channel, from 0 to 127
+   */
+
+  public int getChannel() {
+
+    return channel;
+
+  }
+
+  /**
+   * Set how many packets can be waiting for acknowledgement at once when sending with handshaking. Takes effect
+   * from the next transfer.
+   *
+   * @param window the number of packets, from 1 (the default, as the standard describes) to {@link #MAX_WINDOW}
+   *
+   * @throws IllegalArgumentException if the window is out of range
+   */
+
+  public synchronized void setWindow(final int window) {
+
+    if ( window < 1 || window > MAX_WINDOW ) {
+
+      throw new IllegalArgumentException("window must be from 1 to " + MAX_WINDOW);
+
+    }
+
+    this.window = window;
+
+  }
+
+  /**
+   * Get how many packets can be waiting for acknowledgement at once when sending with handshaking.
+   *
+   * @return the number of packets
+   */
+
+  public synchronized int getWindow() {
+
+    return window;
+
+  }
+
+  /**
+   * Set how long to wait for each packet to be acknowledged, when sending with handshaking, before assuming that it
+   * was received. Takes effect from the next transfer.
+   *
+   * @param timeout the time in microseconds; {@link #DEFAULT_ACK_TIMEOUT} unless set
+   *
+   * @throws IllegalArgumentException if the timeout is not positive
+   */
+
+  public synchronized void setAckTimeout(final long timeout) {
+
+    if ( timeout <= 0 ) {
+
+      throw new IllegalArgumentException("timeout must be positive");
+
+    }
+
+    ackTimeout = timeout;
+
+  }
+
+  /**
+   * Get how long to wait for each packet to be acknowledged.
+   *
+   * @return the time in microseconds
+   */
+
+  public synchronized long getAckTimeout() {
+
+    return ackTimeout;
+
+  }
+
+  /**
+   * Set how long to wait for the other side to respond. When sending, this is how long the receiver has to
+   * acknowledge the header before the sample is sent without handshaking; when receiving, it is how long the device
+   * has to respond to a request, and the longest gap between packets before the transfer fails. Takes effect from
+   * the next transfer.
+   *
+   * @param timeout the time in microseconds; {@link #DEFAULT_RESPONSE_TIMEOUT} unless set
+   *
+   * @throws IllegalArgumentException if the timeout is not positive
+   */
+
+  public synchronized void setResponseTimeout(final long timeout) {
+
+    if ( timeout <= 0 ) {
+
+      throw new IllegalArgumentException("timeout must be positive");
+
+    }
+
+    responseTimeout = timeout;
+
+  }
+
+  /**
+   * Get how long to wait for the other side to respond.
+   *
+   * @return the time in microseconds
+   */
+
+  public synchronized long getResponseTimeout() {
+
+    return responseTimeout;
+
+  }
+
+  /**
+   * Set the time between packets sent without handshaking, which must be long enough for the receiver to deal with
+   * each packet. Takes effect from the next transfer.
+   *
+   * @param interval the time in microseconds; {@link #DEFAULT_PACKET_INTERVAL} unless set
+   *
+   * @throws IllegalArgumentException if the interval is negative
+   */
+
+  public synchronized void setPacketInterval(final long interval) {
+
+    if ( interval < 0 ) {
+
+      throw new IllegalArgumentException("interval must not be negative");
+
+    }
+
+    packetInterval = interval;
+
+  }
+
+  /**
+   * Get the time between packets sent without handshaking.
+   *
+   * @return the time in microseconds
+   */
+
+  public synchronized long getPacketInterval() {
+
+    return packetInterval;
+
+  }
+
+  /**
+   * Set how many times a packet which the receiver rejects is sent again before the transfer fails. Takes effect
+   * from the next transfer.
+   *
+   * @param retries the number of retries; {@link #DEFAULT_RETRIES} unless set
+   *
+   * @throws IllegalArgumentException if the number is negative
+   */
+
+  public synchronized void setRetries(final int retries) {
+
+    if ( retries < 0 ) {
+
+      throw new IllegalArgumentException("retries must not be negative");
+
+    }
+
+    this.retries = retries;
+
+  }
+
+  /**
+   * Get how many times a rejected packet is sent again.
+   *
+   * @return the number of retries
+   */
+
+  public synchronized int getRetries() {
+
+    return retries;
+
+  }
+
+  /**
+   * Set whether to use handshaking. Without it, samples are sent open loop straight away rather than after waiting
+   * for the header to be acknowledged, and samples are received without acknowledging or rejecting anything, so a
+   * damaged packet fails the transfer. Turn it off for devices which cannot take part in handshaking, or whose
+   * source is not connected. Takes effect from the next transfer.
+   *
+   * @param handshaking true, the default, to use handshaking
+   */
+
+  public synchronized void setHandshaking(final boolean handshaking) {
+
+    this.handshaking = handshaking;
+
+  }
+
+  /**
+   * Check whether handshaking is used.
+   *
+   * @return true if handshaking is used
+   */
+
+  public synchronized boolean isHandshaking() {
+
+    return handshaking;
+
+  }
+
+  /**
+   * Sends a sample to the sampler.
+   *
+   * @param header the header of the sample
+   * @param data   the sample data, starting at the buffer's position, which is left unchanged
+   *
+   * @return the transfer, which completes once the last packet has been sent and acknowledged
+   *
+   * @throws IllegalArgumentException if the buffer holds less data than the header describes
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer send(final SampleDumpHeader header, final ByteBuffer data) {
+
+    if ( data.remaining() < header.getDataSize() ) {
+
+      throw new IllegalArgumentException("Sample needs " + header.getDataSize() + " bytes but the buffer only has "
+                                         + data.remaining());
+
+    }
+
+    return start(new SendJob(header, data));
+
+  }
+
+  /**
+   * Sends a sample to the sampler from a file, which is memory-mapped rather than read into memory.
+   *
+   * @param header the header of the sample
+   * @param file   the file holding the sample data, from its start
+   *
+   * @return the transfer, which completes once the last packet has been sent and acknowledged
+   *
+   * @throws IOException if the file cannot be mapped, or holds less data than the header describes
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer send(final SampleDumpHeader header, final Path file) throws IOException {
+
+    try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+      if ( fileChannel.size() < header.getDataSize() ) {
+
+        throw new IOException("Sample needs " + header.getDataSize() + " bytes but " + file + " only has "
+                              + fileChannel.size());
+
+      }
+
+      return send(header, fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, header.getDataSize()));
+
+    }
+
+  }
+
+  /**
+   * Requests a sample from the sampler, and receives it into a buffer.
+   *
+   * @param sampleNumber the number of the sample, from 0 to 16383
+   * @param target       where to write the sample data, starting at the buffer's position, which is left unchanged;
+   *                     if it is too small for the sample, the transfer is cancelled and fails
+   *
+   * @return the transfer, which completes once the last packet has been received
+   *
+   * @throws IllegalArgumentException if the sample number is out of range or the buffer is read-only
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer receive(final int sampleNumber, final ByteBuffer target) {
+
+    checkSampleNumber(sampleNumber);
+    checkTarget(target);
+    return start(new ReceiveJob(sampleNumber, target, null));
+
+  }
+
+  /**
+   * Requests a sample from the sampler, and receives it into a file, which is created or replaced, sized to fit the
+   * sample once its header arrives, and memory-mapped for the transfer.
+   *
+   * @param sampleNumber the number of the sample, from 0 to 16383
+   * @param file         the file to write the sample data to
+   *
+   * @return the transfer, which completes once the last packet has been received and written to the file
+   *
+   * @throws IllegalArgumentException if the sample number is out of range
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer receive(final int sampleNumber, final Path file) {
+
+    checkSampleNumber(sampleNumber);
+    return start(new ReceiveJob(sampleNumber, null, file));
+
+  }
+
+  /**
+   * Waits for the sampler to send a sample of its own accord, for example from its front panel, and receives it into
+   * a buffer. The transfer waits for as long as it takes the dump to start, until it is cancelled.
+   *
+   * @param target where to write the sample data, starting at the buffer's position, which is left unchanged; if it
+   *               is too small for the sample, the transfer is cancelled and fails
+   *
+   * @return the transfer, which completes once the last packet has been received
+   *
+   * @throws IllegalArgumentException if the buffer is read-only
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer accept(final ByteBuffer target) {
+
+    checkTarget(target);
+    return start(new ReceiveJob(-1, target, null));
+
+  }
+
+  /**
+   * Waits for the sampler to send a sample of its own accord, and receives it into a file, which is created or
+   * replaced, sized to fit the sample once its header arrives, and memory-mapped for the transfer. The transfer
+   * waits for as long as it takes the dump to start, until it is cancelled.
+   *
+   * @param file the file to write the sample data to
+   *
+   * @return the transfer, which completes once the last packet has been received and written to the file
+   *
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  public SampleDumpTransfer accept(final Path file) {
+
+    return start(new ReceiveJob(-1, null, file));
+
+  }
+
+  /**
+   * Get the transfer in progress.
+   *
+   * @return the transfer, or null if there is none
+   */
+
+  public synchronized SampleDumpTransfer getCurrentTransfer() {
+
+    return current;
+
+  }
+
+  /**
+   * Cancels any transfer in progress, telling the other side, and stops listening to the source. The source and
+   * destination are left open.
+   */
+
+  @Override
+  public void close() {
+
+    synchronized (this) {
+
+      if ( closed ) {
+
+        return;
+
+      }
+
+      closed = true;
+
+      if ( current != null ) {
+
+        current.cancel(false);
+
+      }
+
+      try {
+
+        while ( worker != null ) {
+
+          wait();
+
+        }
+
+      } catch (InterruptedException e) {
+
+        Thread.currentThread().interrupt();
+
+      }
+
+    }
+
+    dispatcher.close();
+    receiver.close();
+
+  }
+
+  /**
+   * Starts a transfer on a thread of its own, once any cancelled transfer has finished stopping.
+   *
+   * @param job the transfer
+   *
+   * @return the transfer
+   *
+   * @throws IllegalStateException if another transfer is in progress, or the engine has been closed
+   */
+
+  private synchronized SampleDumpTransfer start(final Job job) {
+
+    try {
+
+      while ( worker != null && current.isDone() && !closed ) {
+
+        wait();
+
+      }
+
+    } catch (InterruptedException e) {
+
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while the previous sample dump was stopping");
+
+    }
+
+    if ( closed ) {
+
+      throw new IllegalStateException("Sample dump engine has been closed");
+
+    }
+
+    if ( worker != null ) {
+
+      throw new IllegalStateException("A sample dump is already in progress");
+
+    }
+
+    job.window = window;
+    job.ackTimeout = ackTimeout;
+    job.responseTimeout = responseTimeout;
+    job.packetInterval = packetInterval;
+    job.retries = retries;
+    job.handshaking = handshaking;
+    incoming.clear();
+    listening = true;
+    current = job.transfer;
+    worker = new Thread(job, "CoreMidi4J Sample Dump");
+    worker.setDaemon(true);
+    worker.start();
+    return current;
+
+  }
+
+  /**
+   * Records that the transfer in progress has finished, successfully or not.
+   */
+
+  private synchronized void finished() {
+
+    listening = false;
+    incoming.clear();
+    current = null;
+    worker = null;
+    notifyAll();
+
+  }
+
+  /**
+   * Sends a message to the sampler.
+   *
+   * @param message the message, starting with 0xF0 and ending with 0xF7
+   *
+   * @throws IllegalStateException if the destination has been closed
+   */
+
+  private void send(final byte[] message) {
+
+    try {
+
+      receiver.send(new SysexMessage(message, message.length), -1);
+
+    } catch (InvalidMidiDataException e) {
+
+      throw new IllegalStateException("Unable to build sample dump message", e);
+
+    }
+
+  }
+
+  /**
+   * Sends a handshake message to the sampler.
+   *
+   * @param type   {@link #ACK}, {@link #NAK}, {@link #CANCEL} or {@link #WAIT}
+   * @param packet the packet number it refers to
+   */
+
+  private void sendHandshake(final byte type, final int packet) {
+
+    send(new byte[] { (byte) 0xf0, UNIVERSAL_NON_REAL_TIME, (byte) channel, type, (byte) (packet & 0x7f),
+                      (byte) 0xf7 });
+
+  }
+
+  /**
+   * Checks whether a message from the sampler is a handshake.
+   *
+   * @param message the message
+   *
+   * @return true if it is an ACK, NAK, CANCEL or WAIT
+   */
+
+  private static boolean isHandshake(final byte[] message) {
+
+    return message.length == HANDSHAKE_LENGTH && message[3] >= WAIT;
+
+  }
+
+  /**
+   * Calculates the checksum of a data packet: the exclusive or of every byte from the sub-ID to the last data byte.
+   *
+   * @param message the packet
+   *
+   * @return the checksum
+   */
+
+  private static byte checksum(final byte[] message) {
+
+    int sum = 0;
+
+    for ( int i = 1; i < PACKET_LENGTH - 2; i++ ) {
+
+      sum ^= message[i];
+
+    }
+
+    return (byte) (sum & 0x7f);
+
+  }
+
+  /**
+   * Checks a sample number.
+   *
+   * @param sampleNumber the sample number
+   *
+   * @throws IllegalArgumentException if it is out of range
+   */
+
+  private static void checkSampleNumber(final int sampleNumber) {
+
+    if ( sampleNumber < 0 || sampleNumber > 0x3fff ) {
+
+      throw new IllegalArgumentException("sampleNumber must be from 0 to 16383");
+
+    }
+
+  }
+
+  /**
+   * Checks that a buffer can be written to.
+   *
+   * @param target the buffer
+   *
+   * @throws IllegalArgumentException if it is read-only
+   */
+
+  private static void checkTarget(final ByteBuffer target) {
+
+    if ( target.isReadOnly() ) {
+
+      throw new IllegalArgumentException("Can't receive a sample into a read-only buffer");
+
+    }
+
+  }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * The header which starts a MIDI Sample Dump Standard transfer, describing the sample which follows: its number in
+ * the sampler, its resolution and rate, its length, and its sustain loop. Lengths and loop points are counted in
+ * words, one word holding one sample.
+ *
+ * <p>In the buffers and files used by {@link SampleDumpEngine}, each word is a signed, big-endian, two's complement
+ * value, left-justified in {@link #getBytesPerWord()} bytes with any unused low bits zero, as in an AIFF file.</p>
+ *
+ */
+
+public final class SampleDumpHeader {
+
+  /**
+   * The loop type for a sustain loop which plays forwards only.
+   */
+
+  public static final int LOOP_FORWARD = 0x00;
+
+  /**
+   * The loop type for a sustain loop which alternates between playing forwards and backwards.
+   */
+
+  public static final int LOOP_ALTERNATING = 0x01;
+
+  /**
+   * The loop type for a sample without a sustain loop.
+   */
+
+  public static final int LOOP_OFF = 0x7f;
+
+  /**
+   * The largest value of the 21-bit period, length and loop point fields.
+   */
+
+  public static final int MAX_WORDS = (1 << 21) - 1;
+
+  /**
+   * The number of bytes of sample data carried by each data packet.
+   */
+
+  static final int PACKET_DATA_BYTES = 120;
+
+  /**
+   * The size of a dump header message, including the 0xF0 and 0xF7 bytes.
+   */
+
+  static final int MESSAGE_LENGTH = 21;
+
+  private final int sampleNumber;
+  private final int bitsPerSample;
+  private final int samplePeriod;
+  private final int length;
+  private final int loopStart;
+  private final int loopEnd;
+  private final int loopType;
+
+  /**
+   * Creates a header.
+   *
+   * @param sampleNumber  the number of the sample in the sampler, from 0 to 16383
+   * @param bitsPerSample the resolution of each sample, from 8 to 28
+   * @param samplePeriod  the time between samples in nanoseconds, from 1 to {@link #MAX_WORDS}
+   * @param length        the number of words in the sample, up to {@link #MAX_WORDS}
+   * @param loopStart     the first word of the sustain loop
+   * @param loopEnd       the last word of the sustain loop
+   * @param loopType      {@link #LOOP_FORWARD}, {@link #LOOP_ALTERNATING} or {@link #LOOP_OFF}
+   *
+   * @throws IllegalArgumentException if any value is out of range
+   */
+
+  public SampleDumpHeader(final int sampleNumber, final int bitsPerSample, final int samplePeriod, final int length,
+                          final int loopStart, final int loopEnd, final int loopType) {
+
+    if ( sampleNumber < 0 || sampleNumber > 0x3fff ) {
+
+      throw new IllegalArgumentException("sampleNumber must be from 0 to 16383");
+
+    }
+
+    if ( bitsPerSample < 8 || bitsPerSample > 28 ) {
+
+      throw new IllegalArgumentException("bitsPerSample must be from 8 to 28");
+
+    }
+
+    if ( samplePeriod < 1 || samplePeriod > MAX_WORDS ) {
+
+      throw new IllegalArgumentException("samplePeriod must be from 1 to " + MAX_WORDS + " nanoseconds");
+
+    }
+
+    if ( length < 0 || length > MAX_WORDS || loopStart < 0 || loopStart > MAX_WORDS || loopEnd < 0
+         || loopEnd > MAX_WORDS ) {
+
+      throw new IllegalArgumentException("length and loop points must be from 0 to " + MAX_WORDS);
+
+    }
+
+    if ( loopType != LOOP_FORWARD && loopType != LOOP_ALTERNATING && loopType != LOOP_OFF ) {
+
+      throw new IllegalArgumentException("loopType must be LOOP_FORWARD, LOOP_ALTERNATING or LOOP_OFF");
+
+    }
+
+    this.sampleNumber = sampleNumber;
+    this.bitsPerSample = bitsPerSample;
+    this.samplePeriod = samplePeriod;
+    this.length = length;
+    this.loopStart = loopStart;
+    this.loopEnd = loopEnd;
+    this.loopType = loopType;
+
+  }
+
+  /**
+   * Creates a header for a sample without a sustain loop.
+   *
+   * @param sampleNumber  the number of the sample in the sampler, from 0 to 16383
+   * @param bitsPerSample the resolution of each sample, from 8 to 28
+   * @param sampleRate    the sample rate in hertz, which is rounded to the nearest whole nanosecond period
+   * @param length        the number of words in the sample, up to {@link #MAX_WORDS}
+   *
+   * @throws IllegalArgumentException if any value is out of range
+   */
+
+  public SampleDumpHeader(final int sampleNumber, final int bitsPerSample, final double sampleRate,
+                          final int length) {
+
+    this(sampleNumber, bitsPerSample, (int) Math.min(Math.round(1e9 / sampleRate), Integer.MAX_VALUE), length, 0, 0,
+         LOOP_OFF);
+
+  }
+
+  /**
+   * Parses a dump header message.
+   *
+   * @param data   the message, starting with 0xF0
+   * @param length the number of bytes of the message in the array
+   *
+   * @return the header
+   *
+   * @throws InvalidMidiDataException if the message is not a valid dump header
+   */
+
+  public static SampleDumpHeader fromMessage(final byte[] data, final int length) throws InvalidMidiDataException {
+
+    if ( length != MESSAGE_LENGTH || (data[0] & 0xff) != 0xf0 || data[1] != SampleDumpEngine.UNIVERSAL_NON_REAL_TIME
+         || data[3] != SampleDumpEngine.DUMP_HEADER || (data[MESSAGE_LENGTH - 1] & 0xff) != 0xf7 ) {
+
+      throw new InvalidMidiDataException("Not a sample dump header");
+
+    }
+
+    try {
+
+      return new SampleDumpHeader(data[4] | (data[5] << 7), data[6], readField(data, 7), readField(data, 10),
+                                  readField(data, 13), readField(data, 16), data[19]);
+
+    } catch (IllegalArgumentException e) {
+
+      throw new InvalidMidiDataException("Invalid sample dump header: " + e.getMessage());
+
+    }
+
+  }
+
+  /**
+   * Builds the dump header message.
+   *
+   * @param channel the device channel the dump is addressed to, from 0 to 127
+   *
+   * @return the message, starting with 0xF0 and ending with 0xF7
+   */
+
+  public byte[] toMessage(final int channel) {
+
+    final byte[] message = new byte[MESSAGE_LENGTH];
+    message[0] = (byte) 0xf0;
+    message[1] = SampleDumpEngine.UNIVERSAL_NON_REAL_TIME;
+    message[2] = (byte) (channel & 0x7f);
+    message[3] = SampleDumpEngine.DUMP_HEADER;
+    message[4] = (byte) (sampleNumber & 0x7f);
+    message[5] = (byte) (sampleNumber >> 7);
+    message[6] = (byte) bitsPerSample;
+    writeField(message, 7, samplePeriod);
+    writeField(message, 10, length);
+    writeField(message, 13, loopStart);
+    writeField(message, 16, loopEnd);
+    message[19] = (byte) loopType;
+    message[20] = (byte) 0xf7;
+    return message;
+
+  }
+
+  /**
+   * Get the number of the sample in the sampler.
+   *
+   * @return the sample number, from 0 to 16383
+   */
+
+  public int getSampleNumber() {
+
+    return sampleNumber;
+
+  }
+
+  /**
+   * Get the resolution of each sample.
+   *
+   * @return the number of significant bits, from 8 to 28
+   */
+
+  public int getBitsPerSample() {
+
+    return bitsPerSample;
+
+  }
+
+  /**
+   * Get the time between samples.
+   *
+   * @return the sample period in nanoseconds
+   */
+
+  public int getSamplePeriod() {
+
+    return samplePeriod;
+
+  }
+
+  /**
+   * Get the sample rate implied by the sample period.
+   *
+   * @return the sample rate in hertz
+   */
+
+  public double getSampleRate() {
+
+    return 1e9 / samplePeriod;
+
+  }
+
+  /**
+   * Get the length of the sample.
+   *
+   * @return the number of words
+   */
+
+  public int getLength() {
+
+    return length;
+
+  }
+
+  /**
+   * Get the start of the sustain loop.
+   *
+   * @return the first word of the loop
+   */
+
+  public int getLoopStart() {
+
+    return loopStart;
+
+  }
+
+  /**
+   * Get the end of the sustain loop.
+   *
+   * @return the last word of the loop
+   */
+
+  public int getLoopEnd() {
+
+    return loopEnd;
+
+  }
+
+  /**
+   * Get the kind of sustain loop.
+   *
+   * @return {@link #LOOP_FORWARD}, {@link #LOOP_ALTERNATING} or {@link #LOOP_OFF}
+   */
+
+  public int getLoopType() {
+
+    return loopType;
+
+  }
+
+  /**
+   * Get how many bytes each word takes up in a buffer or file.
+   *
+   * @return the number of bytes, from 1 to 4
+   */
+
+  public int getBytesPerWord() {
+
+    return (bitsPerSample + 7) / 8;
+
+  }
+
+  /**
+   * Get how many bytes the whole sample takes up in a buffer or file.
+   *
+   * @return the number of bytes
+   */
+
+  public int getDataSize() {
+
+    return length * getBytesPerWord();
+
+  }
+
+  /**
+   * Get how many seven-bit bytes each word takes up in a data packet.
+   *
+   * @return the number of bytes, from 2 to 4
+   */
+
+  int getPacketBytesPerWord() {
+
+    return (bitsPerSample + 6) / 7;
+
+  }
+
+  /**
+   * Get how many words each data packet carries.
+   *
+   * @return the number of words
+   */
+
+  int getWordsPerPacket() {
+
+    return PACKET_DATA_BYTES / getPacketBytesPerWord();
+
+  }
+
+  /**
+   * Get how many data packets it takes to transfer the sample.
+   *
+   * @return the number of packets
+   */
+
+  public int getPacketCount() {
+
+    final int wordsPerPacket = getWordsPerPacket();
+    return (length + wordsPerPacket - 1) / wordsPerPacket;
+
+  }
+
+  /**
+   * Reads a 21-bit field sent as three seven-bit bytes, least significant first.
+   *
+   * @param data   the message
+   * @param offset where the field starts
+   *
+   * @return the value
+   */
+
+  private static int readField(final byte[] data, final int offset) {
+
+    return (data[offset] & 0x7f) | ((data[offset + 1] & 0x7f) << 7) | ((data[offset + 2] & 0x7f) << 14);
+
+  }
+
+  /**
+   * Writes a 21-bit field as three seven-bit bytes, least significant first.
+   *
+   * @param data   the message
+   * @param offset where the field starts
+   * @param value  the value
+   */
+
+  private static void writeField(final byte[] data, final int offset, final int value) {
+
+    data[offset] = (byte) (value & 0x7f);
+    data[offset + 1] = (byte) ((value >> 7) & 0x7f);
+    data[offset + 2] = (byte) ((value >> 14) & 0x7f);
+
+  }
+
+  @Override
+  public boolean equals(final Object other) {
+
+    if ( !(other instanceof SampleDumpHeader) ) {
+
+      return false;
+
+    }
+
+    final SampleDumpHeader header = (SampleDumpHeader) other;
+    return sampleNumber == header.sampleNumber && bitsPerSample == header.bitsPerSample
+           && samplePeriod == header.samplePeriod && length == header.length && loopStart == header.loopStart
+           && loopEnd == header.loopEnd && loopType == header.loopType;
+
+  }
+
+  @Override
+  public int hashCode() {
+
+    int result = sampleNumber;
+    result = 31 * result + bitsPerSample;
+    result = 31 * result + samplePeriod;
+    result = 31 * result + length;
+    result = 31 * result + loopStart;
+    result = 31 * result + loopEnd;
+    return 31 * result + loopType;
+
+  }
+
+  @Override
+  public String toString() {
+
+    return "SampleDumpHeader[sample " + sampleNumber + ", " + bitsPerSample + " bits, " + samplePeriod + " ns, "
+           + length + " words, loop " + loopStart + "-" + loopEnd + " type " + loopType + "]";
+
+  }
+
+}
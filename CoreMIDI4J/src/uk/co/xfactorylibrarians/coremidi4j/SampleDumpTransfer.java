@@ -0,0 +1,400 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A sample dump being sent or received by a {@link SampleDumpEngine}, and its progress. The transfer completes with
+ * the header of the sample; if it fails, {@link #get()} throws an {@link ExecutionException} caused by an
+ * {@code IOException} when the other side cancelled the dump or a packet could not be delivered, or by a
+ * {@link TimeoutException} when the other side stopped responding. The progress methods can be called at any time,
+ * from any thread.
+ *
+ */
+
+public final class SampleDumpTransfer implements Future<SampleDumpHeader> {
+
+  private final boolean sending;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final long startTime = LookaheadScheduler.now();
+  private volatile long endTime;
+  private volatile SampleDumpHeader header;
+  private volatile ByteBuffer data;
+  private volatile Throwable failure;
+  private volatile boolean cancelled;
+  private volatile boolean openLoop;
+  private volatile int packetsTransferred;
+  private volatile int retransmissions;
+  private volatile int unacknowledged;
+
+  /**
+   * Creates a transfer; only {@link SampleDumpEngine} does this.
+   *
+   * @param sending true if the sample is being sent to the device, false if it is being received
+   * @param header  the header of the sample, or null if it is being received and the header has not arrived yet
+   * @param data    where the sample data comes from or goes to, or null if a buffer has yet to be mapped from a file
+   */
+
+  SampleDumpTransfer(final boolean sending, final SampleDumpHeader header, final ByteBuffer data) {
+
+    this.sending = sending;
+    this.header = header;
+    this.data = data;
+
+  }
+
+  /**
+   * Check whether the sample is being sent to the device or received from it.
+   *
+   * @return true if it is being sent
+   */
+
+  public boolean isSending() {
+
+    return sending;
+
+  }
+
+  /**
+   * Get the header of the sample being transferred.
+   *
+   * @return the header, or null if the sample is being received and the header has not arrived yet
+   */
+
+  public SampleDumpHeader getHeader() {
+
+    return header;
+
+  }
+
+  /**
+   * Get the buffer the sample data is being read from or written to. The data starts at the position the buffer had
+   * when the transfer began, and the position is not changed.
+   *
+   * @return the buffer, or null if the sample is being received into a file and the header has not arrived yet
+   */
+
+  public ByteBuffer getData() {
+
+    return data;
+
+  }
+
+  /**
+   * Check whether the sample is being sent without handshaking, because the receiver never acknowledged the header
+   * or handshaking was switched off.
+   *
+   * @return true if packets are being sent without waiting for each one to be acknowledged
+   */
+
+  public boolean isOpenLoop() {
+
+    return openLoop;
+
+  }
+
+  /**
+   * Get the number of data packets the sample takes.
+   *
+   * @return the number of packets, or zero if the header has not arrived yet
+   */
+
+  public int getPacketCount() {
+
+    final SampleDumpHeader current = header;
+    return (current == null) ? 0 : current.getPacketCount();
+
+  }
+
+  /**
+   * Get the number of data packets transferred so far. When sending with handshaking, only packets which have been
+   * acknowledged, or whose acknowledgement timed out, are counted.
+   *
+   * @return the number of packets
+   */
+
+  public int getPacketsTransferred() {
+
+    return packetsTransferred;
+
+  }
+
+  /**
+   * Get the number of bytes of sample data transferred so far, counted as they are in the buffer rather than in the
+   * seven-bit packets.
+   *
+   * @return the number of bytes
+   */
+
+  public long getBytesTransferred() {
+
+    final SampleDumpHeader current = header;
+
+    if ( current == null ) {
+
+      return 0;
+
+    }
+
+    final long words = Math.min((long) packetsTransferred * current.getWordsPerPacket(), current.getLength());
+    return words * current.getBytesPerWord();
+
+  }
+
+  /**
+   * Get the number of packets, including the header, which had to be sent again because the receiver reported that
+   * they arrived damaged. When receiving, this counts the damaged or out of sequence packets that were rejected.
+   *
+   * @return the number of retransmissions
+   */
+
+  public int getRetransmissions() {
+
+    return retransmissions;
+
+  }
+
+  /**
+   * Get the number of packets sent with handshaking whose acknowledgement never arrived, which were assumed to have
+   * been received, as the Sample Dump Standard requires.
+   *
+   * @return the number of packets
+   */
+
+  public int getUnacknowledgedCount() {
+
+    return unacknowledged;
+
+  }
+
+  /**
+   * Get how long the transfer has been running, or how long it took if it is done.
+   *
+   * @return the elapsed time in microseconds
+   */
+
+  public long getElapsedTime() {
+
+    return (isDone() ? endTime : LookaheadScheduler.now()) - startTime;
+
+  }
+
+  /**
+   * Get the rate at which sample data has been transferred, from the start of the transfer until now or until it
+   * finished.
+   *
+   * @return the throughput in bytes of sample data per second
+   */
+
+  public double getThroughput() {
+
+    final long elapsed = getElapsedTime();
+    return (elapsed <= 0) ? 0.0 : getBytesTransferred() * 1e6 / elapsed;
+
+  }
+
+  /**
+   * Records the header once it has arrived.
+   *
+   * @param header the header
+   * @param data   the buffer the sample data will be written to
+   */
+
+  void started(final SampleDumpHeader header, final ByteBuffer data) {
+
+    this.data = data;
+    this.header = header;
+
+  }
+
+  /**
+   * Records that the sample is being sent without handshaking.
+   */
+
+  void setOpenLoop() {
+
+    openLoop = true;
+
+  }
+
+  /**
+   * Records how many packets have been transferred.
+   *
+   * @param count the number of packets
+   */
+
+  void setPacketsTransferred(final int count) {
+
+    packetsTransferred = count;
+
+  }
+
+  /**
+   * Records that a packet was sent again, or rejected.
+   */
+
+  void retransmitted() {
+
+    retransmissions++;
+
+  }
+
+  /**
+   * Records that a packet was assumed to have been received because its acknowledgement never came.
+   */
+
+  void unacknowledged() {
+
+    unacknowledged++;
+
+  }
+
+  /**
+   * Completes the transfer successfully.
+   *
+   * @return false if the transfer was already done
+   */
+
+  synchronized boolean complete() {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    endTime = LookaheadScheduler.now();
+    done.countDown();
+    return true;
+
+  }
+
+  /**
+   * Completes the transfer unsuccessfully.
+   *
+   * @param cause why it failed
+   *
+   * @return false if the transfer was already done
+   */
+
+  synchronized boolean fail(final Throwable cause) {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    failure = cause;
+    endTime = LookaheadScheduler.now();
+    done.countDown();
+    return true;
+
+  }
+
+  /**
+   * Cancels the transfer. The engine notices within a few milliseconds, and tells the other side by sending a
+   * CANCEL message; until then the engine cannot start another transfer.
+   *
+   * @param mayInterruptIfRunning ignored, since the engine always stops at the next opportunity
+   *
+   * @return false if the transfer was already done
+   */
+
+  @Override
+  public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    cancelled = true;
+    endTime = LookaheadScheduler.now();
+    done.countDown();
+    return true;
+
+  }
+
+  @Override
+  public boolean isCancelled() {
+
+    return cancelled;
+
+  }
+
+  @Override
+  public boolean isDone() {
+
+    return done.getCount() == 0;
+
+  }
+
+  @Override
+  public SampleDumpHeader get() throws InterruptedException, ExecutionException {
+
+    done.await();
+    return result();
+
+  }
+
+  @Override
+  public SampleDumpHeader get(final long time, final TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+
+    if ( !done.await(time, unit) ) {
+
+      throw new TimeoutException("Sample dump still in progress");
+
+    }
+
+    return result();
+
+  }
+
+  /**
+   * Reports how the transfer completed.
+   *
+   * @return the header of the sample
+   *
+   * @throws ExecutionException if the transfer failed
+   * @throws CancellationException if the transfer was cancelled
+   */
+
+  private SampleDumpHeader result() throws ExecutionException {
+
+    if ( cancelled ) {
+
+      throw new CancellationException("Sample dump was cancelled");
+
+    }
+
+    if ( failure != null ) {
+
+      throw new ExecutionException(failure);
+
+    }
+
+    return header;
+
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.midi.MidiDeviceReceiver;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+
+/**
+ * The destinations and receivers that a generator driven by a {@link LookaheadScheduler} sends its messages to,
+ * each wrapped in a {@link TimestampedOutput}. Keeps track of which receivers it opened itself, so that it closes
+ * those and only those.
+ *
+ */
+
+final class ScheduledOutputs {
+
+  private final List<TimestampedOutput> outputs = new CopyOnWriteArrayList<>();
+  private final List<Receiver> openedReceivers = new CopyOnWriteArrayList<>();
+
+  /**
+   * Adds a destination, opening it if necessary.
+   *
+   * @param destination the destination
+   *
+   * @throws MidiUnavailableException if the destination cannot be opened
+   */
+
+  void addDestination(final CoreMidiDestination destination) throws MidiUnavailableException {
+
+    if ( !destination.isOpen() ) {
+
+      destination.open();
+
+    }
+
+    final Receiver receiver = destination.getReceiver();
+    openedReceivers.add(receiver);
+    addReceiver(receiver);
+
+  }
+
+  /**
+   * Removes a destination, closing the receivers which were opened on it by
+   * {@link #addDestination(CoreMidiDestination)}. The destination itself is left open.
+   *
+   * @param destination the destination
+   */
+
+  void removeDestination(final CoreMidiDestination destination) {
+
+    for ( TimestampedOutput output : outputs ) {
+
+      final Receiver receiver = output.getReceiver();
+
+      if ( openedReceivers.contains(receiver) && ((MidiDeviceReceiver) receiver).getMidiDevice() == destination ) {
+
+        outputs.remove(output);
+        openedReceivers.remove(receiver);
+        receiver.close();
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Adds a receiver, measuring its device's clock straight away in case messages are already being sent.
+   *
+   * @param receiver the receiver
+   */
+
+  void addReceiver(final Receiver receiver) {
+
+    final TimestampedOutput output = new TimestampedOutput(receiver);
+    output.synchronize();
+    outputs.add(output);
+
+  }
+
+  /**
+   * Removes a receiver without closing it.
+   *
+   * @param receiver the receiver
+   */
+
+  void removeReceiver(final Receiver receiver) {
+
+    for ( TimestampedOutput output : outputs ) {
+
+      if ( output.getReceiver() == receiver ) {
+
+        outputs.remove(output);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Measures the clock of every receiver's device, as must be done before sending starts.
+   */
+
+  void synchronize() {
+
+    for ( TimestampedOutput output : outputs ) {
+
+      output.synchronize();
+
+    }
+
+  }
+
+  /**
+   * Sends a message to every receiver.
+   *
+   * @param message the message
+   * @param due     when it should be delivered, on the scheduler's clock
+   */
+
+  void send(final MidiMessage message, final long due) {
+
+    for ( TimestampedOutput output : outputs ) {
+
+      output.send(message, due);
+
+    }
+
+  }
+
+  /**
+   * Removes every receiver, closing those opened by {@link #addDestination(CoreMidiDestination)}.
+   */
+
+  void close() {
+
+    outputs.clear();
+
+    for ( Receiver receiver : openedReceivers ) {
+
+      receiver.close();
+
+    }
+
+    openedReceivers.clear();
+
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * A snapshot of how well a component which sends timestamped messages ahead of time, such as
+ * {@link CoreMidiSequencer}, has been keeping up. Each time its scheduling thread wakes up, the difference between
+ * when it asked to wake and when it actually did is measured; as long as that stays below the lookahead, every
+ * message reaches CoreMIDI before it is due and is delivered exactly on time.
+ *
+ */
+
+public final class SchedulingStatistics {
+
+  private final long lookahead;
+  private final long eventCount;
+  private final long lateEventCount;
+  private final long minimumLead;
+  private final long wakeupCount;
+  private final long meanWakeupLateness;
+  private final long maximumWakeupLateness;
+
+  SchedulingStatistics(final long lookahead, final long eventCount, final long lateEventCount,
+                       final long minimumLead, final long wakeupCount, final long meanWakeupLateness,
+                       final long maximumWakeupLateness) {
+
+    this.lookahead = lookahead;
+    this.eventCount = eventCount;
+    this.lateEventCount = lateEventCount;
+    this.minimumLead = minimumLead;
+    this.wakeupCount = wakeupCount;
+    this.meanWakeupLateness = meanWakeupLateness;
+    this.maximumWakeupLateness = maximumWakeupLateness;
+
+  }
+
+  /**
+   * Gets how far ahead of time messages are meant to be handed to CoreMIDI.
+   *
+   * @return the lookahead, in microseconds
+   */
+
+  public long getLookahead() {
+
+    return lookahead;
+
+  }
+
+  /**
+   * Gets the number of messages that have been scheduled.
+   *
+   * @return the number of messages
+   */
+
+  public long getEventCount() {
+
+    return eventCount;
+
+  }
+
+  /**
+   * Gets the number of messages which were handed over after the time they were due, and so were delivered late.
+   *
+   * @return the number of late messages
+   */
+
+  public long getLateEventCount() {
+
+    return lateEventCount;
+
+  }
+
+  /**
+   * Gets the shortest time by which a message was handed over ahead of when it was due.
+   *
+   * @return the smallest lead in microseconds, negative if a message was late, or 0 if none have been scheduled
+   */
+
+  public long getMinimumLead() {
+
+    return minimumLead;
+
+  }
+
+  /**
+   * Gets the number of times the scheduling thread has woken up.
+   *
+   * @return the number of wake-ups
+   */
+
+  public long getWakeupCount() {
+
+    return wakeupCount;
+
+  }
+
+  /**
+   * Gets the average time by which the scheduling thread woke up later than it asked to: its scheduling jitter.
+   *
+   * @return the mean lateness, in microseconds
+   */
+
+  public long getMeanWakeupLateness() {
+
+    return meanWakeupLateness;
+
+  }
+
+  /**
+   * Gets the longest time by which the scheduling thread woke up later than it asked to.
+   *
+   * @return the maximum lateness, in microseconds
+   */
+
+  public long getMaximumWakeupLateness() {
+
+    return maximumWakeupLateness;
+
+  }
+
+  @Override
+  public String toString() {
+
+    return "SchedulingStatistics[lookahead=" + lookahead + "us, events=" + eventCount + ", late=" + lateEventCount
+        + ", minimumLead=" + minimumLead + "us, wakeups=" + wakeupCount + ", meanWakeupLateness="
+        + meanWakeupLateness + "us, maximumWakeupLateness=" + maximumWakeupLateness + "us]";
+
+  }
+
+}
@@ -0,0 +1,1074 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * <p>A pure Java stand-in for CoreMIDI, which lets the whole of the library above the JNI layer (device enumeration,
+ * the device map, message parsing and dispatch, notifications) run on any operating system. It is used in place of
+ * the native library when the system property {@value CoreMidi4J#BACKEND_PROPERTY} is set to {@code simulated}
+ * before the library is first used; the instance returned by {@link #getInstance()} can then be scripted to set up
+ * the MIDI environment that tests or benchmarks need:</p>
+ *
+ * <ul>
+ *   <li>Virtual end points are created with {@link #addSource(String, String)} and
+ *   {@link #addDestination(String, String)}, and appear as ordinary {@link CoreMidiSource} and
+ *   {@link CoreMidiDestination} devices.</li>
+ *   <li>Hot-plug events are simulated with {@link #unplug(int)} and {@link #replug(int)}, which notify the library
+ *   just as CoreMIDI would, and can be scripted to happen at particular times with
+ *   {@link #schedule(long, Runnable)}.</li>
+ *   <li>Input is injected with {@link #receive(int, byte[], long)}, split into packets no larger than
+ *   {@link #setMaxPacketSize(int)} so that the parser sees messages fragmented across packets.</li>
+ *   <li>Messages sent to a destination are reported to any {@link DestinationListener}, and can be looped back
+ *   into a source with {@link #setLoopback(int, int)} to measure the full round trip.</li>
+ *   <li>Time normally follows the real clock, but {@link #useManualClock()} freezes it so that
+ *   {@link #advanceClock(long)} can step through timestamped messages and scripted events deterministically.</li>
+ * </ul>
+ *
+ * <p>Operations on end points identify them by the unique IDs returned when they were created.</p>
+ *
+ */
+
+public final class SimulatedCoreMidiBackend implements CoreMidiBackend {
+
+  /**
+   * The interface for a class that wants to see the messages sent to simulated destinations.
+   */
+
+  public interface DestinationListener {
+
+    /**
+     * Called when a message arrives at a simulated destination. For messages sent with a timestamp in the future,
+     * this happens when the backend clock reaches that time.
+     *
+     * @param destinationUniqueID the unique ID of the destination end point
+     * @param data                the bytes of the message, as CoreMIDI would have put them on the wire
+     * @param timestamp           the time at which the message was to take effect, in microseconds on the backend
+     *                            clock, or zero if it was to take effect immediately
+     */
+
+    void messageReceived(int destinationUniqueID, byte[] data, long timestamp);
+
+  }
+
+  /**
+   * The largest packet CoreMIDI delivers by default in a single {@code MIDIPacket}.
+   */
+
+  private static final int DEFAULT_MAX_PACKET_SIZE = 256;
+
+  /**
+   * Where the simulated clock starts, so that no real timestamp can be mistaken for zero, meaning "now".
+   */
+
+  private static final long CLOCK_START_MICROS = 1000000;
+
+  private static final SimulatedCoreMidiBackend instance = new SimulatedCoreMidiBackend();
+
+  /**
+   * Describes a simulated physical device, which has a single entity holding all of its end points.
+   */
+
+  private static final class VirtualDevice {
+
+    final String name;
+    final int deviceReference;
+    final int deviceUniqueID;
+    final int entityReference;
+    final int entityUniqueID;
+
+    VirtualDevice(final String name, final int deviceReference, final int deviceUniqueID,
+                  final int entityReference, final int entityUniqueID) {
+
+      this.name = name;
+      this.deviceReference = deviceReference;
+      this.deviceUniqueID = deviceUniqueID;
+      this.entityReference = entityReference;
+      this.entityUniqueID = entityUniqueID;
+
+    }
+
+  }
+
+  /**
+   * Describes a simulated end point. Its reference changes each time it is plugged back in, as with CoreMIDI.
+   */
+
+  private static final class VirtualEndPoint {
+
+    final VirtualDevice device;
+    final boolean isSource;
+    final String name;
+    final int uniqueID;
+    final Set<CoreMidiSource> connectedSources = new CopyOnWriteArraySet<>();
+    volatile int reference;          // Zero while the end point is unplugged
+    volatile int loopbackUniqueID;   // For a destination, the source to which messages are looped back, if any
+
+    VirtualEndPoint(final VirtualDevice device, final boolean isSource, final String name, final int uniqueID) {
+
+      this.device = device;
+      this.isSource = isSource;
+      this.name = name;
+      this.uniqueID = uniqueID;
+
+    }
+
+  }
+
+  /**
+   * Records a source connected to an input port.
+   */
+
+  private static final class Connection {
+
+    final VirtualEndPoint endPoint;
+    final CoreMidiSource source;
+
+    Connection(final VirtualEndPoint endPoint, final CoreMidiSource source) {
+
+      this.endPoint = endPoint;
+      this.source = source;
+
+    }
+
+  }
+
+  /**
+   * Something scheduled to happen when the backend clock reaches a particular time.
+   */
+
+  private static final class ScheduledEvent implements Comparable<ScheduledEvent> {
+
+    final long time;
+    final long sequence;   // Keeps events scheduled for the same time in the order they were scheduled
+    final Runnable action;
+
+    ScheduledEvent(final long time, final long sequence, final Runnable action) {
+
+      this.time = time;
+      this.sequence = sequence;
+      this.action = action;
+
+    }
+
+    @Override
+    public int compareTo(final ScheduledEvent other) {
+
+      if ( time != other.time ) {
+
+        return (time < other.time) ? -1 : 1;
+
+      }
+
+      return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+
+    }
+
+  }
+
+  private final AtomicInteger nextReference = new AtomicInteger(0x1000);
+  private final AtomicInteger nextUniqueID = new AtomicInteger(0x53494d00);
+  private final AtomicLong nextConnectionHandle = new AtomicLong(1);
+  private final AtomicLong nextEventSequence = new AtomicLong(0);
+
+  private final Map<String, VirtualDevice> devices = new HashMap<>();            // Guarded by itself
+  private final Map<Integer, VirtualEndPoint> endPoints = new ConcurrentHashMap<>();     // By unique ID
+  private final Map<Integer, VirtualEndPoint> pluggedIn = new ConcurrentHashMap<>();     // By reference
+  private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+  private final List<CoreMidiClient> clients = new CopyOnWriteArrayList<>();
+  private final Set<DestinationListener> destinationListeners = new CopyOnWriteArraySet<>();
+
+  private volatile List<VirtualEndPoint> sources = Collections.emptyList();       // In enumeration order
+  private volatile List<VirtualEndPoint> destinations = Collections.emptyList();  // In enumeration order
+  private volatile int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+
+  private final PriorityQueue<ScheduledEvent> events = new PriorityQueue<>();     // Guarded by itself
+  private final long clockOrigin = System.nanoTime();
+  private volatile long clockOffset = CLOCK_START_MICROS;
+  private volatile boolean manualClock = false;
+  private volatile long manualTime;
+
+  /**
+   * Prevent instantiation other than of our singleton.
+   */
+
+  private SimulatedCoreMidiBackend() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * Gets the simulated backend. It is only used by the library if it was selected through
+   * {@value CoreMidi4J#BACKEND_PROPERTY}, but can be set up before or after the library starts.
+   *
+   * @return the single simulated backend
+   */
+
+  public static SimulatedCoreMidiBackend getInstance() {
+
+    return instance;
+
+  }
+
+  /**
+   * Creates a simulated source end point, which is plugged in straight away.
+   *
+   * @param deviceName   the name of the physical device the source belongs to; end points created with the same
+   *                     device name belong to the same device
+   * @param endPointName the name of the end point itself
+   *
+   * @return the unique ID of the new source
+   */
+
+  public int addSource(final String deviceName, final String endPointName) {
+
+    return addEndPoint(deviceName, endPointName, true);
+
+  }
+
+  /**
+   * Creates a simulated destination end point, which is plugged in straight away.
+   *
+   * @param deviceName   the name of the physical device the destination belongs to; end points created with the
+   *                     same device name belong to the same device
+   * @param endPointName the name of the end point itself
+   *
+   * @return the unique ID of the new destination
+   */
+
+  public int addDestination(final String deviceName, final String endPointName) {
+
+    return addEndPoint(deviceName, endPointName, false);
+
+  }
+
+  /**
+   * Creates an end point and plugs it in.
+   *
+   * @param deviceName   the name of the device the end point belongs to
+   * @param endPointName the name of the end point
+   * @param isSource     whether the end point is a source rather than a destination
+   *
+   * @return the unique ID of the new end point
+   */
+
+  private int addEndPoint(final String deviceName, final String endPointName, final boolean isSource) {
+
+    VirtualDevice device;
+
+    synchronized (devices) {
+
+      device = devices.get(deviceName);
+
+      if ( device == null ) {
+
+        device = new VirtualDevice(deviceName, nextReference.getAndIncrement(), nextUniqueID.getAndIncrement(),
+                                   nextReference.getAndIncrement(), nextUniqueID.getAndIncrement());
+        devices.put(deviceName, device);
+
+      }
+
+    }
+
+    final VirtualEndPoint endPoint = new VirtualEndPoint(device, isSource, endPointName,
+                                                         nextUniqueID.getAndIncrement());
+    endPoints.put(endPoint.uniqueID, endPoint);
+    plugIn(endPoint);
+    return endPoint.uniqueID;
+
+  }
+
+  /**
+   * Simulates an end point being unplugged: it disappears from the enumeration, any connections to it are dropped,
+   * and the library is notified of the change. Does nothing if it is already unplugged.
+   *
+   * @param uniqueID the unique ID of the end point
+   *
+   * @throws IllegalArgumentException if there is no simulated end point with that unique ID
+   */
+
+  public void unplug(final int uniqueID) {
+
+    final VirtualEndPoint endPoint = findEndPoint(uniqueID);
+
+    synchronized (this) {
+
+      if ( endPoint.reference == 0 ) {
+
+        return;
+
+      }
+
+      pluggedIn.remove(endPoint.reference);
+      endPoint.reference = 0;
+      endPoint.connectedSources.clear();
+
+      if ( endPoint.isSource ) {
+
+        sources = without(sources, endPoint);
+
+      } else {
+
+        destinations = without(destinations, endPoint);
+
+      }
+
+    }
+
+    notifyClients();
+
+  }
+
+  /**
+   * Simulates an unplugged end point being plugged back in. It keeps its unique ID but gets a new reference, as it
+   * would from CoreMIDI, and the library is notified of the change. Does nothing if it is already plugged in.
+   *
+   * @param uniqueID the unique ID of the end point
+   *
+   * @throws IllegalArgumentException if there is no simulated end point with that unique ID
+   */
+
+  public void replug(final int uniqueID) {
+
+    plugIn(findEndPoint(uniqueID));
+
+  }
+
+  /**
+   * Checks whether an end point is currently plugged in.
+   *
+   * @param uniqueID the unique ID of the end point
+   *
+   * @return true if the end point is present in the enumeration
+   *
+   * @throws IllegalArgumentException if there is no simulated end point with that unique ID
+   */
+
+  public boolean isPluggedIn(final int uniqueID) {
+
+    return findEndPoint(uniqueID).reference != 0;
+
+  }
+
+  /**
+   * Plugs in an end point, giving it a new reference, and tells the library about it.
+   *
+   * @param endPoint the end point to plug in
+   */
+
+  private void plugIn(final VirtualEndPoint endPoint) {
+
+    synchronized (this) {
+
+      if ( endPoint.reference != 0 ) {
+
+        return;
+
+      }
+
+      endPoint.reference = nextReference.getAndIncrement();
+      pluggedIn.put(endPoint.reference, endPoint);
+
+      if ( endPoint.isSource ) {
+
+        sources = with(sources, endPoint);
+
+      } else {
+
+        destinations = with(destinations, endPoint);
+
+      }
+
+    }
+
+    notifyClients();
+
+  }
+
+  /**
+   * Makes a copy of an end point list with an additional end point at the end.
+   *
+   * @param list     the current list
+   * @param endPoint the end point to add
+   *
+   * @return the new list
+   */
+
+  private static List<VirtualEndPoint> with(final List<VirtualEndPoint> list, final VirtualEndPoint endPoint) {
+
+    final List<VirtualEndPoint> result = new ArrayList<>(list);
+    result.add(endPoint);
+    return Collections.unmodifiableList(result);
+
+  }
+
+  /**
+   * Makes a copy of an end point list without a particular end point.
+   *
+   * @param list     the current list
+   * @param endPoint the end point to leave out
+   *
+   * @return the new list
+   */
+
+  private static List<VirtualEndPoint> without(final List<VirtualEndPoint> list, final VirtualEndPoint endPoint) {
+
+    final List<VirtualEndPoint> result = new ArrayList<>(list);
+    result.remove(endPoint);
+    return Collections.unmodifiableList(result);
+
+  }
+
+  /**
+   * Tells every client that the MIDI environment has changed, as CoreMIDI does.
+   */
+
+  private void notifyClients() {
+
+    for ( CoreMidiClient client : clients ) {
+
+      try {
+
+        client.notifyCallback();
+
+      } catch (CoreMidiException e) {
+
+        System.err.println("Problem delivering simulated MIDI environment change notification: " + e);
+        e.printStackTrace(System.err);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Finds a simulated end point by unique ID.
+   *
+   * @param uniqueID the unique ID of the end point
+   *
+   * @return the end point
+   *
+   * @throws IllegalArgumentException if there is no simulated end point with that unique ID
+   */
+
+  private VirtualEndPoint findEndPoint(final int uniqueID) {
+
+    final VirtualEndPoint endPoint = endPoints.get(uniqueID);
+
+    if ( endPoint == null ) {
+
+      throw new IllegalArgumentException("No simulated end point with unique ID " + uniqueID);
+
+    }
+
+    return endPoint;
+
+  }
+
+  /**
+   * Finds a plugged-in end point by reference, as CoreMIDI would resolve it.
+   *
+   * @param reference the reference to the end point
+   * @param operation the name of the CoreMIDI operation, for the error message
+   *
+   * @return the end point
+   *
+   * @throws CoreMidiException if there is no plugged-in end point with that reference
+   */
+
+  private VirtualEndPoint resolve(final int reference, final String operation) throws CoreMidiException {
+
+    final VirtualEndPoint endPoint = pluggedIn.get(reference);
+
+    if ( endPoint == null ) {
+
+      throw new CoreMidiException(operation + " - no simulated end point with reference " + reference);
+
+    }
+
+    return endPoint;
+
+  }
+
+  /**
+   * Controls the largest packet in which injected input is delivered to sources. Messages longer than this,
+   * including System Exclusive messages, arrive split across several packets, and several short messages in one
+   * call to {@link #receive(int, byte[], long)} may share a packet, or be split between two. The default is 256.
+   *
+   * @param size the maximum number of bytes per packet
+   *
+   * @throws IllegalArgumentException if {@code size} is less than one
+   */
+
+  public void setMaxPacketSize(final int size) {
+
+    if ( size < 1 ) {
+
+      throw new IllegalArgumentException("size must be at least 1");
+
+    }
+
+    maxPacketSize = size;
+
+  }
+
+  /**
+   * Check the largest packet in which injected input is delivered to sources.
+   *
+   * @return the maximum number of bytes per packet
+   */
+
+  public int getMaxPacketSize() {
+
+    return maxPacketSize;
+
+  }
+
+  /**
+   * Simulates a source end point sending MIDI data, delivering it to every {@link CoreMidiSource} connected to it
+   * in packets no larger than {@link #getMaxPacketSize()}. Deliveries for the same end point never overlap, just as
+   * CoreMIDI delivers the packets of each port on a single thread.
+   *
+   * @param sourceUniqueID the unique ID of the source end point
+   * @param data           the raw MIDI bytes
+   * @param timestamp      the time at which the data should take effect, in microseconds on the backend clock,
+   *                       or zero for immediately
+   *
+   * @throws IllegalArgumentException if there is no simulated source with that unique ID
+   */
+
+  public void receive(final int sourceUniqueID, final byte[] data, final long timestamp) {
+
+    final VirtualEndPoint endPoint = findEndPoint(sourceUniqueID);
+
+    if ( !endPoint.isSource ) {
+
+      throw new IllegalArgumentException("Simulated end point " + sourceUniqueID + " is not a source");
+
+    }
+
+    synchronized (endPoint) {
+
+      final int packetSize = maxPacketSize;
+
+      for ( int offset = 0; offset < data.length; offset += packetSize ) {
+
+        final int length = Math.min(packetSize, data.length - offset);
+
+        for ( CoreMidiSource source : endPoint.connectedSources ) {
+
+          try {
+
+            source.messageCallback(timestamp, length, Arrays.copyOfRange(data, offset, offset + length));
+
+          } catch (InvalidMidiDataException e) {
+
+            System.err.println("Problem parsing simulated MIDI input for " + source + ": " + e);
+
+          }
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Arranges for messages sent to a destination to be fed back into a source, as if the two were connected by a
+   * cable, so the whole path from a receiver to a transmitter can be exercised.
+   *
+   * @param destinationUniqueID the unique ID of the destination end point
+   * @param sourceUniqueID      the unique ID of the source end point, or zero to stop looping messages back
+   *
+   * @throws IllegalArgumentException if either end point does not exist, or is of the wrong kind
+   */
+
+  public void setLoopback(final int destinationUniqueID, final int sourceUniqueID) {
+
+    final VirtualEndPoint destination = findEndPoint(destinationUniqueID);
+
+    if ( destination.isSource || (sourceUniqueID != 0 && !findEndPoint(sourceUniqueID).isSource) ) {
+
+      throw new IllegalArgumentException("Loopback must be from a simulated destination to a simulated source");
+
+    }
+
+    destination.loopbackUniqueID = sourceUniqueID;
+
+  }
+
+  /**
+   * Adds a listener to be told about every message which arrives at a simulated destination.
+   *
+   * @param listener the listener to add
+   */
+
+  public void addDestinationListener(final DestinationListener listener) {
+
+    if ( listener != null ) {
+
+      destinationListeners.add(listener);
+
+    }
+
+  }
+
+  /**
+   * Removes a listener that had been added with {@link #addDestinationListener(DestinationListener)}.
+   *
+   * @param listener the listener to remove
+   */
+
+  public void removeDestinationListener(final DestinationListener listener) {
+
+    destinationListeners.remove(listener);
+
+  }
+
+  /**
+   * Hands a message which has arrived at a destination to the listeners, and to the looped-back source, if any.
+   *
+   * @param destination the destination end point
+   * @param data        the bytes of the message
+   * @param timestamp   the time at which the message was to take effect, or zero for immediately
+   */
+
+  private void deliver(final VirtualEndPoint destination, final byte[] data, final long timestamp) {
+
+    for ( DestinationListener listener : destinationListeners ) {
+
+      try {
+
+        listener.messageReceived(destination.uniqueID, data, timestamp);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem delivering simulated MIDI output: " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+    final int loopback = destination.loopbackUniqueID;
+
+    if ( loopback != 0 ) {
+
+      receive(loopback, data, timestamp);
+
+    }
+
+  }
+
+  /**
+   * Gets the current time on the backend clock, which is what timestamps on simulated messages are measured
+   * against.
+   *
+   * @return the current time in microseconds
+   */
+
+  public long getTime() {
+
+    if ( manualClock ) {
+
+      return manualTime;
+
+    }
+
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - clockOrigin) + clockOffset;
+
+  }
+
+  /**
+   * Stops the backend clock following real time, so that it only moves when {@link #advanceClock(long)} is called.
+   * Timestamped messages and scheduled events then happen exactly when the clock is advanced past their times.
+   */
+
+  public void useManualClock() {
+
+    synchronized (events) {
+
+      if ( !manualClock ) {
+
+        manualTime = getTime();
+        manualClock = true;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Lets the backend clock follow real time again, carrying on from wherever {@link #advanceClock(long)} left it.
+   */
+
+  public void useRealTimeClock() {
+
+    synchronized (events) {
+
+      if ( manualClock ) {
+
+        clockOffset = manualTime - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - clockOrigin);
+        manualClock = false;
+
+        if ( !events.isEmpty() ) {
+
+          wakeUpAt(events.peek().time);
+
+        }
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Moves the manual clock forward, running each timestamped message and scheduled event that falls due, in order,
+   * with the clock set to its time.
+   *
+   * @param micros how far to move the clock, in microseconds
+   *
+   * @throws IllegalArgumentException if {@code micros} is negative
+   * @throws IllegalStateException if the clock is following real time
+   */
+
+  public void advanceClock(final long micros) {
+
+    if ( micros < 0 ) {
+
+      throw new IllegalArgumentException("micros must not be negative");
+
+    }
+
+    final long target;
+
+    synchronized (events) {
+
+      if ( !manualClock ) {
+
+        throw new IllegalStateException("The simulated clock is following real time");
+
+      }
+
+      target = manualTime + micros;
+
+    }
+
+    while ( true ) {
+
+      final ScheduledEvent event;
+
+      synchronized (events) {
+
+        if ( events.isEmpty() || events.peek().time > target ) {
+
+          manualTime = target;
+          return;
+
+        }
+
+        event = events.poll();
+        manualTime = Math.max(manualTime, event.time);
+
+      }
+
+      run(event);
+
+    }
+
+  }
+
+  /**
+   * Arranges for something to happen when the backend clock reaches a particular time, such as a scripted hot-plug
+   * event. If that time has already passed, it happens straight away.
+   *
+   * @param time   when the action should happen, in microseconds on the backend clock
+   * @param action what should happen
+   */
+
+  public void schedule(final long time, final Runnable action) {
+
+    synchronized (events) {
+
+      events.add(new ScheduledEvent(time, nextEventSequence.getAndIncrement(), action));
+
+      if ( !manualClock ) {
+
+        wakeUpAt(time);
+
+      }
+
+    }
+
+    if ( !manualClock && time <= getTime() ) {
+
+      runDueEvents();
+
+    }
+
+  }
+
+  /**
+   * Arranges for due events to be run at a particular time on the real clock.
+   *
+   * @param time the time at which to run them, in microseconds on the backend clock
+   */
+
+  private void wakeUpAt(final long time) {
+
+    CoreMidiScheduler.getExecutor().schedule(new Runnable() {
+
+      @Override
+      public void run() {
+
+        runDueEvents();
+
+      }
+
+    }, Math.max(0, time - getTime()), TimeUnit.MICROSECONDS);
+
+  }
+
+  /**
+   * Runs every event whose time has come, in order.
+   */
+
+  private void runDueEvents() {
+
+    while ( true ) {
+
+      final ScheduledEvent event;
+
+      synchronized (events) {
+
+        if ( manualClock || events.isEmpty() || events.peek().time > getTime() ) {
+
+          return;
+
+        }
+
+        event = events.poll();
+
+      }
+
+      run(event);
+
+    }
+
+  }
+
+  /**
+   * Runs a scheduled event, reporting any problem rather than letting it stop the others.
+   *
+   * @param event the event to run
+   */
+
+  private static void run(final ScheduledEvent event) {
+
+    try {
+
+      event.action.run();
+
+    } catch (Throwable t) {
+
+      System.err.println("Problem running scheduled simulation event: " + t);
+      t.printStackTrace(System.err);
+
+    }
+
+  }
+
+  //////////////////////////////
+  ///// CoreMidiBackend
+  //////////////////////////////
+
+  @Override
+  public boolean isAvailable() {
+
+    return true;
+
+  }
+
+  @Override
+  public int createClient(final CoreMidiClient client, final String clientName) {
+
+    clients.add(client);
+    return nextReference.getAndIncrement();
+
+  }
+
+  @Override
+  public int createInputPort(final CoreMidiInputPort port, final int clientReference, final String portName) {
+
+    return nextReference.getAndIncrement();
+
+  }
+
+  @Override
+  public long connectSource(final CoreMidiInputPort port, final int inputPortReference,
+                            final CoreMidiSource sourceDevice) throws CoreMidiException {
+
+    final int reference = ((CoreMidiDeviceInfo) sourceDevice.getDeviceInfo()).getEndPointReference();
+    final VirtualEndPoint endPoint = resolve(reference, "MIDIPortConnectSource");
+    final long handle = nextConnectionHandle.getAndIncrement();
+    connections.put(handle, new Connection(endPoint, sourceDevice));
+    endPoint.connectedSources.add(sourceDevice);
+    return handle;
+
+  }
+
+  @Override
+  public void disconnectSource(final CoreMidiInputPort port, final int inputPortReference,
+                               final long connectionHandle, final CoreMidiSource sourceDevice) {
+
+    final Connection connection = connections.remove(connectionHandle);
+
+    if ( connection != null ) {
+
+      connection.endPoint.connectedSources.remove(connection.source);
+
+    }
+
+  }
+
+  @Override
+  public int createOutputPort(final CoreMidiOutputPort port, final int clientReference, final String portName) {
+
+    return nextReference.getAndIncrement();
+
+  }
+
+  @Override
+  public void send(final CoreMidiOutputPort port, final int outputPortReference,
+                   final int destinationEndPointReference, final MidiMessage message, final long timestamp)
+          throws CoreMidiException {
+
+    final VirtualEndPoint destination = resolve(destinationEndPointReference, "MIDISend");
+    final byte[] raw = message.getMessage();
+
+    // Java represents continuations of incomplete SysEx messages as having a status code of 0xf7, which CoreMIDI
+    // would never see, so strip it off as the native code does.
+    final byte[] data = (raw.length > 0 && raw[0] == (byte) 0xf7) ? Arrays.copyOfRange(raw, 1, raw.length) : raw;
+
+    if ( timestamp != 0 && timestamp > getTime() ) {
+
+      schedule(timestamp, new Runnable() {
+
+        @Override
+        public void run() {
+
+          deliver(destination, data, timestamp);
+
+        }
+
+      });
+
+    } else {
+
+      deliver(destination, data, timestamp);
+
+    }
+
+  }
+
+  @Override
+  public int getNumberOfSources(final CoreMidiDeviceProvider provider) {
+
+    return sources.size();
+
+  }
+
+  @Override
+  public int getNumberOfDestinations(final CoreMidiDeviceProvider provider) {
+
+    return destinations.size();
+
+  }
+
+  @Override
+  public int getSource(final CoreMidiDeviceProvider provider, final int sourceIndex) throws CoreMidiException {
+
+    final List<VirtualEndPoint> current = sources;
+
+    if ( sourceIndex < 0 || sourceIndex >= current.size() ) {
+
+      throw new CoreMidiException("MIDIGetSource - no simulated source with index " + sourceIndex);
+
+    }
+
+    return current.get(sourceIndex).reference;
+
+  }
+
+  @Override
+  public int getDestination(final CoreMidiDeviceProvider provider, final int destinationIndex)
+          throws CoreMidiException {
+
+    final List<VirtualEndPoint> current = destinations;
+
+    if ( destinationIndex < 0 || destinationIndex >= current.size() ) {
+
+      throw new CoreMidiException("MIDIGetDestination - no simulated destination with index " + destinationIndex);
+
+    }
+
+    return current.get(destinationIndex).reference;
+
+  }
+
+  @Override
+  public int getUniqueID(final CoreMidiDeviceProvider provider, final int reference) throws CoreMidiException {
+
+    return resolve(reference, "MIDIObjectGetIntegerProperty").uniqueID;
+
+  }
+
+  @Override
+  public CoreMidiDeviceInfo getMidiDeviceInfo(final CoreMidiDeviceProvider provider, final int reference)
+          throws CoreMidiException {
+
+    final VirtualEndPoint endPoint = resolve(reference, "MIDIObjectGetStringProperty");
+    final VirtualDevice device = endPoint.device;
+
+    return new CoreMidiDeviceInfo(device.name, "CoreMidi4J Simulation", "Simulated MIDI Port", "Unknown Version",
+                                  device.name, device.deviceReference, device.deviceUniqueID,
+                                  device.name, device.entityReference, device.entityUniqueID,
+                                  endPoint.name, reference, endPoint.uniqueID);
+
+  }
+
+  @Override
+  public long getMicroSecondTime(final MidiDevice device) {
+
+    return getTime();
+
+  }
+
+}
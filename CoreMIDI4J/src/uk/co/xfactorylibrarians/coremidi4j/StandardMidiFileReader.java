@@ -0,0 +1,686 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>Reads a Standard MIDI File without loading it into a {@link Sequence}. The file is memory-mapped, and opening
+ * it only reads the header and finds where each track starts; events are decoded one at a time, on demand, by a
+ * {@link Cursor}, which can work through a single track or through all the tracks merged into time order. This keeps
+ * even very large files cheap to open, and lets them be played through a {@link CoreMidiDestination} directly.</p>
+ *
+ * <p>Reading the file is thread-safe, but each cursor must only be used by one thread at a time.</p>
+ *
+ */
+
+public class StandardMidiFileReader {
+
+  /**
+   * Works through the events of one or more tracks, in time order. The cursor decodes each event in place, so
+   * moving through a file allocates nothing unless {@link #getMessage()} is called.
+   */
+
+  public final class Cursor {
+
+    private final int[] tracks;          // The indexes of the tracks being read
+    private final ByteBuffer[] data;     // Each track's data, positioned at its next event
+    private final long[] nextTicks;      // The position of each track's next event, or -1 when it has ended
+    private final int[] runningStatus;
+
+    private int track = -1;
+    private long tick;
+    private int status;
+    private int data1;
+    private int data2;
+    private int metaType;
+    private int dataOffset;
+    private int dataLength;
+
+    private long tempo = StandardMidiFileWriter.DEFAULT_TEMPO;
+    private long tempoTick;     // The position of the most recent tempo change
+    private long tempoMicros;   // The time of the most recent tempo change
+
+    private Cursor(final int[] tracks) {
+
+      this.tracks = tracks;
+      data = new ByteBuffer[tracks.length];
+      nextTicks = new long[tracks.length];
+      runningStatus = new int[tracks.length];
+
+      for ( int i = 0; i < tracks.length; i++ ) {
+
+        data[i] = trackData(tracks[i]);
+        nextTicks[i] = data[i].hasRemaining() ? readVariableLength(data[i]) : -1;
+
+      }
+
+    }
+
+    /**
+     * Moves to the next event, which is the earliest remaining event of any of the tracks; events at the same
+     * position are taken from the lowest-numbered track first. End of track events are skipped.
+     *
+     * @return true if there was another event, or false if every track has ended
+     *
+     * @throws InvalidMidiDataException if the file is corrupt
+     */
+
+    public boolean next() throws InvalidMidiDataException {
+
+      int chosen = -1;
+
+      for ( int i = 0; i < tracks.length; i++ ) {
+
+        if ( nextTicks[i] >= 0 && (chosen < 0 || nextTicks[i] < nextTicks[chosen]) ) {
+
+          chosen = i;
+
+        }
+
+      }
+
+      if ( chosen < 0 ) {
+
+        return false;
+
+      }
+
+      final ByteBuffer buffer = data[chosen];
+      track = tracks[chosen];
+      tick = nextTicks[chosen];
+
+      try {
+
+        decode(buffer, chosen);
+
+      } catch (RuntimeException e) {
+
+        throw new InvalidMidiDataException("Corrupt event in track " + track + " of " + file + ": " + e);
+
+      }
+
+      nextTicks[chosen] = (buffer.hasRemaining() && !isEndOfTrack()) ? tick + readVariableLength(buffer) : -1;
+
+      if ( isEndOfTrack() ) {
+
+        return next();
+
+      }
+
+      if ( isMeta() && metaType == StandardMidiFileWriter.META_TEMPO && dataLength == 3 ) {
+
+        tempoMicros = getMicroseconds();
+        tempoTick = tick;
+        tempo = ((mapped.get(dataOffset) & 0xff) << 16) | ((mapped.get(dataOffset + 1) & 0xff) << 8)
+            | (mapped.get(dataOffset + 2) & 0xff);
+
+      }
+
+      return true;
+
+    }
+
+    /**
+     * Decodes the event at the current position of a track, leaving the buffer after it.
+     *
+     * @param buffer the track data
+     * @param index  which of the cursor's tracks it is
+     */
+
+    private void decode(final ByteBuffer buffer, final int index) {
+
+      final int first = buffer.get() & 0xff;
+
+      if ( first < 0x80 ) {  // Running status: this is already the first data byte
+
+        status = runningStatus[index];
+        ((Buffer) buffer).position(buffer.position() - 1);
+
+      } else {
+
+        status = first;
+
+      }
+
+      metaType = -1;
+      data1 = 0;
+      data2 = 0;
+
+      if ( status == StandardMidiFileWriter.META ) {
+
+        metaType = buffer.get() & 0xff;
+        readData(buffer);
+
+      } else if ( status == SysexMessage.SYSTEM_EXCLUSIVE || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE ) {
+
+        readData(buffer);
+        runningStatus[index] = 0;
+
+      } else if ( status >= 0x80 ) {
+
+        final int length = CaptureJournal.dataLength(status);
+        data1 = (length > 0) ? (buffer.get() & 0xff) : 0;
+        data2 = (length > 1) ? (buffer.get() & 0xff) : 0;
+        dataOffset = 0;
+        dataLength = 0;
+
+        if ( status < 0xf0 ) {
+
+          runningStatus[index] = status;
+
+        }
+
+      } else {
+
+        throw new IllegalStateException("data byte without running status");
+
+      }
+
+    }
+
+    /**
+     * Reads the length of a meta or System Exclusive event, noting where its data starts and moving past it.
+     *
+     * @param buffer the track data, positioned at the length
+     */
+
+    private void readData(final ByteBuffer buffer) {
+
+      dataLength = (int) readVariableLength(buffer);
+      dataOffset = trackOffsets[track] + buffer.position();
+      ((Buffer) buffer).position(buffer.position() + dataLength);
+
+    }
+
+    /**
+     * Gets the track the current event came from.
+     *
+     * @return the track number, counting from 0
+     */
+
+    public int getTrack() {
+
+      return track;
+
+    }
+
+    /**
+     * Gets the position of the current event.
+     *
+     * @return the position in ticks from the start of the file
+     */
+
+    public long getTick() {
+
+      return tick;
+
+    }
+
+    /**
+     * Gets the time of the current event, taking into account the tempo changes the cursor has passed. Tempo changes
+     * are normally in the first track, so this is only accurate for cursors which include it. Files which use SMPTE
+     * timing are unaffected by tempo.
+     *
+     * @return the time in microseconds from the start of the file
+     */
+
+    public long getMicroseconds() {
+
+      if ( divisionType != Sequence.PPQ ) {
+
+        return (long) (tick * 1000000.0 / (divisionType * resolution));
+
+      }
+
+      return tempoMicros + (tick - tempoTick) * tempo / resolution;
+
+    }
+
+    /**
+     * Gets the status byte of the current event: 0xFF for meta events, 0xF0 or 0xF7 for System Exclusive events,
+     * and otherwise the status of a channel message (with running status already resolved).
+     *
+     * @return the status byte
+     */
+
+    public int getStatus() {
+
+      return status;
+
+    }
+
+    /**
+     * Gets the first data byte of a channel message.
+     *
+     * @return the first data byte, or 0 if the event has none
+     */
+
+    public int getData1() {
+
+      return data1;
+
+    }
+
+    /**
+     * Gets the second data byte of a channel message.
+     *
+     * @return the second data byte, or 0 if the event has fewer than two
+     */
+
+    public int getData2() {
+
+      return data2;
+
+    }
+
+    /**
+     * Checks whether the current event is a meta event.
+     *
+     * @return true for meta events
+     */
+
+    public boolean isMeta() {
+
+      return status == StandardMidiFileWriter.META;
+
+    }
+
+    /**
+     * Checks whether the current event is a System Exclusive event.
+     *
+     * @return true for System Exclusive events, including escaped (0xF7) ones
+     */
+
+    public boolean isSysex() {
+
+      return status == SysexMessage.SYSTEM_EXCLUSIVE || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE;
+
+    }
+
+    /**
+     * Gets the type of the current meta event.
+     *
+     * @return the meta event type, or -1 if the event is not a meta event
+     */
+
+    public int getMetaType() {
+
+      return metaType;
+
+    }
+
+    /**
+     * Gets the length of the data in the current meta or System Exclusive event, not counting the status byte.
+     *
+     * @return the data length, or 0 for channel messages
+     */
+
+    public int getDataLength() {
+
+      return dataLength;
+
+    }
+
+    /**
+     * Copies the data of the current meta or System Exclusive event.
+     *
+     * @param destination where to copy the data, which must have room for {@link #getDataLength()} bytes
+     * @param offset      where in the destination to start
+     */
+
+    public void getData(final byte[] destination, final int offset) {
+
+      final ByteBuffer view = mapped.duplicate();
+      ((Buffer) view).position(dataOffset);
+      view.get(destination, offset, dataLength);
+
+    }
+
+    /**
+     * Creates a message object for the current event.
+     *
+     * @return a {@link MetaMessage}, {@link SysexMessage} or {@link ShortMessage}
+     *
+     * @throws InvalidMidiDataException if the event is not a valid message
+     */
+
+    public MidiMessage getMessage() throws InvalidMidiDataException {
+
+      if ( isMeta() || isSysex() ) {
+
+        final byte[] bytes = new byte[dataLength];
+        getData(bytes, 0);
+
+        if ( isMeta() ) {
+
+          return new MetaMessage(metaType, bytes, dataLength);
+
+        }
+
+        return new SysexMessage(status, bytes, dataLength);
+
+      }
+
+      return new ShortMessage(status, data1, data2);
+
+    }
+
+    /**
+     * Checks whether the current event marks the end of its track.
+     *
+     * @return true for end of track meta events
+     */
+
+    private boolean isEndOfTrack() {
+
+      return isMeta() && metaType == StandardMidiFileWriter.META_END_OF_TRACK;
+
+    }
+
+  }
+
+  private final File file;
+  private final ByteBuffer mapped;
+  private final int format;
+  private final float divisionType;
+  private final int resolution;
+  private final int[] trackOffsets;
+  private final int[] trackLengths;
+
+  /**
+   * Opens a MIDI file, reading its header and finding its tracks.
+   *
+   * @param file the file to read
+   *
+   * @throws IOException if the file cannot be read
+   * @throws InvalidMidiDataException if the file is not a Standard MIDI File
+   */
+
+  public StandardMidiFileReader(final File file) throws IOException, InvalidMidiDataException {
+
+    this.file = file;
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+    }
+
+    try {
+
+      if ( mapped.getInt(0) != StandardMidiFileWriter.HEADER_CHUNK ) {
+
+        throw new InvalidMidiDataException(file + " is not a Standard MIDI File");
+
+      }
+
+      final int headerLength = mapped.getInt(4);
+      format = mapped.getShort(8) & 0xffff;
+      final int declaredTracks = mapped.getShort(10) & 0xffff;
+      final int division = mapped.getShort(12) & 0xffff;
+
+      if ( (division & 0x8000) == 0 ) {
+
+        divisionType = Sequence.PPQ;
+        resolution = division;
+
+      } else {
+
+        final int frames = -(byte) (division >> 8);
+        divisionType = (frames == 29) ? Sequence.SMPTE_30DROP : frames;
+        resolution = division & 0xff;
+
+      }
+
+      final List<int[]> found = new ArrayList<>();
+      long position = 8L + headerLength;
+
+      // Walk the chunk headers, skipping any chunks which are not tracks
+      while ( found.size() < declaredTracks && position + 8 <= mapped.capacity() ) {
+
+        final int type = mapped.getInt((int) position);
+        final long length = mapped.getInt((int) position + 4) & 0xffffffffL;
+        final long start = position + 8;
+
+        if ( type == StandardMidiFileWriter.TRACK_CHUNK ) {
+
+          found.add(new int[] { (int) start, (int) Math.min(length, mapped.capacity() - start) });
+
+        }
+
+        position = start + length;
+
+      }
+
+      trackOffsets = new int[found.size()];
+      trackLengths = new int[found.size()];
+
+      for ( int i = 0; i < trackOffsets.length; i++ ) {
+
+        trackOffsets[i] = found.get(i)[0];
+        trackLengths[i] = found.get(i)[1];
+
+      }
+
+    } catch (IndexOutOfBoundsException e) {
+
+      throw new InvalidMidiDataException(file + " is truncated");
+
+    }
+
+  }
+
+  /**
+   * Gets the format of the file: 0 for a single track, 1 for simultaneous tracks, and 2 for independent tracks.
+   *
+   * @return the file format
+   */
+
+  public int getFormat() {
+
+    return format;
+
+  }
+
+  /**
+   * Gets the timing type of the file, as one of the division types defined by {@link Sequence}.
+   *
+   * @return {@link Sequence#PPQ} or one of the SMPTE frame rates
+   */
+
+  public float getDivisionType() {
+
+    return divisionType;
+
+  }
+
+  /**
+   * Gets the timing resolution of the file.
+   *
+   * @return ticks per quarter note, or per frame for SMPTE timing
+   */
+
+  public int getResolution() {
+
+    return resolution;
+
+  }
+
+  /**
+   * Gets the number of tracks in the file.
+   *
+   * @return the number of tracks
+   */
+
+  public int getTrackCount() {
+
+    return trackOffsets.length;
+
+  }
+
+  /**
+   * Creates a cursor which reads a single track.
+   *
+   * @param index the track to read, counting from 0
+   *
+   * @return a cursor positioned before the first event of the track
+   */
+
+  public Cursor getTrack(final int index) {
+
+    if ( index < 0 || index >= trackOffsets.length ) {
+
+      throw new IllegalArgumentException("No track " + index + " in " + file);
+
+    }
+
+    return new Cursor(new int[] { index });
+
+  }
+
+  /**
+   * Creates a cursor which reads every track, merging them into time order.
+   *
+   * @return a cursor positioned before the first event in the file
+   */
+
+  public Cursor getAllTracks() {
+
+    final int[] all = new int[trackOffsets.length];
+
+    for ( int i = 0; i < all.length; i++ ) {
+
+      all[i] = i;
+
+    }
+
+    return new Cursor(all);
+
+  }
+
+  /**
+   * Plays the whole file through a destination, following its tempo changes. Events are read as they are needed,
+   * and handed to CoreMIDI a little ahead of time with timestamps, so the timing is as accurate as CoreMIDI itself.
+   * Meta events are not sent. This method blocks until the last message has been handed over; interrupt the thread
+   * to stop playback early.
+   *
+   * @param destination the destination to play the file through, which must be open
+   *
+   * @throws InvalidMidiDataException if the file is corrupt
+   * @throws MidiUnavailableException if a receiver cannot be obtained from the destination
+   * @throws InterruptedException if the thread was interrupted during playback
+   */
+
+  public void play(final CoreMidiDestination destination)
+      throws InvalidMidiDataException, MidiUnavailableException, InterruptedException {
+
+    final Receiver receiver = destination.getReceiver();
+
+    try {
+
+      final Cursor cursor = getAllTracks();
+      final long start = destination.getMicrosecondPosition() + CaptureJournalReader.REPLAY_LOOKAHEAD;
+
+      while ( cursor.next() ) {
+
+        if ( cursor.isMeta() ) {
+
+          continue;
+
+        }
+
+        final long due = start + cursor.getMicroseconds();
+        final long wait = due - CaptureJournalReader.REPLAY_LOOKAHEAD - destination.getMicrosecondPosition();
+
+        if ( wait > 0 ) {
+
+          TimeUnit.MICROSECONDS.sleep(wait);
+
+        } else if ( Thread.interrupted() ) {
+
+          throw new InterruptedException();
+
+        }
+
+        receiver.send(cursor.getMessage(), due);
+
+      }
+
+    } finally {
+
+      receiver.close();
+
+    }
+
+  }
+
+  /**
+   * Gets a buffer over the data of a track, positioned at its first event.
+   *
+   * @param index the track number
+   *
+   * @return the track data
+   */
+
+  private ByteBuffer trackData(final int index) {
+
+    final ByteBuffer view = mapped.duplicate();
+    ((Buffer) view).position(trackOffsets[index]);
+    ((Buffer) view).limit(trackOffsets[index] + trackLengths[index]);
+    return view.slice();
+
+  }
+
+  /**
+   * Reads a number in the MIDI file variable-length format.
+   *
+   * @param buffer where to read it from
+   *
+   * @return the value
+   */
+
+  private static long readVariableLength(final ByteBuffer buffer) {
+
+    long value = 0;
+    int b;
+
+    do {
+
+      b = buffer.get() & 0xff;
+      value = (value << 7) | (b & 0x7f);
+
+    } while ( (b & 0x80) != 0 );
+
+    return value;
+
+  }
+
+}
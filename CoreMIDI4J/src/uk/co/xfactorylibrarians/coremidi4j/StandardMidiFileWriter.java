@@ -0,0 +1,464 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * <p>Writes a single-track (format 0) Standard MIDI File as messages arrive, without building a
+ * {@link javax.sound.midi.Sequence} in memory. Channel messages are written with running status, leaving out status
+ * bytes which repeat the previous one, and the track length is filled in when the writer is closed.</p>
+ *
+ * <p>The writer is a {@link Receiver}, so it can record a source directly by connecting it to one of the source's
+ * transmitters: each message is placed according to its timestamp (or the time it arrived, if it has none), with
+ * the first message at the start of the file, at 120 beats per minute. Messages can also be written at explicit
+ * positions with {@link #write(long, MidiMessage)}. System real-time and system common messages cannot be stored in
+ * a MIDI file, so they are ignored.</p>
+ *
+ */
+
+public class StandardMidiFileWriter implements Receiver {
+
+  /**
+   * The resolution used by {@link #StandardMidiFileWriter(File)}, in ticks per quarter note. At 120 beats per
+   * minute, each tick is 100 microseconds.
+   */
+
+  public static final int DEFAULT_RESOLUTION = 5000;
+
+  /**
+   * The tempo at which received messages are placed, in microseconds per quarter note: 120 beats per minute, which
+   * is also the tempo MIDI files have when they do not specify one.
+   */
+
+  public static final int DEFAULT_TEMPO = 500000;
+
+  static final int HEADER_CHUNK = 0x4d546864;  // "MThd"
+  static final int TRACK_CHUNK = 0x4d54726b;   // "MTrk"
+  static final int META = 0xff;
+  static final int META_TEMPO = 0x51;
+  static final int META_END_OF_TRACK = 0x2f;
+
+  private static final int TRACK_DATA_START = 22;  // After the header chunk and the track chunk header
+
+  private final File file;
+  private final RandomAccessFile output;
+  private final int resolution;
+  private final byte[] buffer = new byte[8192];
+  private int buffered;
+  private long trackLength;
+  private long lastTick;
+  private int runningStatus;
+  private long firstTimestamp = -1;
+  private long firstArrival;
+  private IOException pendingError;  // The first problem writing a received message
+  private boolean finished;
+
+  /**
+   * Creates a file for recording received messages at the {@link #DEFAULT_RESOLUTION default resolution}, starting
+   * it with a tempo of 120 beats per minute.
+   *
+   * @param file the file to write, which is replaced if it already exists
+   *
+   * @throws IOException if the file cannot be created
+   */
+
+  public StandardMidiFileWriter(final File file) throws IOException {
+
+    this(file, DEFAULT_RESOLUTION);
+    final byte[] tempo = { (byte) (DEFAULT_TEMPO >> 16), (byte) (DEFAULT_TEMPO >> 8), (byte) DEFAULT_TEMPO };
+    writeEvent(0, META, META_TEMPO, tempo, 0, tempo.length);
+
+  }
+
+  /**
+   * Creates a file with a particular resolution, for writing messages at explicit positions.
+   *
+   * @param file       the file to write, which is replaced if it already exists
+   * @param resolution the number of ticks per quarter note
+   *
+   * @throws IOException if the file cannot be created
+   * @throws IllegalArgumentException if the resolution is not between 1 and 32767
+   */
+
+  public StandardMidiFileWriter(final File file, final int resolution) throws IOException {
+
+    if ( resolution < 1 || resolution > 0x7fff ) {
+
+      throw new IllegalArgumentException("resolution must be between 1 and 32767");
+
+    }
+
+    this.file = file;
+    this.resolution = resolution;
+    output = new RandomAccessFile(file, "rw");
+    output.setLength(0);
+
+    putInt(HEADER_CHUNK);
+    putInt(6);
+    putShort(0);  // Format 0
+    putShort(1);  // One track
+    putShort(resolution);
+    putInt(TRACK_CHUNK);
+    putInt(0);    // The length, filled in when finished
+    trackLength = 0;
+
+  }
+
+  /**
+   * Gets the number of ticks per quarter note.
+   *
+   * @return the resolution of the file
+   */
+
+  public int getResolution() {
+
+    return resolution;
+
+  }
+
+  /**
+   * Converts a duration at the default tempo into ticks at this file's resolution.
+   *
+   * @param micros the duration in microseconds
+   *
+   * @return the number of ticks
+   */
+
+  public long microsecondsToTicks(final long micros) {
+
+    return micros * resolution / DEFAULT_TEMPO;
+
+  }
+
+  /**
+   * Writes a message at a particular position. Positions earlier than that of the previous message are treated as
+   * equal to it.
+   *
+   * @param tick    the position of the message, in ticks from the start of the file
+   * @param message the message to write
+   *
+   * @return true if the message was written, or false if it is a kind which cannot be stored in a MIDI file
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  public synchronized boolean write(final long tick, final MidiMessage message) throws IOException {
+
+    if ( finished ) {
+
+      throw new IOException("The MIDI file has already been finished");
+
+    }
+
+    final byte[] bytes = message.getMessage();
+    final int status = message.getStatus();
+
+    if ( message instanceof MetaMessage ) {
+
+      final MetaMessage meta = (MetaMessage) message;
+
+      if ( meta.getType() == META_END_OF_TRACK ) {
+
+        return false;  // Written when the file is finished
+
+      }
+
+      final byte[] data = meta.getData();
+      writeEvent(tick, META, meta.getType(), data, 0, data.length);
+
+    } else if ( message instanceof SysexMessage ) {
+
+      writeEvent(tick, status, -1, bytes, 1, message.getLength() - 1);
+
+    } else if ( status >= 0x80 && status < 0xf0 ) {
+
+      putDelta(tick);
+
+      if ( status != runningStatus ) {
+
+        put(status);
+        runningStatus = status;
+
+      }
+
+      for ( int i = 1; i < message.getLength(); i++ ) {
+
+        put(bytes[i]);
+
+      }
+
+    } else {
+
+      return false;
+
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Writes a received message, placing it according to its timestamp relative to the first message received. Any
+   * problem writing the file is reported, and then thrown by {@link #finish()}.
+   *
+   * @param message   the message to write
+   * @param timeStamp the time of the message in microseconds, or -1 to use the time at which it arrived
+   */
+
+  @Override
+  public synchronized void send(final MidiMessage message, final long timeStamp) {
+
+    final long arrival = CaptureJournal.now();
+
+    if ( firstTimestamp < 0 ) {
+
+      firstTimestamp = (timeStamp < 0) ? arrival : timeStamp;
+      firstArrival = arrival;
+
+    }
+
+    // Messages without timestamps are placed by when they arrived, on the same scale as the first message
+    final long time = (timeStamp < 0) ? firstTimestamp + (arrival - firstArrival) : timeStamp;
+
+    try {
+
+      write(microsecondsToTicks(Math.max(0, time - firstTimestamp)), message);
+
+    } catch (IOException e) {
+
+      if ( pendingError == null ) {
+
+        pendingError = e;
+        System.err.println("Unable to write to MIDI file " + file + ": " + e);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Ends the track and fills in its length, then closes the file.
+   *
+   * @throws IOException if there was a problem writing the file, now or while receiving messages
+   */
+
+  public synchronized void finish() throws IOException {
+
+    if ( finished ) {
+
+      return;
+
+    }
+
+    finished = true;
+
+    try {
+
+      writeEvent(lastTick, META, META_END_OF_TRACK, new byte[0], 0, 0);
+      flush();
+      output.seek(TRACK_DATA_START - 4);
+      output.writeInt((int) trackLength);
+
+    } finally {
+
+      output.close();
+
+    }
+
+    if ( pendingError != null ) {
+
+      throw pendingError;
+
+    }
+
+  }
+
+  /**
+   * Finishes the file, reporting any problem.
+   */
+
+  @Override
+  public void close() {
+
+    try {
+
+      finish();
+
+    } catch (IOException e) {
+
+      System.err.println("Problem finishing MIDI file " + file + ": " + e);
+      e.printStackTrace(System.err);
+
+    }
+
+  }
+
+  /**
+   * Writes a meta event or System Exclusive event, both of which cancel running status.
+   *
+   * @param tick   the position of the event
+   * @param status the event's status byte: 0xFF, 0xF0 or 0xF7
+   * @param type   the meta event type, or -1 for System Exclusive events
+   * @param data   the event data
+   * @param offset where the data starts
+   * @param length how many bytes of data there are
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void writeEvent(final long tick, final int status, final int type, final byte[] data, final int offset,
+                          final int length) throws IOException {
+
+    putDelta(tick);
+    put(status);
+
+    if ( type >= 0 ) {
+
+      put(type);
+
+    }
+
+    putVariableLength(length);
+
+    for ( int i = 0; i < length; i++ ) {
+
+      put(data[offset + i]);
+
+    }
+
+    runningStatus = 0;
+
+  }
+
+  /**
+   * Writes the time between the previous event and this one.
+   *
+   * @param tick the position of this event
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void putDelta(final long tick) throws IOException {
+
+    final long position = Math.max(tick, lastTick);
+    putVariableLength(position - lastTick);
+    lastTick = position;
+
+  }
+
+  /**
+   * Writes a number in the MIDI file variable-length format: seven bits per byte, most significant first, with the
+   * top bit set on every byte but the last.
+   *
+   * @param value the value to write, which must fit in 28 bits
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void putVariableLength(final long value) throws IOException {
+
+    if ( value > 0x0fffffff ) {
+
+      throw new IOException("Value too large for a MIDI file: " + value);
+
+    }
+
+    for ( int shift = 21; shift > 0; shift -= 7 ) {
+
+      if ( value >= (1L << shift) ) {
+
+        put((int) ((value >> shift) & 0x7f) | 0x80);
+
+      }
+
+    }
+
+    put((int) (value & 0x7f));
+
+  }
+
+  /**
+   * Writes a four-byte number, most significant byte first.
+   *
+   * @param value the value to write
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void putInt(final int value) throws IOException {
+
+    putShort(value >>> 16);
+    putShort(value);
+
+  }
+
+  /**
+   * Writes a two-byte number, most significant byte first.
+   *
+   * @param value the value to write
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void putShort(final int value) throws IOException {
+
+    put(value >> 8);
+    put(value);
+
+  }
+
+  /**
+   * Adds a byte to the buffer, writing the buffer out when it is full. Bytes after the track chunk header count
+   * towards the track length.
+   *
+   * @param value the byte to write
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void put(final int value) throws IOException {
+
+    if ( buffered == buffer.length ) {
+
+      flush();
+
+    }
+
+    buffer[buffered++] = (byte) value;
+    trackLength++;
+
+  }
+
+  /**
+   * Writes out the buffered bytes.
+   *
+   * @throws IOException if there is a problem writing the file
+   */
+
+  private void flush() throws IOException {
+
+    output.write(buffer, 0, buffered);
+    buffered = 0;
+
+  }
+
+}
@@ -0,0 +1,554 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Sends System Exclusive requests, such as patch dump requests, to a device's destination, and pairs them with the
+ * responses that arrive on its source. Several requests can be outstanding at once, up to a limit set with
+ * {@link #setMaxOutstanding(int)}; requests beyond that are queued and sent as earlier ones complete, so that a
+ * bank can be fetched with the device kept busy rather than waiting a full round trip per patch. Each incoming
+ * message is matched against the outstanding requests in the order they were sent, and completes the first one whose
+ * {@link SysexMatcher} accepts it. A request which gets no response within its timeout is sent again, up to its
+ * number of retries, and then fails.
+ *
+ * <p>Each correlator serves one device; to work with several devices in parallel, use a correlator for each. Times
+ * are in microseconds, and timeouts are measured on the library's shared timing wheel, so they may run a few
+ * milliseconds late.</p>
+ *
+ */
+
+public class SysexCorrelator implements Closeable {
+
+  /**
+   * The default time to wait for a response to each attempt, in microseconds.
+   */
+
+  public static final long DEFAULT_TIMEOUT = 1000000;
+
+  /**
+   * The default number of times a request is sent again if no response arrives.
+   */
+
+  public static final int DEFAULT_RETRIES = 2;
+
+  private final CoreMidiSource source;
+  private final CoreMidiDestination destination;
+  private final Receiver receiver;
+  private final Deque<SysexRequest> queued = new ArrayDeque<>();
+  private final List<SysexRequest> outstanding = new ArrayList<>();  // In the order they were first sent
+  private int maxOutstanding = 1;
+  private long timeout = DEFAULT_TIMEOUT;
+  private int retries = DEFAULT_RETRIES;
+  private boolean closed;
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(CoreMidiSource source, int status, int data1, int data2, long timestamp) {
+
+      // Only System Exclusive responses are of interest
+
+    }
+
+    @Override
+    public void sysexMessageReceived(CoreMidiSource source, byte[] data, int length, long timestamp) {
+
+      responseReceived(data, length);
+
+    }
+
+  };
+
+  /**
+   * Creates a correlator which sends requests to a destination and listens for responses from a source, opening
+   * either of them if they are not already open.
+   *
+   * @param source      the source responses arrive on
+   * @param destination the destination requests are sent to
+   *
+   * @throws MidiUnavailableException if the source or destination cannot be opened
+   */
+
+  public SysexCorrelator(final CoreMidiSource source, final CoreMidiDestination destination)
+      throws MidiUnavailableException {
+
+    this.source = source;
+    this.destination = destination;
+
+    if ( !source.isOpen() ) {
+
+      source.open();
+
+    }
+
+    if ( !destination.isOpen() ) {
+
+      destination.open();
+
+    }
+
+    receiver = destination.getReceiver();
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Creates a correlator for the physical device that an end point belongs to, using its source and destination.
+   * If the device has several of either, the ones on the same entity (port) as the end point are preferred.
+   *
+   * @param endPoint any source or destination of the device
+   *
+   * @return the correlator
+   *
+   * @throws IllegalArgumentException if the device does not have both a source and a destination
+   * @throws MidiUnavailableException if the source or destination cannot be opened
+   */
+
+  public static SysexCorrelator forDevice(final MidiDevice endPoint) throws MidiUnavailableException {
+
+    final CoreMidiDeviceIndex index = CoreMidiDeviceProvider.getDeviceIndex();
+    final CoreMidiSource source = index.getPairedSource(endPoint);
+    final CoreMidiDestination destination = index.getPairedDestination(endPoint);
+
+    if ( source == null || destination == null ) {
+
+      throw new IllegalArgumentException("Device of " + endPoint.getDeviceInfo().getName()
+                                         + " does not have both a source and a destination");
+
+    }
+
+    return new SysexCorrelator(source, destination);
+
+  }
+
+  /**
+   * Get the source responses arrive on.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Get the destination requests are sent to.
+   *
+   * @return the destination
+   */
+
+  public CoreMidiDestination getDestination() {
+
+    return destination;
+
+  }
+
+  /**
+   * Sets how many requests can be waiting for responses at once. The default is one, which sends requests strictly
+   * one after another; raising it lets requests overlap, which is faster if the device can queue them, and safe as
+   * long as each request's matcher only accepts its own response.
+   *
+   * @param count the maximum number of outstanding requests
+   *
+   * @throws IllegalArgumentException if {@code count} is less than one
+   */
+
+  public synchronized void setMaxOutstanding(final int count) {
+
+    if ( count < 1 ) {
+
+      throw new IllegalArgumentException("count must be at least one");
+
+    }
+
+    maxOutstanding = count;
+    sendQueued();
+
+  }
+
+  /**
+   * Check how many requests can be waiting for responses at once.
+   *
+   * @return the maximum number of outstanding requests
+   */
+
+  public synchronized int getMaxOutstanding() {
+
+    return maxOutstanding;
+
+  }
+
+  /**
+   * Sets how long requests made after this wait for a response to each attempt, unless they say otherwise.
+   *
+   * @param timeout the timeout in microseconds
+   *
+   * @throws IllegalArgumentException if {@code timeout} is not positive
+   */
+
+  public synchronized void setTimeout(final long timeout) {
+
+    if ( timeout <= 0 ) {
+
+      throw new IllegalArgumentException("timeout must be positive");
+
+    }
+
+    this.timeout = timeout;
+
+  }
+
+  /**
+   * Check how long requests wait for a response to each attempt, unless they say otherwise.
+   *
+   * @return the timeout in microseconds
+   */
+
+  public synchronized long getTimeout() {
+
+    return timeout;
+
+  }
+
+  /**
+   * Sets how many times requests made after this are sent again if no response arrives, unless they say otherwise.
+   *
+   * @param retries the number of retries
+   *
+   * @throws IllegalArgumentException if {@code retries} is negative
+   */
+
+  public synchronized void setRetries(final int retries) {
+
+    if ( retries < 0 ) {
+
+      throw new IllegalArgumentException("retries must not be negative");
+
+    }
+
+    this.retries = retries;
+
+  }
+
+  /**
+   * Check how many times requests are sent again if no response arrives, unless they say otherwise.
+   *
+   * @return the number of retries
+   */
+
+  public synchronized int getRetries() {
+
+    return retries;
+
+  }
+
+  /**
+   * Sends a request, or queues it if the maximum number of requests are already outstanding, using the
+   * correlator's timeout and retries.
+   *
+   * @param message the complete request message, from 0xF0 to 0xF7
+   * @param matcher recognises the response
+   *
+   * @return the request, which completes with the response
+   *
+   * @throws InvalidMidiDataException if the message is not a valid System Exclusive message
+   * @throws IllegalStateException if the correlator has been closed
+   */
+
+  public synchronized SysexRequest request(final byte[] message, final SysexMatcher matcher)
+      throws InvalidMidiDataException {
+
+    return request(message, matcher, timeout, retries);
+
+  }
+
+  /**
+   * Sends a request, or queues it if the maximum number of requests are already outstanding.
+   *
+   * @param message the complete request message, from 0xF0 to 0xF7
+   * @param matcher recognises the response
+   * @param timeout how long to wait for a response to each attempt, in microseconds
+   * @param retries how many times to send the request again if no response arrives
+   *
+   * @return the request, which completes with the response
+   *
+   * @throws InvalidMidiDataException if the message is not a valid System Exclusive message
+   * @throws IllegalArgumentException if the timeout is not positive or the retries are negative
+   * @throws IllegalStateException if the correlator has been closed
+   */
+
+  public synchronized SysexRequest request(final byte[] message, final SysexMatcher matcher, final long timeout,
+                                           final int retries) throws InvalidMidiDataException {
+
+    if ( closed ) {
+
+      throw new IllegalStateException("SysexCorrelator has been closed");
+
+    }
+
+    if ( timeout <= 0 ) {
+
+      throw new IllegalArgumentException("timeout must be positive");
+
+    }
+
+    if ( retries < 0 ) {
+
+      throw new IllegalArgumentException("retries must not be negative");
+
+    }
+
+    if ( matcher == null ) {
+
+      throw new IllegalArgumentException("matcher must not be null");
+
+    }
+
+    final SysexRequest request = new SysexRequest(this, new SysexMessage(message, message.length), matcher, timeout,
+                                                  retries);
+    queued.addLast(request);
+    sendQueued();
+    return request;
+
+  }
+
+  /**
+   * Check how many requests are waiting for responses.
+   *
+   * @return the number of requests sent and not yet answered
+   */
+
+  public synchronized int getOutstandingCount() {
+
+    return outstanding.size();
+
+  }
+
+  /**
+   * Check how many requests are waiting to be sent.
+   *
+   * @return the number of requests queued behind the outstanding ones
+   */
+
+  public synchronized int getQueuedCount() {
+
+    return queued.size();
+
+  }
+
+  /**
+   * Withdraws a request, as {@link SysexRequest#cancel(boolean)} does.
+   *
+   * @param request the request
+   *
+   * @return false if the request was already done
+   */
+
+  synchronized boolean cancel(final SysexRequest request) {
+
+    if ( !request.markCancelled() ) {
+
+      return false;
+
+    }
+
+    if ( !queued.remove(request) && outstanding.remove(request) ) {
+
+      TimingWheel.getShared().cancel(request.pendingTimeout);
+      sendQueued();
+
+    }
+
+    return true;
+
+  }
+
+  /**
+   * Stops listening for responses and cancels every request still outstanding or queued. The source and destination
+   * are left open.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(listener);
+
+    synchronized (this) {
+
+      if ( closed ) {
+
+        return;
+
+      }
+
+      closed = true;
+
+      for ( SysexRequest request : outstanding ) {
+
+        TimingWheel.getShared().cancel(request.pendingTimeout);
+        request.markCancelled();
+
+      }
+
+      for ( SysexRequest request : queued ) {
+
+        request.markCancelled();
+
+      }
+
+      outstanding.clear();
+      queued.clear();
+      receiver.close();
+
+    }
+
+  }
+
+  /**
+   * Sends queued requests while there is room for more to be outstanding. Must be called while synchronized.
+   */
+
+  private void sendQueued() {
+
+    while ( !closed && outstanding.size() < maxOutstanding && !queued.isEmpty() ) {
+
+      final SysexRequest request = queued.removeFirst();
+      outstanding.add(request);
+      attempt(request);
+
+    }
+
+  }
+
+  /**
+   * Sends an outstanding request, and starts waiting for the response. Must be called while synchronized.
+   *
+   * @param request the request
+   */
+
+  private void attempt(final SysexRequest request) {
+
+    request.attempted();
+
+    try {
+
+      receiver.send(request.message, -1);
+
+    } catch (IllegalStateException e) {
+
+      // The destination has been closed, so there will be no response
+      outstanding.remove(request);
+      request.fail(e);
+      return;
+
+    }
+
+    request.pendingTimeout = TimingWheel.getShared().schedule(new Runnable() {
+
+      @Override
+      public void run() {
+
+        timedOut(request);
+
+      }
+
+    }, LookaheadScheduler.now() + request.timeout);
+
+  }
+
+  /**
+   * Called by the timing wheel when an attempt has had no response in time. Sends the request again if it has retries
+   * left, otherwise fails it and lets the next queued request go.
+   *
+   * @param request the request
+   */
+
+  private synchronized void timedOut(final SysexRequest request) {
+
+    if ( !outstanding.contains(request) ) {
+
+      return;  // The response arrived, or the request was cancelled, as the timeout expired
+
+    }
+
+    if ( request.retriesLeft > 0 ) {
+
+      request.retriesLeft--;
+      attempt(request);
+      return;
+
+    }
+
+    outstanding.remove(request);
+    request.fail(new TimeoutException("No response to SysEx request after " + request.getAttempts() + " attempts"));
+    sendQueued();
+
+  }
+
+  /**
+   * Matches a System Exclusive message received from the source against the outstanding requests, oldest first,
+   * completing the first one it answers.
+   *
+   * @param data   the message
+   * @param length the number of bytes in the message
+   */
+
+  private synchronized void responseReceived(final byte[] data, final int length) {
+
+    for ( int i = 0; i < outstanding.size(); i++ ) {
+
+      final SysexRequest request = outstanding.get(i);
+      boolean matched = false;
+
+      try {
+
+        matched = request.matcher.matches(data, length);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem matching SysEx response with " + request.matcher + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+      if ( matched ) {
+
+        outstanding.remove(i);
+        TimingWheel.getShared().cancel(request.pendingTimeout);
+        request.complete(Arrays.copyOf(data, length));
+        sendQueued();
+        return;
+
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Routes the System Exclusive messages received by a source to the handlers registered for them, by the bytes they
+ * start with: manufacturer ID, universal message sub-IDs, model and command bytes, and so on. The registered
+ * prefixes are compiled into a trie of bytes, so each message is routed in a single pass over its first few bytes to
+ * exactly the handlers whose prefixes it starts with, however many handlers there are. Messages are taken straight
+ * from the parser as a source listener, so no {@code SysexMessage} is created and the bytes are never copied.
+ *
+ * <p>A prefix byte can be {@link #ANY}, which matches any data byte; this is mostly useful for the device ID in
+ * universal messages. Handlers with shorter prefixes are called before those with longer ones. A handler registered
+ * for several prefixes which all match a message is called once for each.</p>
+ *
+ */
+
+public class SysexDispatcher implements Closeable {
+
+  /**
+   * A prefix byte which matches any data byte.
+   */
+
+  public static final int ANY = -1;
+
+  /**
+   * The ID which starts universal non-real-time messages, in place of a manufacturer ID.
+   */
+
+  public static final int UNIVERSAL_NON_REAL_TIME = 0x7e;
+
+  /**
+   * The ID which starts universal real-time messages, in place of a manufacturer ID.
+   */
+
+  public static final int UNIVERSAL_REAL_TIME = 0x7f;
+
+  private static final SysexHandler[] NO_HANDLERS = new SysexHandler[0];
+
+  /**
+   * A handler and the prefix it was registered for.
+   */
+
+  private static final class Registration {
+
+    private final SysexHandler handler;
+    private final int[] prefix;
+
+    /**
+     * Creates a registration.
+     *
+     * @param handler the handler
+     * @param prefix  the bytes which follow 0xF0 in the messages it handles, possibly including {@link #ANY}
+     */
+
+    Registration(final SysexHandler handler, final int[] prefix) {
+
+      this.handler = handler;
+      this.prefix = prefix;
+
+    }
+
+  }
+
+  /**
+   * A node of the compiled trie, reached by the bytes of a prefix; never modified once compiled.
+   */
+
+  private static final class Node {
+
+    private Node[] children;                          // Indexed by the next byte, created when first needed
+    private Node any;                                 // Followed whatever the next byte is
+    private SysexHandler[] handlers = NO_HANDLERS;    // Registered for the prefix which leads here
+
+  }
+
+  private final CoreMidiSource source;
+  private final List<Registration> registrations = new ArrayList<>();
+  private volatile Node root = new Node();
+
+  private final CoreMidiSourceListener listener = new CoreMidiSourceListener() {
+
+    @Override
+    public void shortMessageReceived(CoreMidiSource source, int status, int data1, int data2, long timestamp) {
+
+      // Only System Exclusive messages are routed
+
+    }
+
+    @Override
+    public void sysexMessageReceived(CoreMidiSource source, byte[] data, int length, long timestamp) {
+
+      route(root, data, 1, length, timestamp);
+
+    }
+
+  };
+
+  /**
+   * Creates a dispatcher which routes the System Exclusive messages received by a source.
+   *
+   * @param source the source
+   */
+
+  public SysexDispatcher(final CoreMidiSource source) {
+
+    this.source = source;
+    source.addSourceListener(listener);
+
+  }
+
+  /**
+   * Registers a handler for the messages which start with a prefix.
+   *
+   * @param handler the handler
+   * @param prefix  the bytes which follow 0xF0 in the messages to handle, each from 0 to 127 or {@link #ANY}; with no
+   *                bytes at all, the handler is given every message
+   *
+   * @throws IllegalArgumentException if the handler is null or a prefix byte is out of range
+   */
+
+  public synchronized void register(final SysexHandler handler, final int... prefix) {
+
+    if ( handler == null ) {
+
+      throw new IllegalArgumentException("handler must not be null");
+
+    }
+
+    for ( int value : prefix ) {
+
+      if ( value != ANY && (value < 0 || value > 127) ) {
+
+        throw new IllegalArgumentException("prefix bytes must be between 0 and 127, or ANY");
+
+      }
+
+    }
+
+    registrations.add(new Registration(handler, prefix.clone()));
+    compile();
+
+  }
+
+  /**
+   * Registers a handler for the messages from a manufacturer with a single-byte ID, optionally narrowed down by the
+   * bytes which follow the ID, such as device ID, model and command. Manufacturers with three-byte IDs, which start
+   * with 0, are registered with {@link #register(SysexHandler, int...)}.
+   *
+   * @param handler the handler
+   * @param id      the manufacturer ID, from 1 to 125
+   * @param more    the bytes which follow the manufacturer ID, each from 0 to 127 or {@link #ANY}
+   *
+   * @throws IllegalArgumentException if the handler is null, the manufacturer ID is not a single-byte ID, or a byte
+   *                                  is out of range
+   */
+
+  public void registerManufacturer(final SysexHandler handler, final int id, final int... more) {
+
+    if ( id < 1 || id >= UNIVERSAL_NON_REAL_TIME ) {
+
+      throw new IllegalArgumentException("id must be a single-byte manufacturer ID, from 1 to 125");
+
+    }
+
+    final int[] prefix = new int[more.length + 1];
+    prefix[0] = id;
+    System.arraycopy(more, 0, prefix, 1, more.length);
+    register(handler, prefix);
+
+  }
+
+  /**
+   * Registers a handler for universal messages of a particular type.
+   *
+   * @param handler  the handler
+   * @param realTime true for universal real-time messages, false for non-real-time ones
+   * @param deviceId the device ID the messages are addressed to or come from, or {@link #ANY}
+   * @param subId1   the first sub-ID, identifying the kind of message, or {@link #ANY}
+   * @param subId2   the second sub-ID, identifying the message within its kind, or {@link #ANY}
+   *
+   * @throws IllegalArgumentException if the handler is null or an ID is out of range
+   */
+
+  public void registerUniversal(final SysexHandler handler, final boolean realTime, final int deviceId,
+                                final int subId1, final int subId2) {
+
+    register(handler, realTime ? UNIVERSAL_REAL_TIME : UNIVERSAL_NON_REAL_TIME, deviceId, subId1, subId2);
+
+  }
+
+  /**
+   * Removes every registration of a handler.
+   *
+   * @param handler the handler
+   *
+   * @return true if the handler had been registered
+   */
+
+  public synchronized boolean unregister(final SysexHandler handler) {
+
+    boolean removed = false;
+
+    for ( Iterator<Registration> iterator = registrations.iterator(); iterator.hasNext(); ) {
+
+      if ( iterator.next().handler == handler ) {
+
+        iterator.remove();
+        removed = true;
+
+      }
+
+    }
+
+    if ( removed ) {
+
+      compile();
+
+    }
+
+    return removed;
+
+  }
+
+  /**
+   * Get the source whose messages are being routed.
+   *
+   * @return the source
+   */
+
+  public CoreMidiSource getSource() {
+
+    return source;
+
+  }
+
+  /**
+   * Stops routing messages.
+   */
+
+  @Override
+  public void close() {
+
+    source.removeSourceListener(listener);
+
+  }
+
+  /**
+   * Builds a new trie from the registrations and puts it in place of the old one, which messages being routed on
+   * the input thread carry on using. Must be called while synchronized.
+   */
+
+  private void compile() {
+
+    final Node newRoot = new Node();
+
+    for ( Registration registration : registrations ) {
+
+      Node node = newRoot;
+
+      for ( int value : registration.prefix ) {
+
+        if ( value == ANY ) {
+
+          if ( node.any == null ) {
+
+            node.any = new Node();
+
+          }
+
+          node = node.any;
+
+        } else {
+
+          if ( node.children == null ) {
+
+            node.children = new Node[128];
+
+          }
+
+          if ( node.children[value] == null ) {
+
+            node.children[value] = new Node();
+
+          }
+
+          node = node.children[value];
+
+        }
+
+      }
+
+      node.handlers = Arrays.copyOf(node.handlers, node.handlers.length + 1);
+      node.handlers[node.handlers.length - 1] = registration.handler;
+
+    }
+
+    root = newRoot;
+
+  }
+
+  /**
+   * Gives a message to the handlers at a node of the trie, then follows the message's next byte down the trie.
+   *
+   * @param node      the node reached by the bytes so far
+   * @param data      the message
+   * @param offset    where the next byte is
+   * @param length    the length of the message
+   * @param timestamp the time stamp of the message
+   */
+
+  private void route(final Node node, final byte[] data, final int offset, final int length, final long timestamp) {
+
+    for ( SysexHandler handler : node.handlers ) {
+
+      try {
+
+        handler.sysexReceived(source, data, length, timestamp);
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem delivering SYSEX message to handler " + handler + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+    if ( offset >= length || data[offset] < 0 ) {
+
+      return;  // The message, or at least its data, has ended, so no longer prefix can match
+
+    }
+
+    if ( node.children != null && node.children[data[offset]] != null ) {
+
+      route(node.children[data[offset]], data, offset + 1, length, timestamp);
+
+    }
+
+    if ( node.any != null ) {
+
+      route(node.any, data, offset + 1, length, timestamp);
+
+    }
+
+  }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * The interface for a class that wants to handle System Exclusive messages routed to it by a
+ * {@link SysexDispatcher}. Methods are called on the CoreMIDI input thread, so they must return quickly.
+ *
+ */
+
+public interface SysexHandler {
+
+  /**
+   * Called when a System Exclusive message starting with a prefix the handler was registered for is received.
+   *
+   * @param source    the source which received the message
+   * @param data      the bytes of the message, starting with the 0xF0 status byte; this array is shared with the
+   *                  other handlers and listeners, so it must not be modified, and must be copied if it is needed
+   *                  after returning
+   * @param length    the number of bytes in the message
+   * @param timestamp the time at which the message took effect, in microseconds relative to when the source was
+   *                  opened, or -1 if it is not known
+   */
+
+  void sysexReceived(CoreMidiSource source, byte[] data, int length, long timestamp);
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * Decides whether a System Exclusive message received from a device is the response to a particular request made
+ * through a {@link SysexCorrelator}. {@link SysexMatchers} builds matchers for the common cases of manufacturer,
+ * device ID and command bytes.
+ *
+ */
+
+public interface SysexMatcher {
+
+  /**
+   * Checks whether a message is the response being waited for. This is called on the CoreMIDI input thread, so it
+   * must return quickly.
+   *
+   * @param data   the bytes of the message, starting with the 0xF0 status byte; this array must not be modified
+   * @param length the number of bytes in the message
+   *
+   * @return true if the message is the response
+   */
+
+  boolean matches(byte[] data, int length);
+
+}
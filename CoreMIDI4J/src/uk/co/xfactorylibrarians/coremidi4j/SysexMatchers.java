@@ -0,0 +1,185 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.Arrays;
+
+/**
+ * Builds {@link SysexMatcher}s which pick out responses by the bytes that identify them: the manufacturer ID, the
+ * device ID, and the command or message type, which are at fixed offsets in most manufacturers' formats.
+ *
+ */
+
+public final class SysexMatchers {
+
+  /**
+   * Prevent instantiation.
+   */
+
+  private SysexMatchers() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * Matches messages containing particular bytes at a particular offset.
+   *
+   * @param offset where the bytes start, counting the 0xF0 status byte as offset 0
+   * @param bytes  the bytes which must be there
+   *
+   * @return the matcher
+   *
+   * @throws IllegalArgumentException if the offset is negative or any of the bytes are not between 0 and 127
+   */
+
+  public static SysexMatcher bytesAt(final int offset, final int... bytes) {
+
+    if ( offset < 0 ) {
+
+      throw new IllegalArgumentException("offset must not be negative");
+
+    }
+
+    final byte[] expected = new byte[bytes.length];
+
+    for ( int i = 0; i < bytes.length; i++ ) {
+
+      if ( bytes[i] < 0 || bytes[i] > 127 ) {
+
+        throw new IllegalArgumentException("bytes must be between 0 and 127");
+
+      }
+
+      expected[i] = (byte) bytes[i];
+
+    }
+
+    return new SysexMatcher() {
+
+      @Override
+      public boolean matches(final byte[] data, final int length) {
+
+        if ( length < offset + expected.length ) {
+
+          return false;
+
+        }
+
+        for ( int i = 0; i < expected.length; i++ ) {
+
+          if ( data[offset + i] != expected[i] ) {
+
+            return false;
+
+          }
+
+        }
+
+        return true;
+
+      }
+
+      @Override
+      public String toString() {
+
+        return "bytes " + Arrays.toString(bytes) + " at " + offset;
+
+      }
+
+    };
+
+  }
+
+  /**
+   * Matches messages from a manufacturer, which is identified by the bytes immediately after the 0xF0 status byte.
+   *
+   * @param id the manufacturer ID: a single byte, or three bytes starting with 0
+   *
+   * @return the matcher
+   *
+   * @throws IllegalArgumentException if the ID is not one or three bytes between 0 and 127
+   */
+
+  public static SysexMatcher manufacturer(final int... id) {
+
+    if ( id.length != 1 && !(id.length == 3 && id[0] == 0) ) {
+
+      throw new IllegalArgumentException("manufacturer ID must be one byte, or three bytes starting with 0");
+
+    }
+
+    return bytesAt(1, id);
+
+  }
+
+  /**
+   * Matches messages from a device with a particular device ID, sometimes called the channel or unit number.
+   *
+   * @param offset   where the device ID is in the manufacturer's format, counting the 0xF0 status byte as offset 0
+   * @param deviceId the device ID
+   *
+   * @return the matcher
+   *
+   * @throws IllegalArgumentException if the offset is negative or the device ID is not between 0 and 127
+   */
+
+  public static SysexMatcher deviceId(final int offset, final int deviceId) {
+
+    return bytesAt(offset, deviceId);
+
+  }
+
+  /**
+   * Matches messages which all of several matchers match, such as a manufacturer, a device ID and a command.
+   *
+   * @param matchers the matchers
+   *
+   * @return the matcher
+   */
+
+  public static SysexMatcher allOf(final SysexMatcher... matchers) {
+
+    final SysexMatcher[] copy = matchers.clone();
+
+    return new SysexMatcher() {
+
+      @Override
+      public boolean matches(final byte[] data, final int length) {
+
+        for ( SysexMatcher matcher : copy ) {
+
+          if ( !matcher.matches(data, length) ) {
+
+            return false;
+
+          }
+
+        }
+
+        return true;
+
+      }
+
+      @Override
+      public String toString() {
+
+        return "all of " + Arrays.toString(copy);
+
+      }
+
+    };
+
+  }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sound.midi.SysexMessage;
+
+/**
+ * A System Exclusive request made through a {@link SysexCorrelator}, and the future response to it. The request
+ * completes with the bytes of the matching response, starting with the 0xF0 status byte. If no response arrives
+ * after every attempt has timed out, {@link #get()} throws an {@link ExecutionException} caused by a
+ * {@link TimeoutException}.
+ *
+ */
+
+public final class SysexRequest implements Future<byte[]> {
+
+  private final SysexCorrelator correlator;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile byte[] response;
+  private volatile Throwable failure;
+  private volatile boolean cancelled;
+  private volatile int attempts;
+
+  final SysexMessage message;
+  final SysexMatcher matcher;
+  final long timeout;
+  int retriesLeft;
+  TimingWheel.Timeout pendingTimeout;  // While waiting for a response to the current attempt
+
+  /**
+   * Creates a request; only {@link SysexCorrelator} does this.
+   *
+   * @param correlator the correlator sending the request
+   * @param message    the request message
+   * @param matcher    recognises the response
+   * @param timeout    how long to wait for a response to each attempt, in microseconds
+   * @param retries    how many times to send the request again if no response arrives
+   */
+
+  SysexRequest(final SysexCorrelator correlator, final SysexMessage message, final SysexMatcher matcher,
+               final long timeout, final int retries) {
+
+    this.correlator = correlator;
+    this.message = message;
+    this.matcher = matcher;
+    this.timeout = timeout;
+    retriesLeft = retries;
+
+  }
+
+  /**
+   * Check how many times the request has been sent so far.
+   *
+   * @return the number of attempts; zero while the request is still queued behind others
+   */
+
+  public int getAttempts() {
+
+    return attempts;
+
+  }
+
+  /**
+   * Records that the request has been sent once more.
+   */
+
+  void attempted() {
+
+    attempts++;
+
+  }
+
+  /**
+   * Completes the request with its response.
+   *
+   * @param data the response
+   *
+   * @return false if the request was already done
+   */
+
+  synchronized boolean complete(final byte[] data) {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    response = data;
+    done.countDown();
+    return true;
+
+  }
+
+  /**
+   * Completes the request unsuccessfully.
+   *
+   * @param cause why it failed
+   *
+   * @return false if the request was already done
+   */
+
+  synchronized boolean fail(final Throwable cause) {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    failure = cause;
+    done.countDown();
+    return true;
+
+  }
+
+  /**
+   * Completes the request by cancelling it, without asking the correlator.
+   *
+   * @return false if the request was already done
+   */
+
+  synchronized boolean markCancelled() {
+
+    if ( isDone() ) {
+
+      return false;
+
+    }
+
+    cancelled = true;
+    done.countDown();
+    return true;
+
+  }
+
+  /**
+   * Cancels the request, withdrawing it from the correlator so that the next queued request can be sent in its
+   * place. A response which arrives for it later is ignored.
+   *
+   * @param mayInterruptIfRunning ignored, since no thread runs the request
+   *
+   * @return false if the request was already done
+   */
+
+  @Override
+  public boolean cancel(final boolean mayInterruptIfRunning) {
+
+    return correlator.cancel(this);
+
+  }
+
+  @Override
+  public boolean isCancelled() {
+
+    return cancelled;
+
+  }
+
+  @Override
+  public boolean isDone() {
+
+    return done.getCount() == 0;
+
+  }
+
+  @Override
+  public byte[] get() throws InterruptedException, ExecutionException {
+
+    done.await();
+    return result();
+
+  }
+
+  @Override
+  public byte[] get(final long time, final TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+
+    if ( !done.await(time, unit) ) {
+
+      throw new TimeoutException("Still waiting for response to SysEx request");
+
+    }
+
+    return result();
+
+  }
+
+  /**
+   * Reports how the request completed.
+   *
+   * @return the response
+   *
+   * @throws ExecutionException if the request failed
+   * @throws CancellationException if the request was cancelled
+   */
+
+  private byte[] result() throws ExecutionException {
+
+    if ( cancelled ) {
+
+      throw new CancellationException("SysEx request was cancelled");
+
+    }
+
+    if ( failure != null ) {
+
+      throw new ExecutionException(failure);
+
+    }
+
+    return response;
+
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiDeviceReceiver;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * A receiver which is sent messages ahead of time by a {@link LookaheadScheduler}, translating the scheduler's times
+ * into the timestamps of the receiver's device. Receivers of {@link CoreMidiDestination}s (or any other device that
+ * reports its position) are sent real timestamps, so the messages are delivered exactly when due; other receivers
+ * are sent messages with no timestamp, as soon as they are scheduled.
+ *
+ */
+
+final class TimestampedOutput {
+
+  private final Receiver receiver;
+  private final MidiDevice device;
+  private long offset;         // Add to a scheduler time to get the device's timestamp
+  private boolean timestamped;
+
+  /**
+   * Wraps a receiver.
+   *
+   * @param receiver the receiver to send messages to
+   */
+
+  TimestampedOutput(final Receiver receiver) {
+
+    this.receiver = receiver;
+    device = (receiver instanceof MidiDeviceReceiver) ? ((MidiDeviceReceiver) receiver).getMidiDevice() : null;
+
+  }
+
+  /**
+   * Gets the receiver messages are sent to.
+   *
+   * @return the wrapped receiver
+   */
+
+  Receiver getReceiver() {
+
+    return receiver;
+
+  }
+
+  /**
+   * Measures the difference between the scheduler's clock and the device's, which must be done whenever the device
+   * might have been reopened, such as before playback starts.
+   */
+
+  void synchronize() {
+
+    timestamped = false;
+
+    if ( device != null && device.isOpen() ) {
+
+      final long position = device.getMicrosecondPosition();
+
+      if ( position >= 0 ) {
+
+        offset = position - LookaheadScheduler.now();
+        timestamped = true;
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Sends a message to be delivered at a particular time.
+   *
+   * @param message the message
+   * @param due     when it should be delivered, on the scheduler's clock
+   */
+
+  void send(final MidiMessage message, final long due) {
+
+    try {
+
+      receiver.send(message, timestamped ? Math.max(0, due + offset) : -1);
+
+    } catch (IllegalStateException e) {
+
+      System.err.println("Unable to send scheduled MIDI message to " + receiver + ": " + e.getMessage());
+
+    }
+
+  }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, for keeping track of large numbers of timeouts which are usually cancelled or pushed back
+ * before they expire. Each timeout goes into the slot for the tick in which it expires, modulo the number of slots,
+ * so scheduling and cancelling take constant time however many timeouts are pending, and each tick only looks at
+ * the timeouts in one slot. The price is that timeouts fire up to one tick late.
+ *
+ * <p>The wheel is turned by a periodic task on the {@link CoreMidiScheduler} thread, which only runs while there are
+ * timeouts pending. Tasks are run on that thread, outside any lock, so they must return quickly. Times are in
+ * microseconds on the clock returned by {@link LookaheadScheduler#now()}.</p>
+ *
+ */
+
+final class TimingWheel {
+
+  /**
+   * How long each tick of the shared wheel lasts, in microseconds.
+   */
+
+  static final long SHARED_TICK = 5000;
+
+  /**
+   * How many slots the shared wheel has, which is a power of two so that a slot can be found by masking.
+   */
+
+  private static final int SHARED_SLOTS = 256;
+
+  private static TimingWheel shared;
+
+  private final long tickDuration;
+  private final Timeout[] slots;
+  private final int mask;
+  private long currentTick;               // The last tick whose slot has been processed
+  private int pending;                    // How many timeouts are in the wheel
+  private ScheduledFuture<?> turning;     // The task turning the wheel, while there are timeouts pending
+
+  /**
+   * A task scheduled on the wheel, which can be cancelled until it runs.
+   */
+
+  static final class Timeout {
+
+    private final Runnable task;
+    private final long deadlineTick;
+    private final int slot;
+    private Timeout previous;
+    private Timeout next;
+    private boolean inWheel;
+
+    /**
+     * Creates a timeout.
+     *
+     * @param task         what to run when it expires
+     * @param deadlineTick the tick in which it expires
+     * @param slot         the slot holding it
+     */
+
+    private Timeout(final Runnable task, final long deadlineTick, final int slot) {
+
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+      this.slot = slot;
+
+    }
+
+  }
+
+  /**
+   * Creates a wheel.
+   *
+   * @param tickDuration how long each tick lasts, in microseconds
+   * @param slotCount    how many slots the wheel has, which must be a power of two
+   *
+   * @throws IllegalArgumentException if the tick duration is not positive or the slot count is not a power of two
+   */
+
+  TimingWheel(final long tickDuration, final int slotCount) {
+
+    if ( tickDuration <= 0 ) {
+
+      throw new IllegalArgumentException("tickDuration must be positive");
+
+    }
+
+    if ( slotCount <= 0 || Integer.bitCount(slotCount) != 1 ) {
+
+      throw new IllegalArgumentException("slotCount must be a power of two");
+
+    }
+
+    this.tickDuration = tickDuration;
+    slots = new Timeout[slotCount];
+    mask = slotCount - 1;
+
+  }
+
+  /**
+   * Gets the wheel shared by the whole library, creating it if this is the first time it has been needed.
+   *
+   * @return the shared wheel
+   */
+
+  static synchronized TimingWheel getShared() {
+
+    if ( shared == null ) {
+
+      shared = new TimingWheel(SHARED_TICK, SHARED_SLOTS);
+
+    }
+
+    return shared;
+
+  }
+
+  /**
+   * Schedules a task to run once a deadline has passed.
+   *
+   * @param task     what to run
+   * @param deadline when to run it, in microseconds
+   *
+   * @return the timeout, which can be passed to {@link #cancel(Timeout)}
+   */
+
+  synchronized Timeout schedule(final Runnable task, final long deadline) {
+
+    if ( pending == 0 ) {
+
+      // Turn just after each tick boundary, so that nothing waits more than a tick beyond its deadline.
+      final long now = LookaheadScheduler.now();
+      currentTick = now / tickDuration;
+      turning = CoreMidiScheduler.getExecutor().scheduleAtFixedRate(new Runnable() {
+
+        @Override
+        public void run() {
+
+          turn();
+
+        }
+
+      }, tickDuration - now % tickDuration, tickDuration, TimeUnit.MICROSECONDS);
+
+    }
+
+    // Anything already due goes into the next slot to be processed, since earlier ones will not be looked at again.
+    final long deadlineTick = Math.max(currentTick + 1, (deadline + tickDuration - 1) / tickDuration);
+    final Timeout timeout = new Timeout(task, deadlineTick, (int) (deadlineTick & mask));
+    timeout.next = slots[timeout.slot];
+
+    if ( timeout.next != null ) {
+
+      timeout.next.previous = timeout;
+
+    }
+
+    slots[timeout.slot] = timeout;
+    timeout.inWheel = true;
+    pending++;
+    return timeout;
+
+  }
+
+  /**
+   * Cancels a timeout, if it has not already run.
+   *
+   * @param timeout the timeout
+   *
+   * @return true if the timeout was cancelled, false if it had already run or been cancelled
+   */
+
+  synchronized boolean cancel(final Timeout timeout) {
+
+    if ( !timeout.inWheel ) {
+
+      return false;
+
+    }
+
+    remove(timeout);
+    stopIfIdle();
+    return true;
+
+  }
+
+  /**
+   * Checks how many timeouts are waiting to run.
+   *
+   * @return the number of timeouts in the wheel
+   */
+
+  synchronized int getPendingCount() {
+
+    return pending;
+
+  }
+
+  /**
+   * Processes the slot of every tick which has passed since the last turn, then runs the tasks which expired.
+   */
+
+  private void turn() {
+
+    final List<Runnable> expired = new ArrayList<>();
+
+    synchronized (this) {
+
+      final long nowTick = LookaheadScheduler.now() / tickDuration;
+
+      if ( nowTick - currentTick >= slots.length ) {
+
+        // We fell more than a whole revolution behind, so every slot is due; look at each of them just once.
+        for ( int slot = 0; slot < slots.length; slot++ ) {
+
+          expire(slot, nowTick, expired);
+
+        }
+
+      } else {
+
+        for ( long tick = currentTick + 1; tick <= nowTick && pending > 0; tick++ ) {
+
+          expire((int) (tick & mask), tick, expired);
+
+        }
+
+      }
+
+      currentTick = Math.max(currentTick, nowTick);
+      stopIfIdle();
+
+    }
+
+    for ( Runnable task : expired ) {
+
+      try {
+
+        task.run();
+
+      } catch (Throwable t) {
+
+        System.err.println("Problem running timing wheel task " + task + ": " + t);
+        t.printStackTrace(System.err);
+
+      }
+
+    }
+
+  }
+
+  /**
+   * Removes the timeouts in a slot which are due by a tick, collecting their tasks.
+   *
+   * @param slot    the slot
+   * @param tick    the tick
+   * @param expired where to collect the tasks of the expired timeouts
+   */
+
+  private void expire(final int slot, final long tick, final List<Runnable> expired) {
+
+    Timeout timeout = slots[slot];
+
+    while ( timeout != null ) {
+
+      final Timeout next = timeout.next;
+
+      if ( timeout.deadlineTick <= tick ) {
+
+        remove(timeout);
+        expired.add(timeout.task);
+
+      }
+
+      timeout = next;
+
+    }
+
+  }
+
+  /**
+   * Unlinks a timeout from its slot.
+   *
+   * @param timeout the timeout
+   */
+
+  private void remove(final Timeout timeout) {
+
+    if ( timeout.previous == null ) {
+
+      slots[timeout.slot] = timeout.next;
+
+    } else {
+
+      timeout.previous.next = timeout.next;
+
+    }
+
+    if ( timeout.next != null ) {
+
+      timeout.next.previous = timeout.previous;
+
+    }
+
+    timeout.previous = null;
+    timeout.next = null;
+    timeout.inWheel = false;
+    pending--;
+
+  }
+
+  /**
+   * Stops turning the wheel once there is nothing left in it.
+   */
+
+  private void stopIfIdle() {
+
+    if ( pending == 0 && turning != null ) {
+
+      turning.cancel(false);
+      turning = null;
+
+    }
+
+  }
+
+}
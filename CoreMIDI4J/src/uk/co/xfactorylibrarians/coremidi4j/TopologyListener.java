@@ -0,0 +1,33 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+/**
+ * The interface for a class that wants to be told how the set of CoreMIDI end points has changed, including how the
+ * live enumeration at startup differs from the provisional topology that was read from disk.
+ *
+ */
+
+public interface TopologyListener {
+
+  /**
+   * Called when the device provider has published a new topology.
+   *
+   * @param previous the topology that was previously being served, which may be provisional or empty
+   * @param current  the live topology which has just been published
+   * @param diff     the end points which were added, removed or changed in going from one to the other
+   */
+
+  void topologyChanged(TopologySnapshot previous, TopologySnapshot current, TopologySnapshot.Diff diff);
+
+}
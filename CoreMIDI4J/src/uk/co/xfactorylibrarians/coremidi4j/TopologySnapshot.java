@@ -0,0 +1,612 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import javax.sound.midi.MidiDevice;
+
+/**
+ * <p>An immutable record of the CoreMIDI end points that were present at some moment: their kinds, names, references
+ * and unique IDs. The provider keeps one describing the live device map, and if the system property
+ * {@value #SNAPSHOT_FILE_PROPERTY} names a file, it persists the latest one there in a compact binary form.</p>
+ *
+ * <p>At the next startup that file is memory-mapped and served by {@link CoreMidi4J#getTopology()} as a provisional
+ * device list, before CoreMIDI has even been asked to enumerate anything. Once the live enumeration has happened,
+ * the provisional list is reconciled against it, and the differences are reported to any registered
+ * {@link TopologyListener}.</p>
+ *
+ */
+
+public final class TopologySnapshot {
+
+  /**
+   * The system property which, when set to a file path, enables persisting the device topology in that file.
+   */
+
+  public static final String SNAPSHOT_FILE_PROPERTY = "coremidi4j.topology.snapshot";
+
+  private static final int MAGIC = 0x434d3454;  // "CM4T"
+  private static final short FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 2 + 4;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Identifies the direction of an end point.
+   */
+
+  public enum Kind {
+
+    /** An end point which sends MIDI to us, represented by a {@link CoreMidiSource}. */
+    SOURCE,
+
+    /** An end point to which we send MIDI, represented by a {@link CoreMidiDestination}. */
+    DESTINATION
+
+  }
+
+  /**
+   * Describes a single end point in a snapshot.
+   */
+
+  public static final class Entry {
+
+    private final Kind kind;
+    private final CoreMidiDeviceInfo info;
+
+    /**
+     * Constructor
+     *
+     * @param kind the direction of the end point
+     * @param info the device information of the end point
+     */
+
+    Entry(final Kind kind, final CoreMidiDeviceInfo info) {
+
+      this.kind = kind;
+      this.info = info;
+
+    }
+
+    /**
+     * Gets the direction of the end point.
+     *
+     * @return whether the end point is a source or a destination
+     */
+
+    public Kind getKind() {
+
+      return kind;
+
+    }
+
+    /**
+     * Gets the device information of the end point. For a provisional snapshot, the references it contains may no
+     * longer be valid; only the unique IDs and names can be relied upon until the live enumeration confirms them.
+     *
+     * @return the device information recorded for the end point
+     */
+
+    public CoreMidiDeviceInfo getInfo() {
+
+      return info;
+
+    }
+
+    /**
+     * Gets the OS X unique identifier of the end point.
+     *
+     * @return the end point unique ID
+     */
+
+    public int getEndPointUniqueID() {
+
+      return info.getEndPointUniqueID();
+
+    }
+
+    /**
+     * Checks whether another entry records exactly the same end point state.
+     *
+     * @param other the entry to compare with
+     *
+     * @return true if the kinds, names, references and unique IDs all match
+     */
+
+    boolean sameAs(final Entry other) {
+
+      final CoreMidiDeviceInfo a = info;
+      final CoreMidiDeviceInfo b = other.info;
+
+      return kind == other.kind &&
+             a.getDeviceReference() == b.getDeviceReference() &&
+             a.getdeviceUniqueID() == b.getdeviceUniqueID() &&
+             a.getEntityReference() == b.getEntityReference() &&
+             a.getEntityUniqueID() == b.getEntityUniqueID() &&
+             a.getEndPointReference() == b.getEndPointReference() &&
+             a.getEndPointUniqueID() == b.getEndPointUniqueID() &&
+             equal(a.getName(), b.getName()) &&
+             equal(a.getVendor(), b.getVendor()) &&
+             equal(a.getDescription(), b.getDescription()) &&
+             equal(a.getVersion(), b.getVersion()) &&
+             equal(a.getDeviceName(), b.getDeviceName()) &&
+             equal(a.getEntityName(), b.getEntityName()) &&
+             equal(a.getEndPointName(), b.getEndPointName());
+
+    }
+
+    @Override
+    public String toString() {
+
+      return kind + " " + info.getName() + " (" + info.getEndPointUniqueID() + ")";
+
+    }
+
+  }
+
+  /**
+   * Describes how one snapshot differs from another.
+   */
+
+  public static final class Diff {
+
+    private final List<Entry> added;
+    private final List<Entry> removed;
+    private final List<Entry> changed;
+
+    /**
+     * Constructor
+     *
+     * @param added   entries present only in the newer snapshot
+     * @param removed entries present only in the older snapshot
+     * @param changed entries present in both but recorded differently, as they appear in the newer snapshot
+     */
+
+    Diff(final List<Entry> added, final List<Entry> removed, final List<Entry> changed) {
+
+      this.added = Collections.unmodifiableList(added);
+      this.removed = Collections.unmodifiableList(removed);
+      this.changed = Collections.unmodifiableList(changed);
+
+    }
+
+    /**
+     * Gets the end points which have appeared.
+     *
+     * @return the entries present only in the newer snapshot
+     */
+
+    public List<Entry> getAdded() {
+
+      return added;
+
+    }
+
+    /**
+     * Gets the end points which have disappeared.
+     *
+     * @return the entries present only in the older snapshot
+     */
+
+    public List<Entry> getRemoved() {
+
+      return removed;
+
+    }
+
+    /**
+     * Gets the end points which are still present but whose names or references have changed.
+     *
+     * @return the changed entries, as they appear in the newer snapshot
+     */
+
+    public List<Entry> getChanged() {
+
+      return changed;
+
+    }
+
+    /**
+     * Checks whether there are any differences at all.
+     *
+     * @return true if nothing was added, removed or changed
+     */
+
+    public boolean isEmpty() {
+
+      return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+
+    }
+
+    @Override
+    public String toString() {
+
+      return "Diff[added=" + added + ", removed=" + removed + ", changed=" + changed + "]";
+
+    }
+
+  }
+
+  private final List<Entry> entries;
+  private final boolean provisional;
+
+  /**
+   * Constructor
+   *
+   * @param entries     the end points making up the snapshot
+   * @param provisional whether the snapshot was read from disk rather than captured from the live device map
+   */
+
+  TopologySnapshot(final List<Entry> entries, final boolean provisional) {
+
+    this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    this.provisional = provisional;
+
+  }
+
+  /**
+   * Gets the end points recorded in the snapshot, in the order CoreMIDI enumerated them.
+   *
+   * @return the entries of the snapshot
+   */
+
+  public List<Entry> getEntries() {
+
+    return entries;
+
+  }
+
+  /**
+   * Checks whether this snapshot was read from disk at startup and has not yet been confirmed by a live enumeration.
+   *
+   * @return true if the snapshot is provisional
+   */
+
+  public boolean isProvisional() {
+
+    return provisional;
+
+  }
+
+  /**
+   * Compares this snapshot with a newer one.
+   *
+   * @param newer the snapshot to compare against
+   *
+   * @return the end points which were added, removed or changed in going from this snapshot to the newer one
+   */
+
+  public Diff diff(final TopologySnapshot newer) {
+
+    final Map<Integer, Entry> old = new LinkedHashMap<>();
+
+    for ( Entry entry : entries ) {
+
+      old.put(entry.getEndPointUniqueID(), entry);
+
+    }
+
+    final List<Entry> added = new ArrayList<>();
+    final List<Entry> changed = new ArrayList<>();
+
+    for ( Entry entry : newer.entries ) {
+
+      final Entry previous = old.remove(entry.getEndPointUniqueID());
+
+      if ( previous == null ) {
+
+        added.add(entry);
+
+      } else if ( !previous.sameAs(entry) ) {
+
+        changed.add(entry);
+
+      }
+
+    }
+
+    return new Diff(added, new ArrayList<>(old.values()), changed);
+
+  }
+
+  /**
+   * Checks whether two possibly-null strings are equal.
+   *
+   * @param a the first string
+   * @param b the second string
+   *
+   * @return true if both are null or they have the same content
+   */
+
+  private static boolean equal(final String a, final String b) {
+
+    return (a == null) ? (b == null) : a.equals(b);
+
+  }
+
+  /**
+   * Records the current state of a collection of CoreMidi4J devices.
+   *
+   * @param devices the sources and destinations to record
+   *
+   * @return a live snapshot of the devices
+   */
+
+  static TopologySnapshot capture(final Collection<MidiDevice> devices) {
+
+    final List<Entry> result = new ArrayList<>(devices.size());
+
+    for ( MidiDevice device : devices ) {
+
+      result.add(new Entry((device instanceof CoreMidiSource) ? Kind.SOURCE : Kind.DESTINATION,
+                           (CoreMidiDeviceInfo) device.getDeviceInfo()));
+
+    }
+
+    return new TopologySnapshot(result, false);
+
+  }
+
+  /**
+   * Gets the file in which snapshots should be persisted, if the user has asked for that.
+   *
+   * @return the snapshot file, or null if persisting is not enabled
+   */
+
+  static File configuredFile() {
+
+    final String path = System.getProperty(SNAPSHOT_FILE_PROPERTY);
+    return (path == null || path.isEmpty()) ? null : new File(path);
+
+  }
+
+  /**
+   * Reads a snapshot previously written by {@link #write(File)}, by memory-mapping the file.
+   *
+   * @param file the snapshot file
+   *
+   * @return the provisional snapshot recorded in the file
+   *
+   * @throws IOException if the file cannot be read or is not a valid snapshot
+   */
+
+  static TopologySnapshot read(final File file) throws IOException {
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if ( buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC ) {
+
+        throw new IOException("Not a CoreMidi4J topology snapshot: " + file);
+
+      }
+
+      if ( buffer.getShort() != FORMAT_VERSION ) {
+
+        throw new IOException("Unsupported topology snapshot version in " + file);
+
+      }
+
+      final int count = buffer.getInt();
+      final List<Entry> result = new ArrayList<>(Math.max(0, Math.min(count, 1024)));
+
+      try {
+
+        for ( int i = 0; i < count; i++ ) {
+
+          final Kind kind = (buffer.get() == 0) ? Kind.SOURCE : Kind.DESTINATION;
+          final int deviceReference = buffer.getInt();
+          final int deviceUniqueID = buffer.getInt();
+          final int entityReference = buffer.getInt();
+          final int entityUniqueID = buffer.getInt();
+          final int endPointReference = buffer.getInt();
+          final int endPointUniqueID = buffer.getInt();
+          final String name = readString(buffer);
+          final String vendor = readString(buffer);
+          final String description = readString(buffer);
+          final String version = readString(buffer);
+          final String deviceName = readString(buffer);
+          final String entityName = readString(buffer);
+          final String endPointName = readString(buffer);
+
+          result.add(new Entry(kind, new CoreMidiDeviceInfo(name, vendor, description, version,
+                                                            deviceName, deviceReference, deviceUniqueID,
+                                                            entityName, entityReference, entityUniqueID,
+                                                            endPointName, endPointReference, endPointUniqueID)));
+
+        }
+
+      } catch (BufferUnderflowException e) {
+
+        throw new IOException("Truncated topology snapshot: " + file, e);
+
+      }
+
+      return new TopologySnapshot(result, true);
+
+    }
+
+  }
+
+  /**
+   * Persists this snapshot, by memory-mapping a temporary file next to the destination, filling it in, and then
+   * atomically renaming it into place, so that a reader never sees a partially written snapshot.
+   *
+   * @param file the snapshot file to write
+   *
+   * @throws IOException if the file cannot be written
+   */
+
+  void write(final File file) throws IOException {
+
+    final List<byte[][]> strings = new ArrayList<>(entries.size());
+    int size = HEADER_SIZE;
+
+    for ( Entry entry : entries ) {
+
+      final CoreMidiDeviceInfo info = entry.getInfo();
+      final byte[][] encoded = { encode(info.getRawName()), encode(info.getVendor()), encode(info.getDescription()),
+                                 encode(info.getVersion()), encode(info.getDeviceName()),
+                                 encode(info.getEntityName()), encode(info.getEndPointName()) };
+      strings.add(encoded);
+      size += 1 + 6 * 4;
+
+      for ( byte[] string : encoded ) {
+
+        size += 2 + ((string == null) ? 0 : string.length);
+
+      }
+
+    }
+
+    final File directory = file.getAbsoluteFile().getParentFile();
+
+    if ( directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory() ) {
+
+      throw new IOException("Unable to create directory for topology snapshot " + file);
+
+    }
+
+    final File partial = File.createTempFile(file.getName(), ".partial", directory);
+
+    try {
+
+      try (RandomAccessFile raf = new RandomAccessFile(partial, "rw"); FileChannel channel = raf.getChannel()) {
+
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.putInt(entries.size());
+
+        for ( int i = 0; i < entries.size(); i++ ) {
+
+          final Entry entry = entries.get(i);
+          final CoreMidiDeviceInfo info = entry.getInfo();
+          buffer.put((byte) ((entry.getKind() == Kind.SOURCE) ? 0 : 1));
+          buffer.putInt(info.getDeviceReference());
+          buffer.putInt(info.getdeviceUniqueID());
+          buffer.putInt(info.getEntityReference());
+          buffer.putInt(info.getEntityUniqueID());
+          buffer.putInt(info.getEndPointReference());
+          buffer.putInt(info.getEndPointUniqueID());
+
+          for ( byte[] string : strings.get(i) ) {
+
+            writeString(buffer, string);
+
+          }
+
+        }
+
+        buffer.force();
+
+      }
+
+      try {
+
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+      } catch (AtomicMoveNotSupportedException e) {
+
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+      }
+
+    } finally {
+
+      Files.deleteIfExists(partial.toPath());  // Only still present if something went wrong.
+
+    }
+
+  }
+
+  /**
+   * Encodes a string for storage, truncating it if it would not fit in the length field.
+   *
+   * @param value the string to encode, which may be null
+   *
+   * @return the UTF-8 bytes of the string, or null if it was null
+   */
+
+  private static byte[] encode(final String value) {
+
+    if ( value == null ) {
+
+      return null;
+
+    }
+
+    final byte[] bytes = value.getBytes(UTF8);
+    return (bytes.length <= Short.MAX_VALUE) ? bytes : Arrays.copyOf(bytes, Short.MAX_VALUE);
+
+  }
+
+  /**
+   * Writes an encoded string, preceded by its length, with -1 representing null.
+   *
+   * @param buffer the buffer being filled
+   * @param string the encoded string, or null
+   */
+
+  private static void writeString(final ByteBuffer buffer, final byte[] string) {
+
+    if ( string == null ) {
+
+      buffer.putShort((short) -1);
+
+    } else {
+
+      buffer.putShort((short) string.length);
+      buffer.put(string);
+
+    }
+
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(ByteBuffer, byte[])}.
+   *
+   * @param buffer the buffer being read
+   *
+   * @return the string, or null if null was written
+   */
+
+  private static String readString(final ByteBuffer buffer) {
+
+    final short length = buffer.getShort();
+
+    if ( length < 0 ) {
+
+      return null;
+
+    }
+
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+
+  }
+
+}
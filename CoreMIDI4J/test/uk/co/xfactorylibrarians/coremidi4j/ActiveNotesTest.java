@@ -0,0 +1,128 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.assertShortMessage;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the notes a source has passed on are ended, everywhere they are tracked, when the source releases them.
+ *
+ */
+
+public class ActiveNotesTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private int sourceID;
+  private CoreMidiSource source;
+  private SimulatedEnvironment.CollectingReceiver receiver;
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    sourceID = backend.addSource(SimulatedEnvironment.uniqueName("Notes"), "Out");
+    source = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    source.open();
+    receiver = new SimulatedEnvironment.CollectingReceiver();
+    source.getTransmitter().setReceiver(receiver);
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( source != null ) {
+
+      source.close();
+
+    }
+
+  }
+
+  @Test
+  public void releaseEndsNotesInChannelState() throws Exception {
+
+    final ChannelStateTable table = source.trackChannelState();
+    backend.receive(sourceID, bytes(0x92, 60, 100, 0x92, 64, 100), 0);
+    assertTrue(table.isNoteHeld(2, 60));
+    assertTrue(table.isNoteHeld(2, 64));
+    receiver.drain();
+
+    assertEquals(2, source.releaseActiveNotes());
+    assertFalse(table.isNoteHeld(2, 60));
+    assertFalse(table.isNoteHeld(2, 64));
+    assertEquals(0, table.getHeldNotes(2).length);
+    assertEquals(2, receiver.drain().size());
+
+  }
+
+  @Test
+  public void activeSensingTimeoutEndsNotesBeforeTellingListeners() throws Exception {
+
+    final ChannelStateTable table = source.trackChannelState();
+    final CountDownLatch timedOut = new CountDownLatch(1);
+    final AtomicBoolean releasedFirst = new AtomicBoolean();
+    source.addActiveSensingListener(new ActiveSensingListener() {
+
+      @Override
+      public void activeSensingTimedOut(final CoreMidiSource silent, final long silence) {
+
+        releasedFirst.set(!table.isNoteHeld(5, 70) && silence >= CoreMidiSource.ACTIVE_SENSING_TIMEOUT);
+        timedOut.countDown();
+
+      }
+
+    });
+
+    backend.receive(sourceID, bytes(0xfe, 0x95, 70, 100), 0);
+    assertTrue(source.isActiveSensing());
+    assertTrue(table.isNoteHeld(5, 70));
+    receiver.drain();
+
+    assertTrue("Active Sensing never timed out",
+               timedOut.await(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    assertTrue(releasedFirst.get());
+    assertFalse(source.isActiveSensing());
+    assertShortMessage(receiver.next(), 0x85, 70, 0);
+
+  }
+
+  @Test
+  public void closeEndsNotesInChannelState() throws Exception {
+
+    backend.receive(sourceID, bytes(0x90, 48, 90), 0);
+    assertShortMessage(receiver.next(), 0x90, 48, 90);
+    final ChannelStateTable table = source.trackChannelState();
+    backend.receive(sourceID, bytes(0x90, 50, 90), 0);
+    receiver.drain();
+
+    source.close();
+    assertFalse(table.isNoteHeld(0, 50));
+    assertEquals(0, source.releaseActiveNotes());
+
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that what a {@link CaptureJournal} records is read back by a {@link CaptureJournalReader}, across segments,
+ * whether or not the journal was closed.
+ *
+ */
+
+public class CaptureJournalTest {
+
+  private static final long BASE_TIME = 1500000000000000L;
+  private static final long SPACING = 1000;
+  private static final int EVENTS = 2000;
+  private static final int SEGMENT_SIZE = 4096;  // Small enough for the events to span several segments
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void closedJournalReadsBack() throws Exception {
+
+    final File directory = folder.newFolder("closed");
+    final CaptureJournal journal = new CaptureJournal(directory, SEGMENT_SIZE);
+    final List<byte[]> expected = record(journal);
+    journal.close();
+
+    assertTrue(segmentFiles(directory).length > 2);
+    checkJournal(new CaptureJournalReader(directory), expected);
+
+  }
+
+  @Test
+  public void unsealedSegmentIsReadUsingRebuiltIndex() throws Exception {
+
+    final File directory = folder.newFolder("unsealed");
+    final CaptureJournal journal = new CaptureJournal(directory, SEGMENT_SIZE);
+
+    try {
+
+      final List<byte[]> expected = record(journal);
+      final File[] files = segmentFiles(directory);
+      assertTrue(files.length > 2);
+
+      // The segment still being written is the last one started, and has no index yet
+      int unsealed = 0;
+
+      for ( File file : files ) {
+
+        try (RandomAccessFile segment = new RandomAccessFile(file, "r")) {
+
+          if ( segment.length() >= CaptureJournal.HEADER_SIZE && segment.readInt() == CaptureJournal.MAGIC ) {
+
+            segment.seek(CaptureJournal.INDEX_POSITION_OFFSET);
+            unsealed += (segment.readInt() == 0) ? 1 : 0;
+
+          }
+
+        }
+
+      }
+
+      assertEquals(1, unsealed);
+      checkJournal(new CaptureJournalReader(directory), expected);
+
+    } finally {
+
+      journal.close();
+
+    }
+
+  }
+
+  /**
+   * Records a mixture of short and System Exclusive messages, one every {@link #SPACING} microseconds.
+   *
+   * @param journal where to record them
+   *
+   * @return the bytes of each message recorded, in order
+   */
+
+  private static List<byte[]> record(final CaptureJournal journal) {
+
+    final List<byte[]> recorded = new ArrayList<>();
+
+    for ( int i = 0; i < EVENTS; i++ ) {
+
+      final long time = BASE_TIME + i * SPACING;
+
+      if ( i % 50 == 7 ) {
+
+        final byte[] sysex = new byte[20];
+        sysex[0] = (byte) 0xf0;
+
+        for ( int j = 1; j < sysex.length - 1; j++ ) {
+
+          sysex[j] = (byte) ((i + j) & 0x7f);
+
+        }
+
+        sysex[sysex.length - 1] = (byte) 0xf7;
+        journal.recordSysex(time, sysex, sysex.length);
+        recorded.add(sysex);
+
+      } else if ( i % 50 == 13 ) {
+
+        journal.record(time, 0xc0 | (i % 16), i % 128, 0);
+        recorded.add(new byte[] { (byte) (0xc0 | (i % 16)), (byte) (i % 128) });
+
+      } else {
+
+        journal.record(time, 0x90 | (i % 16), i % 128, 1 + i % 127);
+        recorded.add(new byte[] { (byte) (0x90 | (i % 16)), (byte) (i % 128), (byte) (1 + i % 127) });
+
+      }
+
+    }
+
+    assertEquals(EVENTS, journal.getEventCount());
+    assertEquals(0, journal.getDroppedEventCount());
+    return recorded;
+
+  }
+
+  /**
+   * Reads a journal from start to finish, then seeks to exact and in-between times throughout it.
+   *
+   * @param reader   the reader for the journal
+   * @param expected the bytes of each message recorded
+   */
+
+  private static void checkJournal(final CaptureJournalReader reader, final List<byte[]> expected) throws Exception {
+
+    assertEquals(EVENTS, reader.getEventCount());
+    assertEquals(BASE_TIME, reader.getStartTime());
+    assertEquals(BASE_TIME + (EVENTS - 1) * SPACING, reader.getEndTime());
+
+    for ( int i = 0; i < EVENTS; i++ ) {
+
+      assertTrue(reader.hasNext());
+      checkEvent(reader.next(), i, expected);
+
+    }
+
+    assertFalse(reader.hasNext());
+    assertNull(reader.next());
+
+    for ( int i = 0; i < EVENTS; i += 37 ) {
+
+      reader.seek(BASE_TIME + i * SPACING);
+      checkEvent(reader.next(), i, expected);
+      checkEvent(reader.next(), i + 1, expected);
+
+      reader.seek(BASE_TIME + i * SPACING - SPACING / 2);  // Between events, so lands on the later one
+      checkEvent(reader.next(), i, expected);
+
+    }
+
+    reader.seek(BASE_TIME - SPACING);
+    checkEvent(reader.next(), 0, expected);
+
+    reader.seek(BASE_TIME + EVENTS * SPACING);
+    assertNull(reader.next());
+
+    reader.rewind();
+    checkEvent(reader.next(), 0, expected);
+
+  }
+
+  private static void checkEvent(final CaptureJournalReader.Event event, final int index,
+                                 final List<byte[]> expected) {
+
+    assertEquals("time of event " + index, BASE_TIME + index * SPACING, event.getTime());
+    assertArrayEquals("bytes of event " + index, expected.get(index), event.getMessage().getMessage());
+
+  }
+
+  private static File[] segmentFiles(final File directory) {
+
+    final File[] files = directory.listFiles();
+    Arrays.sort(files);
+    return files;
+
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link ControllerAssembler} puts controller pairs and parameter changes back together, and delivers
+ * unpaired most significant bytes once their timeout expires.
+ *
+ */
+
+public class ControllerAssemblerTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private int sourceID;
+  private CoreMidiSource source;
+  private ControllerAssembler assembler;
+  private final Recorder recorder = new Recorder();
+
+  /**
+   * Describes each change delivered to it, and which thread it was delivered on.
+   */
+
+  private static final class Recorder implements HighResolutionControllerListener {
+
+    private final List<String> changes = new ArrayList<>();
+    private final CountDownLatch first = new CountDownLatch(1);
+    private volatile String firstThread;
+
+    @Override
+    public void controllerChanged(final CoreMidiSource source, final int channel, final int controller,
+                                  final int value, final long timestamp) {
+
+      record("cc " + channel + " " + controller + " " + value);
+
+    }
+
+    @Override
+    public void parameterChanged(final CoreMidiSource source, final int channel, final boolean registered,
+                                 final int parameter, final int value, final long timestamp) {
+
+      record((registered ? "rpn " : "nrpn ") + channel + " " + parameter + " " + value);
+
+    }
+
+    private synchronized void record(final String change) {
+
+      if ( changes.isEmpty() ) {
+
+        firstThread = Thread.currentThread().getName();
+
+      }
+
+      changes.add(change);
+      first.countDown();
+
+    }
+
+    synchronized List<String> take() {
+
+      final List<String> result = new ArrayList<>(changes);
+      changes.clear();
+      return result;
+
+    }
+
+  }
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    sourceID = backend.addSource(SimulatedEnvironment.uniqueName("Controllers"), "Out");
+    source = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    source.open();
+    assembler = new ControllerAssembler(source, recorder);
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( assembler != null ) {
+
+      assembler.close();
+
+    }
+
+    if ( source != null ) {
+
+      source.close();
+
+    }
+
+  }
+
+  @Test
+  public void pairIsDeliveredForEachByteWithoutTimeout() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb1, 7, 100, 0xb1, 39, 5), 0);
+    assertChanges("cc 1 7 12800", "cc 1 7 12805");
+
+    backend.receive(sourceID, bytes(0xb1, 39, 6), 0);  // A new least significant byte keeps the most significant
+    assertChanges("cc 1 7 12806");
+
+    backend.receive(sourceID, bytes(0xb1, 7, 101), 0);  // A new most significant byte resets the least
+    assertChanges("cc 1 7 12928");
+
+  }
+
+  @Test
+  public void leastSignificantByteAloneIsNotDelivered() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb0, 33, 9), 0);
+    assertChanges();
+
+  }
+
+  @Test
+  public void pairIsDeliveredOnceWithTimeout() throws Exception {
+
+    assembler.setMsbTimeout(1000000);
+    backend.receive(sourceID, bytes(0xb2, 1, 64, 0xb2, 33, 32), 0);
+    assertChanges("cc 2 1 8224");
+
+  }
+
+  @Test
+  public void unpairedByteIsDeliveredOnBackgroundThreadAfterTimeout() throws Exception {
+
+    assembler.setMsbTimeout(200000);
+    backend.receive(sourceID, bytes(0xb3, 10, 64), 0);
+    assertChanges();
+
+    assertTrue("Timed out most significant byte was not delivered",
+               recorder.first.await(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    assertChanges("cc 3 10 8192");
+    assertTrue("Delivered on " + recorder.firstThread, recorder.firstThread.startsWith("CoreMidi4J Background"));
+
+  }
+
+  @Test
+  public void closeDeliversUnpairedByte() throws Exception {
+
+    assembler.setMsbTimeout(1000000);
+    backend.receive(sourceID, bytes(0xb3, 11, 100), 0);
+    assembler.close();
+    assertChanges("cc 3 11 12800");
+
+  }
+
+  @Test
+  public void registeredParameterIsAssembled() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb0, 101, 0, 0xb0, 100, 2, 0xb0, 6, 64, 0xb0, 38, 1), 0);
+    assertChanges("rpn 0 2 8192", "rpn 0 2 8193");
+
+  }
+
+  @Test
+  public void nonRegisteredParameterIsAssembledWithTimeout() throws Exception {
+
+    assembler.setMsbTimeout(1000000);
+    backend.receive(sourceID, bytes(0xb4, 99, 1, 0xb4, 98, 8, 0xb4, 6, 3, 0xb4, 38, 4), 0);
+    assertChanges("nrpn 4 136 388");
+
+  }
+
+  @Test
+  public void incrementAndDecrementStepTheValue() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb0, 101, 0, 0xb0, 100, 0, 0xb0, 96, 0), 0);
+    assertChanges();  // The value is not known yet
+
+    backend.receive(sourceID, bytes(0xb0, 6, 0, 0xb0, 96, 0, 0xb0, 96, 0, 0xb0, 97, 0), 0);
+    assertChanges("rpn 0 0 0", "rpn 0 0 1", "rpn 0 0 2", "rpn 0 0 1");
+
+    backend.receive(sourceID, bytes(0xb0, 6, 127, 0xb0, 38, 127, 0xb0, 96, 0), 0);  // Stops at the maximum
+    assertChanges("rpn 0 0 16256", "rpn 0 0 16383", "rpn 0 0 16383");
+
+  }
+
+  @Test
+  public void nullParameterIgnoresDataEntry() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb0, 101, 0, 0xb0, 100, 0, 0xb0, 101, 127, 0xb0, 100, 127,
+                                    0xb0, 6, 64, 0xb0, 96, 0), 0);
+    assertChanges();
+
+  }
+
+  @Test
+  public void selectingParameterDeliversPendingDataEntry() throws Exception {
+
+    assembler.setMsbTimeout(1000000);
+    backend.receive(sourceID, bytes(0xb5, 101, 0, 0xb5, 100, 1, 0xb5, 6, 70, 0xb5, 100, 2), 0);
+    assertChanges("rpn 5 1 8960");
+
+  }
+
+  private void assertChanges(final String... expected) {
+
+    assertEquals(Arrays.asList(expected), recorder.take());
+
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Plays sequences into a simulated destination, checking when the events arrive.
+ *
+ */
+
+public class CoreMidiSequencerTest {
+
+  private static final int EVENT_COUNT = 100;
+
+  private SimulatedCoreMidiBackend backend;
+  private int destinationID;
+  private CoreMidiDestination destination;
+  private CoreMidiSequencer sequencer;
+  private final List<long[]> arrived = new ArrayList<>();  // Note number and timestamp of each note on
+  private final CountDownLatch finished = new CountDownLatch(EVENT_COUNT);
+
+  private final SimulatedCoreMidiBackend.DestinationListener listener =
+      new SimulatedCoreMidiBackend.DestinationListener() {
+
+        @Override
+        public void messageReceived(final int uniqueID, final byte[] data, final long timestamp) {
+
+          if ( uniqueID == destinationID && data.length == 3 && (data[0] & 0xf0) == ShortMessage.NOTE_ON ) {
+
+            synchronized (arrived) {
+
+              arrived.add(new long[] { data[1], timestamp });
+
+            }
+
+            finished.countDown();
+
+          }
+
+        }
+
+      };
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    destinationID = backend.addDestination(SimulatedEnvironment.uniqueName("Sequenced"), "In");
+    destination = SimulatedEnvironment.awaitDevice(destinationID, CoreMidiDestination.class);
+    destination.open();
+    backend.addDestinationListener(listener);
+    sequencer = new CoreMidiSequencer();
+    sequencer.open();
+    sequencer.getTransmitter().setReceiver(destination.getReceiver());
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( sequencer != null ) {
+
+      sequencer.close();
+
+    }
+
+    if ( backend != null ) {
+
+      backend.removeDestinationListener(listener);
+
+    }
+
+    if ( destination != null ) {
+
+      destination.close();
+
+    }
+
+  }
+
+  @Test
+  public void tempoChangeDuringFirstLookaheadKeepsEventsInOrder() throws Exception {
+
+    // One note on per tick, with each tick lasting a millisecond until the tempo factor doubles
+    final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+    final Track track = sequence.createTrack();
+
+    for ( int tick = 0; tick < EVENT_COUNT; tick++ ) {
+
+      track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, tick, 100), tick));
+
+    }
+
+    sequencer.setSequence(sequence);
+    sequencer.setTempoInMPQ(480000);
+    sequencer.setLookahead(50000);
+    sequencer.start();
+    Thread.sleep(10);  // Long enough for the first events to be handed over, but still before the first plays
+    sequencer.setTempoFactor(2.0f);
+
+    assertTrue("Not every event arrived", finished.await(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+    synchronized (arrived) {
+
+      for ( int i = 0; i < EVENT_COUNT; i++ ) {
+
+        assertEquals("Events arrived out of order", i, arrived.get(i)[0]);
+
+        if ( i > 0 ) {
+
+          final long gap = arrived.get(i)[1] - arrived.get(i - 1)[1];
+          assertTrue("Event " + i + " was due " + gap + " microseconds after the one before", gap >= 0 && gap <= 1100);
+
+        }
+
+      }
+
+      final long lastGap = arrived.get(EVENT_COUNT - 1)[1] - arrived.get(EVENT_COUNT - 2)[1];
+      assertTrue("The new tempo never took effect: " + lastGap, lastGap >= 400 && lastGap <= 600);
+
+    }
+
+  }
+
+}
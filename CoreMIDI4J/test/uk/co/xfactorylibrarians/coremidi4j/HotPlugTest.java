@@ -0,0 +1,112 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.assertShortMessage;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import org.junit.Test;
+
+/**
+ * Unplugs and replugs simulated end points, checking that the library notices and that persistent end points
+ * reconnect.
+ *
+ */
+
+public class HotPlugTest {
+
+  @Test
+  public void unplugRemovesDeviceAndReplugRestoresIt() throws Exception {
+
+    final SimulatedCoreMidiBackend backend = SimulatedEnvironment.backend();
+    final int sourceID = backend.addSource(SimulatedEnvironment.uniqueName("Hot Plug"), "Out");
+    final CoreMidiSource before = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+
+    backend.unplug(sourceID);
+    assertFalse(backend.isPluggedIn(sourceID));
+    SimulatedEnvironment.awaitAbsence(sourceID);
+
+    backend.replug(sourceID);
+    final CoreMidiSource after = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    assertNotSame(before, after);
+    assertEquals(sourceID, ((CoreMidiDeviceInfo) after.getDeviceInfo()).getEndPointUniqueID());
+
+  }
+
+  @Test
+  public void persistentSourceReconnectsAfterReplug() throws Exception {
+
+    final SimulatedCoreMidiBackend backend = SimulatedEnvironment.backend();
+    final String name = SimulatedEnvironment.uniqueName("Persistent");
+    final int sourceID = backend.addSource(name, "Out");
+    SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+
+    final PersistentSource persistent = new PersistentSource(sourceID, name);
+    final SimulatedEnvironment.CollectingReceiver receiver = new SimulatedEnvironment.CollectingReceiver();
+    persistent.setReceiver(receiver);
+    persistent.open();
+
+    try {
+
+      assertTrue(persistent.isPresent());
+      backend.receive(sourceID, bytes(0x90, 60, 100), 0);
+      assertShortMessage(receiver.next(), 0x90, 60, 100);
+
+      backend.unplug(sourceID);
+      SimulatedEnvironment.awaitAbsence(sourceID);
+      awaitPresence(persistent, false);
+
+      backend.replug(sourceID);
+      awaitPresence(persistent, true);
+      assertTrue(persistent.isOpen());
+      backend.receive(sourceID, bytes(0x80, 60, 0), 0);
+      assertShortMessage(receiver.next(), 0x80, 60, 0);
+
+    } finally {
+
+      persistent.close();
+
+    }
+
+  }
+
+  /**
+   * Waits for a persistent end point to notice that its device has come or gone.
+   *
+   * @param endPoint the end point
+   * @param present  whether the device should be present
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+
+  private static void awaitPresence(final PersistentEndPoint endPoint, final boolean present)
+      throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + SimulatedEnvironment.WAIT_MILLIS;
+
+    while ( endPoint.isPresent() != present && System.currentTimeMillis() < deadline ) {
+
+      Thread.sleep(5);
+
+    }
+
+    assertEquals(present, endPoint.isPresent());
+
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Exercises the native library cache with made-up library content, which works on any operating system.
+ *
+ */
+
+public class LoaderCacheTest {
+
+  private static final long HOUR = 60L * 60 * 1000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private byte[] library;
+  private File directory;
+
+  @Before
+  public void setUp() {
+
+    library = new byte[64 * 1024];
+    new Random(42).nextBytes(library);
+    directory = new File(folder.getRoot(), "cache");
+
+  }
+
+  @Test
+  public void extractsUnderContentHash() throws Exception {
+
+    final File cached = Loader.extractToCache(library, directory);
+
+    assertEquals("libCoreMidi4J-" + Loader.contentHash(library) + ".dylib", cached.getName());
+    assertEquals(directory, cached.getParentFile());
+    assertArrayEquals(library, Files.readAllBytes(cached.toPath()));
+    assertEquals(0, partialCopies().size());
+
+  }
+
+  @Test
+  public void reusesIntactCopyAndMarksItUsed() throws Exception {
+
+    final File cached = Loader.extractToCache(library, directory);
+    final long old = System.currentTimeMillis() - 2 * HOUR;
+    assertTrue(cached.setLastModified(old));
+
+    assertEquals(cached, Loader.extractToCache(library, directory));
+    assertTrue(cached.lastModified() > old + HOUR);
+    assertArrayEquals(library, Files.readAllBytes(cached.toPath()));
+
+  }
+
+  @Test
+  public void replacesCorruptedCopy() throws Exception {
+
+    final File cached = Loader.extractToCache(library, directory);
+    final byte[] corrupted = library.clone();
+    corrupted[1000] ^= 0x55;
+    Files.write(cached.toPath(), corrupted);
+
+    assertEquals(cached, Loader.extractToCache(library, directory));
+    assertArrayEquals(library, Files.readAllBytes(cached.toPath()));
+    assertEquals(0, partialCopies().size());
+
+  }
+
+  @Test
+  public void replacesTruncatedCopy() throws Exception {
+
+    final File cached = Loader.extractToCache(library, directory);
+    Files.write(cached.toPath(), new byte[100]);
+
+    assertEquals(cached, Loader.extractToCache(library, directory));
+    assertArrayEquals(library, Files.readAllBytes(cached.toPath()));
+
+  }
+
+  @Test
+  public void removesCopiesUnusedForADay() throws Exception {
+
+    assertTrue(directory.mkdirs());
+    final File staleVersion = ageFile(new File(directory, "libCoreMidi4J-0123.dylib"), 25 * HOUR);
+    final File stalePartial = ageFile(new File(directory, "libCoreMidi4J-99.partial"), 25 * HOUR);
+    final File recentVersion = ageFile(new File(directory, "libCoreMidi4J-4567.dylib"), HOUR);
+    final File unrelated = ageFile(new File(directory, "something-else.dylib"), 48 * HOUR);
+
+    final File cached = Loader.extractToCache(library, directory);
+
+    assertFalse(staleVersion.exists());
+    assertFalse(stalePartial.exists());
+    assertTrue(recentVersion.exists());
+    assertTrue(unrelated.exists());
+    assertTrue(cached.exists());
+
+  }
+
+  @Test
+  public void concurrentExtractionsAgree() throws Exception {
+
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<File>> results = new ArrayList<>();
+
+    try {
+
+      for ( int i = 0; i < threads; i++ ) {
+
+        results.add(executor.submit(new Callable<File>() {
+
+          @Override
+          public File call() throws Exception {
+
+            start.await();
+            return Loader.extractToCache(library, directory);
+
+          }
+
+        }));
+
+      }
+
+      start.countDown();
+      final File expected = results.get(0).get();
+
+      for ( Future<File> result : results ) {
+
+        assertEquals(expected, result.get());
+
+      }
+
+      assertArrayEquals(library, Files.readAllBytes(expected.toPath()));
+      assertEquals(0, partialCopies().size());
+
+    } finally {
+
+      executor.shutdownNow();
+
+    }
+
+  }
+
+  /**
+   * Creates a file which was last modified some time ago.
+   *
+   * @param file the file to create
+   * @param age  how long ago it was last modified, in milliseconds
+   *
+   * @return the file
+   *
+   * @throws Exception if the file cannot be created
+   */
+
+  private static File ageFile(final File file, final long age) throws Exception {
+
+    Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+    assertTrue(file.setLastModified(System.currentTimeMillis() - age));
+    return file;
+
+  }
+
+  /**
+   * Lists the partial copies left in the cache directory.
+   *
+   * @return the names of the partial copies
+   */
+
+  private List<String> partialCopies() {
+
+    final List<String> result = new ArrayList<>();
+
+    for ( String name : directory.list() ) {
+
+      if ( name.endsWith(".partial") ) {
+
+        result.add(name);
+
+      }
+
+    }
+
+    return result;
+
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.assertShortMessage;
+
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends messages to a simulated destination which is looped back into a source, checking that they arrive intact
+ * and on time.
+ *
+ */
+
+public class LoopbackTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private CoreMidiSource source;
+  private CoreMidiDestination destination;
+  private Receiver output;
+  private SimulatedEnvironment.CollectingReceiver input;
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    final String name = SimulatedEnvironment.uniqueName("Loopback");
+    final int sourceID = backend.addSource(name, "Out");
+    final int destinationID = backend.addDestination(name, "In");
+    backend.setLoopback(destinationID, sourceID);
+    source = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    destination = SimulatedEnvironment.awaitDevice(destinationID, CoreMidiDestination.class);
+    source.open();
+    destination.open();
+    input = new SimulatedEnvironment.CollectingReceiver();
+    source.getTransmitter().setReceiver(input);
+    output = destination.getReceiver();
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( backend != null ) {
+
+      backend.useRealTimeClock();
+
+    }
+
+    if ( source != null ) {
+
+      source.close();
+
+    }
+
+    if ( destination != null ) {
+
+      destination.close();
+
+    }
+
+  }
+
+  @Test
+  public void shortMessagesRoundTrip() throws Exception {
+
+    for ( int note = 0; note < 128; note++ ) {
+
+      output.send(new ShortMessage(ShortMessage.NOTE_ON, note & 0x0f, note, 127 - note), -1);
+
+    }
+
+    for ( int note = 0; note < 128; note++ ) {
+
+      assertShortMessage(input.next(), ShortMessage.NOTE_ON | (note & 0x0f), note, 127 - note);
+
+    }
+
+  }
+
+  @Test
+  public void sysexRoundTrip() throws Exception {
+
+    final byte[] data = new byte[1000];
+    data[0] = (byte) 0xf0;
+
+    for ( int i = 1; i < data.length - 1; i++ ) {
+
+      data[i] = (byte) (i % 127);
+
+    }
+
+    data[data.length - 1] = (byte) 0xf7;
+    output.send(new SysexMessage(data, data.length), -1);
+    assertArrayEquals(data, input.next().getMessage());
+
+  }
+
+  @Test
+  public void timestampedMessageWaitsUntilDue() throws Exception {
+
+    backend.useManualClock();
+    final long due = destination.getMicrosecondPosition() + 1000;
+    final long expected = source.getMicrosecondPosition() + 1000;  // The source was opened at a different time
+    output.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 2, 7, 100), due);
+    backend.advanceClock(500);
+    assertEquals(0, input.drain().size());
+
+    backend.advanceClock(500);
+    assertShortMessage(input.next(), ShortMessage.CONTROL_CHANGE | 2, 7, 100);
+    assertEquals(expected, input.nextTimestamp());
+    assertTrue(input.drain().isEmpty());
+
+  }
+
+}
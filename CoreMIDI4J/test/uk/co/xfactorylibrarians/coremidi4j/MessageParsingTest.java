@@ -0,0 +1,207 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that sources reassemble MIDI messages from the packets CoreMIDI delivers, however they are fragmented.
+ *
+ */
+
+public class MessageParsingTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private int sourceID;
+  private CoreMidiSource source;
+  private SimulatedEnvironment.CollectingReceiver receiver;
+  private int originalPacketSize;
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    originalPacketSize = backend.getMaxPacketSize();
+    sourceID = backend.addSource(SimulatedEnvironment.uniqueName("Parser"), "Out");
+    source = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    source.open();
+    receiver = new SimulatedEnvironment.CollectingReceiver();
+    source.getTransmitter().setReceiver(receiver);
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( backend != null ) {
+
+      backend.setMaxPacketSize(originalPacketSize);
+
+    }
+
+    if ( source != null ) {
+
+      source.close();
+
+    }
+
+  }
+
+  @Test
+  public void shortMessageSplitAcrossPackets() throws Exception {
+
+    backend.setMaxPacketSize(1);
+    backend.receive(sourceID, bytes(0x93, 60, 100), 0);
+    assertShortMessage(receiver.next(), 0x93, 60, 100);
+
+  }
+
+  @Test
+  public void runningStatus() throws Exception {
+
+    backend.receive(sourceID, bytes(0x90, 60, 100, 64, 90, 67, 0), 0);
+    assertShortMessage(receiver.next(), 0x90, 60, 100);
+    assertShortMessage(receiver.next(), 0x90, 64, 90);
+    assertShortMessage(receiver.next(), 0x90, 67, 0);
+
+  }
+
+  @Test
+  public void singleDataByteMessages() throws Exception {
+
+    backend.setMaxPacketSize(2);
+    backend.receive(sourceID, bytes(0xc5, 12, 13, 0xd0, 99), 0);
+    assertShortMessage(receiver.next(), 0xc5, 12, 0);
+    assertShortMessage(receiver.next(), 0xc5, 13, 0);
+    assertShortMessage(receiver.next(), 0xd0, 99, 0);
+
+  }
+
+  @Test
+  public void realTimeBetweenDataBytes() throws Exception {
+
+    backend.receive(sourceID, bytes(0xb0, 7, 0xf8, 127), 0);
+    assertShortMessage(receiver.next(), 0xf8, 0, 0);
+    assertShortMessage(receiver.next(), 0xb0, 7, 127);
+
+  }
+
+  @Test
+  public void sysexSplitAcrossPackets() throws Exception {
+
+    final byte[] sysex = new byte[300];
+    sysex[0] = (byte) 0xf0;
+
+    for ( int i = 1; i < sysex.length - 1; i++ ) {
+
+      sysex[i] = (byte) (i & 0x7f);
+
+    }
+
+    sysex[sysex.length - 1] = (byte) 0xf7;
+    backend.setMaxPacketSize(7);
+    backend.receive(sourceID, sysex, 0);
+    backend.receive(sourceID, bytes(0x80, 60, 0), 0);
+
+    final MidiMessage message = receiver.next();
+    assertTrue(message instanceof SysexMessage);
+    assertArrayEquals(sysex, message.getMessage());
+    assertShortMessage(receiver.next(), 0x80, 60, 0);
+
+  }
+
+  @Test
+  public void sourceListenerSeesRawMessages() throws Exception {
+
+    final BlockingQueue<int[]> seen = new LinkedBlockingQueue<>();
+    source.addSourceListener(new CoreMidiSourceListener() {
+
+      @Override
+      public void shortMessageReceived(CoreMidiSource source, int status, int data1, int data2, long timestamp) {
+
+        seen.add(new int[] { status, data1, data2 });
+
+      }
+
+      @Override
+      public void sysexMessageReceived(CoreMidiSource source, byte[] data, int length, long timestamp) {
+
+        seen.add(new int[] { data[0] & 0xff, length });
+
+      }
+
+    });
+
+    backend.receive(sourceID, bytes(0xe1, 0, 64, 0xf0, 0x7d, 1, 0xf7), 0);
+    assertArrayEquals(new int[] { 0xe1, 0, 64 }, seen.poll(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    assertArrayEquals(new int[] { 0xf0, 4 }, seen.poll(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+  }
+
+  /**
+   * Builds a byte array from integers, for readability.
+   *
+   * @param values the byte values
+   *
+   * @return the bytes
+   */
+
+  static byte[] bytes(final int... values) {
+
+    final byte[] result = new byte[values.length];
+
+    for ( int i = 0; i < values.length; i++ ) {
+
+      result[i] = (byte) values[i];
+
+    }
+
+    return result;
+
+  }
+
+  /**
+   * Checks that a message is the expected short message.
+   *
+   * @param message the message
+   * @param status  the expected status byte
+   * @param data1   the expected first data byte
+   * @param data2   the expected second data byte
+   */
+
+  static void assertShortMessage(final MidiMessage message, final int status, final int data1, final int data2) {
+
+    assertTrue("Expected a short message but got " + message, message instanceof ShortMessage);
+    final ShortMessage shortMessage = (ShortMessage) message;
+    assertEquals(status, shortMessage.getStatus());
+    assertEquals(data1, shortMessage.getData1());
+    assertEquals(data2, shortMessage.getData2());
+
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.assertShortMessage;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Routes messages from a simulated source, checking that notes are ended by the routes that started them when the
+ * routes are replaced.
+ *
+ */
+
+public class MidiRouterTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private int sourceID;
+  private CoreMidiSource source;
+  private MidiRouter router;
+  private SimulatedEnvironment.CollectingReceiver first;
+  private SimulatedEnvironment.CollectingReceiver second;
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    sourceID = backend.addSource(SimulatedEnvironment.uniqueName("Router"), "Out");
+    source = SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class);
+    source.open();
+    router = new MidiRouter();
+    first = new SimulatedEnvironment.CollectingReceiver();
+    second = new SimulatedEnvironment.CollectingReceiver();
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( router != null ) {
+
+      router.clear();
+
+    }
+
+    if ( source != null ) {
+
+      source.close();
+
+    }
+
+  }
+
+  @Test
+  public void noteOffFollowsNoteOnAcrossSwap() throws Exception {
+
+    router.setRoutes(Collections.singletonList(new MidiRoute(source, first)));
+    backend.receive(sourceID, bytes(0x90, 60, 100), 0);
+    assertShortMessage(first.next(), 0x90, 60, 100);
+
+    final MidiRoute transposed = new MidiRoute(source, second);
+    transposed.setTranspose(12);
+    router.setRoutes(Collections.singletonList(transposed));
+    backend.receive(sourceID, bytes(0x80, 60, 0, 0x90, 62, 90, 0x90, 62, 0), 0);
+
+    assertShortMessage(first.next(), 0x80, 60, 0);
+    assertShortMessage(second.next(), 0x90, 74, 90);
+    assertShortMessage(second.next(), 0x90, 74, 0);
+    assertTrue(first.drain().isEmpty());
+    assertTrue(second.drain().isEmpty());
+
+  }
+
+  @Test
+  public void retriggeredNoteEndsUnderOldRoutes() throws Exception {
+
+    router.setRoutes(Collections.singletonList(new MidiRoute(source, first)));
+    backend.receive(sourceID, bytes(0x91, 64, 100), 0);
+    assertShortMessage(first.next(), 0x91, 64, 100);
+
+    router.setRoutes(Collections.singletonList(new MidiRoute(source, second)));
+    backend.receive(sourceID, bytes(0x91, 64, 80, 0x81, 64, 0), 0);
+
+    assertShortMessage(first.next(), 0x81, 64, 0);
+    assertShortMessage(second.next(), 0x91, 64, 80);
+    assertShortMessage(second.next(), 0x81, 64, 0);
+    assertTrue(first.drain().isEmpty());
+
+  }
+
+  @Test
+  public void removedSourceStillEndsItsNotes() throws Exception {
+
+    router.setRoutes(Collections.singletonList(new MidiRoute(source, first)));
+    backend.receive(sourceID, bytes(0x90, 48, 100, 0x90, 50, 100), 0);
+    first.next();
+    first.next();
+
+    router.clear();
+    backend.receive(sourceID, bytes(0x80, 48, 0, 0x90, 52, 100), 0);
+    assertShortMessage(first.next(), 0x80, 48, 0);
+    assertNull("New notes must not be routed once the routes are gone", first.next());
+
+    backend.receive(sourceID, bytes(0xb0, 123, 0), 0);
+    assertShortMessage(first.next(), 0xb0, 123, 0);
+    router.clear();
+    backend.receive(sourceID, bytes(0x80, 50, 0), 0);
+    assertTrue(first.drain().isEmpty());
+
+  }
+
+  @Test
+  public void ordinaryReceiversGetTheirOwnMessages() throws Exception {
+
+    final List<MidiMessage> received = Collections.synchronizedList(new ArrayList<MidiMessage>());
+    router.setRoutes(Collections.singletonList(new MidiRoute(source, new Receiver() {
+
+      @Override
+      public void send(final MidiMessage message, final long timeStamp) {
+
+        received.add(message);
+
+      }
+
+      @Override
+      public void close() {
+
+        // Nothing to release
+
+      }
+
+    })));
+
+    backend.receive(sourceID, bytes(0x90, 60, 100, 0x80, 60, 0), 0);
+    assertEquals(2, received.size());
+    assertNotSame(received.get(0), received.get(1));
+    assertShortMessage(received.get(0), 0x90, 60, 100);
+    assertShortMessage(received.get(1), 0x80, 60, 0);
+
+  }
+
+}
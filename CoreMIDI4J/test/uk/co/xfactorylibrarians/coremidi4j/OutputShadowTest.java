@@ -0,0 +1,177 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+
+import org.junit.Test;
+
+/**
+ * Checks that an {@link OutputShadow} notices redundant messages, and replays exactly the messages needed to restore
+ * what it recorded.
+ *
+ */
+
+public class OutputShadowTest {
+
+  private final OutputShadow shadow = new OutputShadow();
+
+  @Test
+  public void emptyShadowReplaysNothing() {
+
+    assertTrue(shadow.getReplayMessages().isEmpty());
+
+  }
+
+  @Test
+  public void repeatedValuesNeedNotBeSent() throws Exception {
+
+    assertTrue(shadow.update(cc(0, 7, 100)));
+    assertFalse(shadow.update(cc(0, 7, 100)));
+    assertTrue(shadow.update(cc(0, 7, 90)));
+    assertTrue(shadow.update(cc(1, 7, 90)));  // Another channel
+    assertTrue(shadow.update(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0)));
+    assertFalse(shadow.update(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0)));
+    assertTrue(shadow.update(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100)));
+    assertTrue(shadow.update(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100)));
+
+  }
+
+  @Test
+  public void replaysBankAndProgramBeforeControllersAndPitchBend() throws Exception {
+
+    send(new ShortMessage(ShortMessage.PITCH_BEND, 2, 0x10, 0x50), cc(2, 7, 100),
+         new ShortMessage(ShortMessage.PROGRAM_CHANGE, 2, 12, 0), cc(2, 0, 1), cc(2, 32, 3), cc(2, 7, 110));
+
+    assertReplay(cc(2, 0, 1), cc(2, 32, 3), new ShortMessage(ShortMessage.PROGRAM_CHANGE, 2, 12, 0), cc(2, 7, 110),
+                 new ShortMessage(ShortMessage.PITCH_BEND, 2, 0x10, 0x50));
+
+  }
+
+  @Test
+  public void replaysSelectionWithoutValue() throws Exception {
+
+    send(cc(0, 101, 0), cc(0, 100, 0));
+
+    assertReplay(cc(0, 101, 0), cc(0, 100, 0));
+
+  }
+
+  @Test
+  public void replaysParameterWithoutReselectingIt() throws Exception {
+
+    send(cc(3, 101, 0), cc(3, 100, 0), cc(3, 6, 12), cc(3, 38, 50));
+
+    assertReplay(cc(3, 101, 0), cc(3, 100, 0), cc(3, 6, 12), cc(3, 38, 50));
+
+  }
+
+  @Test
+  public void reselectsParameterSelectedAfterOthersWereSet() throws Exception {
+
+    send(cc(0, 101, 0), cc(0, 100, 0), cc(0, 6, 2), cc(0, 101, 0), cc(0, 100, 1));
+
+    assertReplay(cc(0, 101, 0), cc(0, 100, 0), cc(0, 6, 2), cc(0, 101, 0), cc(0, 100, 1));
+
+  }
+
+  @Test
+  public void reselectsNullParameter() throws Exception {
+
+    send(cc(0, 99, 1), cc(0, 98, 8), cc(0, 6, 64), cc(0, 99, 127), cc(0, 98, 127));
+
+    assertReplay(cc(0, 99, 1), cc(0, 98, 8), cc(0, 6, 64), cc(0, 99, 127), cc(0, 98, 127));
+
+  }
+
+  @Test
+  public void reselectsKindOfParameter() throws Exception {
+
+    send(cc(0, 99, 1), cc(0, 98, 8), cc(0, 6, 64), cc(0, 101, 0), cc(0, 100, 2));
+
+    assertReplay(cc(0, 99, 1), cc(0, 98, 8), cc(0, 6, 64), cc(0, 101, 0), cc(0, 100, 2));
+
+  }
+
+  @Test
+  public void forgetsParameterChangedByIncrement() throws Exception {
+
+    send(cc(0, 101, 0), cc(0, 100, 0), cc(0, 6, 2));
+    assertTrue(shadow.update(cc(0, 96, 0)));
+
+    assertReplay(cc(0, 101, 0), cc(0, 100, 0));
+
+  }
+
+  private void send(final ShortMessage... messages) {
+
+    for ( ShortMessage message : messages ) {
+
+      shadow.update(message);
+
+    }
+
+  }
+
+  private void assertReplay(final ShortMessage... expected) {
+
+    final List<String> expectedBytes = new ArrayList<>();
+
+    for ( ShortMessage message : expected ) {
+
+      expectedBytes.add(describe(message));
+
+    }
+
+    final List<String> actualBytes = new ArrayList<>();
+
+    for ( MidiMessage message : shadow.getReplayMessages() ) {
+
+      actualBytes.add(describe(message));
+
+    }
+
+    assertEquals(expectedBytes, actualBytes);
+
+  }
+
+  private static String describe(final MidiMessage message) {
+
+    final StringBuilder result = new StringBuilder();
+
+    for ( byte b : message.getMessage() ) {
+
+      result.append(String.format("%02x ", b & 0xff));
+
+    }
+
+    return result.toString().trim();
+
+  }
+
+  private static ShortMessage cc(final int channel, final int controller, final int value) throws Exception {
+
+    return new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, value);
+
+  }
+
+}
@@ -0,0 +1,600 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs Sample Dump Standard transfers between two engines looped back into each other, and against simulated
+ * samplers whose handshaking is scripted by each test.
+ *
+ */
+
+public class SampleDumpEngineTest {
+
+  private static final int ACK = 0x7f;
+  private static final int NAK = 0x7e;
+  private static final int CANCEL = 0x7d;
+  private static final int WAIT = 0x7c;
+  private static final int DUMP_HEADER = 0x01;
+  private static final int DATA_PACKET = 0x02;
+
+  private SimulatedCoreMidiBackend backend;
+  private final List<StandIn> standIns = new ArrayList<>();
+  private final List<SampleDumpEngine> engines = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+
+    backend = SimulatedEnvironment.backend();
+
+  }
+
+  @After
+  public void tearDown() {
+
+    for ( SampleDumpEngine engine : engines ) {
+
+      engine.close();
+      engine.getSource().close();
+      engine.getDestination().close();
+
+    }
+
+    for ( StandIn standIn : standIns ) {
+
+      backend.removeDestinationListener(standIn);
+
+    }
+
+  }
+
+  @Test
+  public void roundTripBeyondOneHundredAndTwentyEightPackets() throws Exception {
+
+    final String name = SimulatedEnvironment.uniqueName("Sender");
+    final String otherName = SimulatedEnvironment.uniqueName("Receiver");
+    final int senderSource = backend.addSource(name, "Out");
+    final int senderDestination = backend.addDestination(name, "In");
+    final int receiverSource = backend.addSource(otherName, "Out");
+    final int receiverDestination = backend.addDestination(otherName, "In");
+    backend.setLoopback(senderDestination, receiverSource);
+    backend.setLoopback(receiverDestination, senderSource);
+    final SampleDumpEngine sender = engine(senderSource, senderDestination);
+    final SampleDumpEngine receiver = engine(receiverSource, receiverDestination);
+
+    final SampleDumpHeader header = new SampleDumpHeader(42, 16, 44100.0, 300 * 40);  // 40 words per packet
+    final ByteBuffer data = sampleData(header, 1);
+    final ByteBuffer target = ByteBuffer.allocate(header.getDataSize());
+    sender.setWindow(8);
+
+    final SampleDumpTransfer in = receiver.accept(target);
+    final SampleDumpTransfer out = sender.send(header, data);
+
+    assertEquals(header, in.get(10, TimeUnit.SECONDS));
+    assertEquals(header, out.get(10, TimeUnit.SECONDS));
+    assertEquals(300, out.getPacketCount());
+    assertEquals(300, out.getPacketsTransferred());
+    assertEquals(300, in.getPacketsTransferred());
+    assertEquals(0, out.getRetransmissions());
+    assertFalse(out.isOpenLoop());
+    assertEquals(data, target);
+
+  }
+
+  @Test
+  public void rejectedPacketsAreSentAgainAcrossWraparound() throws Exception {
+
+    final List<byte[]> rejected = Collections.synchronizedList(new ArrayList<byte[]>());
+    final List<byte[]> resent = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    // Rejects packets 5 and 133, which both carry the packet number 5
+    final StandIn sampler = new StandIn() {
+
+      private boolean retransmissionDue;
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        if ( type == DUMP_HEADER ) {
+
+          reply(ACK, 0);
+
+        } else if ( type == DATA_PACKET && packet == 5 && !retransmissionDue && rejected.size() < 2 ) {
+
+          rejected.add(message);
+          retransmissionDue = true;
+          reply(NAK, packet);
+
+        } else if ( type == DATA_PACKET ) {
+
+          if ( packet == 5 && retransmissionDue ) {
+
+            resent.add(message);
+            retransmissionDue = false;
+
+          }
+
+          reply(ACK, packet);
+
+        }
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    engine.setWindow(4);
+    final SampleDumpHeader header = new SampleDumpHeader(1, 16, 44100.0, 200 * 40);
+    final SampleDumpTransfer out = engine.send(header, sampleData(header, 2));
+    out.get(10, TimeUnit.SECONDS);
+
+    assertEquals(2, out.getRetransmissions());
+    assertEquals(200, out.getPacketsTransferred());
+    assertEquals(2, resent.size());
+    assertArrayEquals(rejected.get(0), resent.get(0));
+    assertArrayEquals(rejected.get(1), resent.get(1));
+    assertFalse("Packet 133 was confused with packet 5", Arrays.equals(resent.get(0), resent.get(1)));
+
+  }
+
+  @Test
+  public void missingAcknowledgementsAreAssumed() throws Exception {
+
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        if ( type == DUMP_HEADER || (type == DATA_PACKET && packet % 3 != 1) ) {
+
+          reply(ACK, packet);
+
+        }
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    engine.setAckTimeout(1000);
+    final SampleDumpHeader header = new SampleDumpHeader(2, 16, 44100.0, 10 * 40);
+    final SampleDumpTransfer out = engine.send(header, sampleData(header, 3));
+    out.get(10, TimeUnit.SECONDS);
+
+    assertEquals(10, out.getPacketsTransferred());
+    assertEquals(3, out.getUnacknowledgedCount());  // Packets 1, 4 and 7
+    assertEquals(10, sampler.packetCount());
+
+  }
+
+  @Test
+  public void waitHoldsTheTransferUntilAcknowledged() throws Exception {
+
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        if ( type == DATA_PACKET && packet == 2 ) {
+
+          reply(WAIT, packet);
+          waiting.countDown();
+
+        } else if ( type == DUMP_HEADER || type == DATA_PACKET ) {
+
+          reply(ACK, packet);
+
+        }
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    engine.setAckTimeout(1000);
+    final SampleDumpHeader header = new SampleDumpHeader(3, 16, 44100.0, 6 * 40);
+    final SampleDumpTransfer out = engine.send(header, sampleData(header, 4));
+
+    assertTrue(waiting.await(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    Thread.sleep(50);  // Many times the acknowledgement timeout
+    assertFalse(out.isDone());
+    assertEquals(2, out.getPacketsTransferred());
+    assertEquals(3, sampler.packetCount());
+
+    sampler.reply(ACK, 2);
+    out.get(10, TimeUnit.SECONDS);
+    assertEquals(6, out.getPacketsTransferred());
+    assertEquals(0, out.getUnacknowledgedCount());
+
+  }
+
+  @Test
+  public void cancelFromTheReceiverFailsTheTransfer() throws Exception {
+
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        if ( type == DATA_PACKET && packet == 1 ) {
+
+          reply(CANCEL, packet);
+
+        } else if ( type == DUMP_HEADER || type == DATA_PACKET ) {
+
+          reply(ACK, packet);
+
+        }
+
+      }
+
+    };
+
+    final SampleDumpHeader header = new SampleDumpHeader(4, 16, 44100.0, 5 * 40);
+    final SampleDumpTransfer out = sampler.engine().send(header, sampleData(header, 5));
+
+    try {
+
+      out.get(10, TimeUnit.SECONDS);
+      fail("The transfer should have failed");
+
+    } catch (ExecutionException e) {
+
+      assertTrue(e.getCause() instanceof IOException);
+
+    }
+
+    assertEquals(1, out.getPacketsTransferred());
+    assertEquals(2, sampler.packetCount());
+
+  }
+
+  @Test
+  public void cancellingTellsTheReceiver() throws Exception {
+
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        if ( type == DUMP_HEADER ) {
+
+          reply(ACK, 0);
+
+        } else if ( type == DATA_PACKET ) {
+
+          reply(WAIT, packet);
+
+        } else if ( type == CANCEL ) {
+
+          cancelled.countDown();
+
+        }
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    final SampleDumpHeader header = new SampleDumpHeader(5, 16, 44100.0, 5 * 40);
+    final SampleDumpTransfer out = engine.send(header, sampleData(header, 6));
+    Thread.sleep(50);
+
+    assertTrue(out.cancel(true));
+    assertTrue(out.isCancelled());
+    assertTrue("No CANCEL was sent", cancelled.await(SimulatedEnvironment.WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+  }
+
+  @Test
+  public void senderFallsBackToOpenLoop() throws Exception {
+
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        // A sampler which never says anything back
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    engine.setResponseTimeout(100000);
+    engine.setPacketInterval(1000);
+    final SampleDumpHeader header = new SampleDumpHeader(6, 16, 44100.0, 8 * 40);
+    final SampleDumpTransfer out = engine.send(header, sampleData(header, 7));
+    out.get(10, TimeUnit.SECONDS);
+
+    assertTrue(out.isOpenLoop());
+    assertEquals(8, out.getPacketsTransferred());
+    assertEquals(8, sampler.packetCount());
+
+  }
+
+  @Test
+  public void damagedPacketsAreRejected() throws Exception {
+
+    final List<String> replies = Collections.synchronizedList(new ArrayList<String>());
+    final StandIn sampler = new StandIn() {
+
+      @Override
+      void respond(final int type, final int packet, final byte[] message) {
+
+        replies.add(((type == ACK) ? "ACK " : (type == NAK) ? "NAK " : type + " ") + packet);
+
+      }
+
+    };
+
+    final SampleDumpEngine engine = sampler.engine();
+    final SampleDumpHeader header = new SampleDumpHeader(0, 8, 44100.0, 3 * 60);  // 60 words per packet
+    final ByteBuffer target = ByteBuffer.allocate(header.getDataSize());
+    final SampleDumpTransfer in = engine.accept(target);
+
+    final byte[][] packets = new byte[3][];
+
+    for ( int packet = 0; packet < packets.length; packet++ ) {
+
+      packets[packet] = dataPacket(packet);
+
+    }
+
+    final byte[] damaged = packets[0].clone();
+    damaged[10] ^= 1;
+
+    sampler.send(header.toMessage(0));
+    sampler.send(damaged);
+    sampler.send(packets[0]);
+    sampler.send(packets[2]);  // Early, but within the window
+    sampler.send(packets[1]);
+    assertEquals(header, in.get(10, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("ACK 0", "NAK 0", "ACK 0", "ACK 2", "ACK 1"), replies);
+    assertEquals(1, in.getRetransmissions());
+    assertEquals(3, in.getPacketsTransferred());
+
+    for ( int word = 0; word < header.getLength(); word++ ) {
+
+      // The packet holds the top seven bits of an unsigned word, which arrives signed and left-justified
+      assertEquals((byte) (((word & 0x3f) << 1) ^ 0x80), target.get(word));
+
+    }
+
+  }
+
+  /**
+   * Creates an engine for a pair of simulated end points, on device channel 0.
+   *
+   * @param sourceID      the unique ID of the source
+   * @param destinationID the unique ID of the destination
+   *
+   * @return the engine, which is closed after the test
+   *
+   * @throws Exception if the end points cannot be found or opened
+   */
+
+  private SampleDumpEngine engine(final int sourceID, final int destinationID) throws Exception {
+
+    final SampleDumpEngine engine = new SampleDumpEngine(
+        SimulatedEnvironment.awaitDevice(sourceID, CoreMidiSource.class),
+        SimulatedEnvironment.awaitDevice(destinationID, CoreMidiDestination.class), 0);
+    engines.add(engine);
+    return engine;
+
+  }
+
+  /**
+   * Fills a buffer with random sample words, left-justified as the engine expects.
+   *
+   * @param header the header describing the sample
+   * @param seed   the seed for the random words
+   *
+   * @return the buffer
+   */
+
+  private static ByteBuffer sampleData(final SampleDumpHeader header, final long seed) {
+
+    final Random random = new Random(seed);
+    final ByteBuffer data = ByteBuffer.allocate(header.getDataSize());
+    final int bytesPerWord = header.getBytesPerWord();
+
+    for ( int word = 0; word < header.getLength(); word++ ) {
+
+      final int value = random.nextInt() & (-1 << (32 - header.getBitsPerSample()));
+
+      for ( int b = 0; b < bytesPerWord; b++ ) {
+
+        data.put(word * bytesPerWord + b, (byte) (value >>> (24 - 8 * b)));
+
+      }
+
+    }
+
+    return data;
+
+  }
+
+  /**
+   * Builds an 8-bit data packet for channel 0, holding 60 words which count up from the first word of the packet.
+   *
+   * @param packet the packet number
+   *
+   * @return the message
+   */
+
+  private static byte[] dataPacket(final int packet) {
+
+    final byte[] message = new byte[127];
+    message[0] = (byte) 0xf0;
+    message[1] = 0x7e;
+    message[3] = DATA_PACKET;
+    message[4] = (byte) (packet & 0x7f);
+
+    // Each 8-bit word takes two bytes, the top seven bits first; the words are kept below 128 so the second is zero
+    for ( int word = 0; word < 60; word++ ) {
+
+      message[5 + 2 * word] = (byte) ((packet * 60 + word) & 0x3f);
+
+    }
+
+    int checksum = 0;
+
+    for ( int i = 1; i < 125; i++ ) {
+
+      checksum ^= message[i];
+
+    }
+
+    message[125] = (byte) (checksum & 0x7f);
+    message[126] = (byte) 0xf7;
+    return message;
+
+  }
+
+  /**
+   * A simulated sampler on device channel 0, whose responses to the engine's messages are scripted by each test.
+   */
+
+  private abstract class StandIn implements SimulatedCoreMidiBackend.DestinationListener {
+
+    final int sourceID;
+    final int destinationID;
+    private int packetCount;
+
+    /**
+     * Creates the sampler's end points and starts listening to what the engine sends it.
+     */
+
+    StandIn() {
+
+      final String name = SimulatedEnvironment.uniqueName("Sampler");
+      sourceID = backend.addSource(name, "Out");
+      destinationID = backend.addDestination(name, "In");
+      backend.addDestinationListener(this);
+      standIns.add(this);
+
+    }
+
+    @Override
+    public void messageReceived(final int uniqueID, final byte[] data, final long timestamp) {
+
+      if ( uniqueID != destinationID || data.length < 6 || (data[0] & 0xff) != 0xf0 || data[1] != 0x7e ) {
+
+        return;
+
+      }
+
+      if ( data[3] == DATA_PACKET ) {
+
+        synchronized (this) {
+
+          packetCount++;
+
+        }
+
+      }
+
+      respond(data[3], data[4], data.clone());
+
+    }
+
+    /**
+     * Responds to a message from the engine.
+     *
+     * @param type    the message type: the dump header, a data packet, or a handshake
+     * @param packet  the packet number, or the low byte of the sample number for a header
+     * @param message the whole message
+     */
+
+    abstract void respond(int type, int packet, byte[] message);
+
+    /**
+     * Sends a handshake message to the engine.
+     *
+     * @param type   the handshake
+     * @param packet the packet number it refers to
+     */
+
+    void reply(final int type, final int packet) {
+
+      send(bytes(0xf0, 0x7e, 0, type, packet, 0xf7));
+
+    }
+
+    /**
+     * Sends any message to the engine.
+     *
+     * @param message the message
+     */
+
+    void send(final byte[] message) {
+
+      backend.receive(sourceID, message, 0);
+
+    }
+
+    /**
+     * Gets the number of data packets the engine has sent, including any sent again.
+     *
+     * @return the number of packets
+     */
+
+    synchronized int packetCount() {
+
+      return packetCount;
+
+    }
+
+    /**
+     * Creates an engine which talks to this sampler.
+     *
+     * @return the engine
+     *
+     * @throws Exception if the end points cannot be found or opened
+     */
+
+    SampleDumpEngine engine() throws Exception {
+
+      return SampleDumpEngineTest.this.engine(sourceID, destinationID);
+
+    }
+
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.ShortMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that notes sent with {@link CoreMidiReceiver#sendNote(int, int, int, long)} are always ended, whatever
+ * happens to their pending note offs.
+ *
+ */
+
+public class SendNoteTest {
+
+  private SimulatedCoreMidiBackend backend;
+  private int destinationID;
+  private CoreMidiDestination destination;
+  private CoreMidiReceiver receiver;
+  private final List<byte[]> arrived = new ArrayList<>();
+
+  private final SimulatedCoreMidiBackend.DestinationListener listener =
+      new SimulatedCoreMidiBackend.DestinationListener() {
+
+        @Override
+        public void messageReceived(final int uniqueID, final byte[] data, final long timestamp) {
+
+          if ( uniqueID == destinationID ) {
+
+            synchronized (arrived) {
+
+              arrived.add(data.clone());
+
+            }
+
+          }
+
+        }
+
+      };
+
+  @Before
+  public void setUp() throws Exception {
+
+    backend = SimulatedEnvironment.backend();
+    destinationID = backend.addDestination(SimulatedEnvironment.uniqueName("Notes"), "In");
+    destination = SimulatedEnvironment.awaitDevice(destinationID, CoreMidiDestination.class);
+    destination.open();
+    receiver = (CoreMidiReceiver) destination.getReceiver();
+    backend.addDestinationListener(listener);
+    backend.useManualClock();
+
+  }
+
+  @After
+  public void tearDown() {
+
+    if ( backend != null ) {
+
+      backend.useRealTimeClock();
+      backend.removeDestinationListener(listener);
+
+    }
+
+    if ( destination != null ) {
+
+      destination.close();
+
+    }
+
+  }
+
+  @Test
+  public void flushEndsNoteRestartedBehindCommittedNoteOff() throws Exception {
+
+    // Short enough that the first note off is handed to CoreMIDI at once, so the second note has to wait for it
+    receiver.sendNote(3, 60, 100, CoreMidiReceiver.NOTE_OFF_LOOKAHEAD / 2);
+    receiver.sendNote(3, 60, 110, 10000000);
+    assertEquals(1, receiver.flushPendingNoteOffs());
+
+    backend.advanceClock(CoreMidiReceiver.NOTE_OFF_LOOKAHEAD * 4);
+    assertEquals("The note was left sounding", 0, soundingCount(3, 60));
+
+  }
+
+  @Test
+  public void closeEndsNoteRestartedBehindCommittedNoteOff() throws Exception {
+
+    receiver.sendNote(0, 72, 100, CoreMidiReceiver.NOTE_OFF_LOOKAHEAD / 2);
+    receiver.sendNote(0, 72, 100, 10000000);
+    receiver.close();
+
+    backend.advanceClock(CoreMidiReceiver.NOTE_OFF_LOOKAHEAD * 4);
+    assertEquals("The note was left sounding", 0, soundingCount(0, 72));
+
+  }
+
+  @Test
+  public void closeEndsNoteStillWaitingForItsTimestamp() throws Exception {
+
+    receiver.send(new ShortMessage(ShortMessage.NOTE_ON | 2, 50, 100), destination.getMicrosecondPosition() + 50000);
+    destination.close();
+
+    backend.advanceClock(100000);
+    assertEquals("The note was left sounding", 0, soundingCount(2, 50));
+
+  }
+
+  @Test
+  public void flushEndsOrdinaryNotesNow() throws Exception {
+
+    receiver.sendNote(1, 40, 100, 10000000);
+    receiver.sendNote(1, 41, 100, 10000000);
+    assertEquals(2, receiver.flushPendingNoteOffs());
+    assertEquals(0, soundingCount(1, 40));
+    assertEquals(0, soundingCount(1, 41));
+    assertEquals(0, receiver.flushPendingNoteOffs());
+
+  }
+
+  /**
+   * Works out whether a note is left sounding by the messages which have reached the destination so far.
+   *
+   * @param channel the MIDI channel
+   * @param note    the note number
+   *
+   * @return 1 if the last message for the note was a note on, otherwise 0
+   */
+
+  private int soundingCount(final int channel, final int note) {
+
+    int sounding = 0;
+
+    synchronized (arrived) {
+
+      for ( byte[] data : arrived ) {
+
+        final int command = data[0] & 0xf0;
+
+        if ( (data[0] & 0x0f) == channel && data.length == 3 && data[1] == note
+             && (command == 0x80 || command == 0x90) ) {
+
+          sounding = (command == 0x90 && data[2] != 0) ? 1 : 0;
+
+        }
+
+      }
+
+    }
+
+    return sounding;
+
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Helpers for tests which run against {@link SimulatedCoreMidiBackend}. The backend is shared by every test in the
+ * JVM and end points can never be removed from it, so each test creates devices with names of its own.
+ *
+ */
+
+final class SimulatedEnvironment {
+
+  /**
+   * How long to wait for the library to notice a change to the simulated environment, in milliseconds.
+   */
+
+  static final long WAIT_MILLIS = 2000;
+
+  private static final AtomicInteger deviceCount = new AtomicInteger();
+
+  /**
+   * Prevent instantiation.
+   */
+
+  private SimulatedEnvironment() {
+
+    // Nothing to do here
+
+  }
+
+  /**
+   * Gets the simulated backend, skipping the test if the library is using CoreMIDI itself.
+   *
+   * @return the backend
+   */
+
+  static SimulatedCoreMidiBackend backend() {
+
+    assumeTrue("Tests need -D" + CoreMidi4J.BACKEND_PROPERTY + "=simulated",
+               "simulated".equals(System.getProperty(CoreMidi4J.BACKEND_PROPERTY)));
+    CoreMidiDeviceProvider.getMidiDeviceInfo();  // Make sure the device provider is listening for changes
+    return SimulatedCoreMidiBackend.getInstance();
+
+  }
+
+  /**
+   * Makes up a device name which no other test uses.
+   *
+   * @param base what the device is for
+   *
+   * @return the name
+   */
+
+  static String uniqueName(final String base) {
+
+    return base + " " + deviceCount.incrementAndGet();
+
+  }
+
+  /**
+   * Waits for the library to find the device for a simulated end point.
+   *
+   * @param uniqueID the unique ID of the end point
+   * @param kind     the class of device expected
+   * @param <T>      the class of device expected
+   *
+   * @return the device
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws AssertionError if the device does not appear in time
+   */
+
+  static <T extends MidiDevice> T awaitDevice(final int uniqueID, final Class<T> kind) throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+
+    while ( System.currentTimeMillis() < deadline ) {
+
+      final MidiDevice device = CoreMidiDeviceProvider.getDeviceIndex().getByEndPointUniqueID(uniqueID);
+
+      if ( kind.isInstance(device) ) {
+
+        return kind.cast(device);
+
+      }
+
+      Thread.sleep(5);
+
+    }
+
+    throw new AssertionError("Device " + uniqueID + " never appeared");
+
+  }
+
+  /**
+   * Waits for the library to notice that a simulated end point has gone.
+   *
+   * @param uniqueID the unique ID of the end point
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws AssertionError if the device is still there after waiting
+   */
+
+  static void awaitAbsence(final int uniqueID) throws InterruptedException {
+
+    final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+
+    while ( System.currentTimeMillis() < deadline ) {
+
+      if ( CoreMidiDeviceProvider.getDeviceIndex().getByEndPointUniqueID(uniqueID) == null ) {
+
+        return;
+
+      }
+
+      Thread.sleep(5);
+
+    }
+
+    throw new AssertionError("Device " + uniqueID + " never went away");
+
+  }
+
+  /**
+   * A receiver which collects the messages sent to it, copying each one in case the sender reuses it.
+   */
+
+  static final class CollectingReceiver implements Receiver {
+
+    private final BlockingQueue<MidiMessage> messages = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> timestamps = new LinkedBlockingQueue<>();
+
+    @Override
+    public void send(final MidiMessage message, final long timeStamp) {
+
+      timestamps.add(timeStamp);
+      messages.add((MidiMessage) message.clone());
+
+    }
+
+    @Override
+    public void close() {
+
+      // Nothing to release
+
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return the message, or null if none arrives in time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+
+    MidiMessage next() throws InterruptedException {
+
+      return messages.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Gets the time stamp of the next message, once {@link #next()} has returned it.
+     *
+     * @return the time stamp
+     */
+
+    long nextTimestamp() {
+
+      return timestamps.remove();
+
+    }
+
+    /**
+     * Takes every message received so far.
+     *
+     * @return the messages, in the order they arrived
+     */
+
+    List<MidiMessage> drain() {
+
+      final List<MidiMessage> result = new ArrayList<>();
+      messages.drainTo(result);
+      timestamps.clear();
+      return result;
+
+    }
+
+  }
+
+}
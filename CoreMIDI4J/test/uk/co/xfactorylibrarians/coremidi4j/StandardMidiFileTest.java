@@ -0,0 +1,144 @@
+/*
+ * Title:        CoreMIDI4J
+ * Description:  Core MIDI Device Provider for Java on OS X
+ * Copyright:    Copyright (c) 2015-2016
+ * Company:      x.factory Librarians
+ *
+ * CoreMIDI4J is an open source Service Provider Interface for supporting external MIDI devices on MAC OS X
+ *
+ * CREDITS - This library uses principles established by OSXMIDI4J, but converted so it operates at the JNI level with no additional libraries required
+ *
+ */
+
+
+package uk.co.xfactorylibrarians.coremidi4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.co.xfactorylibrarians.coremidi4j.MessageParsingTest.bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a file written by a {@link StandardMidiFileWriter} has exactly the expected bytes, and is read back
+ * by a {@link StandardMidiFileReader}.
+ *
+ */
+
+public class StandardMidiFileTest {
+
+  private static final int RESOLUTION = 480;
+  private static final int TEMPO = 600000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writtenFileReadsBack() throws Exception {
+
+    final byte[] sysex = new byte[301];  // Long enough for its length to take two bytes
+    sysex[0] = (byte) 0xf0;
+
+    for ( int i = 1; i < sysex.length - 1; i++ ) {
+
+      sysex[i] = (byte) (i & 0x7f);
+
+    }
+
+    sysex[sysex.length - 1] = (byte) 0xf7;
+
+    final File file = folder.newFile("roundtrip.mid");
+    final StandardMidiFileWriter writer = new StandardMidiFileWriter(file, RESOLUTION);
+    long tick = 0;
+    writer.write(tick, new MetaMessage(StandardMidiFileWriter.META_TEMPO, bytes(0x09, 0x27, 0xc0), 3));
+    writer.write(tick, new ShortMessage(0x90, 60, 100));
+    writer.write(tick += 127, new ShortMessage(0x90, 62, 100));      // Largest one-byte delta, running status
+    writer.write(tick += 128, new ShortMessage(0x90, 64, 0));        // Smallest two-byte delta
+    writer.write(tick += 16383, new ShortMessage(0x80, 64, 64));     // Largest two-byte delta, new status
+    writer.write(tick += 16384, new ShortMessage(0x80, 65, 64));     // Smallest three-byte delta
+    writer.write(tick += 2097151, new ShortMessage(0xb0, 7, 100));   // Largest three-byte delta
+    writer.write(tick += 2097152, new ShortMessage(0xb0, 7, 90));    // Smallest four-byte delta
+    writer.write(tick, new SysexMessage(sysex, sysex.length));       // Cancels running status
+    writer.write(tick += 0x0fffffff, new ShortMessage(0xb0, 7, 80)); // Largest four-byte delta
+    writer.write(tick += 1, new ShortMessage(0xc5, 10, 0));
+    writer.write(tick += 1, new ShortMessage(0xc5, 11, 0));          // Running status with one data byte
+    writer.finish();
+
+    final ByteArrayOutputStream track = new ByteArrayOutputStream();
+    track.write(bytes(0x00, 0xff, 0x51, 0x03, 0x09, 0x27, 0xc0));
+    track.write(bytes(0x00, 0x90, 60, 100));
+    track.write(bytes(0x7f, 62, 100));
+    track.write(bytes(0x81, 0x00, 64, 0));
+    track.write(bytes(0xff, 0x7f, 0x80, 64, 64));
+    track.write(bytes(0x81, 0x80, 0x00, 65, 64));
+    track.write(bytes(0xff, 0xff, 0x7f, 0xb0, 7, 100));
+    track.write(bytes(0x81, 0x80, 0x80, 0x00, 7, 90));
+    track.write(bytes(0x00, 0xf0, 0x82, 0x2c));
+    track.write(sysex, 1, sysex.length - 1);
+    track.write(bytes(0xff, 0xff, 0xff, 0x7f, 0xb0, 7, 80));
+    track.write(bytes(0x01, 0xc5, 10));
+    track.write(bytes(0x01, 11));
+    track.write(bytes(0x00, 0xff, 0x2f, 0x00));
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(bytes(0x4d, 0x54, 0x68, 0x64, 0, 0, 0, 6, 0, 0, 0, 1, RESOLUTION >> 8, RESOLUTION & 0xff));
+    expected.write(bytes(0x4d, 0x54, 0x72, 0x6b, 0, 0, track.size() >> 8, track.size() & 0xff));
+    track.writeTo(expected);
+    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+
+    final StandardMidiFileReader reader = new StandardMidiFileReader(file);
+    assertEquals(0, reader.getFormat());
+    assertEquals(1, reader.getTrackCount());
+    assertEquals(RESOLUTION, reader.getResolution());
+
+    final StandardMidiFileReader.Cursor cursor = reader.getTrack(0);
+    assertTrue(cursor.next());
+    assertTrue(cursor.isMeta());
+    assertEquals(StandardMidiFileWriter.META_TEMPO, cursor.getMetaType());
+
+    tick = 0;
+    checkShort(cursor, tick, 0x90, 60, 100);
+    checkShort(cursor, tick += 127, 0x90, 62, 100);
+    assertEquals(127L * TEMPO / RESOLUTION, cursor.getMicroseconds());
+    checkShort(cursor, tick += 128, 0x90, 64, 0);
+    checkShort(cursor, tick += 16383, 0x80, 64, 64);
+    checkShort(cursor, tick += 16384, 0x80, 65, 64);
+    checkShort(cursor, tick += 2097151, 0xb0, 7, 100);
+    checkShort(cursor, tick += 2097152, 0xb0, 7, 90);
+
+    assertTrue(cursor.next());
+    assertTrue(cursor.isSysex());
+    assertEquals(tick, cursor.getTick());
+    assertArrayEquals(sysex, cursor.getMessage().getMessage());
+
+    checkShort(cursor, tick += 0x0fffffff, 0xb0, 7, 80);
+    checkShort(cursor, tick += 1, 0xc5, 10, 0);
+    checkShort(cursor, tick += 1, 0xc5, 11, 0);
+    assertFalse(cursor.next());
+
+  }
+
+  private static void checkShort(final StandardMidiFileReader.Cursor cursor, final long tick, final int status,
+                                 final int data1, final int data2) throws Exception {
+
+    assertTrue(cursor.next());
+    assertEquals(tick, cursor.getTick());
+    assertEquals(status, cursor.getStatus());
+    assertEquals(data1, cursor.getData1());
+    assertEquals(data2, cursor.getData2());
+
+  }
+
+}
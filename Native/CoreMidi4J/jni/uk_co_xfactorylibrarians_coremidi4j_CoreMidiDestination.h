@@ -0,0 +1,21 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class uk_co_xfactorylibrarians_coremidi4j_CoreMidiDestination */
+
+#ifndef _Included_uk_co_xfactorylibrarians_coremidi4j_CoreMidiDestination
+#define _Included_uk_co_xfactorylibrarians_coremidi4j_CoreMidiDestination
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     uk_co_xfactorylibrarians_coremidi4j_CoreMidiDestination
+ * Method:    getMicroSecondTime
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_uk_co_xfactorylibrarians_coremidi4j_CoreMidiDestination_getMicroSecondTime
+  (JNIEnv *, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,23 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource */
+
+#ifndef _Included_uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource
+#define _Included_uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource_ACTIVE_SENSING_TIMEOUT
+#define uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource_ACTIVE_SENSING_TIMEOUT 300000LL
+/*
+ * Class:     uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource
+ * Method:    getMicroSecondTime
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_uk_co_xfactorylibrarians_coremidi4j_CoreMidiSource_getMicroSecondTime
+  (JNIEnv *, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif